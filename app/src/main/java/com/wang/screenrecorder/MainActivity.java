@@ -10,16 +10,21 @@ import android.os.Environment;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
+import com.wang.screenavrecorder.CodecRegistry;
+import com.wang.screenavrecorder.EncoderPool;
 import com.wang.screenavrecorder.MediaAudioEncoder;
 import com.wang.screenavrecorder.MediaEncoder;
 import com.wang.screenavrecorder.MediaMuxerWrapper;
 import com.wang.screenavrecorder.AudioRecord;
 import com.wang.screenavrecorder.MediaVideoEncoder;
+import com.wang.screenavrecorder.ScreenRenderer;
+import com.wang.screenavrecorder.VideoEncoderConfig;
 
 import java.io.File;
 import java.io.IOException;
@@ -39,6 +44,13 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     private MediaProjection mMediaProjection;
     private VirtualDisplay mVirtualDisplay;
     private MediaMuxerWrapper mMuxer;
+    private MediaVideoEncoder mVideoEncoder;
+    private ScreenRenderer mScreenRenderer;
+    /**
+     * keeps codecs warm between clips
+     */
+    private final EncoderPool mEncoderPool = new EncoderPool();
+    private final DisplayMetrics mDisplayMetrics = new DisplayMetrics();
 
     private Button mScreenRecBtn;
     private Button mAudioRecBtn;
@@ -61,6 +73,8 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         //noinspection ResourceType
         mMediaProjectionManager = (MediaProjectionManager) getSystemService(MEDIA_PROJECTION_SERVICE);
         mMediaPlayer = new MediaPlayer();
+        // enumerate encoders now so pressing start does not wait for it
+        CodecRegistry.prefetch();
 
     }
 
@@ -71,9 +85,14 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             Log.e(TAG, "media projection is null");
             return;
         }
-        final int width = 720;
-        final int height = 1280;
-        startRecording(width, height);
+        // capture the real size of the screen, ScreenRenderer scales it to an aligned size the codec handles
+        getWindowManager().getDefaultDisplay().getRealMetrics(mDisplayMetrics);
+        final VideoEncoderConfig config = new VideoEncoderConfig.Builder()
+                .setSizeToFit(mDisplayMetrics.widthPixels, mDisplayMetrics.heightPixels, 1920)
+                .setFrameRate(25)
+                .setIFrameInterval(10)
+                .build();
+        startRecording(config);
         mScreenRecBtn.setText("stop video recorder");
         Toast.makeText(this, "Screen recorder is running...", Toast.LENGTH_SHORT).show();
         moveTaskToBack(true);
@@ -156,23 +175,21 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     /**
      * start resorcing
-     * This is a sample project and call this on UI thread to avoid being complicated
-     * but basically this should be called on private thread because prepareing
-     * of encoder is heavy work
+     * encoders are prepared on background threads, the virtual display is created
+     * on UI thread once the video encoder has its input surface
      *
-     * @param width
-     * @param height
+     * @param config
      */
-    private void startRecording(int width, int height) {
+    private void startRecording(VideoEncoderConfig config) {
         Log.v(TAG, "startRecording:");
         try {
-            mMuxer = new MediaMuxerWrapper(DIR_SCREEN ,".mp4");    // if you record audio only, ".m4a" is also OK.
+            // if you record audio only, ".m4a" is also OK.
+            mMuxer = new MediaMuxerWrapper(new File(DIR_SCREEN), ".mp4", MediaMuxerWrapper.OUTPUT_FORMAT_MPEG_4, mEncoderPool);
             // for video capturing
-            new MediaVideoEncoder(mMuxer, mListener, width, height);
-            // for audio capturing
-            new MediaAudioEncoder(mMuxer, mListener);
-            mMuxer.prepare();
-            mMuxer.startRecording();
+            mVideoEncoder = new MediaVideoEncoder(mMuxer, mListener, config);
+            // for audio capturing, what other apps play mixed with the mic on API >= 29
+            new MediaAudioEncoder(mMuxer, mListener, mMediaProjection, MediaAudioEncoder.SOURCE_PLAYBACK_AND_MIC);
+            mMuxer.startAsync(mPrepareCallback);
         } catch (final IOException e) {
             Log.e(TAG, "startCapture:", e);
         }
@@ -186,6 +203,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         if (mMuxer != null) {
             mMuxer.stopRecording();
             mMuxer = null;
+            mVideoEncoder = null;
             // you should not wait here
         }
         if (mMediaProjection != null) {
@@ -196,6 +214,10 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             mVirtualDisplay.release();
             mVirtualDisplay = null;
         }
+        if (mScreenRenderer != null) {
+            mScreenRenderer.release();
+            mScreenRenderer = null;
+        }
     }
 
 
@@ -203,20 +225,46 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     protected void onDestroy() {
         super.onDestroy();
         stopRecording();
+        mEncoderPool.release();
 
         mMediaPlayer.release();
         mMediaPlayer = null;
     }
 
+    private MediaMuxerWrapper.PrepareCallback mPrepareCallback = new MediaMuxerWrapper.PrepareCallback() {
+        @Override
+        public void onPrepared(MediaMuxerWrapper muxer) {
+            if (muxer != mMuxer || mVideoEncoder == null || mMediaProjection == null) {
+                // stopped while preparing
+                return;
+            }
+            try {
+                mScreenRenderer = new ScreenRenderer(mVideoEncoder,
+                        mDisplayMetrics.widthPixels, mDisplayMetrics.heightPixels, false);
+            } catch (final IllegalStateException e) {
+                onError(muxer, e);
+                return;
+            }
+            mVirtualDisplay = mMediaProjection.createVirtualDisplay(TAG + "-display",
+                    mDisplayMetrics.widthPixels, mDisplayMetrics.heightPixels, mDisplayMetrics.densityDpi,
+                    DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC, mScreenRenderer.getInputSurface(), null, null);
+        }
+
+        @Override
+        public void onError(MediaMuxerWrapper muxer, Exception e) {
+            Log.e(TAG, "failed to start recording", e);
+            Toast.makeText(MainActivity.this, "failed to start recording", Toast.LENGTH_SHORT).show();
+            if (muxer == mMuxer) {
+                stopRecording();
+                mScreenRecBtn.setText("start video recorder");
+            }
+        }
+    };
+
     private MediaEncoder.MediaEncoderListener mListener = new MediaEncoder.MediaEncoderListener() {
         @Override
         public void onPrepared(MediaEncoder encoder) {
-            if (encoder instanceof MediaVideoEncoder) {
-                MediaVideoEncoder videoEncoder = (MediaVideoEncoder) encoder;
-                mVirtualDisplay = mMediaProjection.createVirtualDisplay(TAG + "-display",
-                        videoEncoder.getWidth(), videoEncoder.getHeight(), 1, DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC,
-                        videoEncoder.getSurface(), null, null);
-            }
+            // called on the preparing thread, the virtual display is created in mPrepareCallback
         }
 
         @Override
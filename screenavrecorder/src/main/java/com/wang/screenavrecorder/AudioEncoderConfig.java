@@ -0,0 +1,315 @@
+package com.wang.screenavrecorder;
+
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+/**
+ * Parameters of the audio encoder.
+ * Use {@link Builder} to create, and {@link #resolve(MediaCodecInfo.CodecCapabilities)} to
+ * fit the values to what the selected codec supports before configuring it.
+ * For voice only recordings HE-AAC at 24-32 kbps needs about half the size of AAC-LC.
+ */
+public final class AudioEncoderConfig {
+
+    private static final String TAG = "AudioEncoderConfig";
+
+    /**
+     * AAC, supported by every device
+     */
+    public static final int CODEC_AAC = 0;
+    /**
+     * Opus, needs API >= 29 for the encoder and for MediaMuxer to write the track into MP4.
+     * Falls back to AAC otherwise
+     */
+    public static final int CODEC_OPUS = 1;
+
+    public static final String MIME_TYPE_AAC = "audio/mp4a-latm";
+    public static final String MIME_TYPE_OPUS = "audio/opus";
+
+    public static final int AAC_PROFILE_LC = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+    /**
+     * AAC-LC with spectral band replication, for low bitrates
+     */
+    public static final int AAC_PROFILE_HE = MediaCodecInfo.CodecProfileLevel.AACObjectHE;
+    /**
+     * HE-AAC with parametric stereo, stereo only
+     */
+    public static final int AAC_PROFILE_HE_V2 = MediaCodecInfo.CodecProfileLevel.AACObjectHE_PS;
+
+    /**
+     * AAC profiles from simplest to most efficient, used to step down to a supported profile
+     */
+    private static final int[] AAC_PROFILES = {
+            AAC_PROFILE_LC,
+            AAC_PROFILE_HE,
+            AAC_PROFILE_HE_V2,
+    };
+
+    private final int mCodec;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final int mBitRate;
+    private final int mAacProfile;
+
+    private AudioEncoderConfig(final Builder builder) {
+        mCodec = builder.mCodec;
+        mSampleRate = builder.mSampleRate;
+        mChannelCount = builder.mChannelCount;
+        mBitRate = builder.mBitRate;
+        mAacProfile = builder.mAacProfile;
+    }
+
+    /**
+     * @return one of CODEC_AAC/OPUS, never CODEC_OPUS after the encoder was prepared if it is not supported
+     */
+    public int getCodec() {
+        return mCodec;
+    }
+
+    public String getMimeType() {
+        return mCodec == CODEC_OPUS ? MIME_TYPE_OPUS : MIME_TYPE_AAC;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return 1 or 2
+     */
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * @return AudioFormat.CHANNEL_IN_MONO or CHANNEL_IN_STEREO
+     */
+    public int getChannelMask() {
+        return mChannelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    }
+
+    /**
+     * @return bits per second
+     */
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * @return one of AAC_PROFILE_LC/HE/HE_V2, not used with Opus
+     */
+    public int getAacProfile() {
+        return mAacProfile;
+    }
+
+    /**
+     * fit this config to the capabilities of codec, every unsupported value is replaced
+     * with the closest supported one. On API < 21 codecs do not expose their limits
+     * so only the AAC profile is checked.
+     *
+     * @param caps capabilities of the selected codec for the MIME type
+     * @return this if everything is supported
+     */
+    @SuppressLint("NewApi")
+    public AudioEncoderConfig resolve(final MediaCodecInfo.CodecCapabilities caps) {
+        final Builder builder = new Builder(this);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final MediaCodecInfo.AudioCapabilities audio = caps.getAudioCapabilities();
+            if (audio != null) {
+                final Range<Integer> bitRates = audio.getBitrateRange();
+                builder.setBitRate(bitRates.clamp(builder.mBitRate));
+                if (!audio.isSampleRateSupported(builder.mSampleRate)) {
+                    final Range<Integer>[] ranges = audio.getSupportedSampleRateRanges();
+                    final int[] lowers = new int[ranges.length];
+                    final int[] uppers = new int[ranges.length];
+                    for (int i = 0; i < ranges.length; i++) {
+                        lowers[i] = ranges[i].getLower();
+                        uppers[i] = ranges[i].getUpper();
+                    }
+                    builder.setSampleRate(selectSampleRate(builder.mSampleRate, lowers, uppers));
+                }
+                final int maxChannels = audio.getMaxInputChannelCount();
+                if (maxChannels > 0 && builder.mChannelCount > maxChannels) {
+                    builder.setChannelCount(maxChannels);
+                }
+            }
+        }
+        if (builder.mCodec == CODEC_AAC) {
+            final MediaCodecInfo.CodecProfileLevel[] supported = caps.profileLevels;
+            final int n = supported != null ? supported.length : 0;
+            final int[] profiles = new int[n];
+            for (int i = 0; i < n; i++) {
+                profiles[i] = supported[i].profile;
+            }
+            builder.setAacProfile(selectAacProfile(builder.mAacProfile, builder.mChannelCount, profiles));
+        }
+        final AudioEncoderConfig resolved = builder.build();
+        if (!resolved.equals(this)) {
+            Log.i(TAG, "resolve: " + this + " -> " + resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * @return format to configure the encoder with, input is 16bit PCM
+     */
+    public MediaFormat toFormat() {
+        final MediaFormat format = MediaFormat.createAudioFormat(getMimeType(), mSampleRate, mChannelCount);
+        if (mCodec == CODEC_AAC) {
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, mAacProfile);
+        }
+        format.setInteger(MediaFormat.KEY_CHANNEL_MASK, getChannelMask());
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount);
+        return format;
+    }
+
+    /**
+     * @param sampleRate requested rate
+     * @param lowers     lower bound of each range of rates the codec supports
+     * @param uppers     upper bound of each range, discrete rates are ranges of one value
+     * @return the supported rate closest to sampleRate, preferring the higher one on a tie,
+     * sampleRate if nothing is known
+     */
+    static int selectSampleRate(final int sampleRate, final int[] lowers, final int[] uppers) {
+        int best = sampleRate;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < lowers.length; i++) {
+            final int rate = Math.max(lowers[i], Math.min(uppers[i], sampleRate));
+            final long distance = Math.abs((long) rate - sampleRate);
+            if (distance < bestDistance || distance == bestDistance && rate > best) {
+                best = rate;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param profile      requested profile
+     * @param channelCount
+     * @param profiles     profiles the codec supports, empty if it does not tell
+     * @return requested profile if usable, otherwise the next simpler one that is supported.
+     * HE-AAC v2 needs stereo, AAC-LC is always usable
+     */
+    static int selectAacProfile(final int profile, final int channelCount, final int[] profiles) {
+        int i = AAC_PROFILES.length - 1;
+        while (i > 0 && AAC_PROFILES[i] != profile) i--;
+        for (; i > 0; i--) {
+            if (AAC_PROFILES[i] == AAC_PROFILE_HE_V2 && channelCount < 2) continue;
+            if (profiles.length == 0 || contains(profiles, AAC_PROFILES[i])) return AAC_PROFILES[i];
+        }
+        return AAC_PROFILE_LC;
+    }
+
+    private static boolean contains(final int[] values, final int value) {
+        for (final int v : values) {
+            if (v == value) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (!(o instanceof AudioEncoderConfig)) return false;
+        final AudioEncoderConfig that = (AudioEncoderConfig) o;
+        return mCodec == that.mCodec && mSampleRate == that.mSampleRate && mChannelCount == that.mChannelCount
+                && mBitRate == that.mBitRate && mAacProfile == that.mAacProfile;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mCodec;
+        result = 31 * result + mSampleRate;
+        result = 31 * result + mChannelCount;
+        result = 31 * result + mBitRate;
+        result = 31 * result + mAacProfile;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "AudioEncoderConfig{" + getMimeType() + " " + mSampleRate + "Hz, channels=" + mChannelCount
+                + ", bitRate=" + mBitRate + (mCodec == CODEC_AAC ? ", aacProfile=" + mAacProfile : "") + "}";
+    }
+
+    public static final class Builder {
+
+        private int mCodec = CODEC_AAC;
+        private int mSampleRate = 44100;    // 44.1[KHz] is only setting guaranteed to be available on all devices.
+        private int mChannelCount = 1;
+        private int mBitRate = 64000;
+        private int mAacProfile = AAC_PROFILE_LC;
+
+        public Builder() {
+        }
+
+        public Builder(final AudioEncoderConfig config) {
+            mCodec = config.mCodec;
+            mSampleRate = config.mSampleRate;
+            mChannelCount = config.mChannelCount;
+            mBitRate = config.mBitRate;
+            mAacProfile = config.mAacProfile;
+        }
+
+        /**
+         * @param codec one of CODEC_AAC/OPUS
+         */
+        public Builder setCodec(final int codec) {
+            mCodec = codec;
+            return this;
+        }
+
+        /**
+         * @param sampleRate Hz, of the capture as well as of the encoder
+         */
+        public Builder setSampleRate(final int sampleRate) {
+            mSampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * @param channelCount 1 or 2
+         */
+        public Builder setChannelCount(final int channelCount) {
+            mChannelCount = channelCount;
+            return this;
+        }
+
+        /**
+         * @param bitRate bits per second
+         */
+        public Builder setBitRate(final int bitRate) {
+            mBitRate = bitRate;
+            return this;
+        }
+
+        /**
+         * @param aacProfile one of AAC_PROFILE_LC/HE/HE_V2, HE_V2 steps down to HE with one channel
+         */
+        public Builder setAacProfile(final int aacProfile) {
+            mAacProfile = aacProfile;
+            return this;
+        }
+
+        public AudioEncoderConfig build() {
+            if (mCodec != CODEC_AAC && mCodec != CODEC_OPUS)
+                throw new IllegalArgumentException("invalid codec " + mCodec);
+            if (mSampleRate <= 0)
+                throw new IllegalArgumentException("invalid sample rate " + mSampleRate);
+            if (mChannelCount != 1 && mChannelCount != 2)
+                throw new IllegalArgumentException("invalid channel count " + mChannelCount);
+            if (mBitRate <= 0)
+                throw new IllegalArgumentException("invalid bitrate " + mBitRate);
+            if (mAacProfile != AAC_PROFILE_LC && mAacProfile != AAC_PROFILE_HE && mAacProfile != AAC_PROFILE_HE_V2)
+                throw new IllegalArgumentException("invalid AAC profile " + mAacProfile);
+            return new AudioEncoderConfig(this);
+        }
+    }
+}
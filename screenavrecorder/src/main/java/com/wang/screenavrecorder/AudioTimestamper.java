@@ -0,0 +1,92 @@
+package com.wang.screenavrecorder;
+
+/**
+ * Presentation time of captured PCM, derived from the number of samples read.
+ * Timestamps taken when AudioRecord#read returns jitter with scheduling, and the audio
+ * clock slowly drifts from the monotonic clock that video frames are stamped with.
+ * So the sample count gives smooth timestamps, and the smoothed difference to the
+ * monotonic clock (the skew) is slewed away a little on every read.
+ * A skew larger than {@link #RESYNC_US} means samples were lost (overrun, AudioRecord restart)
+ * and the timeline jumps forward instead.
+ */
+final class AudioTimestamper {
+
+    /**
+     * skew below this is read jitter, not drift
+     */
+    static final long DEADBAND_US = 2000;
+    /**
+     * skew above this is a gap in capture
+     */
+    static final long RESYNC_US = 200000;
+    /**
+     * correct at most 1/20 of the duration of a read, keeps timestamps increasing
+     */
+    private static final int MAX_SLEW_DIVISOR = 20;
+    private static final int SKEW_SMOOTHING = 16;
+
+    private final int mSampleRate;
+    /**
+     * presentation time of sample 0, moved by corrections
+     */
+    private long mBaseUs;
+    private long mSamples = -1;
+    private long mSkewUs;
+    private int mResyncCount;
+
+    AudioTimestamper(final int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * @param samples number of samples (per channel) just read
+     * @param nowUs   monotonic clock when the read returned
+     * @return presentation time of the first sample read
+     */
+    long onSamplesRead(final int samples, final long nowUs) {
+        final long durationUs = samples * 1000000L / mSampleRate;
+        // the samples were captured during durationUs before the read returned
+        final long clockPtsUs = nowUs - durationUs;
+        if (mSamples < 0) {
+            mSamples = 0;
+            mBaseUs = clockPtsUs;
+        } else {
+            final long skewUs = clockPtsUs - ptsOf(mSamples);
+            if (skewUs > RESYNC_US) {
+                mBaseUs += skewUs;
+                mSkewUs = 0;
+                mResyncCount++;
+            } else {
+                mSkewUs += (skewUs - mSkewUs) / SKEW_SMOOTHING;
+                if (Math.abs(mSkewUs) > DEADBAND_US) {
+                    final long maxSlewUs = durationUs / MAX_SLEW_DIVISOR;
+                    final long slewUs = Math.max(-maxSlewUs, Math.min(maxSlewUs, mSkewUs));
+                    mBaseUs += slewUs;
+                    mSkewUs -= slewUs;
+                }
+            }
+        }
+        final long ptsUs = ptsOf(mSamples);
+        mSamples += samples;
+        return ptsUs;
+    }
+
+    /**
+     * @return smoothed difference of the monotonic clock to the audio timeline,
+     * positive while audio lags behind
+     */
+    long getSkewUs() {
+        return mSkewUs;
+    }
+
+    /**
+     * @return number of gaps in capture the timeline jumped over
+     */
+    int getResyncCount() {
+        return mResyncCount;
+    }
+
+    private long ptsOf(final long samples) {
+        return mBaseUs + samples * 1000000L / mSampleRate;
+    }
+}
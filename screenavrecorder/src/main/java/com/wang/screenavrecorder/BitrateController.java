@@ -0,0 +1,213 @@
+package com.wang.screenavrecorder;
+
+import android.util.Log;
+
+/**
+ * Adjusts the video bitrate while recording from what the pipeline reports.
+ * Once per window it looks at the time the muxer spends per sample, the number of samples queued
+ * for the muxer, encoder threads that had to wait for room, and frames that left the encoder late.
+ * The bitrate is lowered at once when any of them shows congestion, and raised slowly after
+ * several windows without any, so it does not oscillate around the storage throughput.
+ */
+public final class BitrateController {
+
+    private static final String TAG = "BitrateController";
+
+    static final long WINDOW_US = 1000000;    // 1[sec]
+    static final float DECREASE_FACTOR = 0.7f;
+    static final float INCREASE_FACTOR = 1.15f;
+    /**
+     * consecutive healthy windows before the bitrate is raised
+     */
+    static final int HEALTHY_WINDOWS = 5;
+    /**
+     * windows after a change that are not judged, queued samples still reflect the old bitrate
+     */
+    static final int HOLD_WINDOWS = 2;
+    /**
+     * a frame is late when it leaves the encoder this many frame intervals after it was captured
+     */
+    static final int LATE_FRAME_INTERVALS = 3;
+    static final int QUEUE_HIGH = MuxerWriter.RING_CAPACITY / 2;
+    static final int QUEUE_LOW = 4;
+
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private final long mFrameIntervalUs;
+    private volatile int mBitRate;
+
+    private long mWindowStartUs = -1;
+    private long mLastWriteCount;
+    private long mLastWriteNanos;
+    private long mLastBlockedCount;
+    private int mFrames;
+    private int mLateFrames;
+    private int mMaxQueued;
+    private int mHealthyWindows;
+    private int mHoldWindows;
+
+    private volatile int mDecreaseCount;
+    private volatile int mIncreaseCount;
+    private volatile String mLastReason;
+    private volatile long mLastWriteLatencyUs;
+    private volatile int mLastLateFrames;
+
+    /**
+     * @param initialBitRate bitrate the encoder was configured with
+     * @param minBitRate
+     * @param maxBitRate
+     * @param frameRate      configured frame rate of the encoder
+     */
+    BitrateController(final int initialBitRate, final int minBitRate, final int maxBitRate, final int frameRate) {
+        if (minBitRate <= 0 || maxBitRate < minBitRate)
+            throw new IllegalArgumentException("invalid bitrate range " + minBitRate + "-" + maxBitRate);
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mFrameIntervalUs = 1000000L / Math.max(1, frameRate);
+        mBitRate = clamp(initialBitRate);
+    }
+
+    /**
+     * called for every encoded video frame
+     *
+     * @param lagUs         time between capture of the frame and its output from the encoder
+     * @param queuedSamples samples of the track waiting for the muxer
+     */
+    void onFrameEncoded(final long lagUs, final int queuedSamples) {
+        mFrames++;
+        if (lagUs > LATE_FRAME_INTERVALS * mFrameIntervalUs) {
+            mLateFrames++;
+        }
+        mMaxQueued = Math.max(mMaxQueued, queuedSamples);
+    }
+
+    /**
+     * evaluate the current window if it is complete, the counters are totals since the muxer started
+     *
+     * @param nowUs
+     * @param writeCount   samples written by the muxer
+     * @param writeNanos   time spent writing them
+     * @param blockedCount samples an encoder thread had to wait for
+     * @return new bitrate, 0 if it is unchanged
+     */
+    int update(final long nowUs, final long writeCount, final long writeNanos, final long blockedCount) {
+        if (mWindowStartUs < 0) {
+            startWindow(nowUs, writeCount, writeNanos, blockedCount);
+            return 0;
+        }
+        if (nowUs - mWindowStartUs < WINDOW_US) {
+            return 0;
+        }
+        final long writes = writeCount - mLastWriteCount;
+        final long latencyUs = writes > 0 ? (writeNanos - mLastWriteNanos) / writes / 1000 : 0;
+        final long blocked = blockedCount - mLastBlockedCount;
+        final int frames = mFrames, lateFrames = mLateFrames, maxQueued = mMaxQueued;
+        mLastWriteLatencyUs = latencyUs;
+        mLastLateFrames = lateFrames;
+        startWindow(nowUs, writeCount, writeNanos, blockedCount);
+
+        final String congestion;
+        if (blocked > 0) {
+            congestion = blocked + " samples waited for the muxer";
+        } else if (latencyUs > mFrameIntervalUs / 2) {
+            congestion = "write latency " + latencyUs + "us";
+        } else if (maxQueued > QUEUE_HIGH) {
+            congestion = maxQueued + " samples queued";
+        } else if (lateFrames * 10 > frames) {
+            congestion = lateFrames + "/" + frames + " frames late";
+        } else {
+            congestion = null;
+        }
+        // between the two thresholds the bitrate is kept
+        final boolean healthy = congestion == null && latencyUs < mFrameIntervalUs / 4
+                && maxQueued <= QUEUE_LOW && lateFrames == 0;
+        mHealthyWindows = healthy ? mHealthyWindows + 1 : 0;
+        if (mHoldWindows > 0) {
+            mHoldWindows--;
+            return 0;
+        }
+        if (congestion != null && mBitRate > mMinBitRate) {
+            mDecreaseCount++;
+            return change((int) (mBitRate * DECREASE_FACTOR), congestion);
+        }
+        if (mHealthyWindows >= HEALTHY_WINDOWS && mBitRate < mMaxBitRate) {
+            mIncreaseCount++;
+            return change((int) (mBitRate * INCREASE_FACTOR), mHealthyWindows + " healthy windows");
+        }
+        return 0;
+    }
+
+    /**
+     * @return current target bitrate
+     */
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    public int getMinBitRate() {
+        return mMinBitRate;
+    }
+
+    public int getMaxBitRate() {
+        return mMaxBitRate;
+    }
+
+    public int getDecreaseCount() {
+        return mDecreaseCount;
+    }
+
+    public int getIncreaseCount() {
+        return mIncreaseCount;
+    }
+
+    /**
+     * @return why the bitrate was changed last, null if it was not changed yet
+     */
+    public String getLastReason() {
+        return mLastReason;
+    }
+
+    /**
+     * @return average time the muxer took per sample in the last window
+     */
+    public long getLastWriteLatencyUs() {
+        return mLastWriteLatencyUs;
+    }
+
+    /**
+     * @return number of late frames in the last window
+     */
+    public int getLastLateFrames() {
+        return mLastLateFrames;
+    }
+
+    @Override
+    public String toString() {
+        return "BitrateController{bitRate=" + mBitRate + ", range=" + mMinBitRate + "-" + mMaxBitRate
+                + ", decreases=" + mDecreaseCount + ", increases=" + mIncreaseCount
+                + ", writeLatencyUs=" + mLastWriteLatencyUs + ", lateFrames=" + mLastLateFrames
+                + ", lastReason=" + mLastReason + "}";
+    }
+
+    private int change(final int bitRate, final String reason) {
+        final int newBitRate = clamp(bitRate);
+        Log.i(TAG, "bitrate " + mBitRate + " -> " + newBitRate + ": " + reason);
+        mBitRate = newBitRate;
+        mLastReason = reason;
+        mHealthyWindows = 0;
+        mHoldWindows = HOLD_WINDOWS;
+        return newBitRate;
+    }
+
+    private void startWindow(final long nowUs, final long writeCount, final long writeNanos, final long blockedCount) {
+        mWindowStartUs = nowUs;
+        mLastWriteCount = writeCount;
+        mLastWriteNanos = writeNanos;
+        mLastBlockedCount = blockedCount;
+        mFrames = mLateFrames = mMaxQueued = 0;
+    }
+
+    private int clamp(final int bitRate) {
+        return Math.max(mMinBitRate, Math.min(mMaxBitRate, bitRate));
+    }
+}
@@ -0,0 +1,298 @@
+package com.wang.screenavrecorder;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process wide list of encoders, built once.
+ * Enumerating MediaCodecList and querying capabilities takes a long time on low end devices,
+ * so call {@link #prefetch()} early (e.g. in Activity#onCreate) to build it off the UI thread.
+ * Encoders of each MIME type are ranked hardware first, then by the bitrate modes they offer
+ * and the largest size they accept. Use {@link #dump()} to see the ranking.
+ */
+public final class CodecRegistry {
+
+    private static final String TAG = "CodecRegistry";
+
+    private static final FutureTask<CodecRegistry> sTask = new FutureTask<>(new Callable<CodecRegistry>() {
+        @Override
+        public CodecRegistry call() {
+            return new CodecRegistry();
+        }
+    });
+    private static final AtomicBoolean sPrefetched = new AtomicBoolean();
+    /**
+     * MediaCodecInfo#isHardwareAccelerated, API >= 29 is newer than compileSdkVersion
+     */
+    private static Method sIsHardwareAccelerated;
+
+    /**
+     * start building the registry on a background thread, returns immediately
+     */
+    public static void prefetch() {
+        if (sPrefetched.compareAndSet(false, true)) {
+            new Thread(sTask, TAG).start();
+        }
+    }
+
+    /**
+     * @return the registry, built on the calling thread if {@link #prefetch()} was not called
+     */
+    public static CodecRegistry get() {
+        // no-op if the task already ran or is running on the prefetch thread
+        sTask.run();
+        boolean interrupted = false;
+        try {
+            for (; ; ) {
+                try {
+                    return sTask.get();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (final ExecutionException e) {
+            throw new RuntimeException("failed to enumerate codecs", e.getCause());
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * an encoder for one MIME type with the capabilities used for ranking
+     */
+    public static final class Entry {
+        public final MediaCodecInfo info;
+        public final String mimeType;
+        public final boolean hardware;
+        /**
+         * number of bitrate modes the encoder supports, 0 on API < 21
+         */
+        public final int bitrateModes;
+        /**
+         * largest frame in pixels, 0 for audio or on API < 21
+         */
+        public final int maxArea;
+        final MediaCodecInfo.CodecCapabilities caps;
+
+        Entry(final MediaCodecInfo info, final String mimeType, final MediaCodecInfo.CodecCapabilities caps,
+              final boolean hardware, final int bitrateModes, final int maxArea) {
+            this.info = info;
+            this.mimeType = mimeType;
+            this.caps = caps;
+            this.hardware = hardware;
+            this.bitrateModes = bitrateModes;
+            this.maxArea = maxArea;
+        }
+
+        public String getName() {
+            return info.getName();
+        }
+
+        @Override
+        public String toString() {
+            return info.getName() + "{" + mimeType + (hardware ? ", hw" : ", sw")
+                    + ", bitrateModes=" + bitrateModes + ", maxArea=" + maxArea + "}";
+        }
+    }
+
+    private static final Comparator<Entry> RANKING = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry a, final Entry b) {
+            if (a.hardware != b.hardware) return a.hardware ? -1 : 1;
+            if (a.bitrateModes != b.bitrateModes) return b.bitrateModes - a.bitrateModes;
+            return b.maxArea < a.maxArea ? -1 : (b.maxArea == a.maxArea ? 0 : 1);
+        }
+    };
+
+    private final MediaCodecInfo[] mEncoders;
+    /**
+     * ranked encoders of each MIME type, guarded by itself
+     */
+    private final Map<String, List<Entry>> mRanked = new HashMap<>();
+
+    private CodecRegistry() {
+        final long start = System.nanoTime();
+        final List<MediaCodecInfo> encoders = new ArrayList<>();
+        for (final MediaCodecInfo info : listCodecs()) {
+            if (info.isEncoder()) {    // skipp decoder
+                encoders.add(info);
+            }
+        }
+        mEncoders = encoders.toArray(new MediaCodecInfo[encoders.size()]);
+        Log.i(TAG, "found " + mEncoders.length + " encoders in " + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    /**
+     * @param mimeType
+     * @return encoders of mimeType, best first. Video encoders without Surface input are excluded.
+     */
+    public List<Entry> getEncoders(final String mimeType) {
+        final String key = mimeType.toLowerCase(Locale.US);
+        synchronized (mRanked) {
+            List<Entry> ranked = mRanked.get(key);
+            if (ranked == null) {
+                ranked = Collections.unmodifiableList(rank(key));
+                mRanked.put(key, ranked);
+            }
+            return ranked;
+        }
+    }
+
+    /**
+     * select the best video encoder that supports the size and frame rate.
+     * On API < 21 codecs do not expose their limits and the best ranked one is returned.
+     *
+     * @param mimeType
+     * @param width
+     * @param height
+     * @param frameRate
+     * @param hardwareOnly
+     * @return null if no codec matched
+     */
+    @SuppressLint("NewApi")
+    public Entry selectVideoEncoder(final String mimeType, final int width, final int height,
+                                    final int frameRate, final boolean hardwareOnly) {
+        for (final Entry entry : getEncoders(mimeType)) {
+            if (hardwareOnly && !entry.hardware) continue;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                final MediaCodecInfo.VideoCapabilities video = entry.caps.getVideoCapabilities();
+                if (video != null && !video.areSizeAndRateSupported(width, height, frameRate)) {
+                    continue;
+                }
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * @param mimeType
+     * @return best ranked encoder, null if there is none
+     */
+    public Entry selectEncoder(final String mimeType) {
+        final List<Entry> encoders = getEncoders(mimeType);
+        return encoders.isEmpty() ? null : encoders.get(0);
+    }
+
+    /**
+     * @return ranking of every MIME type queried so far, one encoder per line
+     */
+    public String dump() {
+        final StringBuilder sb = new StringBuilder();
+        synchronized (mRanked) {
+            for (final Map.Entry<String, List<Entry>> e : mRanked.entrySet()) {
+                sb.append(e.getKey()).append(":\n");
+                for (final Entry entry : e.getValue()) {
+                    sb.append("  ").append(entry).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    @SuppressLint("NewApi")
+    private List<Entry> rank(final String mimeType) {
+        final boolean video = mimeType.startsWith("video/");
+        final List<Entry> result = new ArrayList<>();
+        for (final MediaCodecInfo info : mEncoders) {
+            if (!supportsType(info, mimeType)) continue;
+            final MediaCodecInfo.CodecCapabilities caps;
+            try {
+                caps = info.getCapabilitiesForType(mimeType);
+            } catch (final IllegalArgumentException e) {
+                Log.w(TAG, "no capabilities for " + info.getName() + " / " + mimeType);
+                continue;
+            }
+            if (video && !supportsSurfaceInput(caps)) continue;
+            int bitrateModes = 0, maxArea = 0;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                final MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+                if (encoder != null) {
+                    if (encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) bitrateModes++;
+                    if (encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)) bitrateModes++;
+                    if (encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ)) bitrateModes++;
+                }
+                final MediaCodecInfo.VideoCapabilities videoCaps = caps.getVideoCapabilities();
+                if (videoCaps != null) {
+                    maxArea = videoCaps.getSupportedWidths().getUpper() * videoCaps.getSupportedHeights().getUpper();
+                }
+            }
+            result.add(new Entry(info, mimeType, caps, isHardwareAccelerated(info), bitrateModes, maxArea));
+        }
+        // stable, so equally ranked codecs keep the order of MediaCodecList
+        Collections.sort(result, RANKING);
+        Log.i(TAG, "ranked " + mimeType + ": " + result);
+        return result;
+    }
+
+    @SuppressLint("NewApi")
+    private static MediaCodecInfo[] listCodecs() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        }
+        final int numCodecs = MediaCodecList.getCodecCount();
+        final MediaCodecInfo[] infos = new MediaCodecInfo[numCodecs];
+        for (int i = 0; i < numCodecs; i++) {
+            infos[i] = MediaCodecList.getCodecInfoAt(i);
+        }
+        return infos;
+    }
+
+    private static boolean supportsType(final MediaCodecInfo info, final String mimeType) {
+        for (final String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mimeType)) return true;
+        }
+        return false;
+    }
+
+    private static boolean supportsSurfaceInput(final MediaCodecInfo.CodecCapabilities caps) {
+        for (final int colorFormat : caps.colorFormats) {
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Uses MediaCodecInfo#isHardwareAccelerated on API >= 29. Older releases do not tell,
+     * there software encoders are recognized by name: OMX.google.* / c2.android.* (AOSP)
+     * or a ".sw." part (vendors).
+     *
+     * @param info
+     * @return false if info is a software codec
+     */
+    static boolean isHardwareAccelerated(final MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= 29) {
+            try {
+                if (sIsHardwareAccelerated == null) {
+                    sIsHardwareAccelerated = MediaCodecInfo.class.getMethod("isHardwareAccelerated");
+                }
+                return (Boolean) sIsHardwareAccelerated.invoke(info);
+            } catch (final Exception e) {
+                Log.w(TAG, "isHardwareAccelerated:", e);
+            }
+        }
+        return isHardwareCodecName(info.getName());
+    }
+
+    static boolean isHardwareCodecName(final String codecName) {
+        final String name = codecName.toLowerCase(Locale.US);
+        return !(name.startsWith("omx.google.") || name.startsWith("c2.android.")
+                || name.startsWith("c2.google.") || name.contains(".sw."));
+    }
+}
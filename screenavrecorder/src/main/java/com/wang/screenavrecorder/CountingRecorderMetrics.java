@@ -0,0 +1,115 @@
+package com.wang.screenavrecorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps per-track counters and latency histograms of a recording.
+ * Values can be read at any time, e.g. to show them while recording or to log them after stop.
+ */
+public class CountingRecorderMetrics implements RecorderMetrics {
+
+    /**
+     * counters of one track
+     */
+    public static final class TrackStats {
+        public final AtomicLong inputFrames = new AtomicLong();
+        public final AtomicLong inputBytes = new AtomicLong();
+        public final AtomicLong outputFrames = new AtomicLong();
+        public final AtomicLong outputBytes = new AtomicLong();
+        public final AtomicLong drainLoops = new AtomicLong();
+        public final AtomicLong emptyPolls = new AtomicLong();
+        public final AtomicLong writtenFrames = new AtomicLong();
+        public final AtomicLong writtenBytes = new AtomicLong();
+        public final AtomicLong droppedFrames = new AtomicLong();
+        /**
+         * capture to encoder output
+         */
+        public final LatencyHistogram encodeLatencyUs = new LatencyHistogram();
+        public final LatencyHistogram muxerWriteLatencyUs = new LatencyHistogram();
+
+        @Override
+        public String toString() {
+            return "in=" + inputFrames + "/" + inputBytes + "B, out=" + outputFrames + "/" + outputBytes
+                    + "B, written=" + writtenFrames + "/" + writtenBytes + "B, dropped=" + droppedFrames
+                    + ", drainLoops=" + drainLoops + ", emptyPolls=" + emptyPolls
+                    + ", encodeLatencyUs={" + encodeLatencyUs + "}, muxerWriteLatencyUs={" + muxerWriteLatencyUs + "}";
+        }
+    }
+
+    private final TrackStats[] mTracks = {new TrackStats(), new TrackStats()};
+    /**
+     * absolute A/V skew
+     */
+    private final LatencyHistogram mAvSkewUs = new LatencyHistogram();
+    private volatile long mLastAvSkewUs;
+
+    /**
+     * @param track {@link #TRACK_VIDEO} or {@link #TRACK_AUDIO}
+     */
+    public TrackStats getTrack(final int track) {
+        return mTracks[track];
+    }
+
+    public LatencyHistogram getAvSkewUs() {
+        return mAvSkewUs;
+    }
+
+    public long getLastAvSkewUs() {
+        return mLastAvSkewUs;
+    }
+
+    @Override
+    public void onInputQueued(final int track, final int bytes) {
+        final TrackStats stats = mTracks[track];
+        stats.inputFrames.incrementAndGet();
+        stats.inputBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void onOutputEncoded(final int track, final int bytes, final long latencyUs) {
+        final TrackStats stats = mTracks[track];
+        stats.outputFrames.incrementAndGet();
+        stats.outputBytes.addAndGet(bytes);
+        stats.encodeLatencyUs.record(latencyUs);
+    }
+
+    @Override
+    public void onDrainLoop(final int track, final int samples) {
+        final TrackStats stats = mTracks[track];
+        stats.drainLoops.incrementAndGet();
+        if (samples == 0) stats.emptyPolls.incrementAndGet();
+    }
+
+    @Override
+    public void onMuxerWrite(final int track, final int bytes, final long latencyNanos) {
+        final TrackStats stats = mTracks[track];
+        stats.writtenFrames.incrementAndGet();
+        stats.writtenBytes.addAndGet(bytes);
+        stats.muxerWriteLatencyUs.record(latencyNanos / 1000);
+    }
+
+    @Override
+    public void onFrameDropped(final int track) {
+        mTracks[track].droppedFrames.incrementAndGet();
+    }
+
+    @Override
+    public void onAvSkew(final long skewUs) {
+        mLastAvSkewUs = skewUs;
+        mAvSkewUs.record(Math.abs(skewUs));
+    }
+
+    @Override
+    public void beginSection(final String name) {
+    }
+
+    @Override
+    public void endSection() {
+    }
+
+    @Override
+    public String toString() {
+        return "RecorderMetrics{video={" + mTracks[TRACK_VIDEO] + "}, audio={" + mTracks[TRACK_AUDIO]
+                + "}, avSkewUs={" + mAvSkewUs + "}}";
+    }
+}
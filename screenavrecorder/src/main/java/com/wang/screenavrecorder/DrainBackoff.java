@@ -0,0 +1,45 @@
+package com.wang.screenavrecorder;
+
+/**
+ * Delay between output polls of a codec that can not notify us (sync mode on API < 21).
+ * The delay starts at one frame interval while output keeps coming and doubles on every
+ * empty poll up to a maximum, so an idle screen costs only a few wakeups per second.
+ */
+final class DrainBackoff {
+
+    private final long mMinDelayMs;
+    private final long mMaxDelayMs;
+    private long mDelayMs;
+
+    /**
+     * @param frameRate  configured frame rate of the encoder
+     * @param maxFrames  maximum delay in frame intervals, this bounds the latency of the first frame after idle
+     */
+    DrainBackoff(final int frameRate, final int maxFrames) {
+        mMinDelayMs = Math.max(1, 1000 / Math.max(1, frameRate));
+        mMaxDelayMs = mMinDelayMs * Math.max(1, maxFrames);
+        mDelayMs = mMinDelayMs;
+    }
+
+    /**
+     * @return delay before next poll in milliseconds
+     */
+    long getDelayMs() {
+        return mDelayMs;
+    }
+
+    /**
+     * update the delay with the result of a poll
+     *
+     * @param samples number of samples the poll drained
+     * @return delay before next poll in milliseconds
+     */
+    long onDrained(final int samples) {
+        if (samples > 0) {
+            mDelayMs = mMinDelayMs;
+        } else {
+            mDelayMs = Math.min(mDelayMs * 2, mMaxDelayMs);
+        }
+        return mDelayMs;
+    }
+}
@@ -0,0 +1,137 @@
+package com.wang.screenavrecorder;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.view.Surface;
+
+/**
+ * EGL display and OpenGL ES 2 context that can render into encoder input surfaces.
+ * Every method has to be called on the thread that created it.
+ */
+final class EglCore {
+
+    /**
+     * EGL_RECORDABLE_ANDROID, the config must be accepted by video encoders
+     */
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig mConfig;
+
+    /**
+     * @param sharedContext context to share textures with, null for none
+     */
+    EglCore(final EGLContext sharedContext) {
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mDisplay == EGL14.EGL_NO_DISPLAY)
+            throw new IllegalStateException("no EGL display");
+        final int[] version = new int[2];
+        if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+            mDisplay = EGL14.EGL_NO_DISPLAY;
+            throw new IllegalStateException("eglInitialize failed");
+        }
+        final int[] attribs = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        final EGLConfig[] configs = new EGLConfig[1];
+        final int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(mDisplay, attribs, 0, configs, 0, 1, numConfigs, 0) || numConfigs[0] < 1) {
+            release();
+            throw new IllegalStateException("no recordable RGBA8888 EGL config");
+        }
+        mConfig = configs[0];
+        final int[] contextAttribs = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_NONE
+        };
+        mContext = EGL14.eglCreateContext(mDisplay, mConfig,
+                sharedContext != null ? sharedContext : EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+        if (mContext == null || mContext == EGL14.EGL_NO_CONTEXT) {
+            mContext = EGL14.EGL_NO_CONTEXT;
+            release();
+            throw new IllegalStateException("eglCreateContext failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+    }
+
+    EGLContext getContext() {
+        return mContext;
+    }
+
+    /**
+     * @param surface input surface of an encoder, or any other window surface
+     * @throws IllegalStateException if the surface already has a producer, e.g. a VirtualDisplay
+     */
+    EGLSurface createWindowSurface(final Surface surface) {
+        final int[] attribs = {EGL14.EGL_NONE};
+        final EGLSurface eglSurface = EGL14.eglCreateWindowSurface(mDisplay, mConfig, surface, attribs, 0);
+        if (eglSurface == null || eglSurface == EGL14.EGL_NO_SURFACE)
+            throw new IllegalStateException("eglCreateWindowSurface failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        return eglSurface;
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @return pbuffer surface, to make the context current without a window
+     */
+    EGLSurface createOffscreenSurface(final int width, final int height) {
+        final int[] attribs = {
+                EGL14.EGL_WIDTH, width,
+                EGL14.EGL_HEIGHT, height,
+                EGL14.EGL_NONE
+        };
+        final EGLSurface eglSurface = EGL14.eglCreatePbufferSurface(mDisplay, mConfig, attribs, 0);
+        if (eglSurface == null || eglSurface == EGL14.EGL_NO_SURFACE)
+            throw new IllegalStateException("eglCreatePbufferSurface failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        return eglSurface;
+    }
+
+    void makeCurrent(final EGLSurface surface) {
+        if (!EGL14.eglMakeCurrent(mDisplay, surface, surface, mContext))
+            throw new IllegalStateException("eglMakeCurrent failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+    }
+
+    /**
+     * @param surface
+     * @param nanos   presentation time of the next swap, becomes the sample time of the encoded frame
+     */
+    void setPresentationTime(final EGLSurface surface, final long nanos) {
+        EGLExt.eglPresentationTimeANDROID(mDisplay, surface, nanos);    // API >= 18
+    }
+
+    /**
+     * @return false if the surface was abandoned, e.g. the encoder was released
+     */
+    boolean swapBuffers(final EGLSurface surface) {
+        return EGL14.eglSwapBuffers(mDisplay, surface);
+    }
+
+    void releaseSurface(final EGLSurface surface) {
+        EGL14.eglDestroySurface(mDisplay, surface);
+    }
+
+    void release() {
+        if (mDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (mContext != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(mDisplay, mContext);
+            }
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(mDisplay);
+        }
+        mDisplay = EGL14.EGL_NO_DISPLAY;
+        mContext = EGL14.EGL_NO_CONTEXT;
+        mConfig = null;
+    }
+}
@@ -0,0 +1,53 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoded sample copied out of a codec output buffer,
+ * so the codec buffer can be returned before the sample reaches the muxer.
+ * Instances are recycled through {@link PacketPool}.
+ */
+final class EncodedPacket {
+
+    /**
+     * size class of packets that are not returned to the pool
+     */
+    static final int UNPOOLED = -1;
+
+    final ByteBuffer data;
+    final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    /**
+     * size class in PacketPool, or UNPOOLED
+     */
+    final int sizeClass;
+    int trackIndex;
+
+    EncodedPacket(final int capacity, final int sizeClass) {
+        data = ByteBuffer.allocateDirect(capacity);
+        this.sizeClass = sizeClass;
+    }
+
+    /**
+     * copy encoded data and its BufferInfo, the position and limit of {@code src} are changed.
+     *
+     * @param trackIndex
+     * @param src
+     * @param bufferInfo
+     */
+    void set(final int trackIndex, final ByteBuffer src, final MediaCodec.BufferInfo bufferInfo) {
+        this.trackIndex = trackIndex;
+        src.clear();
+        src.limit(bufferInfo.offset + bufferInfo.size);
+        src.position(bufferInfo.offset);
+        data.clear();
+        data.put(src);
+        data.flip();
+        // assign fields directly, BufferInfo#set is not available on the JVM stubs
+        info.offset = 0;
+        info.size = bufferInfo.size;
+        info.presentationTimeUs = bufferInfo.presentationTimeUs;
+        info.flags = bufferInfo.flags;
+    }
+}
@@ -0,0 +1,116 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec used by {@link MediaEncoder}.
+ * This mirrors the subset of android.media.MediaCodec the encoders need,
+ * so the drain loop, PTS handling and muxer handshake can also run against
+ * an in-memory codec on a plain JVM.
+ */
+interface EncoderBackend {
+
+    /**
+     * callbacks of a codec running in async mode,
+     * called on the private thread of the codec.
+     */
+    interface Callback {
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(Exception e);
+    }
+
+    interface Factory {
+        /**
+         * create encoder for the specific MIME type
+         *
+         * @param codecName name of the encoder, null for the default encoder of mimeType
+         * @param mimeType
+         * @param callback receive buffers asynchronously if the codec supports it,
+         *                 check {@link EncoderBackend#isAsync()} for the mode actually used
+         * @return
+         * @throws IOException
+         */
+        EncoderBackend createEncoder(String codecName, String mimeType, Callback callback) throws IOException;
+    }
+
+    /**
+     * @return true if output buffers are delivered through {@link Callback},
+     * false if they should be polled with {@link #dequeueOutputBuffer(MediaCodec.BufferInfo, long)}
+     */
+    boolean isAsync();
+
+    void configure(MediaFormat format);
+
+    /**
+     * this method only can call between #configure and #start
+     */
+    Surface createInputSurface();
+
+    void start();
+
+    void stop();
+
+    /**
+     * drop all buffers and the end of stream, the codec keeps running with its format
+     */
+    void flush();
+
+    void release();
+
+    /**
+     * @param timeoutUs
+     * @return index of input buffer or MediaCodec.INFO_TRY_AGAIN_LATER.
+     * This can be called in async mode too.
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * only available in sync mode
+     *
+     * @param info
+     * @param timeoutUs
+     * @return index of output buffer or one of MediaCodec.INFO_XXX
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    void signalEndOfInputStream();
+
+    /**
+     * ask the codec to emit a sync frame as soon as possible, ignored on API < 19
+     */
+    void requestSyncFrame();
+
+    /**
+     * change the target bitrate of a running video encoder, ignored on API < 19
+     *
+     * @param bitRate bits per second
+     */
+    void setVideoBitrate(int bitRate);
+
+    /**
+     * drop surface input while suspended instead of encoding it, ignored on API < 19
+     *
+     * @param suspended
+     */
+    void setInputSuspended(boolean suspended);
+}
@@ -0,0 +1,482 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps codecs of finished recordings warm for the next ones, so back to back clips do not pay
+ * for creating and configuring a codec each time.
+ * Share one pool between the {@link MediaMuxerWrapper}s of the clips, every kind of output
+ * (single file, segmented and replay) takes one.
+ * <p>
+ * A codec fed with buffers (audio) keeps running: it is flushed at the end of a recording and
+ * only reconfigured if the next one asks for a different format. A codec fed through a Surface
+ * (video) must be configured again for a new input surface, so it is stopped, which still
+ * saves allocating the codec and its callback thread.
+ * Idle codecs are released after a timeout and when they exceed the count or the estimated memory
+ * of the pool, least recently used first.
+ */
+public final class EncoderPool implements EncoderBackend.Factory {
+
+    private static final String TAG = "EncoderPool";
+
+    public static final int DEFAULT_MAX_IDLE = 2;
+    public static final long DEFAULT_MAX_IDLE_BYTES = 32L * 1024 * 1024;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30000;
+    /**
+     * estimated buffers of a video codec in frames
+     */
+    private static final int VIDEO_FOOTPRINT_FRAMES = 8;
+    private static final long AUDIO_FOOTPRINT_BYTES = 256 * 1024;
+
+    private static final ThreadFactory EVICTOR_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, TAG + "-evictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final EncoderBackend.Factory mFactory;
+    private final int mMaxIdle;
+    private final long mMaxIdleBytes;
+    private final long mIdleTimeoutMs;
+    /**
+     * least recently used first
+     */
+    private final List<PooledEncoder> mIdle = new ArrayList<>();
+    private long mIdleBytes;
+    private int mCreatedCount, mReusedCount;
+    private ScheduledExecutorService mEvictor;
+    private boolean mReleased;
+
+    public EncoderPool() {
+        this(DEFAULT_MAX_IDLE, DEFAULT_MAX_IDLE_BYTES, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param maxIdle       maximum number of idle codecs
+     * @param maxIdleBytes  maximum estimated memory of idle codecs
+     * @param idleTimeoutMs idle codecs are released after this
+     */
+    public EncoderPool(final int maxIdle, final long maxIdleBytes, final long idleTimeoutMs) {
+        this(MediaCodecBackend.FACTORY, maxIdle, maxIdleBytes, idleTimeoutMs);
+    }
+
+    EncoderPool(final EncoderBackend.Factory factory, final int maxIdle, final long maxIdleBytes, final long idleTimeoutMs) {
+        if (maxIdle < 0 || maxIdleBytes < 0 || idleTimeoutMs <= 0)
+            throw new IllegalArgumentException("invalid limits " + maxIdle + ", " + maxIdleBytes + "bytes, " + idleTimeoutMs + "ms");
+        mFactory = factory;
+        mMaxIdle = maxIdle;
+        mMaxIdleBytes = maxIdleBytes;
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    @Override
+    public EncoderBackend createEncoder(final String codecName, final String mimeType,
+                                        final EncoderBackend.Callback callback) throws IOException {
+        PooledEncoder encoder = null;
+        synchronized (this) {
+            for (int i = mIdle.size() - 1; i >= 0; i--) {
+                final PooledEncoder idle = mIdle.get(i);
+                if (idle.matches(codecName, mimeType, callback != null)) {
+                    encoder = mIdle.remove(i);
+                    mIdleBytes -= encoder.mFootprint;
+                    mReusedCount++;
+                    break;
+                }
+            }
+        }
+        if (encoder != null) {
+            Log.i(TAG, "reuse " + encoder);
+        } else {
+            encoder = new PooledEncoder(codecName, mimeType, callback != null);
+            encoder.mCodec = mFactory.createEncoder(codecName, mimeType, callback != null ? encoder.mForwarder : null);
+            synchronized (this) {
+                mCreatedCount++;
+            }
+        }
+        encoder.mCallback = callback;
+        return encoder;
+    }
+
+    /**
+     * release all idle codecs, e.g. when the app goes to background
+     */
+    public void trim() {
+        final List<PooledEncoder> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(mIdle);
+            mIdle.clear();
+            mIdleBytes = 0;
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * release the idle codecs and those returned later
+     */
+    public void release() {
+        synchronized (this) {
+            mReleased = true;
+            if (mEvictor != null) {
+                mEvictor.shutdownNow();
+                mEvictor = null;
+            }
+        }
+        trim();
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    /**
+     * @return estimated memory of idle codecs
+     */
+    public synchronized long getIdleBytes() {
+        return mIdleBytes;
+    }
+
+    /**
+     * @return number of codecs created by the pool
+     */
+    public synchronized int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    /**
+     * @return number of codecs handed out again
+     */
+    public synchronized int getReusedCount() {
+        return mReusedCount;
+    }
+
+    /**
+     * release codecs idle for the timeout at nowMs
+     *
+     * @param nowMs on the clock of {@link #uptimeMs()}
+     */
+    void evictIdle(final long nowMs) {
+        final List<PooledEncoder> evicted = new ArrayList<>();
+        synchronized (this) {
+            while (!mIdle.isEmpty() && nowMs - mIdle.get(0).mIdleSinceMs >= mIdleTimeoutMs) {
+                final PooledEncoder encoder = mIdle.remove(0);
+                mIdleBytes -= encoder.mFootprint;
+                evicted.add(encoder);
+            }
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * @param width  of a video format, 0 for audio
+     * @param height of a video format, 0 for audio
+     * @return estimated memory a configured codec holds
+     */
+    static long estimateFootprint(final int width, final int height) {
+        if (width <= 0 || height <= 0) return AUDIO_FOOTPRINT_BYTES;
+        // YUV420 frames
+        return (long) width * height * 3 / 2 * VIDEO_FOOTPRINT_FRAMES;
+    }
+
+    private static long uptimeMs() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private void recycle(final PooledEncoder encoder) {
+        final List<PooledEncoder> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (mReleased || encoder.mFootprint > mMaxIdleBytes || mMaxIdle == 0) {
+                evicted.add(encoder);
+            } else {
+                encoder.mIdleSinceMs = uptimeMs();
+                mIdle.add(encoder);
+                mIdleBytes += encoder.mFootprint;
+                while (mIdle.size() > mMaxIdle || mIdleBytes > mMaxIdleBytes) {
+                    final PooledEncoder oldest = mIdle.remove(0);
+                    mIdleBytes -= oldest.mFootprint;
+                    evicted.add(oldest);
+                }
+                scheduleEviction();
+            }
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * should be called while holding the lock of this
+     */
+    private void scheduleEviction() {
+        if (mEvictor == null) {
+            mEvictor = Executors.newSingleThreadScheduledExecutor(EVICTOR_THREAD_FACTORY);
+        }
+        mEvictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle(uptimeMs());
+            }
+        }, mIdleTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static void releaseAll(final List<PooledEncoder> encoders) {
+        for (final PooledEncoder encoder : encoders) {
+            Log.i(TAG, "release " + encoder);
+            encoder.releaseCodec();
+        }
+    }
+
+    /**
+     * codec handed out by the pool, returned to it by {@link #release()}
+     */
+    private final class PooledEncoder implements EncoderBackend {
+
+        private final String mCodecName;
+        private final String mMimeType;
+        private final boolean mAsyncRequested;
+        private EncoderBackend mCodec;
+        /**
+         * callback of the current user, null while idle
+         */
+        private volatile Callback mCallback;
+        /**
+         * format the codec was configured with
+         */
+        private String mFormatKey;
+        private long mFootprint = AUDIO_FOOTPRINT_BYTES;
+        private boolean mSurfaceInput;
+        /**
+         * configured and started, or flushed while idle
+         */
+        private boolean mRunning;
+        /**
+         * running codec was kept with the same format, so #start has nothing to do
+         */
+        private boolean mKept;
+        /**
+         * a kept codec does not report its format again, so it is reported before its first output
+         */
+        private volatile boolean mFormatPending;
+        private volatile boolean mBroken;
+        private long mIdleSinceMs;
+
+        private final Callback mForwarder = new Callback() {
+            @Override
+            public void onInputBufferAvailable(final int index) {
+                final Callback callback = mCallback;
+                if (callback != null) callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(final int index, final MediaCodec.BufferInfo info) {
+                final Callback callback = mCallback;
+                if (callback == null) {
+                    mCodec.releaseOutputBuffer(index);
+                    return;
+                }
+                if (mFormatPending) {
+                    mFormatPending = false;
+                    callback.onOutputFormatChanged(mCodec.getOutputFormat());
+                }
+                callback.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onOutputFormatChanged(final MediaFormat format) {
+                final Callback callback = mCallback;
+                if (callback != null) {
+                    mFormatPending = false;
+                    callback.onOutputFormatChanged(format);
+                }
+            }
+
+            @Override
+            public void onError(final Exception e) {
+                mBroken = true;
+                final Callback callback = mCallback;
+                if (callback != null) callback.onError(e);
+            }
+        };
+
+        PooledEncoder(final String codecName, final String mimeType, final boolean asyncRequested) {
+            mCodecName = codecName;
+            mMimeType = mimeType;
+            mAsyncRequested = asyncRequested;
+        }
+
+        boolean matches(final String codecName, final String mimeType, final boolean asyncRequested) {
+            return (codecName != null ? codecName.equals(mCodecName) : mCodecName == null)
+                    && mimeType.equals(mMimeType) && asyncRequested == mAsyncRequested;
+        }
+
+        @Override
+        public boolean isAsync() {
+            return mCodec.isAsync();
+        }
+
+        @Override
+        public void configure(final MediaFormat format) {
+            final String formatKey = String.valueOf(format);
+            if (mRunning) {
+                if (!mSurfaceInput && formatKey.equals(mFormatKey)) {
+                    mKept = true;
+                    mFormatPending = true;
+                    return;
+                }
+                mCodec.stop();
+                mRunning = false;
+            }
+            mKept = false;
+            mCodec.configure(format);
+            mFormatKey = formatKey;
+            mFootprint = format != null && format.containsKey(MediaFormat.KEY_WIDTH) && format.containsKey(MediaFormat.KEY_HEIGHT)
+                    ? estimateFootprint(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT))
+                    : AUDIO_FOOTPRINT_BYTES;
+        }
+
+        @Override
+        public Surface createInputSurface() {
+            mSurfaceInput = true;
+            return mCodec.createInputSurface();
+        }
+
+        @Override
+        public void start() {
+            if (mKept) {
+                mKept = false;
+                return;
+            }
+            mCodec.start();
+            mRunning = true;
+        }
+
+        /**
+         * end of a recording, the codec is kept for the next one
+         */
+        @Override
+        public void stop() {
+            mKept = false;
+            if (!mRunning) return;
+            try {
+                if (mSurfaceInput) {
+                    mCodec.stop();
+                    mRunning = false;
+                } else {
+                    // also clears the end of stream
+                    mCodec.flush();
+                }
+            } catch (final RuntimeException e) {
+                Log.w(TAG, "stop:", e);
+                mBroken = true;
+            }
+        }
+
+        /**
+         * return the codec to the pool
+         */
+        @Override
+        public void release() {
+            mCallback = null;
+            mFormatPending = false;
+            if (mBroken) {
+                releaseCodec();
+            } else {
+                recycle(this);
+            }
+        }
+
+        void releaseCodec() {
+            try {
+                if (mRunning) {
+                    mCodec.stop();
+                    mRunning = false;
+                }
+            } catch (final RuntimeException e) {
+                Log.w(TAG, "releaseCodec:", e);
+            }
+            mCodec.release();
+        }
+
+        @Override
+        public int dequeueInputBuffer(final long timeoutUs) {
+            return mCodec.dequeueInputBuffer(timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(final int index) {
+            return mCodec.getInputBuffer(index);
+        }
+
+        @Override
+        public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+            mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+            if (mFormatPending) {
+                mFormatPending = false;
+                return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+            }
+            return mCodec.dequeueOutputBuffer(info, timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(final int index) {
+            return mCodec.getOutputBuffer(index);
+        }
+
+        @Override
+        public void releaseOutputBuffer(final int index) {
+            mCodec.releaseOutputBuffer(index);
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return mCodec.getOutputFormat();
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            mCodec.signalEndOfInputStream();
+        }
+
+        @Override
+        public void requestSyncFrame() {
+            mCodec.requestSyncFrame();
+        }
+
+        @Override
+        public void setVideoBitrate(final int bitRate) {
+            mCodec.setVideoBitrate(bitRate);
+        }
+
+        @Override
+        public void setInputSuspended(final boolean suspended) {
+            mCodec.setInputSuspended(suspended);
+        }
+
+        @Override
+        public void flush() {
+            mCodec.flush();
+        }
+
+        @Override
+        public String toString() {
+            return (mCodecName != null ? mCodecName : mMimeType) + (mSurfaceInput ? " surface" : "")
+                    + (mRunning ? " running" : "");
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MuxerBackend} that writes fragmented MP4 with {@link FragmentedMp4Writer}.
+ * Unlike MediaMuxer the file stays playable if recording is interrupted,
+ * and it can be read (e.g. uploaded) while it is being written.
+ * Supports H.264 without B frames and AAC tracks, encoders of the recording are restricted to them
+ * with {@link #toSupportedConfig(VideoEncoderConfig)} and {@link #toSupportedConfig(AudioEncoderConfig)}.
+ */
+class FragmentedMp4MuxerBackend implements MuxerBackend {
+
+    private static final String TAG = "FragmentedMp4Muxer";
+
+    private final FileOutputStream mOutput;
+    private final FragmentedMp4Writer mWriter;
+
+    FragmentedMp4MuxerBackend(final String outputPath) throws IOException {
+        this(outputPath, FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US, FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES);
+    }
+
+    FragmentedMp4MuxerBackend(final String outputPath, final long fragmentDurationUs, final int maxFragmentBytes) throws IOException {
+        mOutput = new FileOutputStream(outputPath);
+        mWriter = new FragmentedMp4Writer(mOutput.getChannel(), fragmentDurationUs, maxFragmentBytes);
+    }
+
+    /**
+     * @param config
+     * @return config restricted to what can be written: H.264 without B frames,
+     * as samples are written without composition time offsets
+     */
+    static VideoEncoderConfig toSupportedConfig(final VideoEncoderConfig config) {
+        if (config.getCodec() == VideoEncoderConfig.CODEC_AVC && !config.isBFramesEnabled()) return config;
+        Log.w(TAG, "only H.264 without B frames is supported, requested " + config);
+        final VideoEncoderConfig.Builder builder = new VideoEncoderConfig.Builder(config).setBFrames(false);
+        if (config.getCodec() != VideoEncoderConfig.CODEC_AVC) {
+            // profile and level of another codec do not apply
+            builder.setCodec(VideoEncoderConfig.CODEC_AVC)
+                    .setProfile(VideoEncoderConfig.AUTO)
+                    .setLevel(VideoEncoderConfig.AUTO);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param config
+     * @return config restricted to what can be written: AAC
+     */
+    static AudioEncoderConfig toSupportedConfig(final AudioEncoderConfig config) {
+        if (config.getCodec() == AudioEncoderConfig.CODEC_AAC) return config;
+        Log.w(TAG, "only AAC is supported, requested " + config);
+        return new AudioEncoderConfig.Builder(config).setCodec(AudioEncoderConfig.CODEC_AAC).build();
+    }
+
+    @Override
+    public int addTrack(final MediaFormat format) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        if (VideoEncoderConfig.MIME_TYPE_AVC.equals(mime)) {
+            return mWriter.addAvcTrack(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                    format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+        } else if (AudioEncoderConfig.MIME_TYPE_AAC.equals(mime)) {
+            final int bitRate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+            return mWriter.addAacTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), bitRate, format.getByteBuffer("csd-0"));
+        }
+        throw new IllegalArgumentException("unsupported track " + mime);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to write header", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        try {
+            mWriter.writeSample(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to write sample", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.finish();
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to write last fragment", e);
+        }
+        Log.v(TAG, "stop:fragments=" + mWriter.getFragmentCount() + ",bytes=" + mWriter.getWrittenBytes());
+    }
+
+    @Override
+    public void release() {
+        try {
+            mOutput.close();
+        } catch (final IOException e) {
+            Log.w(TAG, "release:", e);
+        }
+    }
+}
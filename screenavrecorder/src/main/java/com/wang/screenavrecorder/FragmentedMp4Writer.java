@@ -0,0 +1,475 @@
+package com.wang.screenavrecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes H.264 / AAC samples as fragmented MP4 (ISO BMFF with moov/mvex, then moof + mdat pairs).
+ * The header is written by {@link #start()} and every fragment is written as soon as it is complete,
+ * so the file is playable up to the last complete fragment even if recording never finishes.
+ * Only one fragment is kept in memory: a new one is started at the first video sync frame
+ * after the fragment duration, or as soon as the buffered samples exceed the size limit.
+ * Decode order is assumed to equal presentation order, i.e. no B frames.
+ * Pure Java, so it can be tested on the JVM.
+ */
+final class FragmentedMp4Writer {
+
+    static final long DEFAULT_FRAGMENT_DURATION_US = 1000000;
+    static final int DEFAULT_MAX_FRAGMENT_BYTES = 4 * 1024 * 1024;
+    static final int VIDEO_TIMESCALE = 90000;
+
+    private static final int TRACK_ENABLED_IN_MOVIE = 0x000003;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET_DURATION_SIZE_FLAGS = 0x000701;
+    /**
+     * sample_depends_on = 2 (does not depend on others)
+     */
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    /**
+     * sample_depends_on = 1, sample_is_non_sync_sample = 1
+     */
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int[] MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private static final class Track {
+        final int id;
+        final boolean video;
+        final int timescale;
+        final Mp4BoxBuffer data = new Mp4BoxBuffer(64 * 1024);
+        long[] times = new long[64];
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        int count;
+        /**
+         * used for the last sample of a fragment when the next one is unknown, in timescale
+         */
+        long lastDuration;
+        // video
+        int width, height;
+        byte[] sps, pps;
+        // audio
+        int sampleRate, channelCount, bitRate;
+        byte[] audioSpecificConfig;
+
+        Track(final int id, final boolean video, final int timescale, final long defaultDuration) {
+            this.id = id;
+            this.video = video;
+            this.timescale = timescale;
+            this.lastDuration = defaultDuration;
+        }
+
+        void add(final long time, final int size, final int sampleFlags) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                flags = Arrays.copyOf(flags, count * 2);
+            }
+            times[count] = time;
+            sizes[count] = size;
+            flags[count] = sampleFlags;
+            count++;
+        }
+
+        long toTime(final long us) {
+            return us * timescale / 1000000L;
+        }
+    }
+
+    private final WritableByteChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final int mMaxFragmentBytes;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final Mp4BoxBuffer mHeader = new Mp4BoxBuffer(1024);
+    private boolean mHasVideo, mStarted;
+    private long mOriginUs = -1;
+    private long mFragmentStartUs;
+    private int mFragmentBytes, mFragmentSamples;
+    private int mSequence;
+    private long mWrittenBytes;
+
+    /**
+     * @param channel            receives the file, the caller closes it
+     * @param fragmentDurationUs
+     * @param maxFragmentBytes   a fragment is written before it grows larger than this
+     */
+    FragmentedMp4Writer(final WritableByteChannel channel, final long fragmentDurationUs, final int maxFragmentBytes) {
+        mChannel = channel;
+        mFragmentDurationUs = fragmentDurationUs;
+        mMaxFragmentBytes = maxFragmentBytes;
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @param csd0   codec specific data from MediaFormat ("csd-0"), SPS in Annex B format
+     * @param csd1   "csd-1", PPS in Annex B format. May be null if csd0 holds both.
+     * @return track index
+     */
+    int addAvcTrack(final int width, final int height, final ByteBuffer csd0, final ByteBuffer csd1) {
+        checkNotStarted();
+        final Track track = new Track(mTracks.size() + 1, true, VIDEO_TIMESCALE, VIDEO_TIMESCALE / 30);
+        track.width = width;
+        track.height = height;
+        final List<byte[]> nals = new ArrayList<>();
+        splitAnnexB(csd0, nals);
+        if (csd1 != null) splitAnnexB(csd1, nals);
+        for (final byte[] nal : nals) {
+            final int type = nal[0] & 0x1f;
+            if (type == 7 && track.sps == null) track.sps = nal;
+            else if (type == 8 && track.pps == null) track.pps = nal;
+        }
+        if (track.sps == null || track.sps.length < 4 || track.pps == null) {
+            throw new IllegalArgumentException("codec specific data has no SPS/PPS");
+        }
+        mTracks.add(track);
+        mHasVideo = true;
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * @param sampleRate
+     * @param channelCount
+     * @param bitRate      average bitrate, 0 if unknown
+     * @param csd0         AudioSpecificConfig ("csd-0")
+     * @return track index
+     */
+    int addAacTrack(final int sampleRate, final int channelCount, final int bitRate, final ByteBuffer csd0) {
+        checkNotStarted();
+        if (csd0 == null || !csd0.hasRemaining() || csd0.remaining() > 64) {
+            throw new IllegalArgumentException("bad AudioSpecificConfig");
+        }
+        // one AAC frame is 1024 samples
+        final Track track = new Track(mTracks.size() + 1, false, sampleRate, 1024);
+        track.sampleRate = sampleRate;
+        track.channelCount = channelCount;
+        track.bitRate = bitRate;
+        track.audioSpecificConfig = new byte[csd0.remaining()];
+        csd0.duplicate().get(track.audioSpecificConfig);
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * write ftyp and moov
+     */
+    void start() throws IOException {
+        checkNotStarted();
+        if (mTracks.isEmpty()) throw new IllegalStateException("no track");
+        mStarted = true;
+        final Mp4BoxBuffer b = mHeader;
+        b.clear();
+        final int ftyp = b.start("ftyp");
+        b.fourcc("iso6").u32(0).fourcc("iso6").fourcc("cmfc").fourcc("isom").fourcc("mp41");
+        b.end(ftyp);
+        writeMoov(b);
+        write(b.asByteBuffer());
+    }
+
+    /**
+     * @param trackIndex
+     * @param buf        video samples in Annex B format as MediaCodec outputs them
+     * @param offset     absolute offset in buf
+     * @param size
+     * @param ptsUs
+     * @param sync       true for a sync (key) frame
+     */
+    void writeSample(final int trackIndex, final ByteBuffer buf, final int offset, final int size,
+                     final long ptsUs, final boolean sync) throws IOException {
+        if (!mStarted) throw new IllegalStateException("not started");
+        final Track track = mTracks.get(trackIndex);
+        if (mOriginUs < 0) {
+            mOriginUs = ptsUs;
+            mFragmentStartUs = ptsUs;
+        }
+        final long time = track.toTime(Math.max(0, ptsUs - mOriginUs));
+        if (mFragmentSamples > 0 && ptsUs - mFragmentStartUs >= mFragmentDurationUs
+                && (!mHasVideo || (track.video && sync))) {
+            flush(track, time);
+        }
+        if (mFragmentSamples == 0) {
+            mFragmentStartUs = ptsUs;
+        }
+        final int before = track.data.size();
+        if (track.video) {
+            appendLengthPrefixed(buf, offset, offset + size, track.data);
+        } else {
+            track.data.bytes(buf, offset, size);
+        }
+        final int written = track.data.size() - before;
+        track.add(time, written, sync || !track.video ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        mFragmentSamples++;
+        mFragmentBytes += written;
+        if (mFragmentBytes >= mMaxFragmentBytes) {
+            // keep memory bounded, the next fragment starts without a sync frame
+            flush(null, 0);
+        }
+    }
+
+    /**
+     * write the buffered samples, the channel is not closed
+     */
+    void finish() throws IOException {
+        if (mStarted && mFragmentSamples > 0) {
+            flush(null, 0);
+        }
+    }
+
+    int getFragmentCount() {
+        return mSequence;
+    }
+
+    long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) throw new IllegalStateException("already started");
+    }
+
+    private void writeMoov(final Mp4BoxBuffer b) {
+        final int moov = b.start("moov");
+        final int mvhd = b.startFull("mvhd", 0, 0);
+        b.u32(0).u32(0).u32(1000).u32(0);    // creation, modification, timescale, duration
+        b.u32(0x00010000).u16(0x0100).zeros(10);    // rate, volume, reserved
+        matrix(b);
+        b.zeros(24).u32(mTracks.size() + 1);    // pre_defined, next_track_ID
+        b.end(mvhd);
+        for (final Track track : mTracks) {
+            writeTrak(b, track);
+        }
+        final int mvex = b.start("mvex");
+        for (final Track track : mTracks) {
+            final int trex = b.startFull("trex", 0, 0);
+            b.u32(track.id).u32(1).u32(0).u32(0).u32(0);
+            b.end(trex);
+        }
+        b.end(mvex);
+        b.end(moov);
+    }
+
+    private static void writeTrak(final Mp4BoxBuffer b, final Track track) {
+        final int trak = b.start("trak");
+        final int tkhd = b.startFull("tkhd", 0, TRACK_ENABLED_IN_MOVIE);
+        b.u32(0).u32(0).u32(track.id).u32(0).u32(0);    // creation, modification, ID, reserved, duration
+        b.zeros(8).u16(0).u16(0).u16(track.video ? 0 : 0x0100).u16(0);    // layer, alternate_group, volume
+        matrix(b);
+        b.u32((long) track.width << 16).u32((long) track.height << 16);
+        b.end(tkhd);
+
+        final int mdia = b.start("mdia");
+        final int mdhd = b.startFull("mdhd", 0, 0);
+        b.u32(0).u32(0).u32(track.timescale).u32(0).u16(0x55c4).u16(0);    // language "und"
+        b.end(mdhd);
+        final int hdlr = b.startFull("hdlr", 0, 0);
+        b.u32(0).fourcc(track.video ? "vide" : "soun").zeros(12);
+        b.bytes((track.video ? "VideoHandler" : "SoundHandler").getBytes()).u8(0);
+        b.end(hdlr);
+
+        final int minf = b.start("minf");
+        if (track.video) {
+            final int vmhd = b.startFull("vmhd", 0, 1);
+            b.zeros(8);    // graphicsmode, opcolor
+            b.end(vmhd);
+        } else {
+            final int smhd = b.startFull("smhd", 0, 0);
+            b.zeros(4);    // balance, reserved
+            b.end(smhd);
+        }
+        final int dinf = b.start("dinf");
+        final int dref = b.startFull("dref", 0, 0);
+        b.u32(1);
+        b.end(b.startFull("url ", 0, 1));    // data is in this file
+        b.end(dref);
+        b.end(dinf);
+
+        final int stbl = b.start("stbl");
+        final int stsd = b.startFull("stsd", 0, 0);
+        b.u32(1);
+        if (track.video) {
+            writeAvc1(b, track);
+        } else {
+            writeMp4a(b, track);
+        }
+        b.end(stsd);
+        // samples are described by the fragments
+        final int stts = b.startFull("stts", 0, 0);
+        b.u32(0).end(stts);
+        final int stsc = b.startFull("stsc", 0, 0);
+        b.u32(0).end(stsc);
+        final int stsz = b.startFull("stsz", 0, 0);
+        b.u32(0).u32(0).end(stsz);
+        final int stco = b.startFull("stco", 0, 0);
+        b.u32(0).end(stco);
+        b.end(stbl);
+        b.end(minf);
+        b.end(mdia);
+        b.end(trak);
+    }
+
+    private static void writeAvc1(final Mp4BoxBuffer b, final Track track) {
+        final int avc1 = b.start("avc1");
+        b.zeros(6).u16(1);    // reserved, data_reference_index
+        b.zeros(16).u16(track.width).u16(track.height);
+        b.u32(0x00480000).u32(0x00480000).u32(0).u16(1);    // 72dpi, reserved, frame_count
+        b.zeros(32).u16(0x0018).u16(0xffff);    // compressorname, depth, pre_defined
+        final int avcC = b.start("avcC");
+        final byte[] sps = track.sps;
+        b.u8(1).u8(sps[1]).u8(sps[2]).u8(sps[3]);    // version, profile, compatibility, level
+        b.u8(0xff).u8(0xe1);    // 4 bytes NAL length, 1 SPS
+        b.u16(sps.length).bytes(sps);
+        b.u8(1).u16(track.pps.length).bytes(track.pps);
+        b.end(avcC);
+        b.end(avc1);
+    }
+
+    private static void writeMp4a(final Mp4BoxBuffer b, final Track track) {
+        final int mp4a = b.start("mp4a");
+        b.zeros(6).u16(1);    // reserved, data_reference_index
+        b.zeros(8).u16(track.channelCount).u16(16).u16(0).u16(0);
+        b.u32((long) track.sampleRate << 16);
+        final byte[] asc = track.audioSpecificConfig;
+        final int decoderConfigLength = 13 + 2 + asc.length;
+        final int esLength = 3 + 2 + decoderConfigLength + 3;
+        final int esds = b.startFull("esds", 0, 0);
+        b.u8(0x03).u8(esLength).u16(track.id).u8(0);    // ES_Descriptor
+        b.u8(0x04).u8(decoderConfigLength);    // DecoderConfigDescriptor
+        b.u8(0x40).u8(0x15).u24(0);    // AAC, audio stream, bufferSizeDB
+        b.u32(track.bitRate).u32(track.bitRate);    // max, avg bitrate
+        b.u8(0x05).u8(asc.length).bytes(asc);    // DecoderSpecificInfo
+        b.u8(0x06).u8(1).u8(0x02);    // SLConfigDescriptor
+        b.end(esds);
+        b.end(mp4a);
+    }
+
+    private static void matrix(final Mp4BoxBuffer b) {
+        for (final int v : MATRIX) {
+            b.u32(v);
+        }
+    }
+
+    /**
+     * @param next     track of the sample that starts the next fragment, may be null
+     * @param nextTime time of that sample, gives the duration of the last sample of the same track
+     */
+    private void flush(final Track next, final long nextTime) throws IOException {
+        final Mp4BoxBuffer b = mHeader;
+        b.clear();
+        final int moof = b.start("moof");
+        final int mfhd = b.startFull("mfhd", 0, 0);
+        b.u32(++mSequence);
+        b.end(mfhd);
+        final int[] dataOffsets = new int[mTracks.size()];
+        for (int i = 0; i < mTracks.size(); i++) {
+            final Track track = mTracks.get(i);
+            if (track.count == 0) continue;
+            final int traf = b.start("traf");
+            final int tfhd = b.startFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            b.u32(track.id);
+            b.end(tfhd);
+            final int tfdt = b.startFull("tfdt", 1, 0);
+            b.u64(track.times[0]);
+            b.end(tfdt);
+            final int trun = b.startFull("trun", 0, TRUN_DATA_OFFSET_DURATION_SIZE_FLAGS);
+            b.u32(track.count);
+            dataOffsets[i] = b.size();
+            b.u32(0);
+            for (int j = 0; j < track.count; j++) {
+                final long duration;
+                if (j + 1 < track.count) {
+                    duration = Math.max(0, track.times[j + 1] - track.times[j]);
+                } else if (track == next) {
+                    duration = Math.max(0, nextTime - track.times[j]);
+                } else {
+                    duration = track.lastDuration;
+                }
+                if (duration > 0) track.lastDuration = duration;
+                b.u32(duration).u32(track.sizes[j]).u32(track.flags[j]);
+            }
+            b.end(trun);
+            b.end(traf);
+        }
+        b.end(moof);
+        // data_offset is relative to moof, mdat holds the samples track by track
+        long offset = b.size() + 8;
+        long mdatSize = 8;
+        for (int i = 0; i < mTracks.size(); i++) {
+            final Track track = mTracks.get(i);
+            if (track.count == 0) continue;
+            b.setU32(dataOffsets[i], offset);
+            offset += track.data.size();
+            mdatSize += track.data.size();
+        }
+        b.u32(mdatSize).fourcc("mdat");
+        write(b.asByteBuffer());
+        for (final Track track : mTracks) {
+            if (track.count == 0) continue;
+            write(track.data.asByteBuffer());
+            track.data.clear();
+            track.count = 0;
+        }
+        mFragmentSamples = 0;
+        mFragmentBytes = 0;
+    }
+
+    private void write(final ByteBuffer buf) throws IOException {
+        mWrittenBytes += buf.remaining();
+        while (buf.hasRemaining()) {
+            mChannel.write(buf);
+        }
+    }
+
+    /**
+     * find the first 00 00 01 at or after from
+     *
+     * @return index of the start code, -1 if there is none
+     */
+    private static int findStartCode(final ByteBuffer buf, final int from, final int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((buf.get(i + 2) & 0xff) > 1) {
+                i += 2;    // none of i..i+2 can start a start code
+            } else if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * convert Annex B NAL units in [start, end) to 4 byte length prefixed ones.
+     * Data without start code is written as one NAL unit.
+     */
+    static void appendLengthPrefixed(final ByteBuffer buf, final int start, final int end, final Mp4BoxBuffer out) {
+        int code = findStartCode(buf, start, end);
+        if (code < 0) {
+            out.u32(end - start).bytes(buf, start, end - start);
+            return;
+        }
+        while (code >= 0) {
+            final int nal = code + 3;
+            code = findStartCode(buf, nal, end);
+            int nalEnd = code < 0 ? end : code;
+            // zeros in front of the next start code (4 byte start codes) and trailing zeros
+            while (nalEnd > nal && buf.get(nalEnd - 1) == 0) nalEnd--;
+            if (nalEnd > nal) {
+                out.u32(nalEnd - nal).bytes(buf, nal, nalEnd - nal);
+            }
+        }
+    }
+
+    private static void splitAnnexB(final ByteBuffer buf, final List<byte[]> nals) {
+        final Mp4BoxBuffer tmp = new Mp4BoxBuffer(buf.remaining() + 16);
+        appendLengthPrefixed(buf, buf.position(), buf.limit(), tmp);
+        final byte[] data = tmp.toByteArray();
+        for (int pos = 0; pos + 4 <= data.length; ) {
+            final int length = ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+                    | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+            pos += 4;
+            if (length > 0) nals.add(Arrays.copyOfRange(data, pos, pos + length));
+            pos += length;
+        }
+    }
+}
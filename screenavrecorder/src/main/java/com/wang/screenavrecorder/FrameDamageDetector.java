@@ -0,0 +1,97 @@
+package com.wang.screenavrecorder;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds out on the GPU whether a captured frame differs from the previous one.
+ * The frame is drawn into a small offscreen thumbnail, which is read back and compared,
+ * so the cost per frame is one tiny draw and a 16KB readback. Changes smaller than a
+ * thumbnail pixel, like a blinking cursor, may be missed; the floor frame rate still catches them.
+ * Needs the current EGL context of the render thread.
+ */
+final class FrameDamageDetector {
+
+    /**
+     * edge of the thumbnail in pixels
+     */
+    static final int SIZE = 64;
+    /**
+     * per channel difference that counts as a change, ignores dithering noise
+     */
+    static final int THRESHOLD = 2;
+
+    private final int mTexture;
+    private final int mFramebuffer;
+    private ByteBuffer mCurrent;
+    private ByteBuffer mPrevious;
+    private boolean mHasPrevious;
+
+    FrameDamageDetector() {
+        mTexture = GlDrawer.createTexture(GLES20.GL_TEXTURE_2D);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, SIZE, SIZE, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        final int[] framebuffers = new int[1];
+        GLES20.glGenFramebuffers(1, framebuffers, 0);
+        mFramebuffer = framebuffers[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTexture, 0);
+        final int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            release();
+            throw new IllegalStateException("thumbnail framebuffer incomplete: 0x" + Integer.toHexString(status));
+        }
+        mCurrent = ByteBuffer.allocateDirect(SIZE * SIZE * 4).order(ByteOrder.nativeOrder());
+        mPrevious = ByteBuffer.allocateDirect(SIZE * SIZE * 4).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @param drawer    drawer for the target of texture
+     * @param texture   captured frame
+     * @param texMatrix transform of the captured frame
+     * @return true if the frame differs from the one of the previous call, or there was none
+     */
+    boolean isChanged(final GlDrawer drawer, final int texture, final float[] texMatrix) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glViewport(0, 0, SIZE, SIZE);
+        drawer.draw(texture, texMatrix);
+        mCurrent.clear();
+        GLES20.glReadPixels(0, 0, SIZE, SIZE, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mCurrent);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        final boolean changed = !mHasPrevious || differs(mCurrent, mPrevious, THRESHOLD);
+        final ByteBuffer tmp = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = tmp;
+        mHasPrevious = true;
+        return changed;
+    }
+
+    /**
+     * forget the previous frame, the next one counts as changed
+     */
+    void reset() {
+        mHasPrevious = false;
+    }
+
+    void release() {
+        GLES20.glDeleteFramebuffers(1, new int[]{mFramebuffer}, 0);
+        GlDrawer.deleteTexture(mTexture);
+    }
+
+    /**
+     * @return true if any byte of a and b differs by more than threshold, compared up to their limits
+     */
+    static boolean differs(final ByteBuffer a, final ByteBuffer b, final int threshold) {
+        final int n = Math.min(a.limit(), b.limit());
+        for (int i = 0; i < n; i++) {
+            if (Math.abs((a.get(i) & 0xff) - (b.get(i) & 0xff)) > threshold) return true;
+        }
+        return false;
+    }
+}
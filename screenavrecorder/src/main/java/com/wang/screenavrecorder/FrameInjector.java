@@ -0,0 +1,136 @@
+package com.wang.screenavrecorder;
+
+import android.graphics.Bitmap;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * Draws app generated frames (title cards, still images, watermarked frames) into the
+ * input surface of a {@link MediaVideoEncoder} with OpenGL ES, so they are encoded
+ * like captured frames without any CPU side conversion.
+ * The EGL context and the texture are reused for every frame, a bitmap of the same size
+ * as the previous one is uploaded in place.
+ * <p>
+ * A surface accepts a single producer, so the encoder surface must not be used by a
+ * VirtualDisplay at the same time.
+ * Create, draw and release on one thread, it holds the EGL context.
+ */
+public final class FrameInjector {
+
+    private static final String TAG = "FrameInjector";
+
+    private final MediaVideoEncoder mEncoder;
+    private final int mWidth;
+    private final int mHeight;
+    private EglCore mEgl;
+    private EGLSurface mEglSurface;
+    private GlDrawer mDrawer;
+    private int mTexture;
+    private int mTextureWidth;
+    private int mTextureHeight;
+    private long mLastPtsUs = Long.MIN_VALUE;
+
+    /**
+     * @param encoder prepared encoder
+     * @throws IllegalStateException if the encoder has no input surface or it already has a producer
+     */
+    public FrameInjector(final MediaVideoEncoder encoder) {
+        final Surface surface = encoder.getSurface();
+        if (surface == null)
+            throw new IllegalStateException("encoder is not prepared");
+        mEncoder = encoder;
+        mWidth = encoder.getWidth();
+        mHeight = encoder.getHeight();
+        mEgl = new EglCore(null);
+        try {
+            mEglSurface = mEgl.createWindowSurface(surface);
+            mEgl.makeCurrent(mEglSurface);
+            mDrawer = new GlDrawer(false);
+            mTexture = GlDrawer.createTexture(GLES20.GL_TEXTURE_2D);
+        } catch (final RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * draw bitmap as the next frame, timestamped now
+     */
+    public void drawBitmap(final Bitmap bitmap) {
+        drawBitmap(bitmap, mEncoder.getPTSUs());
+    }
+
+    /**
+     * draw bitmap scaled to fit the frame keeping its aspect ratio, the rest is black
+     *
+     * @param bitmap
+     * @param presentationTimeUs on the System.nanoTime clock like captured frames,
+     *                           moved after the previous frame if it is not later
+     */
+    public void drawBitmap(final Bitmap bitmap, final long presentationTimeUs) {
+        if (bitmap.isRecycled()) return;
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        if (bitmap.getWidth() == mTextureWidth && bitmap.getHeight() == mTextureHeight) {
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+        } else {
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            mTextureWidth = bitmap.getWidth();
+            mTextureHeight = bitmap.getHeight();
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        draw(presentationTimeUs);
+    }
+
+    /**
+     * encode the last bitmap again, e.g. to keep a still image on screen at the frame rate
+     *
+     * @param presentationTimeUs
+     * @throws IllegalStateException if no bitmap was drawn yet
+     */
+    public void repeat(final long presentationTimeUs) {
+        if (mTextureWidth == 0)
+            throw new IllegalStateException("no frame to repeat");
+        draw(presentationTimeUs);
+    }
+
+    public void release() {
+        if (mEgl == null) return;
+        if (mEglSurface != null) {
+            if (mDrawer != null) {
+                mDrawer.release();
+                mDrawer = null;
+            }
+            if (mTexture != 0) {
+                GlDrawer.deleteTexture(mTexture);
+                mTexture = 0;
+            }
+            mEgl.releaseSurface(mEglSurface);
+            mEglSurface = null;
+        }
+        mEgl.release();
+        mEgl = null;
+    }
+
+    private void draw(final long presentationTimeUs) {
+        if (mEgl == null)
+            throw new IllegalStateException("released");
+        // the encoder expects increasing timestamps
+        final long ptsUs = Math.max(presentationTimeUs, mLastPtsUs + 1);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+        GLES20.glClearColor(0, 0, 0, 1);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        final int[] viewport = GlDrawer.fitViewport(mTextureWidth, mTextureHeight, mWidth, mHeight);
+        GLES20.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+        mDrawer.draw(mTexture, GlDrawer.FLIP_VERTICAL_MATRIX);
+        mEgl.setPresentationTime(mEglSurface, ptsUs * 1000L);
+        if (!mEgl.swapBuffers(mEglSurface)) {
+            Log.w(TAG, "frame at " + ptsUs + " was not queued, encoder surface abandoned");
+            return;
+        }
+        mLastPtsUs = ptsUs;
+        mEncoder.frameAvailableSoon();
+    }
+}
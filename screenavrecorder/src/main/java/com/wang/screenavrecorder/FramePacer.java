@@ -0,0 +1,91 @@
+package com.wang.screenavrecorder;
+
+/**
+ * Decides which captured frames are sent to the encoder when the frame rate is dynamic.
+ * A frame that differs from the previous one is rendered right away unless that would exceed
+ * the maximum frame rate. Then it is deferred and {@link #onFlush(long)} renders it once the
+ * interval has passed, so the last state of an animation is never lost.
+ * Unchanged frames are only rendered at the floor rate, and the encoder repeats the previous
+ * frame on its own while nothing arrives.
+ * Not thread safe, used on the render thread.
+ */
+final class FramePacer {
+
+    private final long mMinIntervalUs;
+    private final long mMaxIntervalUs;
+    private long mLastRenderUs = Long.MIN_VALUE;
+    private boolean mPending;
+    private long mRendered;
+    private long mSkipped;
+
+    /**
+     * @param maxFrameRate frame rate of the encoder
+     * @param minFrameRate floor frame rate while the screen does not change
+     */
+    FramePacer(final int maxFrameRate, final int minFrameRate) {
+        if (maxFrameRate <= 0 || minFrameRate <= 0 || minFrameRate > maxFrameRate)
+            throw new IllegalArgumentException("invalid frame rates " + minFrameRate + "-" + maxFrameRate);
+        // allow a little jitter, frames of a 60fps display must pass a 60fps limit
+        mMinIntervalUs = 1000000L / maxFrameRate * 9 / 10;
+        mMaxIntervalUs = 1000000L / minFrameRate;
+    }
+
+    /**
+     * @param ptsUs   timestamp of the captured frame
+     * @param changed false if the frame equals the previous one
+     * @return true to render the frame
+     */
+    boolean onFrame(final long ptsUs, final boolean changed) {
+        final long elapsedUs = mLastRenderUs == Long.MIN_VALUE ? Long.MAX_VALUE : ptsUs - mLastRenderUs;
+        if (changed || mPending) {
+            if (elapsedUs >= mMinIntervalUs) {
+                return render(ptsUs);
+            }
+            // too early, the latest image is rendered by onFlush or the next frame
+            mPending = true;
+        } else if (elapsedUs >= mMaxIntervalUs) {
+            return render(ptsUs);
+        }
+        mSkipped++;
+        return false;
+    }
+
+    /**
+     * @param nowUs
+     * @return true to render the latest frame now, because a change was deferred
+     */
+    boolean onFlush(final long nowUs) {
+        if (!mPending || nowUs - mLastRenderUs < mMinIntervalUs) return false;
+        return render(nowUs);
+    }
+
+    /**
+     * @return true if a changed frame waits for {@link #onFlush(long)}
+     */
+    boolean isPending() {
+        return mPending;
+    }
+
+    /**
+     * @param nowUs
+     * @return microseconds until a deferred frame may be rendered
+     */
+    long getFlushDelayUs(final long nowUs) {
+        return Math.max(0, mLastRenderUs + mMinIntervalUs - nowUs);
+    }
+
+    long getRenderedCount() {
+        return mRendered;
+    }
+
+    long getSkippedCount() {
+        return mSkipped;
+    }
+
+    private boolean render(final long ptsUs) {
+        mLastRenderUs = ptsUs;
+        mPending = false;
+        mRendered++;
+        return true;
+    }
+}
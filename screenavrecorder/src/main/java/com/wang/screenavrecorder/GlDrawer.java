@@ -0,0 +1,192 @@
+package com.wang.screenavrecorder;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws a texture over the current viewport with OpenGL ES 2.
+ * Needs a current EGL context for construction, {@link #draw(int, float[])} and {@link #release()}.
+ */
+final class GlDrawer {
+
+    /**
+     * texture matrix for textures uploaded from a Bitmap, whose first row is the top
+     */
+    static final float[] FLIP_VERTICAL_MATRIX = {
+            1, 0, 0, 0,
+            0, -1, 0, 0,
+            0, 0, 1, 0,
+            0, 1, 0, 1,
+    };
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_2D =
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_EXT =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    /**
+     * full viewport quad as triangle strip
+     */
+    private static final float[] VERTICES = {
+            -1, -1,
+            1, -1,
+            -1, 1,
+            1, 1,
+    };
+    private static final float[] TEXTURE_COORDS = {
+            0, 0,
+            1, 0,
+            0, 1,
+            1, 1,
+    };
+
+    private final int mTarget;
+    private final FloatBuffer mVertices;
+    private final FloatBuffer mTextureCoords;
+    private int mProgram;
+    private final int mPositionLoc;
+    private final int mTextureCoordLoc;
+    private final int mTexMatrixLoc;
+
+    /**
+     * @param external true for textures of a SurfaceTexture, false for 2D textures
+     */
+    GlDrawer(final boolean external) {
+        mTarget = external ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D;
+        mVertices = asFloatBuffer(VERTICES);
+        mTextureCoords = asFloatBuffer(TEXTURE_COORDS);
+        mProgram = createProgram(VERTEX_SHADER, external ? FRAGMENT_SHADER_EXT : FRAGMENT_SHADER_2D);
+        mPositionLoc = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        mTextureCoordLoc = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+        mTexMatrixLoc = GLES20.glGetUniformLocation(mProgram, "uTexMatrix");
+    }
+
+    /**
+     * @param texture   texture name of the target this drawer was created for
+     * @param texMatrix 4x4 column major transform of the texture coordinates
+     */
+    void draw(final int texture, final float[] texMatrix) {
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(mTarget, texture);
+        GLES20.glUniformMatrix4fv(mTexMatrixLoc, 1, false, texMatrix, 0);
+        GLES20.glEnableVertexAttribArray(mPositionLoc);
+        GLES20.glVertexAttribPointer(mPositionLoc, 2, GLES20.GL_FLOAT, false, 0, mVertices);
+        GLES20.glEnableVertexAttribArray(mTextureCoordLoc);
+        GLES20.glVertexAttribPointer(mTextureCoordLoc, 2, GLES20.GL_FLOAT, false, 0, mTextureCoords);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(mPositionLoc);
+        GLES20.glDisableVertexAttribArray(mTextureCoordLoc);
+        GLES20.glBindTexture(mTarget, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    void release() {
+        if (mProgram != 0) {
+            GLES20.glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+    }
+
+    /**
+     * @param target GL_TEXTURE_2D or GL_TEXTURE_EXTERNAL_OES
+     * @return new texture with linear filtering, clamped to the edges
+     */
+    static int createTexture(final int target) {
+        final int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(target, textures[0]);
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(target, 0);
+        return textures[0];
+    }
+
+    static void deleteTexture(final int texture) {
+        GLES20.glDeleteTextures(1, new int[]{texture}, 0);
+    }
+
+    /**
+     * largest rectangle with the aspect ratio of the source centered in the destination
+     *
+     * @return x, y, width, height of the viewport
+     */
+    static int[] fitViewport(final int srcWidth, final int srcHeight, final int dstWidth, final int dstHeight) {
+        int width = dstWidth;
+        int height = (int) ((long) dstWidth * srcHeight / srcWidth);
+        if (height > dstHeight) {
+            height = dstHeight;
+            width = (int) ((long) dstHeight * srcWidth / srcHeight);
+        }
+        return new int[]{(dstWidth - width) / 2, (dstHeight - height) / 2, width, height};
+    }
+
+    private static FloatBuffer asFloatBuffer(final float[] values) {
+        final FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    private static int createProgram(final String vertexSource, final String fragmentSource) {
+        final int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        final int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        final int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        // the program keeps the shaders
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        final int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            final String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IllegalStateException("failed to link program: " + log);
+        }
+        return program;
+    }
+
+    private static int loadShader(final int type, final String source) {
+        final int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        final int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            final String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException("failed to compile shader: " + log);
+        }
+        return shader;
+    }
+}
@@ -1,16 +1,18 @@
 package com.wang.screenavrecorder;
 
+import android.annotation.TargetApi;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.media.projection.MediaProjection;
+import android.os.Build;
 import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created on 2016/10/14.
@@ -21,16 +23,146 @@ public class MediaAudioEncoder extends MediaEncoder {
 
     private static final String TAG = "MediaAudioEncoder";
 
-    private static final String MIME_TYPE = "audio/mp4a-latm";
-    private static final int SAMPLE_RATE = 44100;    // 44.1[KHz] is only setting guaranteed to be available on all devices.
-    private static final int BIT_RATE = 64000;
-    public static final int SAMPLES_PER_FRAME = 1024;    // AAC, bytes/frame/channel
+    public static final int SAMPLES_PER_FRAME = 1024;    // AAC, samples/frame/channel
     public static final int FRAMES_PER_BUFFER = 25;    // AAC, frame/buffer/sec
+    private static final int BYTES_PER_SAMPLE = 2;    // 16bit PCM
+    /**
+     * AAC frames read into one codec input buffer
+     */
+    static final int FRAMES_PER_READ = 1;
+    /**
+     * reads between drain requests, output is small and the codec buffers several frames
+     */
+    static final int READS_PER_DRAIN = 4;
+    /**
+     * the microphone runs ahead of playback by at most this many samples per channel before its oldest are dropped
+     */
+    private static final int MIX_MAX_LATENCY_SAMPLES = SAMPLES_PER_FRAME * 2;
+    private static final int MIX_CAPACITY_SAMPLES = SAMPLES_PER_FRAME * 8;
+    /**
+     * capture reads a follower can fall behind before the newest are dropped, about 0.7 sec
+     */
+    private static final int SHARED_QUEUE_READS = 32;
+    /**
+     * maximum wait of a follower for the next capture read, it checks for stop in between
+     */
+    private static final long SHARED_PARK_NANOS = 10000000;    // 10[msec]
+    private static final long FEED_JOIN_MS = 10;
+
+    /**
+     * record the microphone
+     */
+    public static final int SOURCE_MIC = 0;
+    /**
+     * record what other apps play, API >= 29. Falls back to the microphone if not available.
+     */
+    public static final int SOURCE_PLAYBACK = 1;
+    /**
+     * record what other apps play mixed with the microphone, API >= 29
+     */
+    public static final int SOURCE_PLAYBACK_AND_MIC = 2;
 
+    private final MediaProjection mProjection;
+    private final int mSource;
+    /**
+     * encoder whose capture this one encodes, null if it captures itself
+     */
+    private final MediaAudioEncoder mCaptureSource;
+    /**
+     * encoders sharing the capture of this one
+     */
+    private final CopyOnWriteArrayList<MediaAudioEncoder> mFollowers = new CopyOnWriteArrayList<>();
+    /**
+     * feeds the codec of a follower with the capture, one per recording
+     */
+    private volatile FeedThread mFeedThread;
+    private AudioEncoderConfig mConfig;
+    /**
+     * bytes of one AAC frame of all channels
+     */
+    private int mBytesPerFrame;
+    private volatile float mPlaybackGain = 1f, mMicGain = 1f;
     private AudioThread mAudioThread = null;
+    /**
+     * timestamps of captured PCM, created for each recording
+     */
+    private volatile AudioTimestamper mTimestamper;
 
     public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
+        this(muxer, listener, null, SOURCE_MIC);
+    }
+
+    public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final AudioEncoderConfig config) {
+        this(muxer, listener, null, SOURCE_MIC, config);
+    }
+
+    /**
+     * @param projection projection of the screen recording, needed to capture playback
+     * @param source     one of {@link #SOURCE_MIC}, {@link #SOURCE_PLAYBACK}, {@link #SOURCE_PLAYBACK_AND_MIC}
+     */
+    public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+                             final MediaProjection projection, final int source) {
+        this(muxer, listener, projection, source, new AudioEncoderConfig.Builder().build());
+    }
+
+    /**
+     * @param projection projection of the screen recording, needed to capture playback
+     * @param source     one of {@link #SOURCE_MIC}, {@link #SOURCE_PLAYBACK}, {@link #SOURCE_PLAYBACK_AND_MIC}
+     * @param config     fitted to the selected codec when the encoder is prepared
+     */
+    public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+                             final MediaProjection projection, final int source, final AudioEncoderConfig config) {
         super(muxer, listener);
+        mProjection = projection;
+        mSource = source;
+        mCaptureSource = null;
+        mConfig = muxer.isFragmented() ? FragmentedMp4MuxerBackend.toSupportedConfig(config) : config;
+        mBytesPerFrame = getBytesPerFrame(config.getChannelCount());
+    }
+
+    /**
+     * encode the capture of another encoder, e.g. into a low bitrate preview next to the recording.
+     * Nothing is captured twice, the PCM read by captureSource is copied into this encoder.
+     * It is added to captureSource when recording starts, so start captureSource first or together.
+     *
+     * @param muxer         may differ from the muxer of captureSource
+     * @param captureSource encoder that captures the audio
+     * @param config        sample rate and channels must match the config of captureSource,
+     *                      codec and bitrate may differ
+     * @throws IllegalArgumentException if sample rate or channels differ
+     */
+    public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+                             final MediaAudioEncoder captureSource, final AudioEncoderConfig config) {
+        super(muxer, listener);
+        checkSharedConfig(captureSource.getConfig(), config);
+        mProjection = null;
+        mSource = captureSource.mSource;
+        mCaptureSource = captureSource;
+        mConfig = muxer.isFragmented() ? FragmentedMp4MuxerBackend.toSupportedConfig(config) : config;
+        mBytesPerFrame = getBytesPerFrame(config.getChannelCount());
+    }
+
+    /**
+     * @return config of the encoder, resolved to the selected codec after it was prepared
+     */
+    public AudioEncoderConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * levels of the sources with {@link #SOURCE_PLAYBACK_AND_MIC}, applied when recording starts
+     *
+     * @param playbackGain linear, 1.0 keeps the level
+     * @param micGain      linear, 1.0 keeps the level
+     */
+    public void setMixGains(final float playbackGain, final float micGain) {
+        mPlaybackGain = playbackGain;
+        mMicGain = micGain;
+    }
+
+    @Override
+    int getTrackType() {
+        return RecorderMetrics.TRACK_AUDIO;
     }
 
     @Override
@@ -38,25 +170,38 @@ public class MediaAudioEncoder extends MediaEncoder {
         Log.v(TAG, "prepare:");
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
-        // prepare MediaCodec for AAC encoding of audio data from inernal mic.
-        final MediaCodecInfo audioCodecInfo = selectAudioCodec(MIME_TYPE);
-        if (audioCodecInfo == null) {
-            Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
+        // prepare MediaCodec for encoding of audio data from inernal mic.
+        final CodecRegistry.Entry audioCodec = selectAudioCodec(mConfig);
+        if (audioCodec == null) {
+            Log.e(TAG, "Unable to find an appropriate codec for " + mConfig.getMimeType());
             return;
         }
-        Log.i(TAG, "selected codec: " + audioCodecInfo.getName());
+        if (mConfig.getCodec() != AudioEncoderConfig.CODEC_AAC
+                && !AudioEncoderConfig.MIME_TYPE_OPUS.equals(audioCodec.mimeType)) {
+            Log.i(TAG, "no usable Opus encoder, fall back to AAC");
+        }
+        Log.i(TAG, "selected codec: " + audioCodec);
+        AudioEncoderConfig.Builder builder = new AudioEncoderConfig.Builder(mConfig);
+        if (mCaptureSource != null) {
+            // PCM is shared, so use what the source resolved to if it is prepared already
+            final AudioEncoderConfig shared = mCaptureSource.getConfig();
+            builder.setSampleRate(shared.getSampleRate()).setChannelCount(shared.getChannelCount());
+        }
+        mConfig = builder
+                .setCodec(AudioEncoderConfig.MIME_TYPE_OPUS.equals(audioCodec.mimeType)
+                        ? AudioEncoderConfig.CODEC_OPUS : AudioEncoderConfig.CODEC_AAC)
+                .build()
+                .resolve(audioCodec.caps);
+        mBytesPerFrame = getBytesPerFrame(mConfig.getChannelCount());
 
-        final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, 1);
-        audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_MONO);
-        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
-        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-//		audioFormat.setLong(MediaFormat.KEY_MAX_INPUT_SIZE, inputFile.length());
+        final MediaFormat audioFormat = mConfig.toFormat();
+        // AudioRecord reads whole AAC frames straight into the input buffers
+        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mBytesPerFrame * FRAMES_PER_READ);
 //      audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
         Log.i(TAG, "format: " + audioFormat);
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mMediaCodec.start();
+        mCodec = createEncoder(audioCodec.getName(), audioCodec.mimeType);
+        mCodec.configure(audioFormat);
+        mCodec.start();
         Log.i(TAG, "prepare finishing");
         if (mListener != null) {
             try {
@@ -70,6 +215,13 @@ public class MediaAudioEncoder extends MediaEncoder {
     @Override
     protected void startRecording() {
         super.startRecording();
+        if (mCaptureSource != null) {
+            // the capture thread only copies into the queue of this thread, so a slow codec can not stall it
+            mFeedThread = new FeedThread(mBytesPerFrame * FRAMES_PER_READ);
+            mFeedThread.start();
+            mCaptureSource.addFollower(this);
+            return;
+        }
         // create and execute audio capturing thread using internal mic
         if (mAudioThread == null) {
             mAudioThread = new AudioThread();
@@ -77,12 +229,105 @@ public class MediaAudioEncoder extends MediaEncoder {
         }
     }
 
+    /**
+     * @return smoothed difference of the monotonic clock (video timeline) to the audio timeline in us,
+     * positive while audio lags behind. It is corrected continuously, so this stays near 0.
+     */
+    public long getAvSkewUs() {
+        if (mCaptureSource != null) return mCaptureSource.getAvSkewUs();
+        final AudioTimestamper timestamper = mTimestamper;
+        return timestamper != null ? timestamper.getSkewUs() : 0;
+    }
+
+    @Override
+    void stopRecording() {
+        if (mCaptureSource != null) {
+            // no more input after the EOS
+            mCaptureSource.mFollowers.remove(this);
+        }
+        super.stopRecording();
+    }
+
+    /**
+     * a follower sends EOS on its feeding thread after the queued capture, its codec input is only used there
+     */
+    @Override
+    protected void signalEndOfInputStream() {
+        final FeedThread thread = mFeedThread;
+        if (thread == null) {
+            super.signalEndOfInputStream();
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            while (thread.isAlive()) {
+                // input buffers are only freed while the output is drained
+                drain(0);
+                thread.join(FEED_JOIN_MS);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mFeedThread = null;
+    }
+
     @Override
     protected void release() {
+        if (mCaptureSource != null) {
+            mCaptureSource.mFollowers.remove(this);
+        }
+        final FeedThread thread = mFeedThread;
+        if (thread != null) {
+            // only left running after a codec error, it exits as capturing has stopped
+            try {
+                thread.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mFeedThread = null;
+        }
         mAudioThread = null;
         super.release();
     }
 
+    private void addFollower(final MediaAudioEncoder follower) {
+        final AudioEncoderConfig config = follower.getConfig();
+        if (config.getSampleRate() != mConfig.getSampleRate() || config.getChannelCount() != mConfig.getChannelCount()) {
+            Log.e(TAG, "addFollower: " + config + " does not match the capture " + mConfig + ", not shared");
+            return;
+        }
+        mFollowers.addIfAbsent(follower);
+    }
+
+    /**
+     * copy PCM to the followers, called on the capturing thread only
+     *
+     * @param pcm                position to limit is the PCM, not modified
+     * @param presentationTimeUs of the first sample
+     */
+    void shareCapture(final ByteBuffer pcm, final long presentationTimeUs) {
+        for (final MediaAudioEncoder follower : mFollowers) {
+            final FeedThread thread = follower.mFeedThread;
+            if (thread != null) {
+                thread.offer(pcm, presentationTimeUs);
+            }
+        }
+    }
+
+    /**
+     * @param captureConfig config of the capturing encoder
+     * @param config        config of an encoder sharing its capture
+     * @throws IllegalArgumentException if the PCM of captureConfig can not be encoded with config
+     */
+    static void checkSharedConfig(final AudioEncoderConfig captureConfig, final AudioEncoderConfig config) {
+        if (captureConfig.getSampleRate() != config.getSampleRate())
+            throw new IllegalArgumentException("sample rate " + config.getSampleRate()
+                    + " differs from the capture " + captureConfig.getSampleRate());
+        if (captureConfig.getChannelCount() != config.getChannelCount())
+            throw new IllegalArgumentException("channel count " + config.getChannelCount()
+                    + " differs from the capture " + captureConfig.getChannelCount());
+    }
+
     private static final int[] AUDIO_SOURCES = new int[]{
             MediaRecorder.AudioSource.MIC,
             MediaRecorder.AudioSource.DEFAULT,
@@ -92,53 +337,328 @@ public class MediaAudioEncoder extends MediaEncoder {
     };
 
     /**
-     * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
+     * select the best ranked encoder for the config.
+     * Opus is only used on API >= 29 because MediaMuxer can not write Opus into MP4 before,
+     * otherwise AAC is used.
+     *
+     * @param config
+     * @return null if no codec matched
+     */
+    static CodecRegistry.Entry selectAudioCodec(final AudioEncoderConfig config) {
+        final CodecRegistry registry = CodecRegistry.get();
+        CodecRegistry.Entry entry = null;
+        if (config.getCodec() == AudioEncoderConfig.CODEC_OPUS && android.os.Build.VERSION.SDK_INT >= 29) {
+            entry = registry.selectEncoder(AudioEncoderConfig.MIME_TYPE_OPUS);
+        }
+        if (entry == null) {
+            entry = registry.selectEncoder(AudioEncoderConfig.MIME_TYPE_AAC);
+        }
+        return entry;
+    }
+
+    /**
+     * @param channelCount
+     * @return bytes of one AAC frame of 16bit PCM with interleaved channels
+     */
+    static int getBytesPerFrame(final int channelCount) {
+        return SAMPLES_PER_FRAME * BYTES_PER_SAMPLE * channelCount;
+    }
+
+    /**
+     * @param capacity     of a codec input buffer
+     * @param channelCount
+     * @return bytes to read into it, whole AAC frames if it can hold one
+     */
+    static int getReadSize(final int capacity, final int channelCount) {
+        final int bytesPerFrame = getBytesPerFrame(channelCount);
+        final int bytesPerSample = BYTES_PER_SAMPLE * channelCount;
+        final int size = Math.min(capacity, bytesPerFrame * FRAMES_PER_READ);
+        return size >= bytesPerFrame ? size - size % bytesPerFrame : size - size % bytesPerSample;
+    }
+
+    /**
+     * @param sampleRate
+     * @param channelMask
+     * @param bufferBytes
+     * @return the first microphone type source that initializes, null if none
+     */
+    private static AudioRecord createMicRecord(final int sampleRate, final int channelMask, final int bufferBytes) {
+        for (final int source : AUDIO_SOURCES) {
+            try {
+                final AudioRecord audioRecord = new AudioRecord(
+                        source, sampleRate,
+                        channelMask, AudioFormat.ENCODING_PCM_16BIT, bufferBytes);
+                if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED)
+                    return audioRecord;
+                audioRecord.release();
+            } catch (final Exception e) {
+                // try next source
+            }
+        }
+        return null;
+    }
+
+    /**
+     * PCM of one capture read, passed from the capturing thread to a follower
+     */
+    private static final class PcmChunk {
+        ByteBuffer data;
+        long presentationTimeUs;
+
+        PcmChunk(final int capacity) {
+            data = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    /**
+     * Thread of a follower that encodes the PCM the capture source queued for it, and the EOS.
+     * Chunks go back to the capturing thread through a second queue, so nothing is allocated per read.
+     */
+    private class FeedThread extends Thread {
+
+        /**
+         * filled chunks, produced by the capturing thread
+         */
+        private final SpscRingBuffer<PcmChunk> mQueue = new SpscRingBuffer<>(SHARED_QUEUE_READS);
+        /**
+         * empty chunks, produced by this thread
+         */
+        private final SpscRingBuffer<PcmChunk> mFree = new SpscRingBuffer<>(SHARED_QUEUE_READS);
+        private final SharedInput mInput = new SharedInput();
+        private volatile boolean mWaiting;
+        /**
+         * written by the capturing thread only
+         */
+        private volatile long mDropped;
+
+        FeedThread(final int chunkBytes) {
+            super("MediaAudioEncoder-feed");
+            for (int i = 0; i < SHARED_QUEUE_READS; i++) {
+                mFree.offer(new PcmChunk(chunkBytes));
+            }
+        }
+
+        /**
+         * copy pcm into the queue without waiting, called on the capturing thread
+         */
+        void offer(final ByteBuffer pcm, final long presentationTimeUs) {
+            final PcmChunk chunk = mFree.poll();
+            if (chunk == null) {
+                // the codec of the follower can not keep up, the capture must not wait for it
+                if (mDropped++ == 0) Log.w(TAG, "follower falls behind, dropping capture");
+                getMetrics().onFrameDropped(getTrackType());
+                return;
+            }
+            if (chunk.data.capacity() < pcm.remaining()) {
+                chunk.data = ByteBuffer.allocate(pcm.remaining());
+            }
+            chunk.data.clear();
+            chunk.data.put(pcm.duplicate());
+            chunk.data.flip();
+            chunk.presentationTimeUs = presentationTimeUs;
+            mQueue.offer(chunk);
+            if (mWaiting) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (; ; ) {
+                    final PcmChunk chunk = mQueue.poll();
+                    if (chunk != null) {
+                        encode(chunk);
+                        mFree.offer(chunk);
+                        continue;
+                    }
+                    // what was queued before the stop request is encoded
+                    if (mRequestStop || !mIsCapturing) break;
+                    mWaiting = true;
+                    // check again after announcing so an offer racing with us is not missed
+                    if (mQueue.isEmpty() && !mRequestStop) {
+                        LockSupport.parkNanos(this, SHARED_PARK_NANOS);
+                    }
+                    mWaiting = false;
+                }
+                MediaAudioEncoder.super.signalEndOfInputStream();
+            } catch (final Exception e) {
+                Log.e(TAG, "FeedThread#run", e);
+            }
+            if (mDropped > 0) {
+                Log.w(TAG, "follower dropped " + mDropped + " capture reads");
+            }
+        }
+
+        private void encode(final PcmChunk chunk) {
+            final SharedInput input = mInput;
+            input.pcm = chunk.data;
+            input.presentationTimeUs = chunk.presentationTimeUs;
+            while (input.pcm.hasRemaining()) {
+                if (encodeFromSource(input, mBytesPerFrame * FRAMES_PER_READ) <= 0) break;
+                if (++input.writes % READS_PER_DRAIN == 0) {
+                    frameAvailableSoon();
+                }
+            }
+            input.pcm = null;
+        }
+    }
+
+    /**
+     * copies queued PCM of the capture source into the codec input buffers of a follower
+     */
+    private class SharedInput implements InputSource {
+
+        private ByteBuffer pcm;
+        private long presentationTimeUs;
+        private int writes;
+
+        @Override
+        public int read(final ByteBuffer dst, final int size) {
+            final int bytes = Math.min(getReadSize(size, mConfig.getChannelCount()), pcm.remaining());
+            final ByteBuffer src = pcm.duplicate();
+            src.limit(src.position() + bytes);
+            dst.put(src);
+            pcm.position(pcm.position() + bytes);
+            return bytes;
+        }
+
+        @Override
+        public long getPresentationTimeUs(final int bytes) {
+            final long ptsUs = presentationTimeUs;
+            // a capture read larger than the input buffer continues after the samples just queued
+            presentationTimeUs += bytes / (BYTES_PER_SAMPLE * mConfig.getChannelCount()) * 1000000L / mConfig.getSampleRate();
+            return ptsUs;
+        }
+    }
+
+    /**
+     * Thread to capture audio data from internal mic or playback as uncompressed 16bit PCM data
      * and write them to the MediaCodec encoder
      */
-    private class AudioThread extends Thread {
+    private class AudioThread extends Thread implements InputSource {
+
+        /**
+         * paces the recording, playback when it is mixed with the microphone
+         */
+        private AudioRecord mAudioRecord;
+        /**
+         * microphone mixed into mAudioRecord, null if not mixing
+         */
+        private AudioRecord mMicRecord;
+        private PcmMixer mMixer;
+        private short[] mReadBuffer;
+        private AudioTimestamper mThreadTimestamper;
+        private final int mChannelCount = mConfig.getChannelCount();
+        /**
+         * input buffer of the last read, shared with the followers
+         */
+        private ByteBuffer mLastRead;
+
+        @TargetApi(Build.VERSION_CODES.M)
+        @Override
+        public int read(final ByteBuffer dst, final int size) {
+            mLastRead = dst;
+            final int bytes = getReadSize(size, mChannelCount);
+            if (mMixer == null) {
+                // codec input buffers are direct, so AudioRecord writes into them without a copy
+                return mAudioRecord.read(dst, bytes);
+            }
+            final int samples = mAudioRecord.read(mReadBuffer, 0, bytes / BYTES_PER_SAMPLE);
+            if (samples <= 0) return samples;
+            mMixer.write(0, mReadBuffer, 0, samples);
+            // take what the microphone captured meanwhile without waiting, mixing is only used on API >= 29
+            int request, n;
+            while ((request = Math.min(mReadBuffer.length, mMixer.remaining(1)) / mChannelCount * mChannelCount) > 0
+                    && (n = mMicRecord.read(mReadBuffer, 0, request, AudioRecord.READ_NON_BLOCKING)) > 0) {
+                mMixer.write(1, mReadBuffer, 0, n);
+            }
+            return mMixer.mix(dst, mMixer.available(0));
+        }
+
+        @Override
+        public long getPresentationTimeUs(final int bytes) {
+            final long ptsUs = mThreadTimestamper.onSamplesRead(bytes / (BYTES_PER_SAMPLE * mChannelCount), getPTSUs());
+            // called before the buffer is queued, so the followers copy it while it is still ours
+            if (!mFollowers.isEmpty()) {
+                final ByteBuffer pcm = mLastRead.duplicate();
+                pcm.position(0);
+                pcm.limit(bytes);
+                shareCapture(pcm, ptsUs);
+            }
+            return ptsUs;
+        }
+
+        /**
+         * @return false if nothing can be recorded
+         */
+        private boolean open(final int bufferBytes) {
+            final int sampleRate = mConfig.getSampleRate();
+            final int channelMask = mConfig.getChannelMask();
+            AudioRecord playback = null;
+            if (mSource != SOURCE_MIC) {
+                playback = PlaybackCapture.create(mProjection, sampleRate, channelMask, bufferBytes);
+                if (playback == null) Log.w(TAG, "playback capture not available, recording microphone");
+            }
+            final AudioRecord mic = playback == null || mSource == SOURCE_PLAYBACK_AND_MIC
+                    ? createMicRecord(sampleRate, channelMask, bufferBytes) : null;
+            if (playback != null && mic != null) {
+                mAudioRecord = playback;
+                mMicRecord = mic;
+                mMixer = new PcmMixer(2, MIX_CAPACITY_SAMPLES * mChannelCount, MIX_MAX_LATENCY_SAMPLES * mChannelCount);
+                mMixer.setGain(0, mPlaybackGain);
+                mMixer.setGain(1, mMicGain);
+                mReadBuffer = new short[MIX_CAPACITY_SAMPLES * mChannelCount];
+            } else {
+                mAudioRecord = playback != null ? playback : mic;
+            }
+            return mAudioRecord != null;
+        }
+
+        private void close() {
+            if (mMicRecord != null) {
+                mMicRecord.release();
+                mMicRecord = null;
+            }
+            if (mAudioRecord != null) {
+                mAudioRecord.release();
+                mAudioRecord = null;
+            }
+        }
+
         @Override
         public void run() {
             android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
             try {
+                final int bytesPerFrame = mBytesPerFrame;
                 final int min_buffer_size = AudioRecord.getMinBufferSize(
-                        SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                        mConfig.getSampleRate(), mConfig.getChannelMask(),
                         AudioFormat.ENCODING_PCM_16BIT);
-                int buffer_size = SAMPLES_PER_FRAME * FRAMES_PER_BUFFER;
+                int buffer_size = bytesPerFrame * FRAMES_PER_BUFFER;
                 if (buffer_size < min_buffer_size)
-                    buffer_size = ((min_buffer_size / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
+                    buffer_size = ((min_buffer_size / bytesPerFrame) + 1) * bytesPerFrame * 2;
 
-                AudioRecord audioRecord = null;
-                for (final int source : AUDIO_SOURCES) {
-                    try {
-                        audioRecord = new AudioRecord(
-                                source, SAMPLE_RATE,
-                                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, buffer_size);
-                        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED)
-                            audioRecord = null;
-                    } catch (final Exception e) {
-                        audioRecord = null;
-                    }
-                    if (audioRecord != null) break;
-                }
-                if (audioRecord != null) {
+                if (open(buffer_size)) {
+                    final AudioRecord audioRecord = mAudioRecord;
                     try {
                         if (mIsCapturing) {
                             Log.v(TAG, "AudioThread:start audio recording");
-                            final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
-                            int readBytes;
+                            mThreadTimestamper = new AudioTimestamper(mConfig.getSampleRate());
+                            mTimestamper = mThreadTimestamper;
+                            int readBytes, reads = 0;
+                            // start both together so they cover the same period
                             audioRecord.startRecording();
+                            if (mMicRecord != null) mMicRecord.startRecording();
                             try {
                                 for (; mIsCapturing && !mRequestStop && !mIsEOS; ) {
-                                    // read audio data from internal mic
-                                    buf.clear();
-                                    readBytes = audioRecord.read(buf, SAMPLES_PER_FRAME);
-                                    Log.d(TAG, "Audio bytes" + readBytes);
+                                    // read audio data into the codec
+                                    readBytes = encodeFromSource(this, bytesPerFrame * FRAMES_PER_READ);
                                     if (readBytes > 0) {
-                                        // set audio data to encoder
-                                        buf.position(readBytes);
-                                        buf.flip();
-                                        encodeByteBuffer(buf, readBytes, getPTSUs());
-                                        frameAvailableSoon();
+                                        if (++reads % READS_PER_DRAIN == 0) {
+                                            frameAvailableSoon();
+                                        }
+                                    } else if (readBytes < 0 && !mIsCapturing) {
+                                        break;
                                     }
                                     else {
                                         /**
@@ -151,10 +671,15 @@ public class MediaAudioEncoder extends MediaEncoder {
                                 frameAvailableSoon();
                             } finally {
                                 audioRecord.stop();
+                                if (mMicRecord != null) mMicRecord.stop();
+                            }
+                            if (mMixer != null) {
+                                Log.i(TAG, "microphone underrun=" + mMixer.getUnderrunSamples(1)
+                                        + ", dropped=" + mMixer.getDroppedSamples(1) + " samples");
                             }
                         }
                     } finally {
-                        audioRecord.release();
+                        close();
                     }
                 } else {
                     Log.e(TAG, "failed to initialize AudioRecord");
@@ -166,58 +691,4 @@ public class MediaAudioEncoder extends MediaEncoder {
         }
     }
 
-    /**
-     * select the first codec that match a specific MIME type
-     *
-     * @param mimeType
-     * @return
-     */
-    private static final MediaCodecInfo selectAudioCodec(final String mimeType) {
-        Log.v(TAG, "selectAudioCodec:");
-
-        MediaCodecInfo result = null;
-        // get the list of available codecs
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-            MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
-            MediaCodecInfo[] infos = mediaCodecList.getCodecInfos();
-            LOOP:
-            for (MediaCodecInfo codecInfo : infos) {
-                if (!codecInfo.isEncoder()) {    // skipp decoder
-                    continue;
-                }
-                final String[] types = codecInfo.getSupportedTypes();
-                for (int j = 0; j < types.length; j++) {
-                    Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-                    if (types[j].equalsIgnoreCase(mimeType)) {
-                        if (result == null) {
-                            result = codecInfo;
-                            break LOOP;
-                        }
-                    }
-                }
-            }
-        } else {
-            final int numCodecs = MediaCodecList.getCodecCount();
-            LOOP:
-            for (int i = 0; i < numCodecs; i++) {
-                final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-                if (!codecInfo.isEncoder()) {    // skipp decoder
-                    continue;
-                }
-                final String[] types = codecInfo.getSupportedTypes();
-                for (int j = 0; j < types.length; j++) {
-                    Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-                    if (types[j].equalsIgnoreCase(mimeType)) {
-                        if (result == null) {
-                            result = codecInfo;
-                            break LOOP;
-                        }
-                    }
-                }
-            }
-        }
-
-        return result;
-    }
-
 }
@@ -0,0 +1,310 @@
+package com.wang.screenavrecorder;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * {@link EncoderBackend} backed by android.media.MediaCodec.
+ * In async mode MediaCodec.Callback is delivered on a private HandlerThread.
+ */
+class MediaCodecBackend implements EncoderBackend {
+
+    private static final String TAG = "MediaCodecBackend";
+
+    static final Factory FACTORY = new Factory() {
+        @Override
+        public EncoderBackend createEncoder(final String codecName, final String mimeType, final Callback callback) throws IOException {
+            if (callback != null && isAsyncModeSupported()) {
+                return createAsync(codecName, mimeType, callback);
+            }
+            return new MediaCodecBackend(create(codecName, mimeType), null);
+        }
+    };
+
+    private static MediaCodec create(final String codecName, final String mimeType) throws IOException {
+        return codecName != null ? MediaCodec.createByCodecName(codecName) : MediaCodec.createEncoderByType(mimeType);
+    }
+
+    /**
+     * whether MediaCodec.Callback based async mode can be used on this device.
+     * MediaCodec#setCallback is only available on API >= 21,
+     * older devices fall back to polling the codec.
+     */
+    static boolean isAsyncModeSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    private final MediaCodec mMediaCodec;                // API >= 16(Android4.1.2)
+    /**
+     * thread that MediaCodec.Callback is delivered on in async mode, null in sync mode
+     */
+    private final HandlerThread mCallbackThread;
+    /**
+     * input buffer indices handed over by MediaCodec.Callback#onInputBufferAvailable in async mode
+     */
+    private final ArrayDeque<Integer> mFreeInputBuffers = new ArrayDeque<>();
+    /**
+     * buffer arrays for API < 21 where MediaCodec#getInputBuffer/getOutputBuffer are not available
+     */
+    private ByteBuffer[] mInputBuffers, mOutputBuffers;
+
+    private MediaCodecBackend(final MediaCodec mediaCodec, final HandlerThread callbackThread) {
+        mMediaCodec = mediaCodec;
+        mCallbackThread = callbackThread;
+    }
+
+    @SuppressLint("NewApi")
+    private static EncoderBackend createAsync(final String codecName, final String mimeType, final Callback callback) throws IOException {
+        final HandlerThread callbackThread = new HandlerThread(TAG + "-callback");
+        callbackThread.start();
+        final Handler handler = new Handler(callbackThread.getLooper());
+        final MediaCodec mediaCodec;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                mediaCodec = create(codecName, mimeType);
+            } else {
+                // on API 21/22 callbacks are delivered on the looper of the thread that created the codec
+                mediaCodec = createOn(handler, codecName, mimeType);
+            }
+        } catch (final IOException e) {
+            callbackThread.quitSafely();
+            throw e;
+        }
+        final MediaCodecBackend backend = new MediaCodecBackend(mediaCodec, callbackThread);
+        final CodecCallback codecCallback = backend.new CodecCallback(callback);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mediaCodec.setCallback(codecCallback, handler);
+        } else {
+            mediaCodec.setCallback(codecCallback);
+        }
+        return backend;
+    }
+
+    private static MediaCodec createOn(final Handler handler, final String codecName, final String mimeType) throws IOException {
+        final MediaCodec[] codec = new MediaCodec[1];
+        final IOException[] error = new IOException[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    codec[0] = create(codecName, mimeType);
+                } catch (final IOException e) {
+                    error[0] = e;
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            throw new IOException("interrupted while creating encoder", e);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return codec[0];
+    }
+
+    @Override
+    public boolean isAsync() {
+        return mCallbackThread != null;
+    }
+
+    @Override
+    public void configure(final MediaFormat format) {
+        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mMediaCodec.createInputSurface();    // API >= 18
+    }
+
+    @Override
+    public void start() {
+        mMediaCodec.start();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mInputBuffers = mMediaCodec.getInputBuffers();
+            mOutputBuffers = mMediaCodec.getOutputBuffers();
+        }
+    }
+
+    @Override
+    public void stop() {
+        mMediaCodec.stop();
+        synchronized (mFreeInputBuffers) {
+            mFreeInputBuffers.clear();
+        }
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public void flush() {
+        mMediaCodec.flush();
+        synchronized (mFreeInputBuffers) {
+            mFreeInputBuffers.clear();
+        }
+        if (isAsync()) {
+            // in async mode the codec hands out input buffers again only after start, API >= 21
+            mMediaCodec.start();
+        }
+    }
+
+    @Override
+    public void release() {
+        mMediaCodec.release();
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+        }
+        synchronized (mFreeInputBuffers) {
+            mFreeInputBuffers.clear();
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        if (!isAsync()) {
+            return mMediaCodec.dequeueInputBuffer(timeoutUs);
+        }
+        // MediaCodec#dequeueInputBuffer must not be called in async mode
+        synchronized (mFreeInputBuffers) {
+            if (mFreeInputBuffers.isEmpty() && timeoutUs != 0) {
+                try {
+                    if (timeoutUs < 0) {
+                        mFreeInputBuffers.wait();
+                    } else {
+                        mFreeInputBuffers.wait(Math.max(1, timeoutUs / 1000));
+                    }
+                } catch (final InterruptedException e) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+            }
+            final Integer index = mFreeInputBuffers.poll();
+            return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        return mInputBuffers != null ? mInputBuffers[index] : mMediaCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+        final int status = mMediaCodec.dequeueOutputBuffer(info, timeoutUs);
+        if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED && mOutputBuffers != null) {
+            // this shoud not come when encoding
+            mOutputBuffers = mMediaCodec.getOutputBuffers();
+        }
+        return status;
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        return mOutputBuffers != null ? mOutputBuffers[index] : mMediaCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        mMediaCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mMediaCodec.getOutputFormat(); // API >= 16
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mMediaCodec.signalEndOfInputStream();    // API >= 18
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mMediaCodec.setParameters(params);    // API >= 19
+        }
+    }
+
+    @Override
+    public void setVideoBitrate(final int bitRate) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+            mMediaCodec.setParameters(params);    // API >= 19
+        }
+    }
+
+    @Override
+    public void setInputSuspended(final boolean suspended) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, suspended ? 1 : 0);
+            mMediaCodec.setParameters(params);    // API >= 19
+        }
+    }
+
+    /**
+     * MediaCodec.Callback used in async mode, called on {@link #mCallbackThread}.
+     * This is only instantiated on API >= 21 to avoid loading MediaCodec.Callback on older devices.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class CodecCallback extends MediaCodec.Callback {
+
+        private final Callback mCallback;
+
+        CodecCallback(final Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+            synchronized (mFreeInputBuffers) {
+                mFreeInputBuffers.add(index);
+                mFreeInputBuffers.notifyAll();
+            }
+            mCallback.onInputBufferAvailable(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+            mCallback.onOutputBufferAvailable(index, info);
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+            mCallback.onOutputFormatChanged(format);
+        }
+
+        @Override
+        public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+            Log.e(TAG, "onError:", e);
+            mCallback.onError(e);
+        }
+    }
+}
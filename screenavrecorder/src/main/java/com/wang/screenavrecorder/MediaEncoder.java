@@ -1,6 +1,5 @@
 package com.wang.screenavrecorder;
 
-import android.annotation.SuppressLint;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.util.Log;
@@ -19,6 +18,10 @@ public abstract class MediaEncoder implements Runnable {
     private static final String TAG = "MediaEncoder";
 
     protected static final int TIMEOUT_USEC = 10000;    // 10[msec]
+    /**
+     * maximum time to wait for the EOS callback after signalling end of stream in async mode
+     */
+    private static final long EOS_TIMEOUT_MS = 1000;
 
     public interface MediaEncoderListener {
         void onPrepared(MediaEncoder encoder);
@@ -26,6 +29,24 @@ public abstract class MediaEncoder implements Runnable {
         void onStopped(MediaEncoder encoder);
     }
 
+    /**
+     * writes input data directly into a codec input buffer, see {@link #encodeFromSource(InputSource, int)}
+     */
+    protected interface InputSource {
+        /**
+         * @param dst  input buffer of codec, cleared
+         * @param size maximum number of bytes to write
+         * @return number of bytes written from position 0 of dst, 0 or negative if nothing was read
+         */
+        int read(ByteBuffer dst, int size);
+
+        /**
+         * @param bytes number of bytes just read
+         * @return presentation time of the first byte read
+         */
+        long getPresentationTimeUs(int bytes);
+    }
+
     protected final Object mSync = new Object();
     /**
      * Flag that indicate this encoder is capturing now.
@@ -52,9 +73,9 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected int mTrackIndex;
     /**
-     * MediaCodec instance for encoding
+     * codec instance for encoding
      */
-    protected MediaCodec mMediaCodec;                // API >= 16(Android4.1.2)
+    protected EncoderBackend mCodec;
     /**
      * Weak refarence of MediaMuxerWarapper instance
      */
@@ -63,6 +84,43 @@ public abstract class MediaEncoder implements Runnable {
      * BufferInfo instance for dequeuing
      */
     private MediaCodec.BufferInfo mBufferInfo;        // API >= 16(Android4.1.2)
+    /**
+     * Flag that indicate codec delivers buffers through EncoderBackend.Callback
+     * instead of being polled by {@link #drain()}
+     */
+    protected boolean mAsyncMode;
+    /**
+     * poll interval of codec output in sync mode, null to drain only on #frameAvailableSoon
+     */
+    private DrainBackoff mDrainBackoff;
+    /**
+     * keeps output timestamps of this track increasing
+     */
+    private PtsTracker mPtsTracker;
+    /**
+     * encoding thread, started by the first #startRecording
+     */
+    private Thread mThread;
+    /**
+     * input buffer that was dequeued but not filled by {@link #encodeFromSource(InputSource, int)}, -1 if none
+     */
+    private int mPendingInputIndex = -1;
+    /**
+     * metrics of muxer, taken when recording starts
+     */
+    private volatile RecorderMetrics mMetrics = RecorderMetrics.NONE;
+    /**
+     * pauses of muxer, taken when recording starts
+     */
+    private volatile PauseClock mPauseClock = new PauseClock();
+    /**
+     * video samples are dropped until the next sync frame because one was captured while paused
+     */
+    private volatile boolean mWaitSyncFrame;
+    /**
+     * codec reported an error, it takes no more input and delivers no output
+     */
+    private volatile boolean mFailed;
 
     protected final MediaEncoderListener mListener;
 
@@ -72,16 +130,8 @@ public abstract class MediaEncoder implements Runnable {
         mWeakMuxer = new WeakReference<>(muxer);
         muxer.addEncoder(this);
         mListener = listener;
-        synchronized (mSync) {
-            // create BufferInfo here for effectiveness(to reduce GC)
-            mBufferInfo = new MediaCodec.BufferInfo();
-            // wait for starting thread
-            new Thread(this, getClass().getSimpleName()).start();
-            try {
-                mSync.wait();
-            } catch (final InterruptedException e) {
-            }
-        }
+        // create BufferInfo here for effectiveness(to reduce GC)
+        mBufferInfo = new MediaCodec.BufferInfo();
     }
 
     public String getOutputPath() {
@@ -100,6 +150,10 @@ public abstract class MediaEncoder implements Runnable {
             if (!mIsCapturing || mRequestStop) {
                 return false;
             }
+            if (mAsyncMode) {
+                // output buffers are pushed by codec callback, nothing to wake up
+                return true;
+            }
             mRequestDrain++;
             mSync.notifyAll();
         }
@@ -112,11 +166,6 @@ public abstract class MediaEncoder implements Runnable {
     @Override
     public void run() {
 //		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-        synchronized (mSync) {
-            mRequestStop = false;
-            mRequestDrain = 0;
-            mSync.notify();
-        }
         final boolean isRunning = true;
         boolean localRequestStop;
         boolean localRequestDrain;
@@ -127,10 +176,27 @@ public abstract class MediaEncoder implements Runnable {
                 if (localRequestDrain)
                     mRequestDrain--;
             }
+            if (localRequestStop && mAsyncMode) {
+                if (!mFailed) {
+                    try {
+                        // request stop recording, output is still delivered on the callback thread
+                        signalEndOfInputStream();
+                        waitForEndOfStream();
+                    } catch (final Exception e) {
+                        Log.e(TAG, "failed sending EOS", e);
+                    }
+                }
+                release();
+                break;
+            }
             if (localRequestStop) {
                 drain();
-                // request stop recording
-                signalEndOfInputStream();
+                try {
+                    // request stop recording
+                    signalEndOfInputStream();
+                } catch (final Exception e) {
+                    Log.e(TAG, "failed sending EOS", e);
+                }
                 // process output data again for EOS signale
                 drain();
                 // release all related objects
@@ -138,14 +204,23 @@ public abstract class MediaEncoder implements Runnable {
                 break;
             }
             if (localRequestDrain) {
-                drain();
+                final int drained = drain();
+                if (mDrainBackoff != null) mDrainBackoff.onDrained(drained);
             } else {
+                final boolean poll;
                 synchronized (mSync) {
+                    if (mRequestDrain > 0 || mRequestStop) continue;
+                    final DrainBackoff backoff = mIsCapturing ? mDrainBackoff : null;
                     try {
-                        mSync.wait();
+                        mSync.wait(backoff != null ? backoff.getDelayMs() : 0);
                     } catch (final InterruptedException e) {
                         break;
                     }
+                    // woken by timeout, not by a request
+                    poll = backoff != null && mRequestDrain == 0 && !mRequestStop;
+                }
+                if (poll) {
+                    mDrainBackoff.onDrained(drain(0));
                 }
             }
         } // end of while
@@ -163,11 +238,78 @@ public abstract class MediaEncoder implements Runnable {
     */
     abstract void prepare() throws IOException;
 
+    /**
+     * @return {@link RecorderMetrics#TRACK_VIDEO} or {@link RecorderMetrics#TRACK_AUDIO}
+     */
+    abstract int getTrackType();
+
+    /**
+     * create encoder for the specific MIME type through the codec factory of muxer.
+     * When async mode is available the codec callback is registered here,
+     * so this should be called before EncoderBackend#configure.
+     *
+     * @param mimeType
+     * @return
+     * @throws IOException
+     */
+    protected EncoderBackend createEncoder(final String mimeType) throws IOException {
+        return createEncoder(null, mimeType);
+    }
+
+    /**
+     * create the named encoder, see {@link #createEncoder(String)}
+     *
+     * @param codecName name from {@link CodecRegistry}, null for the default encoder of mimeType
+     * @param mimeType
+     * @return
+     * @throws IOException
+     */
+    protected EncoderBackend createEncoder(final String codecName, final String mimeType) throws IOException {
+        final MediaMuxerWrapper muxer = mWeakMuxer.get();
+        if (muxer == null) {
+            throw new IOException("muxer is unexpectedly null");
+        }
+        final EncoderBackend codec = muxer.getEncoderFactory().createEncoder(codecName, mimeType, mCodecCallback);
+        mAsyncMode = codec.isAsync();
+        return codec;
+    }
+
+    /**
+     * poll interval of codec output when the codec can not notify new output itself.
+     * By default output is only drained on {@link #frameAvailableSoon()}.
+     *
+     * @return null to drain only on request
+     */
+    protected DrainBackoff createDrainBackoff() {
+        return null;
+    }
+
+    /**
+     * @return true if the codec emits samples out of presentation order (B frames)
+     */
+    protected boolean isPtsReorderingAllowed() {
+        return false;
+    }
+
     void startRecording() {
         Log.v(TAG, "startRecording");
+        final MediaMuxerWrapper muxer = mWeakMuxer.get();
+        mMetrics = muxer != null ? muxer.getMetrics() : RecorderMetrics.NONE;
+        mPauseClock = muxer != null ? muxer.getPauseClock() : new PauseClock();
+        mWaitSyncFrame = false;
+        mFailed = false;
         synchronized (mSync) {
+            mDrainBackoff = mAsyncMode ? null : createDrainBackoff();
+            mPtsTracker = new PtsTracker(isPtsReorderingAllowed());
             mIsCapturing = true;
             mRequestStop = false;
+            mRequestDrain = 0;
+            mPendingInputIndex = -1;
+            if (mThread == null) {
+                // flags are set before the thread starts, so no need to wait for it
+                mThread = new Thread(this, getClass().getSimpleName());
+                mThread.start();
+            }
             mSync.notifyAll();
         }
     }
@@ -202,11 +344,11 @@ public abstract class MediaEncoder implements Runnable {
             Log.e(TAG, "failed onStopped", e);
         }
         mIsCapturing = false;
-        if (mMediaCodec != null) {
+        if (mCodec != null) {
             try {
-                mMediaCodec.stop();
-                mMediaCodec.release();
-                mMediaCodec = null;
+                mCodec.stop();
+                mCodec.release();
+                mCodec = null;
             } catch (final Exception e) {
                 Log.e(TAG, "failed releasing MediaCodec", e);
             }
@@ -239,19 +381,12 @@ public abstract class MediaEncoder implements Runnable {
      * @param length             　length of byte array, zero means EOS.
      * @param presentationTimeUs
      */
-    @SuppressLint("NewApi")
     protected void encodeByteBuffer(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
         if (!mIsCapturing) return;
-        final ByteBuffer[] inputBuffers = android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP ? null : mMediaCodec.getInputBuffers();
         while (mIsCapturing) {
-            final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+            final int inputBufferIndex = mCodec.dequeueInputBuffer(TIMEOUT_USEC);
             if (inputBufferIndex >= 0) {
-                final ByteBuffer inputBuffer;
-                if (inputBuffers == null) {
-                    inputBuffer = mMediaCodec.getInputBuffer(inputBufferIndex);
-                } else {
-                    inputBuffer = inputBuffers[inputBufferIndex];
-                }
+                final ByteBuffer inputBuffer = mCodec.getInputBuffer(inputBufferIndex);
                 inputBuffer.clear();
                 if (buffer != null) {
                     inputBuffer.put(buffer);
@@ -261,12 +396,13 @@ public abstract class MediaEncoder implements Runnable {
                     // send EOS
                     mIsEOS = true;
                     Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-                    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
+                    mCodec.queueInputBuffer(inputBufferIndex, 0, 0,
                             presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                     break;
                 } else {
-                    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
+                    mCodec.queueInputBuffer(inputBufferIndex, 0, length,
                             presentationTimeUs, 0);
+                    mMetrics.onInputQueued(getTrackType(), length);
                 }
                 break;
             } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
@@ -284,19 +420,12 @@ public abstract class MediaEncoder implements Runnable {
      * @param length             　length of byte array, zero means EOS.
      * @param presentationTimeUs
      */
-    @SuppressLint("NewApi")
     protected void encodeByteArray(final byte[] buffer, final int length, final long presentationTimeUs) {
         if (!mIsCapturing) return;
-        final ByteBuffer[] inputBuffers = android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP ? null : mMediaCodec.getInputBuffers();
         while (mIsCapturing) {
-            final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+            final int inputBufferIndex = mCodec.dequeueInputBuffer(TIMEOUT_USEC);
             if (inputBufferIndex >= 0) {
-                final ByteBuffer inputBuffer;
-                if (inputBuffers == null) {
-                    inputBuffer = mMediaCodec.getInputBuffer(inputBufferIndex);
-                } else {
-                    inputBuffer = inputBuffers[inputBufferIndex];
-                }
+                final ByteBuffer inputBuffer = mCodec.getInputBuffer(inputBufferIndex);
                 inputBuffer.clear();
                 if (buffer != null) {
                     inputBuffer.put(buffer);
@@ -306,12 +435,13 @@ public abstract class MediaEncoder implements Runnable {
                     // send EOS
                     mIsEOS = true;
                     Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-                    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
+                    mCodec.queueInputBuffer(inputBufferIndex, 0, 0,
                             presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                     break;
                 } else {
-                    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
+                    mCodec.queueInputBuffer(inputBufferIndex, 0, length,
                             presentationTimeUs, 0);
+                    mMetrics.onInputQueued(getTrackType(), length);
                 }
                 break;
             } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
@@ -322,123 +452,386 @@ public abstract class MediaEncoder implements Runnable {
         }
     }
 
+    /**
+     * Let source fill a codec input buffer in place and queue it, this saves the copy of
+     * {@link #encodeByteBuffer(ByteBuffer, int, long)}. While no input buffer is free the drain is
+     * requested, so the caller only needs to call {@link #frameAvailableSoon()} now and then.
+     * Must be called on a single thread.
+     *
+     * @param source
+     * @param maxBytes maximum number of bytes to read into one buffer
+     * @return number of bytes queued or dropped while paused, the result of source if nothing was read,
+     * or -1 if not capturing
+     */
+    protected int encodeFromSource(final InputSource source, final int maxBytes) {
+        int index = mPendingInputIndex;
+        mPendingInputIndex = -1;
+        boolean drainRequested = false;
+        while (index < 0 && mIsCapturing) {
+            index = mCodec.dequeueInputBuffer(TIMEOUT_USEC);
+            if (index < 0 && !drainRequested) {
+                // output is not drained fast enough to free input buffers
+                drainRequested = true;
+                frameAvailableSoon();
+            }
+        }
+        if (index < 0) return -1;
+        final ByteBuffer inputBuffer = mCodec.getInputBuffer(index);
+        inputBuffer.clear();
+        final int read = source.read(inputBuffer, Math.min(maxBytes, inputBuffer.capacity()));
+        if (read <= 0) {
+            // keep the buffer for the next read
+            mPendingInputIndex = index;
+            return read;
+        }
+        // the source keeps its timeline while paused
+        final long presentationTimeUs = source.getPresentationTimeUs(read);
+        if (mPauseClock.isPaused()) {
+            mPendingInputIndex = index;
+            return read;
+        }
+        mCodec.queueInputBuffer(index, 0, read, presentationTimeUs, 0);
+        mMetrics.onInputQueued(getTrackType(), read);
+        return read;
+    }
+
+    /**
+     * wait until the EOS buffer was delivered on the callback thread in async mode
+     */
+    private void waitForEndOfStream() {
+        final long deadline = System.currentTimeMillis() + EOS_TIMEOUT_MS;
+        synchronized (mSync) {
+            long remaining;
+            while (mIsCapturing && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    mSync.wait(remaining);
+                } catch (final InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        if (mIsCapturing) {
+            Log.w(TAG, "timed out waiting for EOS");
+        }
+    }
+
     /**
      * drain encoded data and write them to muxer
+     *
+     * @return number of samples written
      */
-    protected void drain() {
-        if (mMediaCodec == null) return;
-        ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
-        int encoderStatus, count = 0;
+    protected int drain() {
+        return drain(TIMEOUT_USEC);
+    }
+
+    /**
+     * drain encoded data and write them to muxer
+     *
+     * @param timeoutUs timeout of each output poll, 0 to return as soon as no output is ready
+     * @return number of samples written
+     */
+    protected int drain(final long timeoutUs) {
+        if (mCodec == null || mAsyncMode) return 0;
         final MediaMuxerWrapper muxer = mWeakMuxer.get();
         if (muxer == null) {
 //        	throw new NullPointerException("muxer is unexpectedly null");
             Log.w(TAG, "muxer is unexpectedly null");
-            return;
+            return 0;
+        }
+        final RecorderMetrics metrics = mMetrics;
+        metrics.beginSection("MediaEncoder.drain");
+        final int written;
+        try {
+            written = drain(muxer, timeoutUs);
+        } finally {
+            metrics.endSection();
         }
+        metrics.onDrainLoop(getTrackType(), written);
+        return written;
+    }
+
+    /**
+     * output polling loop of {@link #drain(long)}
+     */
+    private int drain(final MediaMuxerWrapper muxer, final long timeoutUs) {
+        int encoderStatus, count = 0, written = 0;
         LOOP:
         while (mIsCapturing) {
             // get encoded data with maximum timeout duration of TIMEOUT_USEC(=10[msec])
-            encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            encoderStatus = mCodec.dequeueOutputBuffer(mBufferInfo, mIsEOS ? TIMEOUT_USEC : timeoutUs);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // wait 5 counts(=TIMEOUT_USEC x 5 = 50msec) until data/EOS come
                 if (!mIsEOS) {
-                    if (++count > 5)
+                    if (timeoutUs == 0 || ++count > 5)
                         break LOOP;        // out of while
                 }
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 Log.v(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
-                // this shoud not come when encoding
-                encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+                // this shoud not come when encoding, EncoderBackend refreshes the buffers itself
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
                 // this status indicate the output format of codec is changed
                 // this should come only once before actual encoded data
                 // but this status never come on Android4.3 or less
                 // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                if (mMuxerStarted) {    // second time request is error
-                    throw new RuntimeException("format changed twice");
-                }
-                // get output format from codec and pass them to muxer
                 // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
-                final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
-                mTrackIndex = muxer.addTrack(format);
-                mMuxerStarted = true;
-                if (!muxer.start()) {
-                    // we should wait until muxer is ready
-                    synchronized (muxer) {
-                        while (!muxer.isStarted())
-                            try {
-                                muxer.wait(100);
-                            } catch (final InterruptedException e) {
-                                break LOOP;
-                            }
-                    }
+                if (!startMuxer(muxer, mCodec.getOutputFormat())) {
+                    break LOOP;
                 }
             } else if (encoderStatus < 0) {
                 // unexpected status
                 Log.w(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
             } else {
-                final ByteBuffer encodedData;
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                    encodedData = mMediaCodec.getOutputBuffer(encoderStatus);
-                }
-                else {
-                    encodedData = encoderOutputBuffers[encoderStatus];
-                }
-                if (encodedData == null) {
-                    // this never should come...may be a MediaCodec internal error
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
-                }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // You shoud set output format to muxer here when you target Android4.3 or less
-                    // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
-                    // therefor we should expand and prepare output format from buffer data.
-                    // This sample is for API>=18(>=Android 4.3), just ignore this flag here
-                    Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
+                final ByteBuffer encodedData = mCodec.getOutputBuffer(encoderStatus);
+                if (writeEncodedData(muxer, encoderStatus, encodedData, mBufferInfo)) {
                     // encoded data is ready, clear waiting counter
                     count = 0;
-                    if (!mMuxerStarted) {
-                        // muxer is not ready...this will prrograming failure.
-                        throw new RuntimeException("drain:muxer hasn't started");
-                    }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                    mBufferInfo.presentationTimeUs = getPTSUs();
-                    Log.d(TAG, "write encoded data");
-                    muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    prevOutputPTSUs = mBufferInfo.presentationTimeUs;
+                    written++;
                 }
-                // return buffer to encoder
-                mMediaCodec.releaseOutputBuffer(encoderStatus, false);
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    // when EOS come.
-                    mIsCapturing = false;
+                if (!mIsCapturing) {
                     break;      // out of while
                 }
             }
         }
+        return written;
+    }
+
+    /**
+     * pass output format of codec to muxer and wait until muxer is ready
+     *
+     * @param muxer
+     * @param format
+     * @return false if interrupted while waiting for muxer
+     */
+    private boolean startMuxer(final MediaMuxerWrapper muxer, final MediaFormat format) {
+        if (mMuxerStarted) {    // second time request is error
+            throw new RuntimeException("format changed twice");
+        }
+        // get output format from codec and pass them to muxer
+        mTrackIndex = muxer.addTrack(format, getTrackType());
+        mMuxerStarted = true;
+        if (!muxer.start()) {
+            // we should wait until muxer is ready
+            synchronized (muxer) {
+                while (!muxer.isStarted())
+                    try {
+                        muxer.wait(100);
+                    } catch (final InterruptedException e) {
+                        return false;
+                    }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * write an output buffer of codec to muxer and return it to codec
+     *
+     * @param muxer
+     * @param index       index of output buffer
+     * @param encodedData
+     * @param bufferInfo
+     * @return true if encoded data was written
+     */
+    private boolean writeEncodedData(final MediaMuxerWrapper muxer, final int index, final ByteBuffer encodedData, final MediaCodec.BufferInfo bufferInfo) {
+        if (encodedData == null) {
+            // this never should come...may be a MediaCodec internal error
+            throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+        }
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // You shoud set output format to muxer here when you target Android4.3 or less
+            // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
+            // therefor we should expand and prepare output format from buffer data.
+            // This sample is for API>=18(>=Android 4.3), just ignore this flag here
+            Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
+            bufferInfo.size = 0;
+        }
+
+        boolean written = bufferInfo.size != 0;
+        if (written) {
+            if (!mMuxerStarted) {
+                // muxer is not ready...this will prrograming failure.
+                throw new RuntimeException("drain:muxer hasn't started");
+            }
+            final long capturePtsUs = bufferInfo.presentationTimeUs;
+            final long ptsUs = mPauseClock.adjust(capturePtsUs);
+            if (ptsUs == PauseClock.PAUSED) {
+                // captured while paused, following video frames may refer to it
+                mWaitSyncFrame = getTrackType() == RecorderMetrics.TRACK_VIDEO;
+                written = false;
+            } else if (mWaitSyncFrame && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                written = false;
+            } else {
+                mWaitSyncFrame = false;
+                // keep the timestamp the sample was queued with, only remove pauses and repair ordering
+                bufferInfo.presentationTimeUs = mPtsTracker.next(ptsUs);
+                // copy into a pooled packet so the codec buffer can be returned right away
+                final EncodedPacket packet = muxer.obtainPacket(bufferInfo.size);
+                packet.set(mTrackIndex, encodedData, bufferInfo);
+                muxer.writePacket(packet);
+                // latency is measured on the capture clock
+                bufferInfo.presentationTimeUs = capturePtsUs;
+                mMetrics.onOutputEncoded(getTrackType(), bufferInfo.size, getPTSUs() - capturePtsUs);
+                onSampleWritten(muxer, bufferInfo);
+            }
+        }
+        // return buffer to encoder
+        mCodec.releaseOutputBuffer(index);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            // when EOS come.
+            synchronized (mSync) {
+                mIsCapturing = false;
+                mSync.notifyAll();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * codec callback used in async mode, called on the private thread of codec
+     */
+    private final EncoderBackend.Callback mCodecCallback = new EncoderBackend.Callback() {
+        @Override
+        public void onInputBufferAvailable(final int index) {
+            // EncoderBackend#dequeueInputBuffer hands the buffer out
+        }
+
+        @Override
+        public void onOutputBufferAvailable(final int index, final MediaCodec.BufferInfo info) {
+            final EncoderBackend codec = mCodec;
+            if (codec == null) return;
+            if (!mIsCapturing) {
+                // delivered while releasing or after the end of stream timed out, give it back anyway
+                try {
+                    codec.releaseOutputBuffer(index);
+                } catch (final IllegalStateException e) {
+                    // codec was stopped meanwhile
+                }
+                return;
+            }
+            final MediaMuxerWrapper muxer = mWeakMuxer.get();
+            if (muxer == null) {
+                Log.w(TAG, "muxer is unexpectedly null");
+                codec.releaseOutputBuffer(index);
+                return;
+            }
+            final RecorderMetrics metrics = mMetrics;
+            metrics.beginSection("MediaEncoder.onOutputBufferAvailable");
+            try {
+                writeEncodedData(muxer, index, codec.getOutputBuffer(index), info);
+            } finally {
+                metrics.endSection();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaFormat format) {
+            Log.v(TAG, "onOutputFormatChanged");
+            final MediaMuxerWrapper muxer = mWeakMuxer.get();
+            if (muxer == null) {
+                Log.w(TAG, "muxer is unexpectedly null");
+                return;
+            }
+            startMuxer(muxer, format);
+        }
+
+        @Override
+        public void onError(final Exception e) {
+            Log.e(TAG, "onError:", e);
+            synchronized (mSync) {
+                mFailed = true;
+                // the codec will not take input or deliver EOS, so nothing waits for it
+                mIsCapturing = false;
+                mRequestStop = true;
+                mSync.notifyAll();
+            }
+            // finish the file with what was written so far
+            final MediaMuxerWrapper muxer = mWeakMuxer.get();
+            if (muxer != null) {
+                muxer.stopRecording();
+            }
+        }
+    };
+
+    /**
+     * @return metrics of the muxer of the current recording
+     */
+    RecorderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * ask the codec for a sync frame, e.g. to start a new segment. Can be called from any thread.
+     */
+    void requestSyncFrame() {
+        final EncoderBackend codec = mCodec;
+        if (codec == null || !mIsCapturing) return;
+        try {
+            codec.requestSyncFrame();
+        } catch (final IllegalStateException e) {
+            // codec was released meanwhile
+            Log.w(TAG, "requestSyncFrame:", e);
+        }
     }
 
     /**
-     * previous presentationTimeUs for writing
+     * change the target bitrate while capturing
+     *
+     * @param bitRate bits per second
+     */
+    void setVideoBitrate(final int bitRate) {
+        final EncoderBackend codec = mCodec;
+        if (codec == null || !mIsCapturing) return;
+        try {
+            codec.setVideoBitrate(bitRate);
+        } catch (final IllegalStateException e) {
+            // codec was released meanwhile
+            Log.w(TAG, "setVideoBitrate:", e);
+        }
+    }
+
+    /**
+     * drop surface input in the codec while paused, see {@link EncoderBackend#setInputSuspended(boolean)}
+     *
+     * @param suspended
      */
-    private long prevOutputPTSUs = 0;
+    void setInputSuspended(final boolean suspended) {
+        final EncoderBackend codec = mCodec;
+        if (codec == null || !mIsCapturing) return;
+        try {
+            codec.setInputSuspended(suspended);
+        } catch (final IllegalStateException e) {
+            // codec was released meanwhile
+            Log.w(TAG, "setInputSuspended:", e);
+        }
+    }
+
+    /**
+     * called on the drain thread after an encoded sample was handed to muxer
+     *
+     * @param muxer
+     * @param bufferInfo info of the written sample
+     */
+    protected void onSampleWritten(final MediaMuxerWrapper muxer, final MediaCodec.BufferInfo bufferInfo) {
+    }
+
+    /**
+     * @return number of output samples whose timestamp had to be moved to keep the track increasing
+     */
+    public int getCorrectedPtsCount() {
+        final PtsTracker tracker = mPtsTracker;
+        return tracker != null ? tracker.getCorrectedCount() : 0;
+    }
 
     /**
-     * get next encoding presentationTimeUs
+     * get presentationTimeUs for input queued now.
+     * This is the monotonic clock Surface frames are stamped with,
+     * so every track of a recording shares one timeline.
      *
      * @return
      */
     protected long getPTSUs() {
-        long result = System.nanoTime() / 1000L;
-        // presentationTimeUs should be monotonic
-        // otherwise muxer fail to write
-        if (result < prevOutputPTSUs)
-            result = (prevOutputPTSUs - result) + result;
-        return result;
+        return System.nanoTime() / 1000L;
     }
 
 }
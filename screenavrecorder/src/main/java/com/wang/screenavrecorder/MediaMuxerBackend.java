@@ -0,0 +1,51 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MuxerBackend} backed by android.media.MediaMuxer
+ */
+class MediaMuxerBackend implements MuxerBackend {
+
+    private final MediaMuxer mMediaMuxer;    // API >= 18
+
+    MediaMuxerBackend(final String outputPath, final int outputFormat) throws IOException {
+        mMediaMuxer = new MediaMuxer(outputPath, outputFormat);
+    }
+
+    @Override
+    public int addTrack(final MediaFormat format) {
+        if (VideoEncoderConfig.MIME_TYPE_HEVC.equals(format.getString(MediaFormat.KEY_MIME))
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            // MPEG4Writer learned to write hvcC boxes in API 24
+            throw new IllegalArgumentException("HEVC track is not supported by MediaMuxer on API " + Build.VERSION.SDK_INT);
+        }
+        return mMediaMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMediaMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMediaMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaMuxer.release();
+    }
+}
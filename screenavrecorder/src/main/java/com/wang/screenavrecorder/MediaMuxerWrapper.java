@@ -4,6 +4,8 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -11,8 +13,14 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.GregorianCalendar;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created on 2016/10/14.
@@ -26,11 +34,99 @@ public class MediaMuxerWrapper {
     private static final String DIR_NAME = "WangScreen";
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
+    /**
+     * MP4 written by MediaMuxer, only playable after recording stopped normally
+     */
+    public static final int OUTPUT_FORMAT_MPEG_4 = 0;
+    /**
+     * fragmented MP4, playable up to the last written fragment at any time. H.264 and AAC only.
+     */
+    public static final int OUTPUT_FORMAT_FRAGMENTED_MPEG_4 = 1;
+
+    /**
+     * result of {@link #prepareAsync(PrepareCallback)} and {@link #startAsync(PrepareCallback)}
+     */
+    public interface PrepareCallback {
+        /**
+         * every encoder is prepared, and recording has started if this came from startAsync
+         */
+        void onPrepared(MediaMuxerWrapper muxer);
+
+        /**
+         * an encoder failed to prepare, all encoders have been released
+         */
+        void onError(MediaMuxerWrapper muxer, Exception e);
+    }
+
+    /**
+     * progress of segmented recording, called on internal threads
+     */
+    public interface SegmentListener {
+        /**
+         * the first sample of segment has been written to path
+         */
+        void onSegmentStarted(String path, int index);
+
+        /**
+         * segment file is complete and can be read or uploaded
+         */
+        void onSegmentFinished(String path, int index, long durationUs, long bytes);
+    }
+
+    /**
+     * result of {@link #saveReplay(String, long, ReplayCallback)}, called on a background thread
+     */
+    public interface ReplayCallback {
+        void onSaved(String path, long durationUs);
+
+        void onError(String path, Exception e);
+    }
+
+    /**
+     * prepares encoders in parallel, threads exit after being idle for a while
+     */
+    private static final ExecutorService sPrepareExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(r, TAG + "-prepare-" + mCount.incrementAndGet());
+        }
+    });
+
     private String mOutputPath;
-    private final MediaMuxer mMediaMuxer;    // API >= 18
+    private final MuxerBackend mMediaMuxer;
+    private final EncoderBackend.Factory mEncoderFactory;
     private int mEncoderCount, mStatredCount;
-    private boolean mIsStarted;
-    private MediaEncoder mVideoEncoder, mAudioEncoder;
+    private int mTrackCount;
+    private volatile boolean mIsStarted;
+    /**
+     * writes samples on a private thread while muxer is running
+     */
+    private volatile MuxerWriter mWriter;
+    /**
+     * buffers for encoded samples on their way to the writer thread
+     */
+    private final PacketPool mPacketPool;
+    /**
+     * holds the encoded samples instead of mMediaMuxer in replay mode
+     */
+    private final ReplayBuffer mReplayBuffer;
+    private volatile MediaEncoder mVideoEncoder, mAudioEncoder;
+    private volatile RecorderMetrics mMetrics = RecorderMetrics.NONE;
+    /**
+     * paused intervals, taken out of the timestamps of all tracks
+     */
+    private final PauseClock mPauseClock = new PauseClock();
+    /**
+     * {@link RecorderMetrics#TRACK_VIDEO} or {@link RecorderMetrics#TRACK_AUDIO} of each track
+     */
+    private int[] mTrackTypes = new int[2];
+    /**
+     * guards starting after asynchronous prepare against #stopRecording
+     */
+    private final Object mStartLock = new Object();
+    private boolean mStopRequested;
 
     /**
      * Constructor
@@ -49,6 +145,29 @@ public class MediaMuxerWrapper {
      * @throws IOException
      */
     public MediaMuxerWrapper(File dir, String ext) throws IOException {
+        this(dir, ext, OUTPUT_FORMAT_MPEG_4);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ext          extension of output file
+     * @param outputFormat {@link #OUTPUT_FORMAT_MPEG_4} or {@link #OUTPUT_FORMAT_FRAGMENTED_MPEG_4}
+     * @throws IOException
+     */
+    public MediaMuxerWrapper(File dir, String ext, int outputFormat) throws IOException {
+        this(dir, ext, outputFormat, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ext          extension of output file
+     * @param outputFormat {@link #OUTPUT_FORMAT_MPEG_4} or {@link #OUTPUT_FORMAT_FRAGMENTED_MPEG_4}
+     * @param encoderPool  codecs are taken from and returned to it, null to create new ones
+     * @throws IOException
+     */
+    public MediaMuxerWrapper(File dir, String ext, int outputFormat, EncoderPool encoderPool) throws IOException {
         if (TextUtils.isEmpty(ext)) {
             ext = ".mp4";
         }
@@ -60,11 +179,179 @@ public class MediaMuxerWrapper {
         } catch (NullPointerException e) {
             throw new RuntimeException("This app has no permission of writing external storage");
         }
-        mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        switch (outputFormat) {
+            case OUTPUT_FORMAT_MPEG_4:
+                mMediaMuxer = new MediaMuxerBackend(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                break;
+            case OUTPUT_FORMAT_FRAGMENTED_MPEG_4:
+                mMediaMuxer = new FragmentedMp4MuxerBackend(mOutputPath);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown output format " + outputFormat);
+        }
+        mPacketPool = new PacketPool();
+        mReplayBuffer = null;
+        mEncoderFactory = encoderPool != null ? encoderPool : MediaCodecBackend.FACTORY;
         mEncoderCount = mStatredCount = 0;
         mIsStarted = false;
     }
 
+    /**
+     * Constructor for segmented recording. A new file is started at the first video sync frame
+     * after the current one reaches segmentDurationUs or segmentBytes, files are named
+     * {@code <date time>-<index><ext>}. {@link #getOutputPath()} returns the first segment.
+     *
+     * @param dir
+     * @param ext               extension of output files
+     * @param segmentDurationUs maximum duration of each file, 0 for no limit
+     * @param segmentBytes      maximum size of each file, 0 for no limit
+     * @param listener          may be null
+     */
+    public MediaMuxerWrapper(final File dir, String ext, final long segmentDurationUs, final long segmentBytes,
+                             final SegmentListener listener) {
+        this(dir, ext, segmentDurationUs, segmentBytes, listener, null);
+    }
+
+    /**
+     * Constructor for segmented recording
+     *
+     * @param dir
+     * @param ext               extension of output files
+     * @param segmentDurationUs maximum duration of each file, 0 for no limit
+     * @param segmentBytes      maximum size of each file, 0 for no limit
+     * @param listener          may be null
+     * @param encoderPool       codecs are taken from and returned to it, null to create new ones
+     * @see #MediaMuxerWrapper(File, String, long, long, SegmentListener)
+     */
+    public MediaMuxerWrapper(final File dir, String ext, final long segmentDurationUs, final long segmentBytes,
+                             final SegmentListener listener, final EncoderPool encoderPool) {
+        if (TextUtils.isEmpty(ext)) {
+            ext = ".mp4";
+        }
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        final String prefix = new File(dir, getDateTimeString()).getAbsolutePath();
+        final String extension = ext;
+        final SegmentingMuxerBackend.SegmentFactory factory = new SegmentingMuxerBackend.SegmentFactory() {
+            @Override
+            public String getPath(final int index) {
+                return String.format(Locale.US, "%s-%03d%s", prefix, index, extension);
+            }
+
+            @Override
+            public MuxerBackend create(final String path) throws IOException {
+                return new MediaMuxerBackend(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            }
+        };
+        mOutputPath = factory.getPath(0);
+        mMediaMuxer = new SegmentingMuxerBackend(factory, segmentDurationUs, segmentBytes, new Runnable() {
+            @Override
+            public void run() {
+                requestSyncFrame();
+            }
+        }, listener);
+        mPacketPool = new PacketPool();
+        mReplayBuffer = null;
+        mEncoderFactory = encoderPool != null ? encoderPool : MediaCodecBackend.FACTORY;
+        mEncoderCount = mStatredCount = 0;
+        mIsStarted = false;
+    }
+
+    /**
+     * Constructor with specific muxer and codec implementations
+     *
+     * @param outputPath
+     * @param muxer
+     * @param encoderFactory
+     */
+    MediaMuxerWrapper(final String outputPath, final MuxerBackend muxer, final EncoderBackend.Factory encoderFactory) {
+        mOutputPath = outputPath;
+        mMediaMuxer = muxer;
+        mPacketPool = new PacketPool();
+        mReplayBuffer = null;
+        mEncoderFactory = encoderFactory;
+        mEncoderCount = mStatredCount = 0;
+        mIsStarted = false;
+    }
+
+    /**
+     * Constructor for replay mode
+     *
+     * @param replayBytes
+     * @param encoderFactory
+     */
+    MediaMuxerWrapper(final long replayBytes, final EncoderBackend.Factory encoderFactory) {
+        mMediaMuxer = null;
+        mPacketPool = ReplayBuffer.createPool(replayBytes);
+        mReplayBuffer = new ReplayBuffer(mPacketPool, replayBytes, new Runnable() {
+            @Override
+            public void run() {
+                requestSyncFrame();
+            }
+        });
+        mEncoderFactory = encoderFactory;
+        mEncoderCount = mStatredCount = 0;
+        mIsStarted = false;
+    }
+
+    /**
+     * Create a muxer that keeps the most recent samples in memory instead of writing a file
+     * ("instant replay"). Call {@link #saveReplay(String, long, ReplayCallback)} to write them out.
+     * When more than replayBytes are held, the oldest GOP is dropped.
+     *
+     * @param replayBytes memory for encoded samples, e.g. bitrate / 8 * seconds * 1.5
+     * @return
+     */
+    public static MediaMuxerWrapper createReplay(final long replayBytes) {
+        return createReplay(replayBytes, null);
+    }
+
+    /**
+     * @param replayBytes memory for encoded samples
+     * @param encoderPool codecs are taken from and returned to it, null to create new ones
+     * @see #createReplay(long)
+     */
+    public static MediaMuxerWrapper createReplay(final long replayBytes, final EncoderPool encoderPool) {
+        return new MediaMuxerWrapper(replayBytes, encoderPool != null ? encoderPool : MediaCodecBackend.FACTORY);
+    }
+
+    /**
+     * write at least the last durationUs held in replay mode to a MP4 file starting at a sync frame.
+     * The saved samples are removed from memory. Also works after recording stopped.
+     *
+     * @param outputPath
+     * @param durationUs
+     * @param callback   called on a background thread, may be null
+     */
+    public void saveReplay(final String outputPath, final long durationUs, final ReplayCallback callback) {
+        if (mReplayBuffer == null) throw new IllegalStateException("not in replay mode");
+        sPrepareExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long savedUs = saveReplay(new MediaMuxerBackend(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4), durationUs);
+                    if (callback != null) callback.onSaved(outputPath, savedUs);
+                } catch (final Exception e) {
+                    Log.e(TAG, "saveReplay:", e);
+                    if (callback != null) callback.onError(outputPath, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param muxer      stopped and released when done
+     * @param durationUs
+     * @return duration of the saved samples
+     */
+    long saveReplay(final MuxerBackend muxer, final long durationUs) {
+        return mReplayBuffer.save(muxer, durationUs);
+    }
+
+    /**
+     * @return path of the output file, null in replay mode
+     */
     public String getOutputPath() {
         return mOutputPath;
     }
@@ -83,19 +370,203 @@ public class MediaMuxerWrapper {
             mAudioEncoder.startRecording();
     }
 
+    /**
+     * prepare all encoders in parallel on background threads.
+     * The result is reported on the main thread.
+     *
+     * @param callback
+     */
+    public void prepareAsync(final PrepareCallback callback) {
+        prepareAsync(callback, new Handler(Looper.getMainLooper()), false);
+    }
+
+    /**
+     * prepare all encoders in parallel on background threads.
+     *
+     * @param callback
+     * @param handler  handler to report the result on, null to report on the preparing thread
+     */
+    public void prepareAsync(final PrepareCallback callback, final Handler handler) {
+        prepareAsync(callback, handler, false);
+    }
+
+    /**
+     * prepare all encoders in parallel on background threads and start recording as soon as they are ready.
+     * The result is reported on the main thread.
+     *
+     * @param callback
+     */
+    public void startAsync(final PrepareCallback callback) {
+        prepareAsync(callback, new Handler(Looper.getMainLooper()), true);
+    }
+
+    /**
+     * @param callback
+     * @param handler  handler to report the result on, null to report on the preparing thread
+     * @see #startAsync(PrepareCallback)
+     */
+    public void startAsync(final PrepareCallback callback, final Handler handler) {
+        prepareAsync(callback, handler, true);
+    }
+
+    private void prepareAsync(final PrepareCallback callback, final Handler handler, final boolean start) {
+        final MediaEncoder[] encoders = getEncoders();
+        final AtomicInteger remaining = new AtomicInteger(encoders.length);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        if (encoders.length == 0) {
+            onPrepared(encoders, null, callback, handler, start);
+            return;
+        }
+        for (final MediaEncoder encoder : encoders) {
+            sPrepareExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        encoder.prepare();
+                    } catch (final Exception e) {
+                        Log.e(TAG, "prepareAsync:", e);
+                        error.compareAndSet(null, e);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        onPrepared(encoders, error.get(), callback, handler, start);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * called on the thread that prepared the last encoder
+     */
+    private void onPrepared(final MediaEncoder[] encoders, final Exception error,
+                            final PrepareCallback callback, final Handler handler, final boolean start) {
+        final boolean stopped;
+        synchronized (mStartLock) {
+            stopped = mStopRequested;
+            if (error == null && !stopped && start) {
+                startRecording();
+            }
+        }
+        if (error != null || stopped) {
+            // encoders that never started recording are not released by #stopRecording
+            for (final MediaEncoder encoder : encoders) {
+                encoder.release();
+            }
+            if (stopped && error == null) {
+                Log.i(TAG, "stopped while preparing");
+                return;
+            }
+        }
+        final Runnable result = new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    callback.onError(MediaMuxerWrapper.this, error);
+                } else {
+                    callback.onPrepared(MediaMuxerWrapper.this);
+                }
+            }
+        };
+        if (handler != null) {
+            handler.post(result);
+        } else {
+            result.run();
+        }
+    }
+
     public void stopRecording() {
+        synchronized (mStartLock) {
+            mStopRequested = true;
+            if (mVideoEncoder != null)
+                mVideoEncoder.stopRecording();
+            mVideoEncoder = null;
+            if (mAudioEncoder != null)
+                mAudioEncoder.stopRecording();
+            mAudioEncoder = null;
+        }
+    }
+
+    /**
+     * stop writing samples but keep codecs, capture and muxer running, so {@link #resume()} is immediate.
+     * Surface input is dropped by the video codec and audio input is discarded after it was read.
+     * The paused interval is removed from the timestamps, so the output has no gap.
+     */
+    public void pause() {
+        synchronized (mStartLock) {
+            if (!mPauseClock.pause(System.nanoTime() / 1000L)) return;
+            final MediaEncoder encoder = mVideoEncoder;
+            if (encoder != null)
+                encoder.setInputSuspended(true);
+        }
+        Log.i(TAG, "pause:");
+    }
+
+    /**
+     * continue writing samples after {@link #pause()}, the video restarts with a sync frame
+     */
+    public void resume() {
+        final long pausedUs;
+        synchronized (mStartLock) {
+            final long nowUs = System.nanoTime() / 1000L;
+            if (!mPauseClock.resume(nowUs)) return;
+            pausedUs = mPauseClock.getPausedUs(nowUs);
+            final MediaEncoder encoder = mVideoEncoder;
+            if (encoder != null)
+                encoder.setInputSuspended(false);
+            requestSyncFrame();
+        }
+        Log.i(TAG, "resume: paused " + pausedUs / 1000 + "ms in total");
+    }
+
+    /**
+     * @return true if the output is fragmented MP4, it only takes H.264 without B frames and AAC
+     */
+    boolean isFragmented() {
+        return mMediaMuxer instanceof FragmentedMp4MuxerBackend;
+    }
+
+    public boolean isPaused() {
+        return mPauseClock.isPaused();
+    }
+
+    PauseClock getPauseClock() {
+        return mPauseClock;
+    }
+
+    /**
+     * ask the video encoder for a sync frame so that the next segment can start soon
+     */
+    private void requestSyncFrame() {
+        final MediaEncoder encoder = mVideoEncoder;
+        if (encoder != null)
+            encoder.requestSyncFrame();
+    }
+
+    private MediaEncoder[] getEncoders() {
+        if (mVideoEncoder != null && mAudioEncoder != null)
+            return new MediaEncoder[]{mVideoEncoder, mAudioEncoder};
         if (mVideoEncoder != null)
-            mVideoEncoder.stopRecording();
-        mVideoEncoder = null;
+            return new MediaEncoder[]{mVideoEncoder};
         if (mAudioEncoder != null)
-            mAudioEncoder.stopRecording();
-        mAudioEncoder = null;
+            return new MediaEncoder[]{mAudioEncoder};
+        return new MediaEncoder[0];
     }
 
     public synchronized boolean isStarted() {
         return mIsStarted;
     }
 
+    EncoderBackend.Factory getEncoderFactory() {
+        return mEncoderFactory;
+    }
+
+    /**
+     * @return statistics of the pool that holds encoded samples until they are written
+     */
+    public PacketPool getPacketPool() {
+        return mPacketPool;
+    }
+
 //**********************************************************************
 //**********************************************************************
 
@@ -111,7 +582,7 @@ public class MediaMuxerWrapper {
             mVideoEncoder = encoder;
         } else if (encoder instanceof MediaAudioEncoder) {
             if (mAudioEncoder != null)
-                throw new IllegalArgumentException("Video encoder already added.");
+                throw new IllegalArgumentException("Audio encoder already added.");
             mAudioEncoder = encoder;
         } else
             throw new IllegalArgumentException("unsupported encoder");
@@ -127,7 +598,19 @@ public class MediaMuxerWrapper {
         Log.v(TAG, "start:");
         mStatredCount++;
         if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
-            mMediaMuxer.start();
+            if (mReplayBuffer == null) {
+                mMediaMuxer.start();
+                mWriter = new MuxerWriter(mMediaMuxer, mPacketPool, Arrays.copyOf(mTrackTypes, mTrackCount), mMetrics,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                // e.g. storage full, encoding on would only fill the pool
+                                Log.e(TAG, "muxer failed, stop recording");
+                                stopRecording();
+                            }
+                        });
+                mWriter.start();
+            }
             mIsStarted = true;
             notifyAll();
             Log.v(TAG, "MediaMuxer started:");
@@ -142,10 +625,16 @@ public class MediaMuxerWrapper {
         Log.v(TAG, "stop:mStatredCount=" + mStatredCount);
         mStatredCount--;
         if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-            mMediaMuxer.stop();
-            mMediaMuxer.release();
             mIsStarted = false;
-            Log.v(TAG, "MediaMuxer stopped:");
+            if (mWriter != null) {
+                // queued samples are written before the writer stops muxer
+                mWriter.finish();
+                mWriter = null;
+            } else if (mMediaMuxer != null) {
+                mMediaMuxer.stop();
+                mMediaMuxer.release();
+                Log.v(TAG, "MediaMuxer stopped:");
+            }
         }
     }
 
@@ -153,26 +642,94 @@ public class MediaMuxerWrapper {
      * assign encoder to muxer
      *
      * @param format
+     * @param trackType {@link RecorderMetrics#TRACK_VIDEO} or {@link RecorderMetrics#TRACK_AUDIO}
      * @return minus value indicate error
      */
-    synchronized int addTrack(final MediaFormat format) {
+    synchronized int addTrack(final MediaFormat format, final int trackType) {
         if (mIsStarted)
             throw new IllegalStateException("muxer already started");
-        final int trackIx = mMediaMuxer.addTrack(format);
+        final int trackIx;
+        if (mReplayBuffer != null) {
+            trackIx = mReplayBuffer.addTrack(format, trackType == RecorderMetrics.TRACK_VIDEO);
+        } else {
+            trackIx = mMediaMuxer.addTrack(format);
+        }
+        if (trackIx >= mTrackTypes.length) {
+            mTrackTypes = Arrays.copyOf(mTrackTypes, trackIx + 1);
+        }
+        mTrackTypes[trackIx] = trackType;
+        mTrackCount = Math.max(mTrackCount, trackIx + 1);
         Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
         return trackIx;
     }
 
     /**
-     * write encoded data to muxer
+     * get a packet to copy encoded data into, it should be passed to {@link #writePacket(EncodedPacket)}
+     *
+     * @param size
+     * @return
+     */
+    EncodedPacket obtainPacket(final int size) {
+        return mPacketPool.acquire(size);
+    }
+
+    /**
+     * write encoded sample to muxer on the writer thread, or keep it in the replay buffer.
+     * The packet is returned to the pool after it was written.
+     * Each track must only be written from one thread.
+     *
+     * @param packet
+     */
+    void writePacket(final EncodedPacket packet) {
+        if (mReplayBuffer != null && mIsStarted) {
+            mReplayBuffer.add(packet);
+            return;
+        }
+        final MuxerWriter writer = mWriter;
+        if (writer != null) {
+            writer.write(packet);
+        } else {
+            mMetrics.onFrameDropped(mTrackTypes[packet.trackIndex]);
+            mPacketPool.release(packet);
+        }
+    }
+
+    /**
+     * receive measurements of the pipeline, should be set before recording starts
+     *
+     * @param metrics null to disable
+     */
+    public void setMetrics(final RecorderMetrics metrics) {
+        mMetrics = metrics != null ? metrics : RecorderMetrics.NONE;
+    }
+
+    /**
+     * @return {@link RecorderMetrics#NONE} if none was set
+     */
+    public RecorderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return writer of the running muxer, null before start, after stop and in replay mode
+     */
+    MuxerWriter getWriter() {
+        return mWriter;
+    }
+
+    /**
+     * write encoded data to muxer.
+     * The data is copied and written on the writer thread, so {@code byteBuf}
+     * can be returned to the codec as soon as this returns.
      *
      * @param trackIndex
      * @param byteBuf
      * @param bufferInfo
      */
-    synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-        if (mStatredCount > 0)
-            mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        final EncodedPacket packet = obtainPacket(bufferInfo.size);
+        packet.set(trackIndex, byteBuf, bufferInfo);
+        writePacket(packet);
     }
 
 //**********************************************************************
@@ -1,15 +1,10 @@
 package com.wang.screenavrecorder;
 
-import android.graphics.Bitmap;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
-import android.os.Process;
 import android.util.Log;
 import android.view.Surface;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /**
@@ -21,51 +16,74 @@ public class MediaVideoEncoder extends MediaEncoder {
 
     private static final String TAG = "MediaVideoEncoder";
 
-    private static final String MIME_TYPE = "video/avc";
-    // parameters for recording
-    private static final int FRAME_RATE = 25;
-    private static final float BPP = 0.25f;
+    /**
+     * maximum poll interval in frames while the screen is idle in sync mode
+     */
+    private static final int MAX_POLL_FRAMES = 8;
 
-    private final int mWidth;
-    private final int mHeight;
+    /**
+     * requested parameters, replaced with the ones the codec supports in #prepare
+     */
+    private VideoEncoderConfig mConfig;
 
     private Surface mSurface;
-    private VideoThread mVideoThread = null;
+    /**
+     * null unless adaptive bitrate was requested and can be changed at runtime
+     */
+    private volatile BitrateController mBitrateController;
 
     public MediaVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final int width, final int height) {
+        this(muxer, listener, new VideoEncoderConfig.Builder().setSize(width, height).build());
+    }
+
+    public MediaVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final VideoEncoderConfig config) {
         super(muxer, listener);
-        Log.i(TAG, "MediaVideoEncoder: ");
-        mWidth = width;
-        mHeight = height;
+        Log.i(TAG, "MediaVideoEncoder: " + config);
+        // checked here as the codec is selected by the config in #prepare
+        mConfig = muxer.isFragmented() ? FragmentedMp4MuxerBackend.toSupportedConfig(config) : config;
     }
 
 
+    @Override
+    int getTrackType() {
+        return RecorderMetrics.TRACK_VIDEO;
+    }
+
     @Override
     protected void prepare() throws IOException {
         Log.i(TAG, "prepare: ");
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec(MIME_TYPE);
-        if (videoCodecInfo == null) {
-            Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
+        final CodecRegistry.Entry videoCodec = selectVideoCodec(mConfig);
+        if (videoCodec == null) {
+            Log.e(TAG, "Unable to find an appropriate codec for " + mConfig.getMimeType());
             return;
         }
-        Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
-
-        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
-        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+        if (mConfig.getCodec() != VideoEncoderConfig.CODEC_AVC
+                && !VideoEncoderConfig.MIME_TYPE_HEVC.equals(videoCodec.mimeType)) {
+            Log.i(TAG, "no usable HEVC encoder, fall back to AVC");
+        }
+        Log.i(TAG, "selected codec: " + videoCodec);
+        mConfig = new VideoEncoderConfig.Builder(mConfig)
+                .setCodec(VideoEncoderConfig.MIME_TYPE_HEVC.equals(videoCodec.mimeType)
+                        ? VideoEncoderConfig.CODEC_HEVC : VideoEncoderConfig.CODEC_AVC)
+                .build()
+                .resolve(videoCodec.caps);
+        Log.i(TAG, String.format("bitrate=%5.2f[Mbps]", mConfig.getBitRate() / 1024f / 1024f));
+        final MediaFormat format = mConfig.toFormat();
         Log.i(TAG, "format: " + format);
 
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mCodec = createEncoder(videoCodec.getName(), videoCodec.mimeType);
+        mCodec.configure(format);
         // get Surface for encoder input
         // this method only can call between #configure and #start
-        mSurface = mMediaCodec.createInputSurface();    // API >= 18
-        mMediaCodec.start();
+        mSurface = mCodec.createInputSurface();    // API >= 18
+        mCodec.start();
+        if (mConfig.isAdaptiveBitRate() && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT) {
+            mBitrateController = new BitrateController(mConfig.getBitRate(),
+                    mConfig.getMinBitRate(), mConfig.getMaxBitRate(), mConfig.getFrameRate());
+        }
         Log.i(TAG, "prepare finishing");
         if (mListener != null) {
             try {
@@ -76,37 +94,76 @@ public class MediaVideoEncoder extends MediaEncoder {
         }
     }
 
-    private void bitmapEncode(Bitmap bitmap) {
-        if (bitmap.isRecycled()){
-            return;
-        }
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream);
-        byte[] input = byteArrayOutputStream.toByteArray();
-        encodeByteArray(input, input.length, getPTSUs());
+    @Override
+    protected boolean isPtsReorderingAllowed() {
+        // max-bframes is only applied on API >= 29
+        return mConfig.isBFramesEnabled() && android.os.Build.VERSION.SDK_INT >= 29;
     }
 
     @Override
-    protected void startRecording() {
-        super.startRecording();
-        // create and execute audio capturing thread using internal mic
-        if (mVideoThread == null) {
-            mVideoThread = new MediaVideoEncoder.VideoThread();
-            mVideoThread.start();
-        }
+    protected DrainBackoff createDrainBackoff() {
+        // frames come from the input surface without frameAvailableSoon,
+        // so poll the codec in sync mode. async mode is driven by codec callbacks.
+        // a static screen with dynamic frame rate produces frames only at the floor rate
+        final int maxPollFrames = mConfig.isDynamicFrameRate()
+                ? Math.max(MAX_POLL_FRAMES, mConfig.getFrameRate() / mConfig.getMinFrameRate()) : MAX_POLL_FRAMES;
+        return new DrainBackoff(mConfig.getFrameRate(), maxPollFrames);
     }
 
 
+    /**
+     * @return input surface of the encoder, for a VirtualDisplay or a {@link FrameInjector}
+     */
     public Surface getSurface() {
         return mSurface;
     }
 
+    /**
+     * @return width of the input surface, this may differ from the requested one after #prepare
+     */
     public int getWidth() {
-        return mWidth;
+        return mConfig.getWidth();
     }
 
+    /**
+     * @return height of the input surface, this may differ from the requested one after #prepare
+     */
     public int getHeight() {
-        return mHeight;
+        return mConfig.getHeight();
+    }
+
+    /**
+     * @return encoder parameters, after #prepare these are the ones the codec was configured with
+     */
+    public VideoEncoderConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * @return controller of the adaptive bitrate with its decisions so far, null if it is not used
+     */
+    public BitrateController getBitrateController() {
+        return mBitrateController;
+    }
+
+    @Override
+    protected void onSampleWritten(final MediaMuxerWrapper muxer, final MediaCodec.BufferInfo bufferInfo) {
+        final BitrateController controller = mBitrateController;
+        if (controller == null) return;
+        final long nowUs = getPTSUs();
+        final MuxerWriter writer = muxer.getWriter();
+        final int bitRate;
+        if (writer != null) {
+            controller.onFrameEncoded(nowUs - bufferInfo.presentationTimeUs, writer.getQueuedCount(mTrackIndex));
+            bitRate = controller.update(nowUs, writer.getWriteCount(), writer.getWriteNanos(), writer.getBlockedCount());
+        } else {
+            // replay mode keeps samples in memory, only the encoder can fall behind
+            controller.onFrameEncoded(nowUs - bufferInfo.presentationTimeUs, 0);
+            bitRate = controller.update(nowUs, 0, 0, 0);
+        }
+        if (bitRate > 0) {
+            setVideoBitrate(bitRate);
+        }
     }
 
     @Override
@@ -116,146 +173,45 @@ public class MediaVideoEncoder extends MediaEncoder {
             mSurface.release();
             mSurface = null;
         }
-        mVideoThread = null;
         super.release();
     }
 
-    private int calcBitRate() {
-        final int bitrate = (int) (BPP * FRAME_RATE * mWidth * mHeight);
-        Log.i(TAG, String.format("bitrate=%5.2f[Mbps]", bitrate / 1024f / 1024f));
-        return bitrate;
-    }
-
-    private class VideoThread extends Thread {
-
-        @Override
-        public void run() {
-            android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-            if (mIsCapturing) {
-                Log.v(TAG, "VideoThread:start audio recording");
-                for (; mIsCapturing && !mRequestStop && !mIsEOS; ) {
-                    frameAvailableSoon();
-                    try {
-                        sleep(30);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }
-    }
-
     /**
-     * select the first codec that match a specific MIME type
+     * select the best ranked encoder for the config.
+     * HEVC is only used on API >= 24 because MediaMuxer can not write HEVC tracks before,
+     * with {@link VideoEncoderConfig#CODEC_AUTO} only a hardware encoder that supports the
+     * size and frame rate is accepted. Otherwise AVC is used.
      *
-     * @param mimeType
+     * @param config
      * @return null if no codec matched
      */
-    protected static final MediaCodecInfo selectVideoCodec(final String mimeType) {
-        Log.v(TAG, "selectVideoCodec:");
-
-        // get the list of available codecs
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-            MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
-            MediaCodecInfo[] infos = mediaCodecList.getCodecInfos();
-            for (MediaCodecInfo codecInfo : infos) {
-                if (!codecInfo.isEncoder()) {    // skipp decoder
-                    continue;
-                }
-                // select first codec that match a specific MIME type and color format
-                final String[] types = codecInfo.getSupportedTypes();
-                for (int j = 0; j < types.length; j++) {
-                    if (types[j].equalsIgnoreCase(mimeType)) {
-                        Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-                        final int format = selectColorFormat(codecInfo, mimeType);
-                        if (format > 0) {
-                            return codecInfo;
-                        }
-                    }
-                }
-            }
-        } else {
-            final int numCodecs = MediaCodecList.getCodecCount();
-            for (int i = 0; i < numCodecs; i++) {
-                final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-
-                if (!codecInfo.isEncoder()) {    // skipp decoder
-                    continue;
-                }
-                // select first codec that match a specific MIME type and color format
-                final String[] types = codecInfo.getSupportedTypes();
-                for (int j = 0; j < types.length; j++) {
-                    if (types[j].equalsIgnoreCase(mimeType)) {
-                        Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-                        final int format = selectColorFormat(codecInfo, mimeType);
-                        if (format > 0) {
-                            return codecInfo;
-                        }
-                    }
-                }
+    protected static CodecRegistry.Entry selectVideoCodec(final VideoEncoderConfig config) {
+        final CodecRegistry registry = CodecRegistry.get();
+        CodecRegistry.Entry entry = null;
+        if (config.getCodec() != VideoEncoderConfig.CODEC_AVC
+                && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
+            final boolean hardwareOnly = config.getCodec() == VideoEncoderConfig.CODEC_AUTO;
+            entry = registry.selectVideoEncoder(VideoEncoderConfig.MIME_TYPE_HEVC,
+                    config.getWidth(), config.getHeight(), config.getFrameRate(), hardwareOnly);
+            if (entry == null && !hardwareOnly) {
+                entry = registry.selectEncoder(VideoEncoderConfig.MIME_TYPE_HEVC);
             }
         }
-        return null;
-    }
-
-    /**
-     * select color format available on specific codec and we can use.
-     *
-     * @return 0 if no colorFormat is matched
-     */
-    protected static final int selectColorFormat(final MediaCodecInfo codecInfo, final String mimeType) {
-        Log.i(TAG, "selectColorFormat: ");
-        int result = 0;
-        final MediaCodecInfo.CodecCapabilities caps;
-        try {
-            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            caps = codecInfo.getCapabilitiesForType(mimeType);
-        } finally {
-            Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-        }
-        int colorFormat;
-        for (int i = 0; i < caps.colorFormats.length; i++) {
-            colorFormat = caps.colorFormats[i];
-            if (isRecognizedViewoFormat(colorFormat)) {
-                if (result == 0)
-                    result = colorFormat;
-                break;
-            }
+        if (entry == null) {
+            entry = registry.selectVideoEncoder(VideoEncoderConfig.MIME_TYPE_AVC,
+                    config.getWidth(), config.getHeight(), config.getFrameRate(), false);
         }
-        if (result == 0)
-            Log.e(TAG, "couldn't find a good color format for " + codecInfo.getName() + " / " + mimeType);
-        return result;
-    }
-
-    /**
-     * color formats that we can use in this class
-     */
-    protected static int[] recognizedFormats;
-
-    static {
-        recognizedFormats = new int[]{
-//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
-//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
-//        	MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface,
-        };
-    }
-
-    private static final boolean isRecognizedViewoFormat(final int colorFormat) {
-        Log.i(TAG, "isRecognizedViewoFormat:colorFormat=" + colorFormat);
-        final int n = recognizedFormats != null ? recognizedFormats.length : 0;
-        for (int i = 0; i < n; i++) {
-            if (recognizedFormats[i] == colorFormat) {
-                return true;
-            }
+        if (entry == null) {
+            // let VideoEncoderConfig#resolve shrink the size
+            entry = registry.selectEncoder(VideoEncoderConfig.MIME_TYPE_AVC);
         }
-        return false;
+        return entry;
     }
 
     @Override
     protected void signalEndOfInputStream() {
         Log.d(TAG, "sending EOS to encoder");
-        mMediaCodec.signalEndOfInputStream();    // API >= 18
+        mCodec.signalEndOfInputStream();    // API >= 18
         mIsEOS = true;
     }
 
@@ -0,0 +1,149 @@
+package com.wang.screenavrecorder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable big endian buffer to build ISO BMFF boxes.
+ * Nested boxes are written with {@link #start(String)} ... {@link #end(int)},
+ * which patches the size once the content is known.
+ */
+final class Mp4BoxBuffer {
+
+    private byte[] mData;
+    private int mSize;
+
+    Mp4BoxBuffer(final int capacity) {
+        mData = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * @return position of the box, pass it to {@link #end(int)}
+     */
+    int start(final String type) {
+        final int pos = mSize;
+        u32(0);
+        fourcc(type);
+        return pos;
+    }
+
+    /**
+     * start a box with version and flags
+     */
+    int startFull(final String type, final int version, final int flags) {
+        final int pos = start(type);
+        u32((version << 24) | (flags & 0xffffff));
+        return pos;
+    }
+
+    void end(final int pos) {
+        setU32(pos, mSize - pos);
+    }
+
+    Mp4BoxBuffer u8(final int v) {
+        ensure(1);
+        mData[mSize++] = (byte) v;
+        return this;
+    }
+
+    Mp4BoxBuffer u16(final int v) {
+        ensure(2);
+        mData[mSize++] = (byte) (v >> 8);
+        mData[mSize++] = (byte) v;
+        return this;
+    }
+
+    Mp4BoxBuffer u24(final int v) {
+        ensure(3);
+        mData[mSize++] = (byte) (v >> 16);
+        mData[mSize++] = (byte) (v >> 8);
+        mData[mSize++] = (byte) v;
+        return this;
+    }
+
+    Mp4BoxBuffer u32(final long v) {
+        ensure(4);
+        setU32(mSize, v);
+        mSize += 4;
+        return this;
+    }
+
+    Mp4BoxBuffer u64(final long v) {
+        u32(v >>> 32);
+        return u32(v);
+    }
+
+    Mp4BoxBuffer zeros(final int count) {
+        ensure(count);
+        Arrays.fill(mData, mSize, mSize + count, (byte) 0);
+        mSize += count;
+        return this;
+    }
+
+    Mp4BoxBuffer fourcc(final String type) {
+        ensure(4);
+        for (int i = 0; i < 4; i++) {
+            mData[mSize++] = (byte) type.charAt(i);
+        }
+        return this;
+    }
+
+    Mp4BoxBuffer bytes(final byte[] src) {
+        return bytes(src, 0, src.length);
+    }
+
+    Mp4BoxBuffer bytes(final byte[] src, final int offset, final int length) {
+        ensure(length);
+        System.arraycopy(src, offset, mData, mSize, length);
+        mSize += length;
+        return this;
+    }
+
+    /**
+     * copy length bytes from the absolute offset of src without changing its position
+     */
+    Mp4BoxBuffer bytes(final ByteBuffer src, final int offset, final int length) {
+        ensure(length);
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + offset, mData, mSize, length);
+        } else {
+            final ByteBuffer dup = src.duplicate();
+            dup.limit(offset + length).position(offset);
+            dup.get(mData, mSize, length);
+        }
+        mSize += length;
+        return this;
+    }
+
+    void setU32(final int pos, final long v) {
+        mData[pos] = (byte) (v >> 24);
+        mData[pos + 1] = (byte) (v >> 16);
+        mData[pos + 2] = (byte) (v >> 8);
+        mData[pos + 3] = (byte) v;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * @return view of the content, valid until the next write
+     */
+    ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(mData, 0, mSize);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(mData, mSize);
+    }
+
+    private void ensure(final int count) {
+        if (mSize + count > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mSize + count));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Muxer used by {@link MediaMuxerWrapper}.
+ * This mirrors the subset of android.media.MediaMuxer the wrapper needs.
+ */
+interface MuxerBackend {
+
+    /**
+     * @param format
+     * @return track index
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,255 @@
+package com.wang.screenavrecorder;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Private thread that writes encoded samples to the muxer.
+ * Each track has its own single-producer ring, so encoder threads only copy the sample
+ * and never wait for the muxer monitor or for storage I/O unless the ring is full.
+ */
+final class MuxerWriter implements Runnable {
+
+    private static final String TAG = "MuxerWriter";
+
+    /**
+     * number of samples queued per track before the encoder has to wait
+     */
+    static final int RING_CAPACITY = 64;
+    /**
+     * back-off of an encoder thread while the ring of its track is full
+     */
+    private static final long FULL_PARK_NANOS = 100000;    // 100[usec]
+
+    private final MuxerBackend mMuxer;
+    private final PacketPool mPool;
+    private final RecorderMetrics mMetrics;
+    /**
+     * {@link RecorderMetrics#TRACK_VIDEO} or {@link RecorderMetrics#TRACK_AUDIO} of each track
+     */
+    private final int[] mTrackTypes;
+    /**
+     * presentation time of the last written sample of each track type, only used on the writer thread
+     */
+    private final long[] mLastPtsUs = {-1, -1};
+    private final SpscRingBuffer<EncodedPacket>[] mRings;
+    /**
+     * called on the writer thread when writing failed, null if not needed
+     */
+    private final Runnable mFailureListener;
+    private final Thread mThread;
+    private volatile boolean mWaiting;
+    private volatile boolean mFinishing;
+    /**
+     * set when the writer thread exited, later samples are dropped
+     */
+    private volatile boolean mStopped;
+    /**
+     * only updated on the writer thread
+     */
+    private volatile long mWriteCount;
+    private volatile long mWriteNanos;
+    private final AtomicLong mBlockedCount = new AtomicLong();
+
+    /**
+     * @param muxer
+     * @param pool
+     * @param trackTypes type of each track for metrics
+     * @param metrics
+     * @param failureListener called on the writer thread when the muxer failed, may be null
+     */
+    @SuppressWarnings("unchecked")
+    MuxerWriter(final MuxerBackend muxer, final PacketPool pool, final int[] trackTypes, final RecorderMetrics metrics,
+                final Runnable failureListener) {
+        final int trackCount = trackTypes.length;
+        mMuxer = muxer;
+        mPool = pool;
+        mTrackTypes = trackTypes;
+        mMetrics = metrics;
+        mFailureListener = failureListener;
+        mRings = new SpscRingBuffer[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            mRings[i] = new SpscRingBuffer<>(RING_CAPACITY);
+        }
+        mThread = new Thread(this, TAG);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * queue packet for writing, it is released to the pool after it was written.
+     * called on the encoder thread of the track.
+     *
+     * @param packet
+     */
+    void write(final EncodedPacket packet) {
+        final SpscRingBuffer<EncodedPacket> ring = mRings[packet.trackIndex];
+        if (mStopped) {
+            drop(packet);
+            return;
+        }
+        boolean blocked = false;
+        while (!ring.offer(packet)) {
+            if (!blocked) {
+                blocked = true;
+                mBlockedCount.incrementAndGet();
+            }
+            if (mStopped) {
+                drop(packet);
+                return;
+            }
+            // muxer can not keep up, wait for the writer to make room
+            LockSupport.unpark(mThread);
+            LockSupport.parkNanos(this, FULL_PARK_NANOS);
+        }
+        if (mStopped) {
+            // the writer may have drained the ring before this offer
+            dropQueued(ring);
+            return;
+        }
+        if (mWaiting) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * write all queued samples, then stop and release the muxer on the writer thread
+     */
+    void finish() {
+        mFinishing = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * @param trackIndex
+     * @return number of samples waiting for the muxer
+     */
+    int getQueuedCount(final int trackIndex) {
+        return mRings[trackIndex].size();
+    }
+
+    /**
+     * @return number of samples written to the muxer so far
+     */
+    long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return total time spent in {@link MuxerBackend#writeSampleData}
+     */
+    long getWriteNanos() {
+        return mWriteNanos;
+    }
+
+    /**
+     * @return number of samples an encoder thread had to wait for because the ring was full
+     */
+    long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    @Override
+    public void run() {
+        boolean failed = false;
+        try {
+            for (; ; ) {
+                if (writeQueued()) {
+                    continue;
+                }
+                if (mFinishing) {
+                    // producers have stopped before finish() so one more pass is enough
+                    writeQueued();
+                    break;
+                }
+                mWaiting = true;
+                // check again after announcing so an offer racing with us is not missed
+                if (isEmpty() && !mFinishing) {
+                    LockSupport.park(this);
+                }
+                mWaiting = false;
+            }
+        } catch (final Exception e) {
+            Log.e(TAG, "failed writing sample data", e);
+            failed = true;
+        }
+        mStopped = true;
+        // nothing is written any more, give back what is still queued
+        for (final SpscRingBuffer<EncodedPacket> ring : mRings) {
+            dropQueued(ring);
+        }
+        if (failed && mFailureListener != null) {
+            mFailureListener.run();
+        }
+        try {
+            mMuxer.stop();
+            mMuxer.release();
+        } catch (final Exception e) {
+            Log.e(TAG, "failed stopping muxer", e);
+        }
+        Log.v(TAG, "MediaMuxer stopped:");
+    }
+
+    /**
+     * @return true if any sample was written
+     */
+    private boolean writeQueued() {
+        boolean written = false;
+        for (final SpscRingBuffer<EncodedPacket> ring : mRings) {
+            EncodedPacket packet;
+            // bounded per pass so a busy track can not starve the other one
+            for (int n = 0; n < RING_CAPACITY && (packet = ring.poll()) != null; n++) {
+                final int type = mTrackTypes[packet.trackIndex];
+                final int size = packet.info.size;
+                final long ptsUs = packet.info.presentationTimeUs;
+                mMetrics.beginSection("MuxerWriter.writeSampleData");
+                final long startNanos = System.nanoTime();
+                try {
+                    mMuxer.writeSampleData(packet.trackIndex, packet.data, packet.info);
+                } finally {
+                    mPool.release(packet);
+                    mMetrics.endSection();
+                }
+                final long nanos = System.nanoTime() - startNanos;
+                mWriteNanos += nanos;
+                mWriteCount++;
+                mMetrics.onMuxerWrite(type, size, nanos);
+                mLastPtsUs[type] = ptsUs;
+                if (type == RecorderMetrics.TRACK_AUDIO && mLastPtsUs[RecorderMetrics.TRACK_VIDEO] >= 0) {
+                    mMetrics.onAvSkew(ptsUs - mLastPtsUs[RecorderMetrics.TRACK_VIDEO]);
+                }
+                written = true;
+            }
+        }
+        return written;
+    }
+
+    private void drop(final EncodedPacket packet) {
+        mMetrics.onFrameDropped(mTrackTypes[packet.trackIndex]);
+        mPool.release(packet);
+    }
+
+    /**
+     * release every packet in ring after the writer stopped.
+     * Called by the writer thread and by a producer that offered late, so polling is serialized on ring.
+     */
+    private void dropQueued(final SpscRingBuffer<EncodedPacket> ring) {
+        synchronized (ring) {
+            EncodedPacket packet;
+            while ((packet = ring.poll()) != null) {
+                drop(packet);
+            }
+        }
+    }
+
+    private boolean isEmpty() {
+        for (final SpscRingBuffer<EncodedPacket> ring : mRings) {
+            if (!ring.isEmpty()) return false;
+        }
+        return true;
+    }
+}
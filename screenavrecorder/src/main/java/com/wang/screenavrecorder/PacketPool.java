@@ -0,0 +1,169 @@
+package com.wang.screenavrecorder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-capacity pool of direct buffers for encoded samples, grouped by size class.
+ * Packets are acquired on the encoder threads and released on the muxer writer thread,
+ * so after warm up the encode to mux path does not allocate.
+ * A packet that does not fit any size class, or whose class is exhausted,
+ * is allocated on demand and dropped on release. Those are counted as misses.
+ */
+public final class PacketPool {
+
+    /**
+     * default size classes in bytes
+     */
+    static final int[] DEFAULT_CLASS_SIZES = {
+            1024, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024
+    };
+    /**
+     * default number of packets per size class,
+     * small classes are mostly AAC frames, large ones video key frames
+     */
+    static final int[] DEFAULT_CLASS_CAPACITIES = {
+            96, 64, 64, 64, 16, 4
+    };
+
+    private final int[] mClassSizes;
+    private final int[] mClassCapacities;
+    /**
+     * free packets of each class, guarded by the array itself
+     */
+    private final EncodedPacket[][] mFree;
+    private final int[] mFreeCount;
+    /**
+     * packets allocated for each class so far, guarded by mFree[i]
+     */
+    private final int[] mAllocated;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    private final AtomicInteger mHighWaterMark = new AtomicInteger();
+
+    PacketPool() {
+        this(DEFAULT_CLASS_SIZES, DEFAULT_CLASS_CAPACITIES);
+    }
+
+    /**
+     * @param classSizes      ascending size of each class in bytes
+     * @param classCapacities maximum number of pooled packets of each class
+     */
+    PacketPool(final int[] classSizes, final int[] classCapacities) {
+        if (classSizes.length != classCapacities.length)
+            throw new IllegalArgumentException("classSizes and classCapacities differ in length");
+        for (int i = 1; i < classSizes.length; i++) {
+            if (classSizes[i] <= classSizes[i - 1])
+                throw new IllegalArgumentException("classSizes must be ascending");
+        }
+        mClassSizes = classSizes.clone();
+        mClassCapacities = classCapacities.clone();
+        mFree = new EncodedPacket[classSizes.length][];
+        mFreeCount = new int[classSizes.length];
+        mAllocated = new int[classSizes.length];
+        for (int i = 0; i < classSizes.length; i++) {
+            mFree[i] = new EncodedPacket[classCapacities[i]];
+        }
+    }
+
+    /**
+     * @param size required capacity in bytes
+     * @return packet that should be passed to {@link #release(EncodedPacket)} after use
+     */
+    EncodedPacket acquire(final int size) {
+        final int sizeClass = classOf(size);
+        EncodedPacket packet = null;
+        boolean pooled = false;
+        if (sizeClass >= 0) {
+            final EncodedPacket[] free = mFree[sizeClass];
+            synchronized (free) {
+                if (mFreeCount[sizeClass] > 0) {
+                    packet = free[--mFreeCount[sizeClass]];
+                    free[mFreeCount[sizeClass]] = null;
+                } else if (mAllocated[sizeClass] < mClassCapacities[sizeClass]) {
+                    mAllocated[sizeClass]++;
+                    pooled = true;
+                }
+            }
+        }
+        if (packet != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+            packet = pooled ? new EncodedPacket(mClassSizes[sizeClass], sizeClass)
+                    : new EncodedPacket(size, EncodedPacket.UNPOOLED);
+        }
+        final int outstanding = mOutstanding.incrementAndGet();
+        int highWater;
+        while (outstanding > (highWater = mHighWaterMark.get())) {
+            if (mHighWaterMark.compareAndSet(highWater, outstanding)) break;
+        }
+        return packet;
+    }
+
+    void release(final EncodedPacket packet) {
+        mOutstanding.decrementAndGet();
+        final int sizeClass = packet.sizeClass;
+        if (sizeClass == EncodedPacket.UNPOOLED) return;
+        final EncodedPacket[] free = mFree[sizeClass];
+        synchronized (free) {
+            free[mFreeCount[sizeClass]++] = packet;
+        }
+    }
+
+    /**
+     * @return number of acquisitions served from the pool
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return number of acquisitions that had to allocate a buffer
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return maximum number of packets in use at the same time
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    /**
+     * @return number of packets currently in use
+     */
+    public int getOutstanding() {
+        return mOutstanding.get();
+    }
+
+    /**
+     * @return bytes of direct memory currently owned by pooled packets
+     */
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < mClassSizes.length; i++) {
+            synchronized (mFree[i]) {
+                bytes += (long) mAllocated[i] * mClassSizes[i];
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PacketPool{hits=" + getHits() + ", misses=" + getMisses()
+                + ", highWaterMark=" + getHighWaterMark() + ", pooledBytes=" + getPooledBytes() + "}";
+    }
+
+    private int classOf(final int size) {
+        for (int i = 0; i < mClassSizes.length; i++) {
+            if (size <= mClassSizes[i]) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,91 @@
+package com.wang.screenavrecorder;
+
+/**
+ * Paused intervals of a recording, shared by its tracks.
+ * Samples keep the capture timestamp until they are written, then the pauses before them
+ * are taken out so the output is continuous. Samples captured while paused are dropped.
+ * All times are on the clock of {@link MediaEncoder#getPTSUs()}. Thread safe.
+ */
+final class PauseClock {
+
+    /**
+     * result of {@link #adjust(long)} for samples captured while paused
+     */
+    static final long PAUSED = Long.MIN_VALUE;
+
+    /**
+     * start and end of the finished pauses in order
+     */
+    private long[] mStarts = new long[4];
+    private long[] mEnds = new long[4];
+    private int mCount;
+    private long mPausedUs;
+    /**
+     * start of the current pause, PAUSED if running
+     */
+    private long mPauseStartUs = PAUSED;
+
+    /**
+     * @param nowUs
+     * @return false if already paused
+     */
+    synchronized boolean pause(final long nowUs) {
+        if (mPauseStartUs != PAUSED) return false;
+        mPauseStartUs = nowUs;
+        return true;
+    }
+
+    /**
+     * @param nowUs
+     * @return false if not paused
+     */
+    synchronized boolean resume(final long nowUs) {
+        if (mPauseStartUs == PAUSED) return false;
+        if (mCount == mStarts.length) {
+            final long[] starts = new long[mCount * 2];
+            final long[] ends = new long[mCount * 2];
+            System.arraycopy(mStarts, 0, starts, 0, mCount);
+            System.arraycopy(mEnds, 0, ends, 0, mCount);
+            mStarts = starts;
+            mEnds = ends;
+        }
+        final long endUs = Math.max(nowUs, mPauseStartUs);
+        mStarts[mCount] = mPauseStartUs;
+        mEnds[mCount] = endUs;
+        mCount++;
+        mPausedUs += endUs - mPauseStartUs;
+        mPauseStartUs = PAUSED;
+        return true;
+    }
+
+    synchronized boolean isPaused() {
+        return mPauseStartUs != PAUSED;
+    }
+
+    /**
+     * @param nowUs
+     * @return total time paused until nowUs
+     */
+    synchronized long getPausedUs(final long nowUs) {
+        return mPausedUs + (mPauseStartUs != PAUSED ? Math.max(0, nowUs - mPauseStartUs) : 0);
+    }
+
+    /**
+     * @param ptsUs capture timestamp of a sample
+     * @return ptsUs without the pauses before it, {@link #PAUSED} if it was captured while paused
+     */
+    synchronized long adjust(final long ptsUs) {
+        if (mPauseStartUs != PAUSED && ptsUs >= mPauseStartUs) return PAUSED;
+        long offsetUs = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (ptsUs >= mEnds[i]) {
+                offsetUs += mEnds[i] - mStarts[i];
+            } else if (ptsUs >= mStarts[i]) {
+                return PAUSED;
+            } else {
+                break;
+            }
+        }
+        return ptsUs - offsetUs;
+    }
+}
@@ -0,0 +1,197 @@
+package com.wang.screenavrecorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Streaming mixer of 16bit PCM from several capture sources, allocation free after construction.
+ * Sources have the same channel count and interleaved channels are mixed like mono samples,
+ * so sizes are counted in samples of all channels and must be multiples of the channel count.
+ * Captured samples are pushed with {@link #write(int, short[], int, int)} into a ring per source.
+ * Source 0 is the clock master: {@link #mix(ByteBuffer, int)} consumes the requested samples from it
+ * and whatever the other sources have for the same period. A source that has too little
+ * (it started late or stalled) is padded with silence, a source that runs ahead of the master by more
+ * than the allowed latency (its clock is faster) loses its oldest samples. So every source stays
+ * aligned to the master within the latency, without resampling.
+ * Samples are scaled by the per-source gain and summed with saturation.
+ */
+final class PcmMixer {
+
+    /**
+     * fixed point unity gain
+     */
+    static final int UNITY_GAIN = 1 << 14;
+    private static final int GAIN_SHIFT = 14;
+
+    private final short[][] mRings;
+    private final int[] mReadPos;
+    private final int[] mCount;
+    private final int[] mGains;
+    private final int mMaxLatencySamples;
+    private final long[] mUnderrunSamples;
+    private final long[] mDroppedSamples;
+    /**
+     * sum of one mix before saturation
+     */
+    private final int[] mAcc;
+
+    /**
+     * @param sourceCount
+     * @param capacitySamples    ring size of each source, at least one mix plus the latency
+     * @param maxLatencySamples  samples a source may hold after a mix before the oldest are dropped
+     */
+    PcmMixer(final int sourceCount, final int capacitySamples, final int maxLatencySamples) {
+        if (sourceCount < 1 || maxLatencySamples >= capacitySamples)
+            throw new IllegalArgumentException("invalid mixer size");
+        mRings = new short[sourceCount][capacitySamples];
+        mReadPos = new int[sourceCount];
+        mCount = new int[sourceCount];
+        mGains = new int[sourceCount];
+        mUnderrunSamples = new long[sourceCount];
+        mDroppedSamples = new long[sourceCount];
+        mMaxLatencySamples = maxLatencySamples;
+        mAcc = new int[capacitySamples];
+        for (int i = 0; i < sourceCount; i++) {
+            mGains[i] = UNITY_GAIN;
+        }
+    }
+
+    /**
+     * @param source
+     * @param gain   linear, 1.0 keeps the level
+     */
+    void setGain(final int source, final float gain) {
+        mGains[source] = Math.round(Math.max(0, gain) * UNITY_GAIN);
+    }
+
+    /**
+     * @return number of samples the source holds
+     */
+    int available(final int source) {
+        return mCount[source];
+    }
+
+    /**
+     * @return number of free samples in the ring of source
+     */
+    int remaining(final int source) {
+        return mRings[source].length - mCount[source];
+    }
+
+    /**
+     * queue captured samples of source, samples that do not fit are dropped
+     *
+     * @return number of samples queued
+     */
+    int write(final int source, final short[] samples, final int offset, final int count) {
+        final short[] ring = mRings[source];
+        final int n = Math.min(count, ring.length - mCount[source]);
+        int writePos = (mReadPos[source] + mCount[source]) % ring.length;
+        final int first = Math.min(n, ring.length - writePos);
+        System.arraycopy(samples, offset, ring, writePos, first);
+        System.arraycopy(samples, offset + first, ring, 0, n - first);
+        mCount[source] += n;
+        mDroppedSamples[source] += count - n;
+        return n;
+    }
+
+    /**
+     * mix samples from the master and the matching period of the other sources
+     * into dst at position 0 in native byte order
+     *
+     * @param dst
+     * @param samples must not exceed {@link #available(int)} of source 0
+     * @return number of bytes written
+     */
+    int mix(final ByteBuffer dst, final int samples) {
+        if (samples > mCount[0])
+            throw new IllegalArgumentException("master has only " + mCount[0] + " samples");
+        accumulate(samples);
+        final int[] acc = mAcc;
+        dst.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < samples; i++) {
+            dst.putShort(i * 2, saturate(acc[i]));
+        }
+        consume(samples);
+        return samples * 2;
+    }
+
+    /**
+     * same as {@link #mix(ByteBuffer, int)} into an array
+     *
+     * @return number of samples written
+     */
+    int mix(final short[] dst, final int offset, final int samples) {
+        if (samples > mCount[0])
+            throw new IllegalArgumentException("master has only " + mCount[0] + " samples");
+        accumulate(samples);
+        final int[] acc = mAcc;
+        for (int i = 0; i < samples; i++) {
+            dst[offset + i] = saturate(acc[i]);
+        }
+        consume(samples);
+        return samples;
+    }
+
+    /**
+     * @return samples of source replaced by silence because it had no data
+     */
+    long getUnderrunSamples(final int source) {
+        return mUnderrunSamples[source];
+    }
+
+    /**
+     * @return samples of source dropped because it ran ahead or its ring was full
+     */
+    long getDroppedSamples(final int source) {
+        return mDroppedSamples[source];
+    }
+
+    void clear() {
+        for (int s = 0; s < mRings.length; s++) {
+            mReadPos[s] = 0;
+            mCount[s] = 0;
+        }
+    }
+
+    /**
+     * sum the scaled samples of every source into mAcc, in runs that do not wrap around a ring
+     */
+    private void accumulate(final int samples) {
+        final int[] acc = mAcc;
+        Arrays.fill(acc, 0, samples, 0);
+        for (int s = 0; s < mRings.length; s++) {
+            final short[] ring = mRings[s];
+            final int gain = mGains[s];
+            final int n = Math.min(samples, mCount[s]);
+            int pos = mReadPos[s];
+            for (int i = 0; i < n; ) {
+                final int run = Math.min(n - i, ring.length - pos);
+                for (final int end = i + run; i < end; i++, pos++) {
+                    acc[i] += (ring[pos] * gain) >> GAIN_SHIFT;
+                }
+                pos = 0;
+            }
+        }
+    }
+
+    private static short saturate(final int v) {
+        return (short) (v > Short.MAX_VALUE ? Short.MAX_VALUE : v < Short.MIN_VALUE ? Short.MIN_VALUE : v);
+    }
+
+    private void consume(final int samples) {
+        for (int s = 0; s < mRings.length; s++) {
+            int n = Math.min(samples, mCount[s]);
+            mUnderrunSamples[s] += samples - n;
+            if (mCount[s] - n > mMaxLatencySamples) {
+                // runs ahead of the master
+                final int excess = mCount[s] - n - mMaxLatencySamples;
+                mDroppedSamples[s] += excess;
+                n += excess;
+            }
+            mReadPos[s] = (mReadPos[s] + n) % mRings[s].length;
+            mCount[s] -= n;
+        }
+    }
+}
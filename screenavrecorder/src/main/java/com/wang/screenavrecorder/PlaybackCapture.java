@@ -0,0 +1,80 @@
+package com.wang.screenavrecorder;
+
+import android.annotation.TargetApi;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.projection.MediaProjection;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates an AudioRecord that captures what other apps play, API >= 29.
+ * AudioPlaybackCaptureConfiguration is newer than the compile SDK, so it is reached through reflection.
+ * Apps only allow capture of media, game and unknown usages, and may opt out entirely.
+ */
+final class PlaybackCapture {
+
+    private static final String TAG = "PlaybackCapture";
+
+    private static final int[] MATCHING_USAGES = {
+            AudioAttributes.USAGE_MEDIA,
+            AudioAttributes.USAGE_GAME,
+            AudioAttributes.USAGE_UNKNOWN,
+    };
+
+    private PlaybackCapture() {
+    }
+
+    /**
+     * @return true if playback capture exists on this device
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 29;
+    }
+
+    /**
+     * @param projection  running projection the user granted for screen capture
+     * @param sampleRate
+     * @param channelMask AudioFormat.CHANNEL_IN_MONO or CHANNEL_IN_STEREO
+     * @param bufferBytes
+     * @return initialized 16bit AudioRecord, null if playback can not be captured
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    static AudioRecord create(final MediaProjection projection, final int sampleRate, final int channelMask,
+                              final int bufferBytes) {
+        if (!isSupported() || projection == null) return null;
+        try {
+            final Class<?> configClass = Class.forName("android.media.AudioPlaybackCaptureConfiguration");
+            final Class<?> configBuilderClass = Class.forName("android.media.AudioPlaybackCaptureConfiguration$Builder");
+            final Object configBuilder = configBuilderClass.getConstructor(MediaProjection.class).newInstance(projection);
+            final Method addMatchingUsage = configBuilderClass.getMethod("addMatchingUsage", int.class);
+            for (final int usage : MATCHING_USAGES) {
+                addMatchingUsage.invoke(configBuilder, usage);
+            }
+            final Object config = configBuilderClass.getMethod("build").invoke(configBuilder);
+
+            final AudioRecord.Builder builder = new AudioRecord.Builder()
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                            .setSampleRate(sampleRate)
+                            .setChannelMask(channelMask)
+                            .build())
+                    .setBufferSizeInBytes(bufferBytes);
+            AudioRecord.Builder.class.getMethod("setAudioPlaybackCaptureConfig", configClass).invoke(builder, config);
+            final AudioRecord record = builder.build();
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                record.release();
+                Log.w(TAG, "playback capture failed to initialize");
+                return null;
+            }
+            return record;
+        } catch (final Exception e) {
+            // RECORD_AUDIO missing, projection stopped, or no playback capture
+            Log.w(TAG, "can not capture playback", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.wang.screenavrecorder;
+
+/**
+ * Keeps presentation time of one track strictly increasing.
+ * Codecs can emit equal timestamps for frames queued in a burst, MediaMuxer rejects
+ * or mis-times those, so a repeated or earlier timestamp is moved 1us after the previous one.
+ */
+final class PtsTracker {
+
+    private final boolean mReorderingAllowed;
+    private long mLastPtsUs = Long.MIN_VALUE;
+    private int mCorrectedCount;
+
+    /**
+     * @param reorderingAllowed true if the codec emits B frames, their output order is not presentation order
+     */
+    PtsTracker(final boolean reorderingAllowed) {
+        mReorderingAllowed = reorderingAllowed;
+    }
+
+    /**
+     * @param ptsUs presentation time of the next sample from the codec
+     * @return presentation time to write
+     */
+    long next(long ptsUs) {
+        if (mReorderingAllowed) {
+            return ptsUs;
+        }
+        if (ptsUs <= mLastPtsUs) {
+            mCorrectedCount++;
+            ptsUs = mLastPtsUs + 1;
+        }
+        mLastPtsUs = ptsUs;
+        return ptsUs;
+    }
+
+    /**
+     * @return number of samples whose timestamp had to be moved
+     */
+    int getCorrectedCount() {
+        return mCorrectedCount;
+    }
+}
@@ -0,0 +1,104 @@
+package com.wang.screenavrecorder;
+
+/**
+ * Receives measurements of the recording pipeline, set with {@link MediaMuxerWrapper#setMetrics(RecorderMetrics)}.
+ * Methods are called on the encoder, codec callback and muxer writer threads, many of them once per sample,
+ * so implementations must be thread safe and must not block or allocate.
+ */
+public interface RecorderMetrics {
+
+    int TRACK_VIDEO = 0;
+    int TRACK_AUDIO = 1;
+
+    /**
+     * an input buffer was queued to the encoder, not reported for Surface input
+     *
+     * @param track {@link #TRACK_VIDEO} or {@link #TRACK_AUDIO}
+     * @param bytes
+     */
+    void onInputQueued(int track, int bytes);
+
+    /**
+     * an encoded sample left the encoder
+     *
+     * @param track
+     * @param bytes
+     * @param latencyUs time between its presentation time (capture) and now
+     */
+    void onOutputEncoded(int track, int bytes, long latencyUs);
+
+    /**
+     * one pass of the output polling loop in sync mode
+     *
+     * @param track
+     * @param samples number of samples drained, 0 for an empty poll
+     */
+    void onDrainLoop(int track, int samples);
+
+    /**
+     * a sample was written by the muxer
+     *
+     * @param track
+     * @param bytes
+     * @param latencyNanos time spent in {@link MuxerBackend#writeSampleData}
+     */
+    void onMuxerWrite(int track, int bytes, long latencyNanos);
+
+    /**
+     * a sample was discarded before it reached the muxer
+     *
+     * @param track
+     */
+    void onFrameDropped(int track);
+
+    /**
+     * @param skewUs presentation time of the last written audio sample minus the last written video sample
+     */
+    void onAvSkew(long skewUs);
+
+    /**
+     * start a trace section on the calling thread, must be paired with {@link #endSection()}
+     *
+     * @param name
+     */
+    void beginSection(String name);
+
+    void endSection();
+
+    /**
+     * does nothing, used when no metrics were set
+     */
+    RecorderMetrics NONE = new RecorderMetrics() {
+        @Override
+        public void onInputQueued(final int track, final int bytes) {
+        }
+
+        @Override
+        public void onOutputEncoded(final int track, final int bytes, final long latencyUs) {
+        }
+
+        @Override
+        public void onDrainLoop(final int track, final int samples) {
+        }
+
+        @Override
+        public void onMuxerWrite(final int track, final int bytes, final long latencyNanos) {
+        }
+
+        @Override
+        public void onFrameDropped(final int track) {
+        }
+
+        @Override
+        public void onAvSkew(final long skewUs) {
+        }
+
+        @Override
+        public void beginSection(final String name) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+    };
+}
@@ -0,0 +1,101 @@
+package com.wang.screenavrecorder;
+
+import java.util.List;
+
+/**
+ * Layout and pacing of one output of {@link ScreenRenderer}, without its GL state.
+ * Every output has its own crop, viewport and {@link FramePacer}, so a preview with another
+ * aspect ratio or frame rate does not change what the other outputs get.
+ * Not thread safe, used on the render thread.
+ */
+class RenderTarget {
+
+    /**
+     * what the output is added for, an output is added once per key
+     */
+    final Object key;
+    final int width;
+    final int height;
+    /**
+     * null unless the frame rate is dynamic
+     */
+    final FramePacer pacer;
+    /**
+     * u0, v0, u1, v1 of the input to draw
+     */
+    final float[] crop = new float[4];
+    /**
+     * x, y, width, height of the output to draw to
+     */
+    final int[] viewport = new int[4];
+
+    /**
+     * @param key
+     * @param width
+     * @param height
+     * @param frameRate    frame rate of the output
+     * @param minFrameRate floor frame rate of a dynamic frame rate, 0 to render every frame
+     */
+    RenderTarget(final Object key, final int width, final int height, final int frameRate, final int minFrameRate) {
+        this.key = key;
+        this.width = width;
+        this.height = height;
+        pacer = minFrameRate > 0 ? new FramePacer(frameRate, minFrameRate) : null;
+    }
+
+    /**
+     * @param srcWidth  input width
+     * @param srcHeight input height
+     * @param left      region of interest in input pixels
+     * @param top
+     * @param right
+     * @param bottom
+     * @param scaleMode one of SCALE_FIT/FILL/STRETCH of {@link ScreenRenderer}
+     */
+    void updateLayout(final int srcWidth, final int srcHeight,
+                      final int left, final int top, final int right, final int bottom, final int scaleMode) {
+        ScreenRenderer.computeLayout(srcWidth, srcHeight, left, top, right, bottom,
+                width, height, scaleMode, crop, viewport);
+    }
+
+    boolean isPaced() {
+        return pacer != null;
+    }
+
+    /**
+     * @param ptsUs   timestamp of the captured frame
+     * @param changed false if the frame equals the previous one
+     * @return true to render the frame to this output
+     */
+    boolean onFrame(final long ptsUs, final boolean changed) {
+        return pacer == null || pacer.onFrame(ptsUs, changed);
+    }
+
+    /**
+     * @param nowUs
+     * @return true to render the latest frame now, because a change was deferred
+     */
+    boolean onFlush(final long nowUs) {
+        return pacer != null && pacer.onFlush(nowUs);
+    }
+
+    /**
+     * @param nowUs
+     * @return microseconds until a deferred frame is to be rendered with {@link #onFlush(long)}, -1 if none
+     */
+    long getFlushDelayUs(final long nowUs) {
+        return pacer != null && pacer.isPending() ? pacer.getFlushDelayUs(nowUs) : -1;
+    }
+
+    /**
+     * @param targets
+     * @param key
+     * @return index of the output added for key, -1 if none
+     */
+    static int indexOf(final List<? extends RenderTarget> targets, final Object key) {
+        for (int i = 0; i < targets.size(); i++) {
+            if (targets.get(i).key == key) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,274 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps the most recent encoded samples in memory instead of writing them to a file.
+ * Memory is capped by the capacity of the pooled packets that are held. When the cap is exceeded
+ * the oldest GOP is dropped as a whole (with the audio recorded during it), so the buffer always
+ * starts at a video sync frame. {@link #save(MuxerBackend, long)} writes the last seconds to a muxer.
+ */
+final class ReplayBuffer {
+
+    private static final String TAG = "ReplayBuffer";
+
+    private final PacketPool mPool;
+    private final long mMaxBytes;
+    private final Runnable mSyncFrameRequester;
+    /**
+     * packets of all tracks in the order they were encoded
+     */
+    private final ArrayDeque<EncodedPacket> mPackets = new ArrayDeque<>();
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    private int mVideoTrack = -1;
+    private long mBytes;
+    /**
+     * set when video was dropped up to the newest sample, video is discarded until the next sync frame
+     */
+    private boolean mWaitForSyncFrame;
+    private long mEvictedGops;
+
+    /**
+     * @param pool               pool the held packets came from, they are returned to it when dropped or saved
+     * @param maxBytes           maximum capacity of the held packets
+     * @param syncFrameRequester asks the video encoder for a sync frame after video was dropped, may be null
+     */
+    ReplayBuffer(final PacketPool pool, final long maxBytes, final Runnable syncFrameRequester) {
+        mPool = pool;
+        mMaxBytes = maxBytes;
+        mSyncFrameRequester = syncFrameRequester;
+    }
+
+    /**
+     * @param maxBytes
+     * @return pool large enough to hold maxBytes of encoded samples without allocating
+     */
+    static PacketPool createPool(final long maxBytes) {
+        final int[] sizes = PacketPool.DEFAULT_CLASS_SIZES;
+        final int[] capacities = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            // packets are allocated lazily, so this is only an upper bound
+            capacities[i] = (int) Math.max(PacketPool.DEFAULT_CLASS_CAPACITIES[i], Math.min(1 << 16, maxBytes / sizes[i]));
+        }
+        return new PacketPool(sizes, capacities);
+    }
+
+    /**
+     * @param format
+     * @param video  true if the buffer should be cut at sync frames of this track
+     * @return track index
+     */
+    synchronized int addTrack(final MediaFormat format, final boolean video) {
+        mFormats.add(format);
+        final int trackIndex = mFormats.size() - 1;
+        if (video && mVideoTrack < 0) {
+            mVideoTrack = trackIndex;
+        }
+        return trackIndex;
+    }
+
+    /**
+     * take ownership of packet, called on the encoder threads
+     *
+     * @param packet
+     */
+    synchronized void add(final EncodedPacket packet) {
+        if (packet.trackIndex == mVideoTrack) {
+            if (isSyncFrame(packet)) {
+                mWaitForSyncFrame = false;
+            } else if (mWaitForSyncFrame) {
+                // can not be decoded without the dropped frames
+                mPool.release(packet);
+                return;
+            }
+        }
+        mPackets.addLast(packet);
+        mBytes += packet.data.capacity();
+        while (mBytes > mMaxBytes && !mPackets.isEmpty()) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * @return capacity of the held packets in bytes
+     */
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return duration between the oldest and newest held sample
+     */
+    synchronized long getDurationUs() {
+        if (mPackets.isEmpty()) return 0;
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (final EncodedPacket packet : mPackets) {
+            min = Math.min(min, packet.info.presentationTimeUs);
+            max = Math.max(max, packet.info.presentationTimeUs);
+        }
+        return max - min;
+    }
+
+    synchronized long getEvictedGopCount() {
+        return mEvictedGops;
+    }
+
+    /**
+     * Write at least the last durationUs (if held) starting at a video sync frame to muxer,
+     * then stop and release muxer. The written samples are taken out of the buffer, so recording
+     * into the buffer continues while the file is written.
+     *
+     * @param muxer
+     * @param durationUs
+     * @return duration of the written samples
+     */
+    long save(final MuxerBackend muxer, final long durationUs) {
+        final List<EncodedPacket> packets = new ArrayList<>();
+        final List<MediaFormat> formats;
+        final boolean hasVideo;
+        synchronized (this) {
+            hasVideo = mVideoTrack >= 0;
+            formats = new ArrayList<>(mFormats);
+            final EncodedPacket start = findStart(durationUs);
+            boolean taking = false;
+            EncodedPacket packet;
+            while ((packet = mPackets.pollFirst()) != null) {
+                taking |= packet == start;
+                if (taking) {
+                    packets.add(packet);
+                } else {
+                    mPool.release(packet);
+                }
+            }
+            mBytes = 0;
+            // the next video sample must not refer to the taken ones
+            mWaitForSyncFrame = mVideoTrack >= 0;
+        }
+        if (mWaitForSyncFrame && mSyncFrameRequester != null) {
+            mSyncFrameRequester.run();
+        }
+        if (packets.isEmpty()) {
+            muxer.release();
+            throw new IllegalStateException("nothing to save");
+        }
+        final long startUs = packets.get(0).info.presentationTimeUs;
+        long firstUs = startUs, endUs = startUs;
+        int written = 0;
+        try {
+            for (final MediaFormat format : formats) {
+                muxer.addTrack(format);
+            }
+            muxer.start();
+            for (; written < packets.size(); written++) {
+                final EncodedPacket packet = packets.get(written);
+                // skip audio encoded slightly before the sync frame
+                if (!hasVideo || packet.info.presentationTimeUs >= startUs) {
+                    muxer.writeSampleData(packet.trackIndex, packet.data, packet.info);
+                    firstUs = Math.min(firstUs, packet.info.presentationTimeUs);
+                    endUs = Math.max(endUs, packet.info.presentationTimeUs);
+                }
+                mPool.release(packet);
+            }
+            muxer.stop();
+        } finally {
+            releaseAll(packets, written);
+            muxer.release();
+        }
+        Log.i(TAG, "saved " + packets.size() + " samples, " + (endUs - firstUs) / 1000 + "ms");
+        return endUs - firstUs;
+    }
+
+    /**
+     * return every held packet to the pool
+     */
+    synchronized void clear() {
+        releaseAll(mPackets, 0);
+        mPackets.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * @return the latest video sync frame at least durationUs before the newest sample,
+     * the oldest sync frame if the buffer is shorter. Without video the first sample in range.
+     */
+    private EncodedPacket findStart(final long durationUs) {
+        long newestUs = Long.MIN_VALUE;
+        for (final EncodedPacket packet : mPackets) {
+            newestUs = Math.max(newestUs, packet.info.presentationTimeUs);
+        }
+        final long targetUs = newestUs - durationUs;
+        EncodedPacket start = null;
+        for (final EncodedPacket packet : mPackets) {
+            if (mVideoTrack < 0) {
+                if (packet.info.presentationTimeUs >= targetUs) return packet;
+            } else if (packet.trackIndex == mVideoTrack && isSyncFrame(packet)) {
+                if (start == null || packet.info.presentationTimeUs <= targetUs) {
+                    start = packet;
+                } else {
+                    break;
+                }
+            }
+        }
+        return start;
+    }
+
+    /**
+     * drop the oldest GOP, or the oldest sample if there is no video
+     */
+    private void evictOldest() {
+        if (mVideoTrack < 0) {
+            release(mPackets.pollFirst());
+            return;
+        }
+        // the head is a sync frame or audio in front of it, find the sync frame of the next GOP
+        boolean seenSyncFrame = false;
+        EncodedPacket next = null;
+        for (final EncodedPacket packet : mPackets) {
+            if (packet.trackIndex == mVideoTrack && isSyncFrame(packet)) {
+                if (seenSyncFrame) {
+                    next = packet;
+                    break;
+                }
+                seenSyncFrame = true;
+            }
+        }
+        if (next == null) {
+            // a single GOP is larger than the buffer
+            Log.w(TAG, "GOP exceeds " + mMaxBytes + " bytes, dropping everything");
+            while (!mPackets.isEmpty()) {
+                release(mPackets.pollFirst());
+            }
+            mWaitForSyncFrame = true;
+            if (mSyncFrameRequester != null) mSyncFrameRequester.run();
+        } else {
+            while (mPackets.peekFirst() != next) {
+                release(mPackets.pollFirst());
+            }
+        }
+        mEvictedGops++;
+    }
+
+    private void release(final EncodedPacket packet) {
+        mBytes -= packet.data.capacity();
+        mPool.release(packet);
+    }
+
+    private void releaseAll(final Iterable<EncodedPacket> packets, final int skip) {
+        final Iterator<EncodedPacket> it = packets.iterator();
+        for (int i = 0; it.hasNext(); i++) {
+            final EncodedPacket packet = it.next();
+            if (i >= skip) mPool.release(packet);
+        }
+    }
+
+    private static boolean isSyncFrame(final EncodedPacket packet) {
+        return (packet.info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+    }
+}
@@ -0,0 +1,562 @@
+package com.wang.screenavrecorder;
+
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * GPU stage between a VirtualDisplay and the input surfaces of one or more {@link MediaVideoEncoder}s.
+ * The display renders into a SurfaceTexture of its own size, and every frame is drawn into each
+ * encoder surface on a render thread with the display timestamp, scaled by the scale mode and
+ * optionally cropped to a region of interest. So each encoder always gets the size it was
+ * configured with, whatever the size or aspect of the display.
+ * Several outputs, e.g. a full quality archive and a small preview, share the capture and the texture,
+ * each one costs only a draw per frame.
+ * With {@link VideoEncoderConfig#isDynamicFrameRate()} frames of an output are paced by {@link FramePacer},
+ * and unchanged frames can be detected on the GPU so a static screen is encoded at the floor rate.
+ * Create after the encoder was prepared, and pass {@link #getInputSurface()} to the VirtualDisplay
+ * instead of the encoder surface.
+ */
+public final class ScreenRenderer {
+
+    private static final String TAG = "ScreenRenderer";
+
+    /**
+     * scale to fit the frame keeping the aspect ratio, the rest is black
+     */
+    public static final int SCALE_FIT = 0;
+    /**
+     * scale to fill the frame keeping the aspect ratio, the overflow is cropped
+     */
+    public static final int SCALE_FILL = 1;
+    /**
+     * scale to the frame ignoring the aspect ratio
+     */
+    public static final int SCALE_STRETCH = 2;
+
+    private final int mInputWidth;
+    private final int mInputHeight;
+    private final boolean mDetectDamage;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Object mSync = new Object();
+    private final float[] mTexMatrix = new float[16];
+
+    // used on the render thread only
+    private EglCore mEgl;
+    /**
+     * keeps the context current while no output is
+     */
+    private EGLSurface mOffscreenSurface;
+    private GlDrawer mDrawer;
+    private int mTexture;
+    private SurfaceTexture mSurfaceTexture;
+    private FrameDamageDetector mDamageDetector;
+    /**
+     * region of interest without scaling, for damage detection
+     */
+    private final float[] mRegionMatrix = new float[16];
+    private final float[] mRegionDrawMatrix = new float[16];
+    private final List<Output> mOutputs = new ArrayList<>();
+    private volatile long mRendered;
+    private volatile long mSkipped;
+
+    // guarded by mSync
+    private Surface mInputSurface;
+    private RuntimeException mError;
+    private boolean mReleased;
+    private int mScaleMode = SCALE_FIT;
+    private Rect mRegion;
+    private boolean mLayoutChanged = true;
+
+    /**
+     * one encoder fed by this renderer, used on the render thread only
+     */
+    private final class Output extends RenderTarget {
+        final MediaVideoEncoder encoder;
+        final EGLSurface eglSurface;
+        final float[] cropMatrix = new float[16];
+        final float[] drawMatrix = new float[16];
+        long lastPtsUs = Long.MIN_VALUE;
+
+        /**
+         * render a deferred change once the frame interval has passed
+         */
+        final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                if (mSurfaceTexture == null) return;
+                final long nowUs = encoder.getPTSUs();
+                if (onFlush(nowUs)) {
+                    render(Output.this, nowUs);
+                } else {
+                    final long delayUs = getFlushDelayUs(nowUs);
+                    if (delayUs >= 0) {
+                        mHandler.postDelayed(this, Math.max(1, delayUs / 1000L));
+                    }
+                }
+            }
+        };
+
+        Output(final MediaVideoEncoder encoder, final VideoEncoderConfig config, final Surface surface) {
+            super(encoder, config.getWidth(), config.getHeight(), config.getFrameRate(),
+                    config.isDynamicFrameRate() ? config.getMinFrameRate() : 0);
+            this.encoder = encoder;
+            eglSurface = mEgl.createWindowSurface(surface);
+        }
+
+        void release() {
+            mHandler.removeCallbacks(flush);
+            mEgl.releaseSurface(eglSurface);
+        }
+    }
+
+    /**
+     * @param encoder      prepared encoder
+     * @param detectDamage compare frames on the GPU to skip unchanged ones, only with a dynamic frame rate
+     * @throws IllegalStateException if the encoder is not prepared or EGL setup fails
+     */
+    public ScreenRenderer(final MediaVideoEncoder encoder, final boolean detectDamage) {
+        this(encoder, encoder.getWidth(), encoder.getHeight(), detectDamage);
+    }
+
+    /**
+     * @param encoder      prepared encoder, more can be added with {@link #addOutput(MediaVideoEncoder)}
+     * @param inputWidth   width of the VirtualDisplay
+     * @param inputHeight  height of the VirtualDisplay
+     * @param detectDamage compare frames on the GPU to skip unchanged ones, only with a dynamic frame rate
+     * @throws IllegalStateException if the encoder is not prepared or EGL setup fails
+     */
+    public ScreenRenderer(final MediaVideoEncoder encoder, final int inputWidth, final int inputHeight,
+                          final boolean detectDamage) {
+        if (inputWidth <= 0 || inputHeight <= 0)
+            throw new IllegalArgumentException("invalid input size " + inputWidth + "x" + inputHeight);
+        mInputWidth = inputWidth;
+        mInputHeight = inputHeight;
+        mDetectDamage = detectDamage;
+        mThread = new HandlerThread(TAG, android.os.Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                setup();
+            }
+        });
+        final RuntimeException error;
+        synchronized (mSync) {
+            while (mInputSurface == null && mError == null) {
+                try {
+                    mSync.wait();
+                } catch (final InterruptedException e) {
+                    break;
+                }
+            }
+            error = mInputSurface == null ? mError : null;
+        }
+        try {
+            if (error != null) throw error;
+            if (mInputSurface == null) throw new IllegalStateException("interrupted");
+            addOutput(encoder);
+        } catch (final RuntimeException e) {
+            // release joins the render thread, so not while holding mSync
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return surface to render the screen into, its buffers have the input size
+     */
+    public Surface getInputSurface() {
+        synchronized (mSync) {
+            return mInputSurface;
+        }
+    }
+
+    /**
+     * feed another encoder with the same capture, from the next frame
+     *
+     * @param encoder prepared encoder
+     * @throws IllegalStateException if the encoder is not prepared or its surface already has a producer
+     */
+    public void addOutput(final MediaVideoEncoder encoder) {
+        final Surface surface = encoder.getSurface();
+        if (surface == null)
+            throw new IllegalStateException("encoder is not prepared");
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                if (mEgl == null) throw new IllegalStateException("released");
+                if (RenderTarget.indexOf(mOutputs, encoder) >= 0) return;
+                final Output output = new Output(encoder, encoder.getConfig(), surface);
+                updateLayout(output, getScaleMode(), getRegion());
+                mOutputs.add(output);
+                Log.i(TAG, "addOutput: " + output.width + "x" + output.height + ", outputs=" + mOutputs.size());
+            }
+        });
+    }
+
+    /**
+     * stop feeding encoder, e.g. before it stops recording while others go on
+     *
+     * @param encoder
+     */
+    public void removeOutput(final MediaVideoEncoder encoder) {
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                final int index = RenderTarget.indexOf(mOutputs, encoder);
+                if (index >= 0) {
+                    final Output output = mOutputs.remove(index);
+                    mEgl.makeCurrent(mOffscreenSurface);
+                    output.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param scaleMode one of SCALE_FIT/FILL/STRETCH, applied from the next frame
+     */
+    public void setScaleMode(final int scaleMode) {
+        if (scaleMode != SCALE_FIT && scaleMode != SCALE_FILL && scaleMode != SCALE_STRETCH)
+            throw new IllegalArgumentException("invalid scale mode " + scaleMode);
+        synchronized (mSync) {
+            mScaleMode = scaleMode;
+            mLayoutChanged = true;
+        }
+    }
+
+    /**
+     * record only a part of the display, applied from the next frame
+     *
+     * @param region in pixels of the input, null for the whole input
+     */
+    public void setRegionOfInterest(final Rect region) {
+        synchronized (mSync) {
+            mRegion = region != null ? new Rect(region) : null;
+            mLayoutChanged = true;
+        }
+    }
+
+    /**
+     * @return frames sent to the encoders
+     */
+    public long getRenderedCount() {
+        return mRendered;
+    }
+
+    /**
+     * @return frames not sent to an encoder because they did not change or came faster than its frame rate
+     */
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+
+    /**
+     * stop rendering and release the GL resources, the encoder surfaces are left to the encoders
+     */
+    public void release() {
+        synchronized (mSync) {
+            if (mReleased) return;
+            mReleased = true;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                teardown();
+            }
+        });
+        mThread.quitSafely();    // API >= 18
+        try {
+            mThread.join();
+        } catch (final InterruptedException e) {
+            // teardown finishes on its own
+        }
+    }
+
+    /**
+     * run task on the render thread and wait for it
+     *
+     * @throws IllegalStateException if the task failed or the renderer was released
+     */
+    private void runAndWait(final Runnable task) {
+        final RuntimeException[] error = new RuntimeException[1];
+        final boolean[] done = new boolean[1];
+        final boolean posted = mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (final RuntimeException e) {
+                    error[0] = e;
+                }
+                synchronized (done) {
+                    done[0] = true;
+                    done.notifyAll();
+                }
+            }
+        });
+        if (!posted) throw new IllegalStateException("released");
+        synchronized (done) {
+            while (!done[0]) {
+                try {
+                    done.wait();
+                } catch (final InterruptedException e) {
+                    throw new IllegalStateException("interrupted");
+                }
+            }
+        }
+        if (error[0] != null) throw error[0];
+    }
+
+    private int getScaleMode() {
+        synchronized (mSync) {
+            return mScaleMode;
+        }
+    }
+
+    private Rect getRegion() {
+        synchronized (mSync) {
+            return mRegion;
+        }
+    }
+
+    private void setup() {
+        try {
+            mEgl = new EglCore(null);
+            mOffscreenSurface = mEgl.createOffscreenSurface(1, 1);
+            mEgl.makeCurrent(mOffscreenSurface);
+            mDrawer = new GlDrawer(true);
+            mTexture = GlDrawer.createTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
+            if (mDetectDamage) {
+                mDamageDetector = new FrameDamageDetector();
+            }
+            mSurfaceTexture = new SurfaceTexture(mTexture);
+            mSurfaceTexture.setDefaultBufferSize(mInputWidth, mInputHeight);
+            mSurfaceTexture.setOnFrameAvailableListener(mOnFrameAvailableListener);    // called on this thread
+            synchronized (mSync) {
+                mInputSurface = new Surface(mSurfaceTexture);
+                mSync.notifyAll();
+            }
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "setup:", e);
+            synchronized (mSync) {
+                mError = e;
+                mSync.notifyAll();
+            }
+        }
+    }
+
+    private void teardown() {
+        Log.i(TAG, "rendered=" + mRendered + ", skipped=" + mSkipped);
+        synchronized (mSync) {
+            if (mInputSurface != null) {
+                mInputSurface.release();
+                mInputSurface = null;
+            }
+        }
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
+        }
+        if (mEgl != null) {
+            if (mOffscreenSurface != null) {
+                mEgl.makeCurrent(mOffscreenSurface);
+                for (final Output output : mOutputs) {
+                    output.release();
+                }
+                mOutputs.clear();
+                if (mDamageDetector != null) {
+                    mDamageDetector.release();
+                    mDamageDetector = null;
+                }
+                if (mDrawer != null) {
+                    mDrawer.release();
+                    mDrawer = null;
+                }
+                if (mTexture != 0) {
+                    GlDrawer.deleteTexture(mTexture);
+                    mTexture = 0;
+                }
+                mEgl.releaseSurface(mOffscreenSurface);
+                mOffscreenSurface = null;
+            }
+            mEgl.release();
+            mEgl = null;
+        }
+    }
+
+    private final SurfaceTexture.OnFrameAvailableListener mOnFrameAvailableListener = new SurfaceTexture.OnFrameAvailableListener() {
+        @Override
+        public void onFrameAvailable(final SurfaceTexture surfaceTexture) {
+            if (mSurfaceTexture == null) return;
+            mEgl.makeCurrent(mOffscreenSurface);
+            mSurfaceTexture.updateTexImage();
+            mSurfaceTexture.getTransformMatrix(mTexMatrix);
+            updateLayouts();
+            // display buffers are stamped with System.nanoTime like the audio
+            final long ptsUs = mSurfaceTexture.getTimestamp() / 1000L;
+            boolean changed = true;
+            boolean detected = false;
+            for (final Output output : mOutputs) {
+                Matrix.multiplyMM(output.drawMatrix, 0, mTexMatrix, 0, output.cropMatrix, 0);
+                if (output.isPaced()) {
+                    if (mDamageDetector != null && !detected) {
+                        // once per frame, only changes inside the region of interest count
+                        Matrix.multiplyMM(mRegionDrawMatrix, 0, mTexMatrix, 0, mRegionMatrix, 0);
+                        changed = mDamageDetector.isChanged(mDrawer, mTexture, mRegionDrawMatrix);
+                        detected = true;
+                    }
+                    if (!output.onFrame(ptsUs, changed)) {
+                        mSkipped++;
+                        final long delayUs = output.getFlushDelayUs(ptsUs);
+                        if (delayUs >= 0) {
+                            mHandler.removeCallbacks(output.flush);
+                            mHandler.postDelayed(output.flush, Math.max(1, delayUs / 1000L));
+                        }
+                        continue;
+                    }
+                    mHandler.removeCallbacks(output.flush);
+                }
+                render(output, ptsUs);
+            }
+        }
+    };
+
+    /**
+     * recalculate crops and viewports after the scale mode or region changed
+     */
+    private void updateLayouts() {
+        final int scaleMode;
+        final Rect region;
+        synchronized (mSync) {
+            if (!mLayoutChanged) return;
+            mLayoutChanged = false;
+            scaleMode = mScaleMode;
+            region = mRegion;
+        }
+        for (final Output output : mOutputs) {
+            updateLayout(output, scaleMode, region);
+        }
+        final float[] crop = new float[4];
+        computeLayout(mInputWidth, mInputHeight, region, mInputWidth, mInputHeight, SCALE_STRETCH, crop, new int[4]);
+        setCropMatrix(mRegionMatrix, crop);
+        if (mDamageDetector != null) mDamageDetector.reset();
+        Log.i(TAG, "layout: input " + mInputWidth + "x" + mInputHeight + ", region=" + region + ", scaleMode=" + scaleMode);
+    }
+
+    private void updateLayout(final Output output, final int scaleMode, final Rect region) {
+        if (region != null) {
+            output.updateLayout(mInputWidth, mInputHeight, region.left, region.top, region.right, region.bottom, scaleMode);
+        } else {
+            output.updateLayout(mInputWidth, mInputHeight, 0, 0, mInputWidth, mInputHeight, scaleMode);
+        }
+        setCropMatrix(output.cropMatrix, output.crop);
+    }
+
+    private static void computeLayout(final int srcWidth, final int srcHeight, final Rect region,
+                                      final int dstWidth, final int dstHeight, final int scaleMode,
+                                      final float[] crop, final int[] viewport) {
+        if (region != null) {
+            computeLayout(srcWidth, srcHeight, region.left, region.top, region.right, region.bottom,
+                    dstWidth, dstHeight, scaleMode, crop, viewport);
+        } else {
+            computeLayout(srcWidth, srcHeight, 0, 0, srcWidth, srcHeight,
+                    dstWidth, dstHeight, scaleMode, crop, viewport);
+        }
+    }
+
+    /**
+     * maps the unit square to the crop, applied before the transform of the SurfaceTexture
+     */
+    private static void setCropMatrix(final float[] matrix, final float[] crop) {
+        Matrix.setIdentityM(matrix, 0);
+        matrix[0] = crop[2] - crop[0];
+        matrix[5] = crop[3] - crop[1];
+        matrix[12] = crop[0];
+        matrix[13] = crop[1];
+    }
+
+    /**
+     * @param srcWidth  input width
+     * @param srcHeight input height
+     * @param left      region of interest in input pixels, clamped to the input
+     * @param top
+     * @param right
+     * @param bottom
+     * @param dstWidth  output width
+     * @param dstHeight output height
+     * @param scaleMode one of SCALE_FIT/FILL/STRETCH
+     * @param crop      receives u0, v0, u1, v1 of the input to draw, in texture coordinates with v up
+     * @param viewport  receives x, y, width, height of the output to draw to
+     */
+    static void computeLayout(final int srcWidth, final int srcHeight,
+                              final int left, final int top, final int right, final int bottom,
+                              final int dstWidth, final int dstHeight, final int scaleMode,
+                              final float[] crop, final int[] viewport) {
+        int l = Math.max(0, Math.min(left, srcWidth - 1));
+        int t = Math.max(0, Math.min(top, srcHeight - 1));
+        int w = Math.max(1, Math.min(right, srcWidth) - l);
+        int h = Math.max(1, Math.min(bottom, srcHeight) - t);
+        if (scaleMode == SCALE_FIT) {
+            final int[] fit = GlDrawer.fitViewport(w, h, dstWidth, dstHeight);
+            System.arraycopy(fit, 0, viewport, 0, 4);
+        } else {
+            if (scaleMode == SCALE_FILL) {
+                // cut the region to the output aspect ratio around its center
+                if ((long) w * dstHeight > (long) h * dstWidth) {
+                    final int cropped = (int) ((long) h * dstWidth / dstHeight);
+                    l += (w - cropped) / 2;
+                    w = cropped;
+                } else {
+                    final int cropped = (int) ((long) w * dstHeight / dstWidth);
+                    t += (h - cropped) / 2;
+                    h = cropped;
+                }
+            }
+            viewport[0] = 0;
+            viewport[1] = 0;
+            viewport[2] = dstWidth;
+            viewport[3] = dstHeight;
+        }
+        crop[0] = (float) l / srcWidth;
+        crop[1] = 1f - (float) (t + h) / srcHeight;
+        crop[2] = (float) (l + w) / srcWidth;
+        crop[3] = 1f - (float) t / srcHeight;
+    }
+
+    private void render(final Output output, final long presentationTimeUs) {
+        // the encoder expects increasing timestamps
+        final long ptsUs = Math.max(presentationTimeUs, output.lastPtsUs + 1);
+        mEgl.makeCurrent(output.eglSurface);
+        final int[] viewport = output.viewport;
+        if (viewport[2] != output.width || viewport[3] != output.height) {
+            // letterbox
+            GLES20.glViewport(0, 0, output.width, output.height);
+            GLES20.glClearColor(0, 0, 0, 1);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        }
+        GLES20.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+        mDrawer.draw(mTexture, output.drawMatrix);
+        mEgl.setPresentationTime(output.eglSurface, ptsUs * 1000L);
+        if (!mEgl.swapBuffers(output.eglSurface)) {
+            Log.w(TAG, "frame at " + ptsUs + " was not queued, encoder surface abandoned");
+            return;
+        }
+        output.lastPtsUs = ptsUs;
+        mRendered++;
+        output.encoder.frameAvailableSoon();
+    }
+}
@@ -0,0 +1,304 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link MuxerBackend} that rotates to a new file when the current segment reaches
+ * a duration or size limit. Segments are cut in front of a video sync frame, which is
+ * requested from the encoder as soon as the limit is hit.
+ * The muxer of the next segment is created and given its tracks ahead of time on one private
+ * thread, and finished segments are stopped (moov written) in order on another, so the writer
+ * thread never waits for file I/O. If the next muxer is not ready at a cut point, the segment
+ * goes on until the next sync frame after it is.
+ */
+class SegmentingMuxerBackend implements MuxerBackend {
+
+    private static final String TAG = "SegmentingMuxerBackend";
+
+    /**
+     * creates the muxer of each segment
+     */
+    interface SegmentFactory {
+        String getPath(int index);
+
+        MuxerBackend create(String path) throws IOException;
+    }
+
+    private static final class Segment {
+        final int index;
+        final String path;
+        final MuxerBackend muxer;
+        long firstPtsUs = Long.MAX_VALUE;
+        long lastPtsUs = Long.MIN_VALUE;
+        long bytes;
+
+        Segment(final int index, final String path, final MuxerBackend muxer) {
+            this.index = index;
+            this.path = path;
+            this.muxer = muxer;
+        }
+
+        long getDurationUs() {
+            return lastPtsUs >= firstPtsUs ? lastPtsUs - firstPtsUs : 0;
+        }
+    }
+
+    private final SegmentFactory mFactory;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final Runnable mSyncFrameRequester;
+    private final MediaMuxerWrapper.SegmentListener mListener;
+    /**
+     * opens the next segment, never behind a segment that is being finished
+     */
+    private final ExecutorService mOpenExecutor;
+    /**
+     * finishes segments in order
+     */
+    private final ExecutorService mFinishExecutor;
+
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    private int mVideoTrack = -1;
+    // below are only touched on the writer thread after #start
+    private Segment mCurrent;
+    private Future<Segment> mNext;
+    private int mNextIndex;
+    private boolean mRotatePending;
+    /**
+     * a sync frame is to be requested as soon as the next segment is open
+     */
+    private boolean mSyncFrameWanted;
+
+    /**
+     * @param factory
+     * @param maxDurationUs      rotate after this duration, 0 for no limit
+     * @param maxBytes           rotate after this size, 0 for no limit
+     * @param syncFrameRequester asks the video encoder for a sync frame, called on the writer thread
+     * @param listener           may be null
+     */
+    SegmentingMuxerBackend(final SegmentFactory factory, final long maxDurationUs, final long maxBytes,
+                           final Runnable syncFrameRequester, final MediaMuxerWrapper.SegmentListener listener) {
+        this(factory, maxDurationUs, maxBytes, syncFrameRequester, listener,
+                createExecutor(TAG + "-open"), createExecutor(TAG + "-finish"));
+    }
+
+    /**
+     * @param openExecutor   opens segments, must run tasks in order
+     * @param finishExecutor finishes segments, must run tasks in order
+     */
+    SegmentingMuxerBackend(final SegmentFactory factory, final long maxDurationUs, final long maxBytes,
+                           final Runnable syncFrameRequester, final MediaMuxerWrapper.SegmentListener listener,
+                           final ExecutorService openExecutor, final ExecutorService finishExecutor) {
+        mOpenExecutor = openExecutor;
+        mFinishExecutor = finishExecutor;
+        mFactory = factory;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+        mSyncFrameRequester = syncFrameRequester;
+        mListener = listener;
+    }
+
+    private static ExecutorService createExecutor(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(r, name);
+            }
+        });
+    }
+
+    @Override
+    public synchronized int addTrack(final MediaFormat format) {
+        if (mCurrent != null) throw new IllegalStateException("muxer already started");
+        mFormats.add(format);
+        final int trackIndex = mFormats.size() - 1;
+        if (mVideoTrack < 0 && isVideoTrack(format)) {
+            mVideoTrack = trackIndex;
+        }
+        return trackIndex;
+    }
+
+    /**
+     * @param format
+     * @return true if segments should be cut on sync frames of this track
+     */
+    protected boolean isVideoTrack(final MediaFormat format) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        return mime != null && mime.startsWith("video/");
+    }
+
+    @Override
+    public synchronized void start() {
+        try {
+            mCurrent = openSegment(mNextIndex++);
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to create first segment", e);
+        }
+        mCurrent.muxer.start();
+        onSegmentStarted(mCurrent);
+        prepareNext();
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        if (mRotatePending) {
+            if (mSyncFrameWanted && mNext.isDone()) {
+                mSyncFrameWanted = false;
+                // do not wait up to a whole I frame interval
+                mSyncFrameRequester.run();
+            }
+            if (isCutPoint(trackIndex, bufferInfo)) {
+                rotate();
+            }
+        }
+        final Segment segment = mCurrent;
+        segment.muxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+        segment.bytes += bufferInfo.size;
+        segment.firstPtsUs = Math.min(segment.firstPtsUs, bufferInfo.presentationTimeUs);
+        segment.lastPtsUs = Math.max(segment.lastPtsUs, bufferInfo.presentationTimeUs);
+        if (!mRotatePending && isFull(segment)) {
+            mRotatePending = true;
+            mSyncFrameWanted = mVideoTrack >= 0 && mSyncFrameRequester != null;
+        }
+    }
+
+    /**
+     * returns without waiting for the last segment, it is reported to the listener when it is finished
+     */
+    @Override
+    public void stop() {
+        final Segment last = mCurrent;
+        mCurrent = null;
+        discardNext();
+        if (last != null) {
+            // behind the segments that are still being finished, so they are reported in order
+            finishLater(last);
+        }
+        mOpenExecutor.shutdown();
+        mFinishExecutor.shutdown();
+    }
+
+    @Override
+    public void release() {
+        // queued segments are still finished
+        mOpenExecutor.shutdown();
+        mFinishExecutor.shutdown();
+    }
+
+    private boolean isFull(final Segment segment) {
+        return (mMaxDurationUs > 0 && segment.getDurationUs() >= mMaxDurationUs)
+                || (mMaxBytes > 0 && segment.bytes >= mMaxBytes);
+    }
+
+    private boolean isCutPoint(final int trackIndex, final MediaCodec.BufferInfo info) {
+        if (mVideoTrack < 0) return true;    // audio only, every sample is a sync sample
+        return trackIndex == mVideoTrack && (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+    }
+
+    private void rotate() {
+        if (!mNext.isDone()) {
+            // keep writing to the current segment and cut at a later sync frame
+            mSyncFrameWanted = mVideoTrack >= 0 && mSyncFrameRequester != null;
+            return;
+        }
+        final Segment next;
+        try {
+            next = mNext.get();
+        } catch (final Exception e) {
+            // keep writing to the current segment and try again with a new muxer
+            Log.e(TAG, "failed to prepare next segment", e);
+            mRotatePending = false;
+            prepareNext();
+            return;
+        }
+        next.muxer.start();
+        final Segment finished = mCurrent;
+        mCurrent = next;
+        mRotatePending = false;
+        onSegmentStarted(next);
+        finishLater(finished);
+        prepareNext();
+    }
+
+    private void finishLater(final Segment segment) {
+        mFinishExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                finish(segment);
+            }
+        });
+    }
+
+    private void prepareNext() {
+        final int index = mNextIndex++;
+        mNext = mOpenExecutor.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() throws IOException {
+                return openSegment(index);
+            }
+        });
+    }
+
+    private void discardNext() {
+        final Future<Segment> next = mNext;
+        mNext = null;
+        if (next == null) return;
+        // runs after the segment was opened
+        mOpenExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Segment segment = next.get();
+                    segment.muxer.release();
+                    // never started, so the file is empty
+                    new File(segment.path).delete();
+                } catch (final Exception e) {
+                    Log.w(TAG, "discardNext:", e);
+                }
+            }
+        });
+    }
+
+    private Segment openSegment(final int index) throws IOException {
+        final String path = mFactory.getPath(index);
+        final MuxerBackend muxer = mFactory.create(path);
+        synchronized (this) {
+            for (final MediaFormat format : mFormats) {
+                muxer.addTrack(format);
+            }
+        }
+        return new Segment(index, path, muxer);
+    }
+
+    private void finish(final Segment segment) {
+        try {
+            segment.muxer.stop();
+            segment.muxer.release();
+        } catch (final Exception e) {
+            Log.e(TAG, "failed to finish segment " + segment.path, e);
+        }
+        Log.i(TAG, "segment finished: " + segment.path + ", " + segment.getDurationUs() / 1000 + "ms, " + segment.bytes + "bytes");
+        if (mListener != null) {
+            mListener.onSegmentFinished(segment.path, segment.index, segment.getDurationUs(), segment.bytes);
+        }
+    }
+
+    private void onSegmentStarted(final Segment segment) {
+        if (mListener != null) {
+            mListener.onSegmentStarted(segment.path, segment.index);
+        }
+    }
+}
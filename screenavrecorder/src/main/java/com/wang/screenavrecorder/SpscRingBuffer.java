@@ -0,0 +1,102 @@
+package com.wang.screenavrecorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * {@link #offer(Object)} must only be called by the producer,
+ * {@link #poll()} and {@link #peek()} only by the consumer.
+ *
+ * @param <E>
+ */
+final class SpscRingBuffer<E> {
+
+    private final Object[] mSlots;
+    private final int mMask;
+    /**
+     * next slot to read, written by consumer only
+     */
+    private final AtomicLong mHead = new AtomicLong();
+    /**
+     * next slot to write, written by producer only
+     */
+    private final AtomicLong mTail = new AtomicLong();
+    /**
+     * producer local copy of head to avoid reading the shared counter on every offer
+     */
+    private long mCachedHead;
+
+    /**
+     * @param capacity rounded up to power of 2
+     */
+    SpscRingBuffer(final int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity=" + capacity);
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mSlots = new Object[size];
+        mMask = size - 1;
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * @param e
+     * @return false if the queue is full
+     */
+    boolean offer(final E e) {
+        if (e == null) throw new NullPointerException();
+        final long tail = mTail.get();
+        if (tail - mCachedHead >= mSlots.length) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead >= mSlots.length) {
+                return false;
+            }
+        }
+        mSlots[(int) tail & mMask] = e;
+        // volatile store publishes the slot, and orders it before the caller's wakeup check
+        mTail.set(tail + 1);
+        return true;
+    }
+
+    /**
+     * @return null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        final long head = mHead.get();
+        if (head >= mTail.get()) {
+            return null;
+        }
+        final int index = (int) head & mMask;
+        final E e = (E) mSlots[index];
+        mSlots[index] = null;
+        mHead.lazySet(head + 1);
+        return e;
+    }
+
+    /**
+     * @return null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    E peek() {
+        final long head = mHead.get();
+        if (head >= mTail.get()) {
+            return null;
+        }
+        return (E) mSlots[(int) head & mMask];
+    }
+
+    boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+
+    /**
+     * @return approximate number of queued elements
+     */
+    int size() {
+        final long size = mTail.get() - mHead.get();
+        return size < 0 ? 0 : (int) size;
+    }
+}
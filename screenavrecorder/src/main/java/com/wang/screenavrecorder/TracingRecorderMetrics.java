@@ -0,0 +1,62 @@
+package com.wang.screenavrecorder;
+
+import android.os.Trace;
+
+/**
+ * Adds android.os.Trace sections to another {@link RecorderMetrics}, so drain passes and
+ * muxer writes show up in systrace / Perfetto. Sections cost a little even when tracing is off,
+ * so this is meant for profiling builds.
+ */
+public class TracingRecorderMetrics implements RecorderMetrics {
+
+    private final RecorderMetrics mDelegate;
+
+    /**
+     * @param delegate receives the measurements, {@link RecorderMetrics#NONE} for tracing only
+     */
+    public TracingRecorderMetrics(final RecorderMetrics delegate) {
+        mDelegate = delegate != null ? delegate : NONE;
+    }
+
+    @Override
+    public void onInputQueued(final int track, final int bytes) {
+        mDelegate.onInputQueued(track, bytes);
+    }
+
+    @Override
+    public void onOutputEncoded(final int track, final int bytes, final long latencyUs) {
+        mDelegate.onOutputEncoded(track, bytes, latencyUs);
+    }
+
+    @Override
+    public void onDrainLoop(final int track, final int samples) {
+        mDelegate.onDrainLoop(track, samples);
+    }
+
+    @Override
+    public void onMuxerWrite(final int track, final int bytes, final long latencyNanos) {
+        mDelegate.onMuxerWrite(track, bytes, latencyNanos);
+    }
+
+    @Override
+    public void onFrameDropped(final int track) {
+        mDelegate.onFrameDropped(track);
+    }
+
+    @Override
+    public void onAvSkew(final long skewUs) {
+        mDelegate.onAvSkew(skewUs);
+    }
+
+    @Override
+    public void beginSection(final String name) {
+        Trace.beginSection(name);    // API >= 18
+        mDelegate.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        mDelegate.endSection();
+        Trace.endSection();
+    }
+}
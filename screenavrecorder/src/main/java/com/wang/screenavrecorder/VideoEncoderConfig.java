@@ -0,0 +1,643 @@
+package com.wang.screenavrecorder;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+/**
+ * Parameters of the video encoder.
+ * Use {@link Builder} to create, and {@link #resolve(MediaCodecInfo.CodecCapabilities)} to
+ * fit the values to what the selected codec supports before configuring it.
+ */
+public final class VideoEncoderConfig {
+
+    private static final String TAG = "VideoEncoderConfig";
+
+    /**
+     * let the codec choose, used for bitrate, bitrate mode, profile and level
+     */
+    public static final int AUTO = -1;
+
+    /**
+     * H.264, supported by every device
+     */
+    public static final int CODEC_AVC = 0;
+    /**
+     * H.265, needs API >= 24 for MediaMuxer to write the track
+     */
+    public static final int CODEC_HEVC = 1;
+    /**
+     * H.265 when a hardware encoder supports the size and frame rate, otherwise H.264
+     */
+    public static final int CODEC_AUTO = 2;
+
+    public static final String MIME_TYPE_AVC = "video/avc";
+    public static final String MIME_TYPE_HEVC = "video/hevc";
+
+    public static final int BITRATE_MODE_CQ = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+    public static final int BITRATE_MODE_VBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+    public static final int BITRATE_MODE_CBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+
+    /**
+     * edge alignment of {@link Builder#setSizeToFit(int, int, int)}, whole macroblocks are fast on every encoder
+     */
+    static final int SIZE_ALIGNMENT = 16;
+
+    /**
+     * bits per pixel used when bitrate is {@link #AUTO}
+     */
+    static final float BPP = 0.25f;
+    /**
+     * HEVC needs roughly 60% of the AVC bitrate for the same quality
+     */
+    static final float BPP_HEVC = BPP * 0.6f;
+
+    // MediaFormat keys that are newer than compileSdkVersion
+    private static final String KEY_QUALITY = "quality";            // API >= 28
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";   // API >= 29
+    private static final String KEY_MAX_FPS_TO_ENCODER = "max-fps-to-encoder";    // public on API >= 29
+
+    /**
+     * AVC profiles from lowest to highest, used to step down to a supported profile
+     */
+    private static final int[] AVC_PROFILES = {
+            MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline,
+            MediaCodecInfo.CodecProfileLevel.AVCProfileMain,
+            MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+    };
+
+    private final int mCodec;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+    private final int mBitRate;
+    private final int mBitrateMode;
+    private final int mQuality;
+    private final int mIFrameInterval;
+    private final int mProfile;
+    private final int mLevel;
+    private final boolean mBFrames;
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private final int mMinFrameRate;
+
+    private VideoEncoderConfig(final Builder builder) {
+        mCodec = builder.mCodec;
+        mWidth = builder.mWidth;
+        mHeight = builder.mHeight;
+        mFrameRate = builder.mFrameRate;
+        mBitRate = builder.mBitRate;
+        mBitrateMode = builder.mBitrateMode;
+        mQuality = builder.mQuality;
+        mIFrameInterval = builder.mIFrameInterval;
+        mProfile = builder.mProfile;
+        mLevel = builder.mLevel;
+        mBFrames = builder.mBFrames;
+        mMinBitRate = builder.mMinBitRate;
+        mMaxBitRate = builder.mMaxBitRate;
+        mMinFrameRate = builder.mMinFrameRate;
+    }
+
+    /**
+     * @return one of CODEC_AVC/HEVC/AUTO, never CODEC_AUTO after the encoder was prepared
+     */
+    public int getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * @return MIME type of the codec, H.264 while the codec is {@link #CODEC_AUTO}
+     */
+    public String getMimeType() {
+        return mCodec == CODEC_HEVC ? MIME_TYPE_HEVC : MIME_TYPE_AVC;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * @return bitrate in bits per second, calculated from size and frame rate when it was not set,
+     * within the adaptive range if there is one
+     */
+    public int getBitRate() {
+        final int bitRate = mBitRate != AUTO ? mBitRate : getAutoBitRate(mCodec, mFrameRate, mWidth, mHeight);
+        return isAdaptiveBitRate() ? Math.max(mMinBitRate, Math.min(mMaxBitRate, bitRate)) : bitRate;
+    }
+
+    public int getBitrateMode() {
+        return mBitrateMode;
+    }
+
+    /**
+     * @return quality for {@link #BITRATE_MODE_CQ}, {@link #AUTO} for the middle of the supported range
+     */
+    public int getQuality() {
+        return mQuality;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public boolean isBFramesEnabled() {
+        return mBFrames;
+    }
+
+    /**
+     * @return true if bitrate is adjusted while recording, see {@link BitrateController}
+     */
+    public boolean isAdaptiveBitRate() {
+        return mMinBitRate != AUTO;
+    }
+
+    /**
+     * @return lower bound of the adaptive bitrate, {@link #AUTO} if it is disabled
+     */
+    public int getMinBitRate() {
+        return mMinBitRate;
+    }
+
+    /**
+     * @return upper bound of the adaptive bitrate, {@link #AUTO} if it is disabled
+     */
+    public int getMaxBitRate() {
+        return mMaxBitRate;
+    }
+
+    /**
+     * @return true if a static screen is encoded at {@link #getMinFrameRate()} instead of the frame rate
+     */
+    public boolean isDynamicFrameRate() {
+        return mMinFrameRate != AUTO;
+    }
+
+    /**
+     * @return floor frame rate of the dynamic frame rate, {@link #AUTO} if it is disabled
+     */
+    public int getMinFrameRate() {
+        return mMinFrameRate;
+    }
+
+    /**
+     * fit this config to the capabilities of codec, every unsupported value is replaced
+     * with the closest supported one. On API < 21 codecs do not expose their limits
+     * so only profile and level are checked.
+     *
+     * @param caps capabilities of the selected codec for the MIME type
+     * @return this if everything is supported
+     */
+    @SuppressLint("NewApi")
+    public VideoEncoderConfig resolve(final MediaCodecInfo.CodecCapabilities caps) {
+        final Builder builder = new Builder(this);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+            if (video != null) {
+                resolveSize(builder, video);
+                final Range<Double> rates = video.getSupportedFrameRatesFor(builder.mWidth, builder.mHeight);
+                if (rates.getUpper() < builder.mFrameRate) {
+                    builder.setFrameRate((int) Math.floor(rates.getUpper()));
+                } else if (rates.getLower() > builder.mFrameRate) {
+                    builder.setFrameRate((int) Math.ceil(rates.getLower()));
+                }
+                if (builder.mMinFrameRate > builder.mFrameRate) {
+                    builder.setDynamicFrameRate(builder.mFrameRate);
+                }
+                final Range<Integer> bitRates = video.getBitrateRange();
+                // AUTO becomes the calculated value so it is checked too
+                builder.setBitRate(resolveBitRate(builder.mBitRate, builder.mCodec, builder.mFrameRate,
+                        builder.mWidth, builder.mHeight, bitRates.getLower(), bitRates.getUpper()));
+                if (builder.mMinBitRate != AUTO) {
+                    builder.setAdaptiveBitRate(bitRates.clamp(builder.mMinBitRate), bitRates.clamp(builder.mMaxBitRate));
+                }
+            }
+            final MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+            if (encoder != null) {
+                resolveBitrateMode(builder, encoder);
+            }
+        }
+        resolveProfileLevel(builder, caps.profileLevels);
+        final VideoEncoderConfig resolved = builder.build();
+        if (!resolved.equals(this)) {
+            Log.i(TAG, "resolve: " + this + " -> " + resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * @return bitrate for {@link #AUTO} from bits per pixel of the codec
+     */
+    static int getAutoBitRate(final int codec, final int frameRate, final int width, final int height) {
+        final float bpp = codec == CODEC_HEVC ? BPP_HEVC : BPP;
+        return (int) (bpp * frameRate * width * height);
+    }
+
+    /**
+     * @param bitRate {@link #AUTO} to calculate it from size and frame rate
+     * @param lower   lowest bitrate of the codec
+     * @param upper   highest bitrate of the codec
+     * @return concrete bitrate within lower..upper
+     */
+    static int resolveBitRate(final int bitRate, final int codec, final int frameRate, final int width, final int height,
+                              final int lower, final int upper) {
+        final int value = bitRate != AUTO ? bitRate : getAutoBitRate(codec, frameRate, width, height);
+        return Math.max(lower, Math.min(upper, value));
+    }
+
+    /**
+     * @return format to configure the encoder with, input is a Surface
+     */
+    public MediaFormat toFormat() {
+        final MediaFormat format = MediaFormat.createVideoFormat(getMimeType(), mWidth, mHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (mBitrateMode != AUTO) {
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitrateMode);
+                if (mBitrateMode == BITRATE_MODE_CQ && mQuality != AUTO) {
+                    format.setInteger(KEY_QUALITY, mQuality);
+                }
+            }
+            if (mProfile != AUTO) {
+                format.setInteger(MediaFormat.KEY_PROFILE, mProfile);
+                // level is only meaningful with profile
+                if (mLevel != AUTO && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    format.setInteger(MediaFormat.KEY_LEVEL, mLevel);
+                }
+            }
+        }
+        if (Build.VERSION.SDK_INT >= 29) {
+            format.setInteger(KEY_MAX_B_FRAMES, mBFrames ? 1 : 0);
+        }
+        if (mMinFrameRate != AUTO) {
+            // the encoder repeats the last frame while the screen does not produce new ones
+            format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 1000000L / mMinFrameRate);    // API >= 19
+            format.setFloat(KEY_MAX_FPS_TO_ENCODER, mFrameRate);
+        }
+        return format;
+    }
+
+    @SuppressLint("NewApi")
+    private static void resolveSize(final Builder builder, final MediaCodecInfo.VideoCapabilities video) {
+        final int widthAlignment = Math.max(1, video.getWidthAlignment());
+        final int heightAlignment = Math.max(1, video.getHeightAlignment());
+        int width = alignDown(builder.mWidth, widthAlignment);
+        int height = alignDown(builder.mHeight, heightAlignment);
+        if (!video.isSizeSupported(width, height)) {
+            // shrink keeping the aspect ratio until the codec accepts it
+            final double max = Math.min((double) video.getSupportedWidths().getUpper() / builder.mWidth,
+                    (double) video.getSupportedHeights().getUpper() / builder.mHeight);
+            boolean found = false;
+            for (double scale = Math.min(1.0, max); scale > 0.1; scale *= 0.95) {
+                width = alignDown((int) (builder.mWidth * scale), widthAlignment);
+                height = alignDown((int) (builder.mHeight * scale), heightAlignment);
+                if (video.isSizeSupported(width, height)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                Log.w(TAG, "no supported size close to " + builder.mWidth + "x" + builder.mHeight);
+                return;
+            }
+        }
+        builder.setSize(width, height);
+    }
+
+    @SuppressLint("NewApi")
+    private static void resolveBitrateMode(final Builder builder, final MediaCodecInfo.EncoderCapabilities encoder) {
+        int mode = builder.mBitrateMode;
+        if (mode == BITRATE_MODE_CQ && (Build.VERSION.SDK_INT < Build.VERSION_CODES.P || builder.mMinBitRate != AUTO)) {
+            // quality can not be set before API 28, and CQ ignores bitrate changes
+            mode = BITRATE_MODE_VBR;
+        }
+        if (mode != AUTO && !encoder.isBitrateModeSupported(mode)) {
+            mode = encoder.isBitrateModeSupported(BITRATE_MODE_VBR) ? BITRATE_MODE_VBR
+                    : encoder.isBitrateModeSupported(BITRATE_MODE_CBR) ? BITRATE_MODE_CBR : AUTO;
+        }
+        builder.setBitrateMode(mode);
+        if (mode == BITRATE_MODE_CQ) {
+            final Range<Integer> qualities = encoder.getQualityRange();
+            builder.setQuality(builder.mQuality != AUTO ? qualities.clamp(builder.mQuality)
+                    : (qualities.getLower() + qualities.getUpper()) / 2);
+        }
+    }
+
+    private static void resolveProfileLevel(final Builder builder, final MediaCodecInfo.CodecProfileLevel[] supported) {
+        final boolean hevc = builder.mCodec == CODEC_HEVC;
+        if (builder.mProfile == AUTO && builder.mBFrames) {
+            // B frames need Main profile or higher
+            builder.setProfile(hevc ? MediaCodecInfo.CodecProfileLevel.HEVCProfileMain
+                    : MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
+        }
+        if (builder.mProfile == AUTO) return;
+        final int n = supported != null ? supported.length : 0;
+        final int[] profiles = new int[n];
+        final int[] levels = new int[n];
+        for (int i = 0; i < n; i++) {
+            profiles[i] = supported[i].profile;
+            levels[i] = supported[i].level;
+        }
+        final int profile = selectProfile(builder.mProfile, profiles);
+        builder.setProfile(profile);
+        if (profile == AUTO) {
+            builder.setLevel(AUTO);
+        } else if (builder.mLevel != AUTO) {
+            builder.setLevel(selectLevel(profile, builder.mLevel, profiles, levels));
+        }
+        if (profile == AUTO || !hevc && profile == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline) {
+            builder.setBFrames(false);
+        }
+    }
+
+    /**
+     * @param profile  requested profile
+     * @param profiles profiles the codec supports
+     * @return requested profile if supported, otherwise the next lower AVC profile that is supported or {@link #AUTO}
+     */
+    static int selectProfile(final int profile, final int[] profiles) {
+        if (contains(profiles, profile)) return profile;
+        int i = AVC_PROFILES.length - 1;
+        while (i >= 0 && AVC_PROFILES[i] != profile) i--;
+        for (i--; i >= 0; i--) {
+            if (contains(profiles, AVC_PROFILES[i])) return AVC_PROFILES[i];
+        }
+        return AUTO;
+    }
+
+    /**
+     * @param profile  supported profile
+     * @param level    requested level
+     * @param profiles profiles the codec supports
+     * @param levels   maximum level of each entry of profiles
+     * @return requested level if the codec supports it for profile, otherwise the highest level it supports
+     */
+    static int selectLevel(final int profile, final int level, final int[] profiles, final int[] levels) {
+        int max = AUTO;
+        for (int i = 0; i < profiles.length; i++) {
+            if (profiles[i] == profile && levels[i] > max) {
+                max = levels[i];
+            }
+        }
+        return max == AUTO || level <= max ? level : max;
+    }
+
+    /**
+     * @param sourceWidth
+     * @param sourceHeight
+     * @param maxSize      bound of the longer edge
+     * @param alignment    of both edges
+     * @return width and height with about the aspect ratio of the source, not larger than it
+     */
+    static int[] fitSize(final int sourceWidth, final int sourceHeight, final int maxSize, final int alignment) {
+        final double scale = Math.min(1.0, (double) maxSize / Math.max(sourceWidth, sourceHeight));
+        return new int[]{alignDown((int) Math.round(sourceWidth * scale), alignment),
+                alignDown((int) Math.round(sourceHeight * scale), alignment)};
+    }
+
+    static int alignDown(final int value, final int alignment) {
+        return Math.max(alignment, value / alignment * alignment);
+    }
+
+    private static boolean contains(final int[] values, final int value) {
+        for (final int v : values) {
+            if (v == value) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (!(o instanceof VideoEncoderConfig)) return false;
+        final VideoEncoderConfig that = (VideoEncoderConfig) o;
+        return mCodec == that.mCodec && mWidth == that.mWidth && mHeight == that.mHeight && mFrameRate == that.mFrameRate
+                && mBitRate == that.mBitRate && mBitrateMode == that.mBitrateMode && mQuality == that.mQuality
+                && mIFrameInterval == that.mIFrameInterval && mProfile == that.mProfile
+                && mLevel == that.mLevel && mBFrames == that.mBFrames
+                && mMinBitRate == that.mMinBitRate && mMaxBitRate == that.mMaxBitRate
+                && mMinFrameRate == that.mMinFrameRate;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mCodec;
+        result = 31 * result + mWidth;
+        result = 31 * result + mHeight;
+        result = 31 * result + mFrameRate;
+        result = 31 * result + mBitRate;
+        result = 31 * result + mBitrateMode;
+        result = 31 * result + mQuality;
+        result = 31 * result + mIFrameInterval;
+        result = 31 * result + mProfile;
+        result = 31 * result + mLevel;
+        result = 31 * result + (mBFrames ? 1 : 0);
+        result = 31 * result + mMinBitRate;
+        result = 31 * result + mMaxBitRate;
+        result = 31 * result + mMinFrameRate;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "VideoEncoderConfig{" + getMimeType() + (mCodec == CODEC_AUTO ? "(auto) " : " ") + mWidth + "x" + mHeight + "@" + mFrameRate
+                + ", bitRate=" + getBitRate() + ", bitrateMode=" + mBitrateMode + ", quality=" + mQuality
+                + ", iFrameInterval=" + mIFrameInterval + ", profile=" + mProfile + ", level=" + mLevel
+                + ", bFrames=" + mBFrames
+                + (isAdaptiveBitRate() ? ", adaptiveBitRate=" + mMinBitRate + "-" + mMaxBitRate : "")
+                + (isDynamicFrameRate() ? ", minFrameRate=" + mMinFrameRate : "") + "}";
+    }
+
+    public static final class Builder {
+
+        private int mCodec = CODEC_AVC;
+        private int mWidth = 720;
+        private int mHeight = 1280;
+        private int mFrameRate = 25;
+        private int mBitRate = AUTO;
+        private int mBitrateMode = AUTO;
+        private int mQuality = AUTO;
+        private int mIFrameInterval = 10;
+        private int mProfile = AUTO;
+        private int mLevel = AUTO;
+        private boolean mBFrames;
+        private int mMinBitRate = AUTO;
+        private int mMaxBitRate = AUTO;
+        private int mMinFrameRate = AUTO;
+
+        public Builder() {
+        }
+
+        public Builder(final VideoEncoderConfig config) {
+            mCodec = config.mCodec;
+            mWidth = config.mWidth;
+            mHeight = config.mHeight;
+            mFrameRate = config.mFrameRate;
+            mBitRate = config.mBitRate;
+            mBitrateMode = config.mBitrateMode;
+            mQuality = config.mQuality;
+            mIFrameInterval = config.mIFrameInterval;
+            mProfile = config.mProfile;
+            mLevel = config.mLevel;
+            mBFrames = config.mBFrames;
+            mMinBitRate = config.mMinBitRate;
+            mMaxBitRate = config.mMaxBitRate;
+            mMinFrameRate = config.mMinFrameRate;
+        }
+
+        /**
+         * @param codec one of CODEC_AVC/HEVC/AUTO. HEVC falls back to AVC when the device has no HEVC encoder
+         */
+        public Builder setCodec(final int codec) {
+            mCodec = codec;
+            return this;
+        }
+
+        public Builder setSize(final int width, final int height) {
+            mWidth = width;
+            mHeight = height;
+            return this;
+        }
+
+        /**
+         * size that keeps about the aspect ratio of the source, scaled down so the longer edge is at most
+         * maxSize and aligned to 16. Record the source through {@link ScreenRenderer} to scale it.
+         *
+         * @param sourceWidth  e.g. width of the display
+         * @param sourceHeight e.g. height of the display
+         * @param maxSize      bound of the longer edge
+         */
+        public Builder setSizeToFit(final int sourceWidth, final int sourceHeight, final int maxSize) {
+            final int[] size = fitSize(sourceWidth, sourceHeight, maxSize, SIZE_ALIGNMENT);
+            mWidth = size[0];
+            mHeight = size[1];
+            return this;
+        }
+
+        public Builder setFrameRate(final int frameRate) {
+            mFrameRate = frameRate;
+            return this;
+        }
+
+        /**
+         * @param bitRate bits per second, {@link #AUTO} to calculate from size and frame rate
+         */
+        public Builder setBitRate(final int bitRate) {
+            mBitRate = bitRate;
+            return this;
+        }
+
+        /**
+         * @param bitrateMode one of BITRATE_MODE_CQ/VBR/CBR or {@link #AUTO}, ignored on API < 21
+         */
+        public Builder setBitrateMode(final int bitrateMode) {
+            mBitrateMode = bitrateMode;
+            return this;
+        }
+
+        /**
+         * @param quality quality for {@link #BITRATE_MODE_CQ}, ignored on API < 28
+         */
+        public Builder setQuality(final int quality) {
+            mQuality = quality;
+            return this;
+        }
+
+        /**
+         * @param iFrameInterval seconds between key frames
+         */
+        public Builder setIFrameInterval(final int iFrameInterval) {
+            mIFrameInterval = iFrameInterval;
+            return this;
+        }
+
+        /**
+         * @param profile MediaCodecInfo.CodecProfileLevel profile or {@link #AUTO}, ignored on API < 21
+         */
+        public Builder setProfile(final int profile) {
+            mProfile = profile;
+            return this;
+        }
+
+        /**
+         * @param level MediaCodecInfo.CodecProfileLevel level or {@link #AUTO}, ignored on API < 23
+         */
+        public Builder setLevel(final int level) {
+            mLevel = level;
+            return this;
+        }
+
+        /**
+         * @param enabled allow B frames, only applied on API >= 29
+         */
+        public Builder setBFrames(final boolean enabled) {
+            mBFrames = enabled;
+            return this;
+        }
+
+        /**
+         * let {@link BitrateController} lower the bitrate while the muxer falls behind and raise it again
+         * afterwards, only on API >= 19. The initial bitrate is clamped to the range.
+         *
+         * @param minBitRate bits per second, {@link #AUTO} to disable
+         * @param maxBitRate bits per second, {@link #AUTO} to disable
+         */
+        public Builder setAdaptiveBitRate(final int minBitRate, final int maxBitRate) {
+            mMinBitRate = minBitRate;
+            mMaxBitRate = maxBitRate;
+            return this;
+        }
+
+        /**
+         * encode a static screen at a floor rate and go back to the frame rate as soon as it changes.
+         * The encoder repeats the previous frame after 1 / minFrameRate on API >= 19,
+         * see {@link ScreenRenderer} to drop unchanged frames before they reach the encoder.
+         *
+         * @param minFrameRate floor frame rate, {@link #AUTO} to disable
+         */
+        public Builder setDynamicFrameRate(final int minFrameRate) {
+            mMinFrameRate = minFrameRate;
+            return this;
+        }
+
+        public VideoEncoderConfig build() {
+            if (mCodec != CODEC_AVC && mCodec != CODEC_HEVC && mCodec != CODEC_AUTO)
+                throw new IllegalArgumentException("invalid codec " + mCodec);
+            if (mWidth <= 0 || mHeight <= 0)
+                throw new IllegalArgumentException("invalid size " + mWidth + "x" + mHeight);
+            if (mFrameRate <= 0)
+                throw new IllegalArgumentException("invalid frame rate " + mFrameRate);
+            if (mBitRate <= 0 && mBitRate != AUTO)
+                throw new IllegalArgumentException("invalid bitrate " + mBitRate);
+            if (mIFrameInterval < 0)
+                throw new IllegalArgumentException("invalid I frame interval " + mIFrameInterval);
+            if ((mMinBitRate == AUTO) != (mMaxBitRate == AUTO)
+                    || mMinBitRate != AUTO && (mMinBitRate <= 0 || mMaxBitRate < mMinBitRate))
+                throw new IllegalArgumentException("invalid adaptive bitrate range " + mMinBitRate + "-" + mMaxBitRate);
+            if (mMinFrameRate != AUTO && (mMinFrameRate <= 0 || mMinFrameRate > mFrameRate))
+                throw new IllegalArgumentException("invalid minimum frame rate " + mMinFrameRate);
+            return new VideoEncoderConfig(this);
+        }
+    }
+}
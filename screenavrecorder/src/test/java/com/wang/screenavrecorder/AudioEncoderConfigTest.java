@@ -0,0 +1,69 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AudioEncoderConfigTest {
+
+    @Test
+    public void defaults_matchPreviousFormat() {
+        final AudioEncoderConfig config = new AudioEncoderConfig.Builder().build();
+        assertEquals(AudioEncoderConfig.MIME_TYPE_AAC, config.getMimeType());
+        assertEquals(44100, config.getSampleRate());
+        assertEquals(1, config.getChannelCount());
+        assertEquals(64000, config.getBitRate());
+        assertEquals(AudioEncoderConfig.AAC_PROFILE_LC, config.getAacProfile());
+        assertEquals(config, new AudioEncoderConfig.Builder(config).build());
+        assertNotEquals(config, new AudioEncoderConfig.Builder(config).setChannelCount(2).build());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void build_rejectsInvalidChannelCount() {
+        new AudioEncoderConfig.Builder().setChannelCount(3).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void build_rejectsInvalidAacProfile() {
+        new AudioEncoderConfig.Builder().setAacProfile(1).build();
+    }
+
+    @Test
+    public void selectAacProfile_stepsDownToSupported() {
+        final int lc = AudioEncoderConfig.AAC_PROFILE_LC;
+        final int he = AudioEncoderConfig.AAC_PROFILE_HE;
+        final int heV2 = AudioEncoderConfig.AAC_PROFILE_HE_V2;
+        assertEquals(heV2, AudioEncoderConfig.selectAacProfile(heV2, 2, new int[]{lc, he, heV2}));
+        assertEquals(he, AudioEncoderConfig.selectAacProfile(heV2, 2, new int[]{lc, he}));
+        assertEquals(lc, AudioEncoderConfig.selectAacProfile(he, 1, new int[]{lc}));
+        // codec does not list its profiles
+        assertEquals(he, AudioEncoderConfig.selectAacProfile(he, 1, new int[0]));
+    }
+
+    @Test
+    public void selectAacProfile_needsStereoForHeV2() {
+        final int[] all = {AudioEncoderConfig.AAC_PROFILE_LC, AudioEncoderConfig.AAC_PROFILE_HE,
+                AudioEncoderConfig.AAC_PROFILE_HE_V2};
+        assertEquals(AudioEncoderConfig.AAC_PROFILE_HE,
+                AudioEncoderConfig.selectAacProfile(AudioEncoderConfig.AAC_PROFILE_HE_V2, 1, all));
+    }
+
+    @Test
+    public void selectSampleRate_picksClosestSupported() {
+        // Opus encoders take a few discrete rates
+        final int[] discrete = {8000, 12000, 16000, 24000, 48000};
+        assertEquals(48000, AudioEncoderConfig.selectSampleRate(44100, discrete, discrete));
+        assertEquals(16000, AudioEncoderConfig.selectSampleRate(16000, discrete, discrete));
+        assertEquals(24000, AudioEncoderConfig.selectSampleRate(22050, discrete, discrete));
+        assertEquals(32000, AudioEncoderConfig.selectSampleRate(44100, new int[]{8000}, new int[]{32000}));
+        assertEquals(44100, AudioEncoderConfig.selectSampleRate(44100, new int[0], new int[0]));
+    }
+
+    @Test
+    public void fragmentedMp4_forcesAac() {
+        final AudioEncoderConfig opus = new AudioEncoderConfig.Builder().setCodec(AudioEncoderConfig.CODEC_OPUS).build();
+        assertEquals(AudioEncoderConfig.CODEC_AAC, FragmentedMp4MuxerBackend.toSupportedConfig(opus).getCodec());
+        final AudioEncoderConfig aac = new AudioEncoderConfig.Builder().build();
+        assertSame(aac, FragmentedMp4MuxerBackend.toSupportedConfig(aac));
+    }
+}
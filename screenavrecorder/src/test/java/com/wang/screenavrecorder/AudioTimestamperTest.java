@@ -0,0 +1,50 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AudioTimestamperTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SAMPLES = 1024;
+    private static final long DURATION_US = SAMPLES * 1000000L / SAMPLE_RATE;
+
+    @Test
+    public void timestamps_followSampleCount() {
+        final AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE);
+        final long first = timestamper.onSamplesRead(SAMPLES, 1000000);
+        assertEquals(1000000 - DURATION_US, first);
+        // reads return late by up to 1ms, that jitter must not show up in the timestamps
+        for (int i = 1; i <= 100; i++) {
+            final long pts = timestamper.onSamplesRead(SAMPLES, 1000000 + i * SAMPLES * 1000000L / SAMPLE_RATE + (i % 2) * 1000);
+            assertEquals(first + i * SAMPLES * 1000000L / SAMPLE_RATE, pts);
+        }
+    }
+
+    @Test
+    public void drift_isCorrectedAndStaysMonotonic() {
+        final AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE);
+        // audio clock runs 0.5% slow against the monotonic clock
+        long nowUs = 0, lastPts = Long.MIN_VALUE;
+        for (int i = 0; i < 2000; i++) {
+            nowUs += DURATION_US * 1005 / 1000;
+            final long pts = timestamper.onSamplesRead(SAMPLES, nowUs);
+            assertTrue(pts > lastPts);
+            lastPts = pts;
+        }
+        final long skewUs = nowUs - DURATION_US - lastPts;
+        assertTrue("skew " + skewUs, Math.abs(skewUs) < 10 * AudioTimestamper.DEADBAND_US);
+        assertEquals(0, timestamper.getResyncCount());
+    }
+
+    @Test
+    public void gap_jumpsForward() {
+        final AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE);
+        final long first = timestamper.onSamplesRead(SAMPLES, 100000);
+        final long pts = timestamper.onSamplesRead(SAMPLES, 100000 + 500000);
+        assertEquals(100000 + 500000 - DURATION_US, pts);
+        assertTrue(pts > first);
+        assertEquals(1, timestamper.getResyncCount());
+    }
+}
@@ -0,0 +1,21 @@
+package com.wang.screenavrecorder;
+
+/**
+ * Shared pieces of the JMH benchmarks,
+ * run them with {@code ./gradlew :screenavrecorder:jmh [-Pjmh.include=<regex>]}
+ */
+final class Benchmarks {
+
+    static final MediaEncoder.MediaEncoderListener LISTENER = new MediaEncoder.MediaEncoderListener() {
+        @Override
+        public void onPrepared(final MediaEncoder encoder) {
+        }
+
+        @Override
+        public void onStopped(final MediaEncoder encoder) {
+        }
+    };
+
+    private Benchmarks() {
+    }
+}
@@ -0,0 +1,107 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BitrateControllerTest {
+
+    private static final int FPS = 30;
+    private static final long FRAME_US = 1000000 / FPS;
+
+    private final BitrateController mController = new BitrateController(4000000, 1000000, 8000000, FPS);
+    private long mNowUs;
+    private long mWriteCount;
+    private long mWriteNanos;
+    private long mBlockedCount;
+
+    /**
+     * feed one window of frames
+     *
+     * @param writeLatencyUs muxer time per sample
+     * @param lagUs          encoder output lag of every frame
+     * @param queued         samples waiting for the muxer
+     * @param blocked        samples that waited for room in this window
+     * @return result of update at the end of the window
+     */
+    private int window(final long writeLatencyUs, final long lagUs, final int queued, final int blocked) {
+        if (mNowUs == 0) {
+            mController.update(mNowUs, mWriteCount, mWriteNanos, mBlockedCount);
+        }
+        for (int i = 0; i < FPS; i++) {
+            mWriteCount++;
+            mWriteNanos += writeLatencyUs * 1000;
+            mController.onFrameEncoded(lagUs, queued);
+        }
+        mBlockedCount += blocked;
+        mNowUs += BitrateController.WINDOW_US;
+        return mController.update(mNowUs, mWriteCount, mWriteNanos, mBlockedCount);
+    }
+
+    private int healthy() {
+        return window(100, FRAME_US, 0, 0);
+    }
+
+    @Test
+    public void slowWrites_lowerBitRate() {
+        assertEquals(0, healthy());
+        assertEquals(2800000, window(FRAME_US, FRAME_US, 0, 0));
+        assertEquals(1, mController.getDecreaseCount());
+        assertEquals(FRAME_US, mController.getLastWriteLatencyUs());
+        assertTrue(mController.getLastReason().startsWith("write latency"));
+    }
+
+    @Test
+    public void eachSignal_isCongestion() {
+        assertEquals(2800000, window(100, FRAME_US, 0, 1));
+        assertEquals(0, window(100, FRAME_US, 0, 0));
+        assertEquals(0, window(100, FRAME_US, 0, 0));
+        assertEquals(1960000, window(100, FRAME_US, BitrateController.QUEUE_HIGH + 1, 0));
+        healthy();
+        healthy();
+        assertEquals(1372000, window(100, 10 * FRAME_US, 0, 0));
+        assertEquals(FPS, mController.getLastLateFrames());
+        assertEquals(3, mController.getDecreaseCount());
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        for (int i = 0; i < 20; i++) {
+            window(FRAME_US, FRAME_US, 0, 0);
+        }
+        assertEquals(1000000, mController.getBitRate());
+        for (int i = 0; i < 200; i++) {
+            healthy();
+        }
+        assertEquals(8000000, mController.getBitRate());
+    }
+
+    @Test
+    public void holdsAfterChange() {
+        assertEquals(2800000, window(FRAME_US, FRAME_US, 0, 0));
+        // the queue still holds samples at the old bitrate
+        assertEquals(0, window(FRAME_US, FRAME_US, 0, 0));
+        assertEquals(0, window(FRAME_US, FRAME_US, 0, 0));
+        assertEquals(1960000, window(FRAME_US, FRAME_US, 0, 0));
+    }
+
+    @Test
+    public void raisesOnlyAfterHealthyWindows() {
+        for (int i = 1; i < BitrateController.HEALTHY_WINDOWS; i++) {
+            assertEquals(0, healthy());
+        }
+        // between the thresholds nothing changes and the healthy count restarts
+        assertEquals(0, window(FRAME_US / 3, FRAME_US, 0, 0));
+        for (int i = 1; i < BitrateController.HEALTHY_WINDOWS; i++) {
+            assertEquals(0, healthy());
+        }
+        assertEquals(4600000, healthy());
+        assertEquals(1, mController.getIncreaseCount());
+        assertEquals(0, mController.getDecreaseCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRange() {
+        new BitrateController(1000000, 2000000, 1000000, FPS);
+    }
+}
@@ -0,0 +1,17 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CodecRegistryTest {
+
+    @Test
+    public void softwareCodecNames_areRecognized() {
+        assertFalse(CodecRegistry.isHardwareCodecName("OMX.google.h264.encoder"));
+        assertFalse(CodecRegistry.isHardwareCodecName("c2.android.avc.encoder"));
+        assertFalse(CodecRegistry.isHardwareCodecName("OMX.SEC.avc.sw.enc"));
+        assertTrue(CodecRegistry.isHardwareCodecName("OMX.qcom.video.encoder.avc"));
+        assertTrue(CodecRegistry.isHardwareCodecName("c2.exynos.hevc.encoder"));
+    }
+}
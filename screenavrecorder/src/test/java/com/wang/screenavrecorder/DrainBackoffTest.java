@@ -0,0 +1,31 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DrainBackoffTest {
+
+    @Test
+    public void delay_startsAtFrameInterval() {
+        assertEquals(40, new DrainBackoff(25, 8).getDelayMs());
+        assertEquals(16, new DrainBackoff(60, 8).getDelayMs());
+    }
+
+    @Test
+    public void emptyPolls_doubleUpToMaximum() {
+        final DrainBackoff backoff = new DrainBackoff(25, 8);
+        assertEquals(80, backoff.onDrained(0));
+        assertEquals(160, backoff.onDrained(0));
+        assertEquals(320, backoff.onDrained(0));
+        assertEquals(320, backoff.onDrained(0));
+    }
+
+    @Test
+    public void output_resetsToFrameInterval() {
+        final DrainBackoff backoff = new DrainBackoff(25, 8);
+        backoff.onDrained(0);
+        backoff.onDrained(0);
+        assertEquals(40, backoff.onDrained(2));
+    }
+}
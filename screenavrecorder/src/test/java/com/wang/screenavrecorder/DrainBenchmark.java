@@ -0,0 +1,65 @@
+package com.wang.screenavrecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link MediaEncoder#drain()} per encoded frame.
+ * Frames are pushed to a fake surface-input codec and drained on the benchmark thread,
+ * the encoder is never woken by frameAvailableSoon so its own thread stays idle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DrainBenchmark {
+
+    private static final int FRAMES_PER_DRAIN = 4;
+
+    @Param({"4096", "65536"})
+    public int packetSize;
+
+    private FakeMuxerBackend mMuxerBackend;
+    private FakeVideoEncoder mEncoder;
+    private FakeEncoderBackend mCodec;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mMuxerBackend = new FakeMuxerBackend();
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(false).setPacketSize(packetSize);
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper("bench.mp4", mMuxerBackend, factory);
+        mEncoder = new FakeVideoEncoder(muxer, Benchmarks.LISTENER);
+        muxer.prepare();
+        mCodec = (FakeEncoderBackend) mEncoder.getCodec();
+        mEncoder.mIsCapturing = true;
+        // first drain adds the track and starts muxer
+        mEncoder.drain();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mEncoder.stopRecording();
+        mMuxerBackend.awaitReleased(5000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES_PER_DRAIN)
+    public void drain() {
+        mCodec.submitFrames(FRAMES_PER_DRAIN);
+        mEncoder.drain();
+    }
+}
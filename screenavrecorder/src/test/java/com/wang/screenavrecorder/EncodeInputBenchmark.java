@@ -0,0 +1,68 @@
+package com.wang.screenavrecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handing one PCM buffer to the codec through
+ * {@link MediaEncoder#encodeByteBuffer} and {@link MediaEncoder#encodeByteArray}.
+ * Output is never drained, the fake codec drops packets once its in-flight ring is full.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EncodeInputBenchmark {
+
+    @Param({"1024", "2048"})
+    public int pcmBytes;
+
+    private FakeMuxerBackend mMuxerBackend;
+    private FakeAudioEncoder mEncoder;
+    private ByteBuffer mDirect;
+    private byte[] mArray;
+    private long mPtsUs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mMuxerBackend = new FakeMuxerBackend();
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(false);
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper("bench.mp4", mMuxerBackend, factory);
+        mEncoder = new FakeAudioEncoder(muxer, Benchmarks.LISTENER);
+        muxer.prepare();
+        mEncoder.mIsCapturing = true;
+        mDirect = ByteBuffer.allocateDirect(pcmBytes);
+        mArray = new byte[pcmBytes];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mEncoder.stopRecording();
+        mMuxerBackend.awaitReleased(5000);
+    }
+
+    @Benchmark
+    public void encodeByteBuffer() {
+        mDirect.clear();
+        mEncoder.encodeByteBuffer(mDirect, pcmBytes, mPtsUs += 1000);
+    }
+
+    @Benchmark
+    public void encodeByteArray() {
+        mEncoder.encodeByteArray(mArray, pcmBytes, mPtsUs += 1000);
+    }
+}
@@ -0,0 +1,133 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EncoderPoolTest {
+
+    private static final String AUDIO = "audio/mp4a-latm";
+    private static final String VIDEO = "video/avc";
+    private static final long TIMEOUT_MS = 1000;
+
+    private final FakeEncoderBackend.Factory mFactory = new FakeEncoderBackend.Factory(false);
+
+    @Test
+    public void bufferInput_isFlushedAndKeptRunning() throws Exception {
+        final EncoderPool pool = new EncoderPool(mFactory, 2, Long.MAX_VALUE, TIMEOUT_MS);
+        final MediaFormat format = new MediaFormat();
+        final EncoderBackend first = record(pool, AUDIO, format, false);
+        final FakeEncoderBackend codec = mFactory.get(AUDIO);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, codec.getFlushCount());
+
+        final EncoderBackend second = pool.createEncoder(null, AUDIO, null);
+        assertSame(first, second);
+        assertEquals(1, pool.getReusedCount());
+        second.configure(format);
+        second.start();
+        // same format, the running codec is not configured again but reports its format
+        assertEquals(1, codec.getConfigureCount());
+        assertEquals(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, second.dequeueOutputBuffer(new MediaCodec.BufferInfo(), 0));
+        second.stop();
+        second.release();
+        assertEquals(1, mFactory.getCreatedCount());
+    }
+
+    @Test
+    public void changedFormat_isReconfigured() throws Exception {
+        final EncoderPool pool = new EncoderPool(mFactory, 2, Long.MAX_VALUE, TIMEOUT_MS);
+        record(pool, AUDIO, new MediaFormat(), false);
+        record(pool, AUDIO, new MediaFormat(), false);
+        assertEquals(1, mFactory.getCreatedCount());
+        assertEquals(2, mFactory.get(AUDIO).getConfigureCount());
+    }
+
+    @Test
+    public void surfaceInput_isStoppedAndConfiguredAgain() throws Exception {
+        final EncoderPool pool = new EncoderPool(mFactory, 2, Long.MAX_VALUE, TIMEOUT_MS);
+        final MediaFormat format = new MediaFormat();
+        record(pool, VIDEO, format, true);
+        record(pool, VIDEO, format, true);
+        final FakeEncoderBackend codec = mFactory.get(VIDEO);
+        assertEquals(1, mFactory.getCreatedCount());
+        assertEquals(2, codec.getConfigureCount());
+        assertEquals(0, codec.getFlushCount());
+    }
+
+    @Test
+    public void differentCodec_isNotReused() throws Exception {
+        final EncoderPool pool = new EncoderPool(mFactory, 2, Long.MAX_VALUE, TIMEOUT_MS);
+        record(pool, AUDIO, new MediaFormat(), false);
+        record(pool, VIDEO, new MediaFormat(), true);
+        assertEquals(2, mFactory.getCreatedCount());
+        assertEquals(0, pool.getReusedCount());
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    public void idleCount_isCapped() throws Exception {
+        final EncoderPool pool = new EncoderPool(mFactory, 1, Long.MAX_VALUE, TIMEOUT_MS);
+        final EncoderBackend audio = pool.createEncoder(null, AUDIO, null);
+        final EncoderBackend video = pool.createEncoder(null, VIDEO, null);
+        audio.release();
+        video.release();
+        assertEquals(1, pool.getIdleCount());
+        // least recently used first
+        assertTrue(mFactory.get(AUDIO).isReleased());
+        assertFalse(mFactory.get(VIDEO).isReleased());
+    }
+
+    @Test
+    public void footprint_isCapped() throws Exception {
+        final long audioBytes = EncoderPool.estimateFootprint(0, 0);
+        final EncoderPool pool = new EncoderPool(mFactory, 4, audioBytes, TIMEOUT_MS);
+        pool.createEncoder(null, AUDIO, null).release();
+        assertEquals(audioBytes, pool.getIdleBytes());
+        pool.createEncoder("other", AUDIO, null).release();
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(audioBytes, pool.getIdleBytes());
+        assertTrue(EncoderPool.estimateFootprint(1280, 720) > audioBytes);
+    }
+
+    @Test
+    public void idle_isEvictedAfterTimeout() throws Exception {
+        final EncoderPool pool = new EncoderPool(mFactory, 2, Long.MAX_VALUE, TIMEOUT_MS);
+        record(pool, AUDIO, new MediaFormat(), false);
+        pool.evictIdle(System.nanoTime() / 1000000L);
+        assertEquals(1, pool.getIdleCount());
+        pool.evictIdle(System.nanoTime() / 1000000L + TIMEOUT_MS);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getIdleBytes());
+        assertTrue(mFactory.get(AUDIO).isReleased());
+    }
+
+    @Test
+    public void release_releasesIdleAndReturnedCodecs() throws Exception {
+        final EncoderPool pool = new EncoderPool(mFactory, 2, Long.MAX_VALUE, TIMEOUT_MS);
+        record(pool, AUDIO, new MediaFormat(), false);
+        final EncoderBackend video = pool.createEncoder(null, VIDEO, null);
+        pool.release();
+        assertTrue(mFactory.get(AUDIO).isReleased());
+        video.release();
+        assertTrue(mFactory.get(VIDEO).isReleased());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    /**
+     * lifecycle of a codec in MediaEncoder
+     */
+    private static EncoderBackend record(final EncoderPool pool, final String mimeType, final MediaFormat format,
+                                         final boolean surfaceInput) throws Exception {
+        final EncoderBackend codec = pool.createEncoder(null, mimeType, null);
+        codec.configure(format);
+        if (surfaceInput) codec.createInputSurface();
+        codec.start();
+        codec.stop();
+        codec.release();
+        return codec;
+    }
+}
@@ -0,0 +1,40 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+
+/**
+ * MediaAudioEncoder that skips codec selection,
+ * the codec comes from the {@link FakeEncoderBackend.Factory} of the muxer
+ * and PCM data is fed by the caller through {@link #encodeByteBuffer}.
+ */
+class FakeAudioEncoder extends MediaAudioEncoder {
+
+    static final String MIME_TYPE = "audio/mp4a-latm";
+
+    FakeAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
+        super(muxer, listener);
+    }
+
+    /**
+     * encoder of the PCM captureSource shares through {@link #shareCapture}
+     */
+    FakeAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final MediaAudioEncoder captureSource) {
+        super(muxer, listener, captureSource, captureSource.getConfig());
+    }
+
+    @Override
+    protected void prepare() throws IOException {
+        mTrackIndex = -1;
+        mMuxerStarted = mIsEOS = false;
+        mCodec = createEncoder(MIME_TYPE);
+        mCodec.configure(new MediaFormat());
+        mCodec.start();
+        mListener.onPrepared(this);
+    }
+
+    EncoderBackend getCodec() {
+        return mCodec;
+    }
+}
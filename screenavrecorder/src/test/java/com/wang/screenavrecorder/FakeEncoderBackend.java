@@ -0,0 +1,508 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Deterministic in-memory {@link EncoderBackend}.
+ * Every input frame turns into one synthetic encoded packet that becomes available
+ * {@code latencyUs} after the frame was queued. Packet sizes, flags and payload only depend
+ * on the frame number, so two runs with the same input produce the same output.
+ * <p>
+ * Surface input frames are either produced every {@code frameIntervalUs} like a VirtualDisplay would,
+ * or pushed explicitly with {@link #submitFrames(int)} when the interval is 0.
+ * When nothing is in flight {@link #dequeueOutputBuffer(MediaCodec.BufferInfo, long)} returns
+ * immediately instead of waiting for the timeout, so benchmarks measure the drain loop itself.
+ */
+class FakeEncoderBackend implements EncoderBackend {
+
+    static final int INPUT_BUFFER_COUNT = 4;
+    static final int OUTPUT_BUFFER_COUNT = 8;
+    private static final int MAX_IN_FLIGHT = 64;
+
+    /**
+     * Factory that creates fakes sharing the same parameters
+     */
+    static class Factory implements EncoderBackend.Factory {
+        private final boolean mAsync;
+        private long mFrameIntervalUs;
+        private long mLatencyUs;
+        private int mPacketSize = 4096;
+        private int mKeyFrameInterval = 25;
+        private final List<FakeEncoderBackend> mCreated = new ArrayList<>();
+
+        Factory(final boolean async) {
+            mAsync = async;
+        }
+
+        Factory setFrameIntervalUs(final long frameIntervalUs) {
+            mFrameIntervalUs = frameIntervalUs;
+            return this;
+        }
+
+        Factory setLatencyUs(final long latencyUs) {
+            mLatencyUs = latencyUs;
+            return this;
+        }
+
+        Factory setPacketSize(final int packetSize) {
+            mPacketSize = packetSize;
+            return this;
+        }
+
+        Factory setKeyFrameInterval(final int keyFrameInterval) {
+            mKeyFrameInterval = keyFrameInterval;
+            return this;
+        }
+
+        @Override
+        public synchronized EncoderBackend createEncoder(final String codecName, final String mimeType, final Callback callback) {
+            final FakeEncoderBackend codec = new FakeEncoderBackend(mimeType, mAsync ? callback : null,
+                    mFrameIntervalUs, mLatencyUs, mPacketSize, mKeyFrameInterval);
+            mCreated.add(codec);
+            return codec;
+        }
+
+        synchronized int getCreatedCount() {
+            return mCreated.size();
+        }
+
+        synchronized FakeEncoderBackend get(final String mimeType) {
+            for (final FakeEncoderBackend codec : mCreated) {
+                if (codec.mMimeType.equals(mimeType)) return codec;
+            }
+            return null;
+        }
+    }
+
+    private final String mMimeType;
+    private final Callback mCallback;
+    private final long mFrameIntervalUs;
+    private final long mLatencyUs;
+    private final int mPacketSize;
+    private final int mKeyFrameInterval;
+
+    private final Object mLock = new Object();
+    private final ByteBuffer[] mInputBuffers = new ByteBuffer[INPUT_BUFFER_COUNT];
+    private final boolean[] mInputBusy = new boolean[INPUT_BUFFER_COUNT];
+    private final ByteBuffer[] mOutputBuffers = new ByteBuffer[OUTPUT_BUFFER_COUNT];
+    private final boolean[] mOutputBusy = new boolean[OUTPUT_BUFFER_COUNT];
+    private final MediaCodec.BufferInfo[] mOutputInfos = new MediaCodec.BufferInfo[OUTPUT_BUFFER_COUNT];
+    /**
+     * ring of frames in flight
+     */
+    private final long[] mDueNs = new long[MAX_IN_FLIGHT];
+    private final long[] mPtsUs = new long[MAX_IN_FLIGHT];
+    private final int[] mFlags = new int[MAX_IN_FLIGHT];
+    private int mHead, mCount;
+
+    private boolean mSurfaceInput;
+    private boolean mStarted, mReleased, mFormatReported, mInputEOS;
+    /**
+     * like a MediaCodec in error state, nothing is delivered and input is refused
+     */
+    private boolean mError;
+    private long mStartNs, mNextFrameNs;
+    private int mFrameNumber, mOutputIndex;
+    private long mOutputCount;
+    private boolean mSyncFrameRequested;
+    private int mSyncFrameRequests;
+    private int mVideoBitrate;
+    private boolean mInputSuspended;
+    private int mConfigureCount, mFlushCount;
+    private Thread mCallbackThread;
+
+    FakeEncoderBackend(final String mimeType, final Callback callback, final long frameIntervalUs,
+                       final long latencyUs, final int packetSize, final int keyFrameInterval) {
+        mMimeType = mimeType;
+        mCallback = callback;
+        mFrameIntervalUs = frameIntervalUs;
+        mLatencyUs = latencyUs;
+        mPacketSize = packetSize;
+        mKeyFrameInterval = Math.max(1, keyFrameInterval);
+        for (int i = 0; i < INPUT_BUFFER_COUNT; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(packetSize * 4);
+        }
+        for (int i = 0; i < OUTPUT_BUFFER_COUNT; i++) {
+            final ByteBuffer buf = ByteBuffer.allocateDirect(packetSize * 2);
+            for (int j = 0; j < buf.capacity(); j++) {
+                buf.put(j, (byte) (i + j));
+            }
+            mOutputBuffers[i] = buf;
+            mOutputInfos[i] = new MediaCodec.BufferInfo();
+        }
+    }
+
+    @Override
+    public boolean isAsync() {
+        return mCallback != null;
+    }
+
+    @Override
+    public void configure(final MediaFormat format) {
+        synchronized (mLock) {
+            // a configured codec starts over and reports its format again
+            mHead = mCount = 0;
+            mInputEOS = false;
+            Arrays.fill(mInputBusy, false);
+            Arrays.fill(mOutputBusy, false);
+            mFrameNumber = 0;
+            mFormatReported = false;
+            mConfigureCount++;
+        }
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        mSurfaceInput = true;
+        return null;
+    }
+
+    @Override
+    public void start() {
+        synchronized (mLock) {
+            mStarted = true;
+            mStartNs = mNextFrameNs = System.nanoTime();
+        }
+        if (mCallback != null) {
+            mCallbackThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliverCallbacks();
+                }
+            }, "FakeEncoderBackend-callback");
+            mCallbackThread.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (mLock) {
+            mStarted = false;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void flush() {
+        synchronized (mLock) {
+            // like MediaCodec the format is not reported again
+            mHead = mCount = 0;
+            mInputEOS = false;
+            Arrays.fill(mInputBusy, false);
+            Arrays.fill(mOutputBusy, false);
+            mFlushCount++;
+            mLock.notifyAll();
+        }
+    }
+
+    int getConfigureCount() {
+        synchronized (mLock) {
+            return mConfigureCount;
+        }
+    }
+
+    int getFlushCount() {
+        synchronized (mLock) {
+            return mFlushCount;
+        }
+    }
+
+    boolean isReleased() {
+        synchronized (mLock) {
+            return mReleased;
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (mLock) {
+            mStarted = false;
+            mReleased = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * push frames to surface input like a VirtualDisplay does, dropped while input is suspended
+     *
+     * @param count
+     */
+    void submitFrames(final int count) {
+        synchronized (mLock) {
+            if (mInputSuspended) return;
+            final long now = System.nanoTime();
+            for (int i = 0; i < count && !mInputEOS; i++) {
+                pushFrame(now, (now - mStartNs) / 1000, 0);
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * fail like a codec that reports MediaCodec.Callback#onError, async mode only
+     */
+    void raiseError() {
+        synchronized (mLock) {
+            mError = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return timestamp a surface frame submitted now gets
+     */
+    long getSurfaceTimeUs() {
+        synchronized (mLock) {
+            return (System.nanoTime() - mStartNs) / 1000;
+        }
+    }
+
+    long getOutputCount() {
+        synchronized (mLock) {
+            return mOutputCount;
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        synchronized (mLock) {
+            if (mError) return MediaCodec.INFO_TRY_AGAIN_LATER;
+            for (int i = 0; i < INPUT_BUFFER_COUNT; i++) {
+                if (!mInputBusy[i]) {
+                    mInputBusy[i] = true;
+                    return i;
+                }
+            }
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        synchronized (mLock) {
+            if (mError) throw new IllegalStateException("codec is in error state");
+            mInputBusy[index] = false;
+            pushFrame(System.nanoTime(), presentationTimeUs, flags);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+        synchronized (mLock) {
+            if (!mFormatReported) {
+                mFormatReported = true;
+                return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+            }
+            final long deadline = timeoutUs < 0 ? Long.MAX_VALUE : System.nanoTime() + timeoutUs * 1000;
+            return nextOutput(info, deadline);
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        final ByteBuffer buf = mOutputBuffers[index];
+        buf.clear();
+        return buf;
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        synchronized (mLock) {
+            mOutputBusy[index] = false;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return new MediaFormat();
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        synchronized (mLock) {
+            if (mError) throw new IllegalStateException("codec is in error state");
+            pushFrame(System.nanoTime(), (System.nanoTime() - mStartNs) / 1000, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        synchronized (mLock) {
+            mSyncFrameRequested = true;
+            mSyncFrameRequests++;
+        }
+    }
+
+    int getSyncFrameRequests() {
+        synchronized (mLock) {
+            return mSyncFrameRequests;
+        }
+    }
+
+    @Override
+    public void setVideoBitrate(final int bitRate) {
+        synchronized (mLock) {
+            mVideoBitrate = bitRate;
+        }
+    }
+
+    @Override
+    public void setInputSuspended(final boolean suspended) {
+        synchronized (mLock) {
+            mInputSuspended = suspended;
+        }
+    }
+
+    boolean isInputSuspended() {
+        synchronized (mLock) {
+            return mInputSuspended;
+        }
+    }
+
+    /**
+     * @return last bitrate set while running, 0 if none
+     */
+    int getVideoBitrate() {
+        synchronized (mLock) {
+            return mVideoBitrate;
+        }
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    private void pushFrame(final long nowNs, final long ptsUs, final int flags) {
+        if (mInputEOS || mCount == MAX_IN_FLIGHT) return;
+        final int tail = (mHead + mCount) % MAX_IN_FLIGHT;
+        mDueNs[tail] = nowNs + mLatencyUs * 1000;
+        mPtsUs[tail] = ptsUs;
+        int outFlags = flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        if (outFlags == 0) {
+            if (mSyncFrameRequested || mFrameNumber % mKeyFrameInterval == 0) {
+                outFlags |= MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+                mSyncFrameRequested = false;
+            }
+            mFrameNumber++;
+        }
+        mFlags[tail] = outFlags;
+        mCount++;
+        if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mInputEOS = true;
+        }
+    }
+
+    /**
+     * frames generated by the virtual surface producer
+     */
+    private void produceSurfaceFrames(final long nowNs) {
+        if (!mSurfaceInput || mFrameIntervalUs <= 0) return;
+        while (!mInputEOS && mNextFrameNs <= nowNs && mCount < MAX_IN_FLIGHT) {
+            pushFrame(mNextFrameNs, (mNextFrameNs - mStartNs) / 1000, 0);
+            mNextFrameNs += mFrameIntervalUs * 1000;
+        }
+    }
+
+    /**
+     * should be called while holding mLock
+     */
+    private int nextOutput(final MediaCodec.BufferInfo info, final long deadlineNs) {
+        for (; ; ) {
+            if (!mStarted || mError) return MediaCodec.INFO_TRY_AGAIN_LATER;
+            long now = System.nanoTime();
+            produceSurfaceFrames(now);
+            long wakeNs;
+            if (mCount > 0) {
+                wakeNs = mDueNs[mHead];
+                if (wakeNs <= now) {
+                    final int index = mOutputIndex;
+                    if (!mOutputBusy[index]) {
+                        final int size = (mFlags[mHead] & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 ? 0
+                                : (mFlags[mHead] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0 ? mPacketSize * 2
+                                : mPacketSize - (int) (mOutputCount % 16);
+                        info.offset = 0;
+                        info.size = size;
+                        info.presentationTimeUs = mPtsUs[mHead];
+                        info.flags = mFlags[mHead];
+                        mHead = (mHead + 1) % MAX_IN_FLIGHT;
+                        mCount--;
+                        mOutputBusy[index] = true;
+                        mOutputIndex = (index + 1) % OUTPUT_BUFFER_COUNT;
+                        mOutputCount++;
+                        return index;
+                    }
+                    // all output buffers are held by the client
+                    wakeNs = deadlineNs;
+                }
+            } else if (mSurfaceInput && mFrameIntervalUs > 0 && !mInputEOS) {
+                wakeNs = mNextFrameNs + mLatencyUs * 1000;
+            } else if (mCallback != null && !mReleased) {
+                // callback thread waits for next input
+                wakeNs = deadlineNs;
+            } else {
+                // nothing in flight, no need to wait for the timeout
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            wakeNs = Math.min(wakeNs, deadlineNs);
+            if (wakeNs <= now) {
+                if (now >= deadlineNs) return MediaCodec.INFO_TRY_AGAIN_LATER;
+                continue;
+            }
+            final long waitNs = wakeNs - now;
+            try {
+                mLock.wait(waitNs / 1000000, (int) (waitNs % 1000000));
+            } catch (final InterruptedException e) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+        }
+    }
+
+    /**
+     * emulate MediaCodec.Callback on private thread
+     */
+    private void deliverCallbacks() {
+        mCallback.onOutputFormatChanged(getOutputFormat());
+        for (int i = 0; i < INPUT_BUFFER_COUNT; i++) {
+            mCallback.onInputBufferAvailable(i);
+        }
+        final MediaCodec.BufferInfo tmp = new MediaCodec.BufferInfo();
+        for (; ; ) {
+            final int index;
+            final boolean error;
+            synchronized (mLock) {
+                if (mReleased || !mStarted) break;
+                index = nextOutput(tmp, Long.MAX_VALUE);
+                error = mError;
+                if (index >= 0) {
+                    final MediaCodec.BufferInfo info = mOutputInfos[index];
+                    info.offset = tmp.offset;
+                    info.size = tmp.size;
+                    info.presentationTimeUs = tmp.presentationTimeUs;
+                    info.flags = tmp.flags;
+                }
+            }
+            if (error) {
+                // reported once, nothing is delivered afterwards
+                mCallback.onError(new IllegalStateException("codec error"));
+                break;
+            }
+            if (index >= 0) {
+                mCallback.onOutputBufferAvailable(index, mOutputInfos[index]);
+            }
+        }
+    }
+}
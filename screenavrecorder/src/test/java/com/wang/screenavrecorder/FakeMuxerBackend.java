@@ -0,0 +1,134 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory {@link MuxerBackend} that only keeps per-track statistics.
+ * Writes can be slowed down with {@link #setWriteLatencyUs(long)} to emulate storage I/O.
+ */
+class FakeMuxerBackend implements MuxerBackend {
+
+    static final int MAX_TRACKS = 4;
+
+    private int mTrackCount;
+    private boolean mStarted, mStopped, mReleased;
+    private final long[] mSamples = new long[MAX_TRACKS];
+    private final long[] mBytes = new long[MAX_TRACKS];
+    private final long[] mSyncFrames = new long[MAX_TRACKS];
+    private final long[] mLastPtsUs = new long[MAX_TRACKS];
+    private int mNonMonotonic;
+    private volatile long mWriteLatencyUs;
+    private int mFailAfter = -1;
+
+    void setWriteLatencyUs(final long writeLatencyUs) {
+        mWriteLatencyUs = writeLatencyUs;
+    }
+
+    /**
+     * emulate a failing storage
+     *
+     * @param samples writeSampleData throws after this many samples, -1 never
+     */
+    synchronized void setFailAfter(final int samples) {
+        mFailAfter = samples;
+    }
+
+    @Override
+    public synchronized int addTrack(final MediaFormat format) {
+        if (mStarted) throw new IllegalStateException("muxer already started");
+        return mTrackCount++;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mStarted) throw new IllegalStateException("muxer already started");
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        final long latencyUs = mWriteLatencyUs;
+        if (latencyUs > 0) {
+            final long end = System.nanoTime() + latencyUs * 1000;
+            while (System.nanoTime() < end) {
+                // emulate blocking write
+            }
+        }
+        synchronized (this) {
+            if (!mStarted || mStopped) throw new IllegalStateException("muxer is not started");
+            if (trackIndex < 0 || trackIndex >= mTrackCount) throw new IllegalArgumentException("trackIndex=" + trackIndex);
+            if (bufferInfo.size <= 0 || byteBuf.capacity() < bufferInfo.offset + bufferInfo.size) {
+                throw new IllegalArgumentException("bad buffer size " + bufferInfo.size);
+            }
+            if (mFailAfter >= 0 && mSamples[0] + mSamples[1] >= mFailAfter) {
+                throw new IllegalStateException("write failed");
+            }
+            if (mSamples[trackIndex] > 0 && bufferInfo.presentationTimeUs <= mLastPtsUs[trackIndex]) {
+                mNonMonotonic++;
+            }
+            mSamples[trackIndex]++;
+            mBytes[trackIndex] += bufferInfo.size;
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                mSyncFrames[trackIndex]++;
+            }
+            mLastPtsUs[trackIndex] = bufferInfo.presentationTimeUs;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!mStarted) throw new IllegalStateException("muxer is not started");
+        mStopped = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void release() {
+        mReleased = true;
+        notifyAll();
+    }
+
+    synchronized boolean awaitReleased(final long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining;
+        while (!mReleased && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return mReleased;
+    }
+
+    synchronized int getTrackCount() {
+        return mTrackCount;
+    }
+
+    synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    synchronized boolean isReleased() {
+        return mReleased;
+    }
+
+    synchronized long getSamples(final int trackIndex) {
+        return mSamples[trackIndex];
+    }
+
+    synchronized long getBytes(final int trackIndex) {
+        return mBytes[trackIndex];
+    }
+
+    synchronized long getSyncFrames(final int trackIndex) {
+        return mSyncFrames[trackIndex];
+    }
+
+    synchronized int getNonMonotonicCount() {
+        return mNonMonotonic;
+    }
+}
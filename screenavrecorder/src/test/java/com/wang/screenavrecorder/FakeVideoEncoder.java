@@ -0,0 +1,33 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+
+/**
+ * MediaVideoEncoder that skips codec selection and surface format setup,
+ * the codec comes from the {@link FakeEncoderBackend.Factory} of the muxer.
+ */
+class FakeVideoEncoder extends MediaVideoEncoder {
+
+    static final String MIME_TYPE = "video/avc";
+
+    FakeVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
+        super(muxer, listener, 720, 1280);
+    }
+
+    @Override
+    protected void prepare() throws IOException {
+        mTrackIndex = -1;
+        mMuxerStarted = mIsEOS = false;
+        mCodec = createEncoder(MIME_TYPE);
+        mCodec.configure(new MediaFormat());
+        mCodec.createInputSurface();
+        mCodec.start();
+        mListener.onPrepared(this);
+    }
+
+    EncoderBackend getCodec() {
+        return mCodec;
+    }
+}
@@ -0,0 +1,222 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4WriterTest {
+
+    private static final String SPS = "00000001 6742c01eaa";
+    private static final String PPS = "00000001 68ce3c80";
+    private static final String ASC = "1208";    // AAC LC, 44.1kHz, mono
+
+    private static final String FTYP = "00000020 66747970 69736f36 00000000 69736f36 636d6663 69736f6d 6d703431";
+    private static final String AVCC = "0000001c 61766343 01 42c01e ffe1 0005 6742c01eaa 01 0004 68ce3c80";
+    private static final String ESDS = "00000027 65736473 00000000"
+            + " 03 19 0002 00"
+            + " 04 11 40 15 000000 0000fa00 0000fa00"
+            + " 05 02 1208"
+            + " 06 01 02";
+    /**
+     * video sync frame at 0, audio frame at 0, video frame at 40ms
+     */
+    private static final String FRAGMENT = "000000bc 6d6f6f66"
+            + " 00000010 6d666864 00000000 00000001"
+            + " 00000058 74726166"
+            + "  00000010 74666864 00020000 00000001"
+            + "  00000014 74666474 01000000 0000000000000000"
+            + "  0000002c 7472756e 00000701 00000002 000000c4"
+            + "   00000e10 00000007 02000000"
+            + "   00000e10 00000006 01010000"
+            + " 0000004c 74726166"
+            + "  00000010 74666864 00020000 00000002"
+            + "  00000014 74666474 01000000 0000000000000000"
+            + "  00000020 7472756e 00000701 00000001 000000d1"
+            + "   00000400 00000002 02000000"
+            + "00000017 6d646174"
+            + " 00000003 651122 00000002 4133"
+            + " aabb";
+
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+    private FragmentedMp4Writer createWriter(final long fragmentDurationUs, final int maxFragmentBytes) {
+        return new FragmentedMp4Writer(Channels.newChannel(mOutput), fragmentDurationUs, maxFragmentBytes);
+    }
+
+    @Test
+    public void header_matchesGolden() throws IOException {
+        final FragmentedMp4Writer writer = createWriter(1000000, 1 << 20);
+        writer.addAvcTrack(16, 16, hex(SPS), hex(PPS));
+        writer.addAacTrack(44100, 1, 64000, hex(ASC));
+        writer.start();
+
+        final byte[] header = mOutput.toByteArray();
+        assertEquals(normalize(FTYP), toHex(header, 0, 32));
+        assertTrue("avcC", indexOf(header, bytes(AVCC)) > 0);
+        assertTrue("esds", indexOf(header, bytes(ESDS)) > 0);
+        // ftyp + moov and nothing else
+        final List<String> boxes = topLevelBoxes(header);
+        assertEquals("[ftyp, moov]", boxes.toString());
+    }
+
+    @Test
+    public void fragment_matchesGolden() throws IOException {
+        final FragmentedMp4Writer writer = createWriter(1000000, 1 << 20);
+        final int video = writer.addAvcTrack(16, 16, hex(SPS), hex(PPS));
+        final int audio = writer.addAacTrack(44100, 1, 64000, hex(ASC));
+        writer.start();
+        final int headerSize = mOutput.size();
+
+        write(writer, video, "00000001 651122", 1000, true);
+        write(writer, audio, "aabb", 1000, true);
+        // 3 byte start code becomes a 4 byte length too
+        write(writer, video, "000001 4133", 41000, false);
+        assertEquals("nothing is written before the fragment is complete", headerSize, mOutput.size());
+        writer.finish();
+
+        final byte[] file = mOutput.toByteArray();
+        assertEquals(normalize(FRAGMENT), toHex(file, headerSize, file.length - headerSize));
+        assertEquals(1, writer.getFragmentCount());
+        assertEquals(file.length, writer.getWrittenBytes());
+    }
+
+    @Test
+    public void fragmentsStartAtSyncFrames() throws IOException {
+        final FragmentedMp4Writer writer = createWriter(1000000, 1 << 20);
+        final int video = writer.addAvcTrack(16, 16, hex(SPS), hex(PPS));
+        final int audio = writer.addAacTrack(44100, 1, 64000, hex(ASC));
+        writer.start();
+
+        final List<Integer> sizes = new ArrayList<>();
+        // 25fps, I frame every 30 frames, 6 seconds
+        for (int i = 0; i < 150; i++) {
+            write(writer, video, "00000001 65 00000001 06aa", i * 40000L, i % 30 == 0);
+            write(writer, audio, "aabbcc", i * 40000L + 10000, true);
+            sizes.add(mOutput.size());
+        }
+        writer.finish();
+
+        // first sync frame after 1 second: 0, 1.2s, 2.4s, 3.6s, 4.8s
+        assertEquals(5, writer.getFragmentCount());
+        final byte[] file = mOutput.toByteArray();
+        final List<String> boxes = topLevelBoxes(file);
+        assertEquals("[ftyp, moov, moof, mdat, moof, mdat, moof, mdat, moof, mdat, moof, mdat]", boxes.toString());
+        // the file ends on a box boundary whenever a fragment has been written
+        for (final int size : sizes) {
+            final byte[] partial = new byte[size];
+            System.arraycopy(file, 0, partial, 0, size);
+            topLevelBoxes(partial);
+        }
+    }
+
+    @Test
+    public void fragmentSizeIsBounded() throws IOException {
+        final FragmentedMp4Writer writer = createWriter(10000000, 1000);
+        final int video = writer.addAvcTrack(16, 16, hex(SPS), hex(PPS));
+        writer.start();
+        final String frame = "00000001 65" + repeat("ab", 95);    // 100 bytes after conversion
+        for (int i = 0; i < 100; i++) {
+            write(writer, video, frame, i * 40000L, i == 0);
+        }
+        writer.finish();
+        assertEquals(10, writer.getFragmentCount());
+    }
+
+    @Test
+    public void annexB_isConvertedToLengthPrefixed() {
+        final Mp4BoxBuffer out = new Mp4BoxBuffer(64);
+        final ByteBuffer in = hex("ffff 00000001 6588 000001 0601 00000001 41ff00 00");
+        // skip the two leading bytes, trailing zeros are not part of the last NAL unit
+        FragmentedMp4Writer.appendLengthPrefixed(in, 2, in.limit(), out);
+        assertEquals(normalize("00000002 6588 00000002 0601 00000002 41ff"), toHex(out.toByteArray(), 0, out.size()));
+
+        out.clear();
+        final ByteBuffer raw = hex("6588aa");
+        FragmentedMp4Writer.appendLengthPrefixed(raw, 0, raw.limit(), out);
+        assertEquals(normalize("00000003 6588aa"), toHex(out.toByteArray(), 0, out.size()));
+    }
+
+    @Test
+    public void spsAndPpsInOneBuffer() throws IOException {
+        final FragmentedMp4Writer writer = createWriter(1000000, 1 << 20);
+        writer.addAvcTrack(16, 16, hex(SPS + PPS), null);
+        writer.start();
+        assertTrue(indexOf(mOutput.toByteArray(), bytes(AVCC)) > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingPps_isRejected() {
+        createWriter(1000000, 1 << 20).addAvcTrack(16, 16, hex(SPS), null);
+    }
+
+    private static void write(final FragmentedMp4Writer writer, final int track, final String data,
+                              final long ptsUs, final boolean sync) throws IOException {
+        final ByteBuffer buf = hex(data);
+        writer.writeSample(track, buf, 0, buf.remaining(), ptsUs, sync);
+    }
+
+    /**
+     * @return types of the top level boxes, fails if the sizes do not add up to the data length
+     */
+    private static List<String> topLevelBoxes(final byte[] data) {
+        final List<String> types = new ArrayList<>();
+        int pos = 0;
+        while (pos < data.length) {
+            assertTrue("truncated box header at " + pos, pos + 8 <= data.length);
+            final int size = ByteBuffer.wrap(data, pos, 4).getInt();
+            types.add(new String(data, pos + 4, 4));
+            assertTrue("bad box size " + size + " at " + pos, size >= 8 && pos + size <= data.length);
+            pos += size;
+        }
+        return types;
+    }
+
+    private static String repeat(final String s, final int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append(s);
+        return sb.toString();
+    }
+
+    private static String normalize(final String hex) {
+        return hex.replace(" ", "");
+    }
+
+    private static byte[] bytes(final String hex) {
+        final String s = normalize(hex);
+        final byte[] result = new byte[s.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return result;
+    }
+
+    private static ByteBuffer hex(final String hex) {
+        return ByteBuffer.wrap(bytes(hex));
+    }
+
+    private static String toHex(final byte[] data, final int offset, final int length) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = offset; i < offset + length; i++) {
+            sb.append(String.format("%02x", data[i] & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private static int indexOf(final byte[] data, final byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
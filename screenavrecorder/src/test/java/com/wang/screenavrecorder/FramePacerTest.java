@@ -0,0 +1,72 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FramePacerTest {
+
+    private static final long FRAME_US = 1000000L / 30;
+
+    @Test
+    public void unchangedFrames_areRenderedAtFloorRate() {
+        final FramePacer pacer = new FramePacer(30, 2);
+        assertTrue(pacer.onFrame(0, true));
+        int rendered = 0;
+        // two seconds of a static 30fps screen
+        for (int i = 1; i <= 60; i++) {
+            if (pacer.onFrame(i * FRAME_US, false)) rendered++;
+        }
+        assertEquals(3, rendered);
+        assertEquals(57, pacer.getSkippedCount());
+    }
+
+    @Test
+    public void changedFrames_rampBackUpImmediately() {
+        final FramePacer pacer = new FramePacer(30, 1);
+        assertTrue(pacer.onFrame(0, true));
+        assertFalse(pacer.onFrame(FRAME_US, false));
+        assertTrue(pacer.onFrame(2 * FRAME_US, true));
+        assertTrue(pacer.onFrame(3 * FRAME_US, true));
+        assertEquals(3, pacer.getRenderedCount());
+    }
+
+    @Test
+    public void changeAboveMaxRate_isDeferredNotLost() {
+        final FramePacer pacer = new FramePacer(30, 1);
+        assertTrue(pacer.onFrame(0, true));
+        // 120fps animation that stops right after
+        assertFalse(pacer.onFrame(FRAME_US / 4, true));
+        assertTrue(pacer.isPending());
+        assertFalse(pacer.onFlush(FRAME_US / 2));
+        assertTrue(pacer.getFlushDelayUs(FRAME_US / 2) > 0);
+        assertTrue(pacer.onFlush(FRAME_US));
+        assertFalse(pacer.isPending());
+        assertFalse(pacer.onFlush(3 * FRAME_US));
+    }
+
+    @Test
+    public void pendingChange_isRenderedWithNextFrame() {
+        final FramePacer pacer = new FramePacer(30, 1);
+        assertTrue(pacer.onFrame(0, true));
+        assertFalse(pacer.onFrame(FRAME_US / 4, true));
+        // the next frame is unchanged against the deferred one, but still newer than the last rendered
+        assertTrue(pacer.onFrame(FRAME_US, false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void floorAboveFrameRate_isRejected() {
+        new FramePacer(30, 60);
+    }
+
+    @Test
+    public void damageDetector_ignoresDitheringNoise() {
+        final ByteBuffer a = ByteBuffer.wrap(new byte[]{10, 20, (byte) 200, (byte) 255});
+        final ByteBuffer b = ByteBuffer.wrap(new byte[]{12, 19, (byte) 198, (byte) 255});
+        assertFalse(FrameDamageDetector.differs(a, b, FrameDamageDetector.THRESHOLD));
+        b.put(3, (byte) 0);
+        assertTrue(FrameDamageDetector.differs(a, b, FrameDamageDetector.THRESHOLD));
+    }
+}
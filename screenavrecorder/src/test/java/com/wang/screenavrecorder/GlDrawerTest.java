@@ -0,0 +1,20 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GlDrawerTest {
+
+    @Test
+    public void fitViewport_letterboxesWiderSource() {
+        // 16:9 still image on a portrait 720x1280 frame
+        assertArrayEquals(new int[]{0, 437, 720, 405}, GlDrawer.fitViewport(1920, 1080, 720, 1280));
+    }
+
+    @Test
+    public void fitViewport_pillarboxesTallerSource() {
+        assertArrayEquals(new int[]{280, 0, 720, 1280}, GlDrawer.fitViewport(720, 1280, 1280, 1280));
+        assertArrayEquals(new int[]{0, 0, 720, 1280}, GlDrawer.fitViewport(360, 640, 720, 1280));
+    }
+}
@@ -0,0 +1,45 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MediaAudioEncoderTest {
+
+    @Test
+    public void readSize_isWholeAacFrames() {
+        final int frame = MediaAudioEncoder.getBytesPerFrame(1);
+        assertEquals(2048, frame);
+        assertEquals(frame * MediaAudioEncoder.FRAMES_PER_READ, MediaAudioEncoder.getReadSize(65536, 1));
+        assertEquals(frame, MediaAudioEncoder.getReadSize(frame + 100, 1));
+        // a buffer smaller than a frame is filled with whole samples
+        assertEquals(1000, MediaAudioEncoder.getReadSize(1001, 1));
+    }
+
+    @Test
+    public void readSize_keepsStereoSamplesTogether() {
+        final int frame = MediaAudioEncoder.getBytesPerFrame(2);
+        assertEquals(4096, frame);
+        assertEquals(frame, MediaAudioEncoder.getReadSize(frame + 100, 2));
+        assertEquals(1000, MediaAudioEncoder.getReadSize(1003, 2));
+    }
+
+    @Test
+    public void sharedConfig_mayDifferInCodecAndBitrate() {
+        final AudioEncoderConfig capture = new AudioEncoderConfig.Builder().setChannelCount(2).setBitRate(192000).build();
+        MediaAudioEncoder.checkSharedConfig(capture, new AudioEncoderConfig.Builder(capture)
+                .setBitRate(32000).setCodec(AudioEncoderConfig.CODEC_OPUS).build());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sharedConfig_rejectsOtherSampleRate() {
+        final AudioEncoderConfig capture = new AudioEncoderConfig.Builder().setSampleRate(48000).build();
+        MediaAudioEncoder.checkSharedConfig(capture, new AudioEncoderConfig.Builder(capture).setSampleRate(44100).build());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sharedConfig_rejectsOtherChannels() {
+        final AudioEncoderConfig capture = new AudioEncoderConfig.Builder().setChannelCount(2).build();
+        MediaAudioEncoder.checkSharedConfig(capture, new AudioEncoderConfig.Builder(capture).setChannelCount(1).build());
+    }
+}
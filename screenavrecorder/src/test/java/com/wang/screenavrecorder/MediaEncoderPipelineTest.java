@@ -0,0 +1,369 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the encode/mux pipeline on the JVM with fake codec and muxer backends.
+ */
+public class MediaEncoderPipelineTest {
+
+    private static final int FRAMES = 30;
+    private static final int PCM_BYTES = 2048;
+
+    private static final MediaEncoder.MediaEncoderListener LISTENER = new MediaEncoder.MediaEncoderListener() {
+        @Override
+        public void onPrepared(MediaEncoder encoder) {
+        }
+
+        @Override
+        public void onStopped(MediaEncoder encoder) {
+        }
+    };
+
+    @Test
+    public void syncMode_muxesAllFrames() throws Exception {
+        runPipeline(false, false);
+    }
+
+    @Test
+    public void asyncMode_muxesAllFrames() throws Exception {
+        runPipeline(true, false);
+    }
+
+    @Test
+    public void startAsync_muxesAllFrames() throws Exception {
+        runPipeline(true, true);
+    }
+
+    @Test
+    public void replayMode_savesHeldFrames() throws Exception {
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(true).setLatencyUs(2000);
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper(8 * 1024 * 1024, factory);
+        final FakeVideoEncoder video = new FakeVideoEncoder(muxer, LISTENER);
+        final FakeAudioEncoder audio = new FakeAudioEncoder(muxer, LISTENER);
+        muxer.prepare();
+        muxer.startRecording();
+        feed(muxer, factory, video, audio);
+        muxer.stopRecording();
+        // wait for the encoders to drain
+        for (int i = 0; i < 100 && muxer.isStarted(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(muxer.isStarted());
+        assertNull(muxer.getOutputPath());
+
+        final FakeMuxerBackend muxerBackend = new FakeMuxerBackend();
+        muxer.saveReplay(muxerBackend, Long.MAX_VALUE);
+        assertTrue(muxerBackend.isReleased());
+        // tracks keep their indices, which depend on which encoder reported its format first
+        assertNotEquals(video.mTrackIndex, audio.mTrackIndex);
+        assertEquals(FRAMES, muxerBackend.getSamples(video.mTrackIndex));
+        // the first audio sample at 0 precedes the first video sync frame, so the video track was recognized
+        assertEquals(FRAMES - 1, muxerBackend.getSamples(audio.mTrackIndex));
+        assertEquals(0, muxer.getPacketPool().getOutstanding());
+    }
+
+    @Test
+    public void videoCodecError_stopsRecording() throws Exception {
+        runCodecError(FakeVideoEncoder.MIME_TYPE);
+    }
+
+    @Test
+    public void audioCodecError_stopsRecording() throws Exception {
+        runCodecError(FakeAudioEncoder.MIME_TYPE);
+    }
+
+    /**
+     * the codec of mimeType fails mid-recording in async mode, the file is still finished
+     */
+    private void runCodecError(final String mimeType) throws Exception {
+        final FakeMuxerBackend muxerBackend = new FakeMuxerBackend();
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(true).setLatencyUs(2000);
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper("fake.mp4", muxerBackend, factory);
+        final CountDownLatch stopped = new CountDownLatch(2);
+        final MediaEncoder.MediaEncoderListener listener = new MediaEncoder.MediaEncoderListener() {
+            @Override
+            public void onPrepared(MediaEncoder encoder) {
+            }
+
+            @Override
+            public void onStopped(MediaEncoder encoder) {
+                stopped.countDown();
+            }
+        };
+        final FakeVideoEncoder video = new FakeVideoEncoder(muxer, listener);
+        final FakeAudioEncoder audio = new FakeAudioEncoder(muxer, listener);
+        muxer.prepare();
+        muxer.startRecording();
+        final ByteBuffer pcm = ByteBuffer.allocateDirect(PCM_BYTES);
+        for (int i = 0; i < FRAMES / 2; i++) {
+            factory.get(FakeVideoEncoder.MIME_TYPE).submitFrames(1);
+            pcm.clear();
+            audio.encodeByteBuffer(pcm, PCM_BYTES, i * 23220L);
+            Thread.sleep(5);
+        }
+        // no more input from this thread, a failed codec takes none
+        factory.get(mimeType).raiseError();
+
+        assertTrue("encoders were not released", stopped.await(5, TimeUnit.SECONDS));
+        assertTrue("muxer was not released", muxerBackend.awaitReleased(5000));
+        assertTrue(muxerBackend.isStopped());
+        assertTrue(muxerBackend.getSamples(0) > 0);
+        assertFalse(muxer.isStarted());
+        assertEquals(0, muxer.getPacketPool().getOutstanding());
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("FakeVideoEncoder") || thread.getName().equals("FakeAudioEncoder")) {
+                thread.join(5000);
+                assertFalse(thread.getName() + " is still running", thread.isAlive());
+            }
+        }
+    }
+
+    @Test
+    public void writeFailure_releasesQueuedPacketsAndStops() throws Exception {
+        final FakeMuxerBackend muxerBackend = new FakeMuxerBackend();
+        muxerBackend.setFailAfter(5);
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(false).setLatencyUs(2000);
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper("fake.mp4", muxerBackend, factory);
+        final FakeVideoEncoder video = new FakeVideoEncoder(muxer, LISTENER);
+        muxer.prepare();
+        muxer.startRecording();
+        // surface input only, the codec is not called from this thread after it was released
+        for (int i = 0; i < FRAMES; i++) {
+            factory.get(FakeVideoEncoder.MIME_TYPE).submitFrames(1);
+            video.frameAvailableSoon();
+            Thread.sleep(5);
+        }
+
+        // the failure stops recording without a call to stopRecording
+        assertTrue("muxer was not released", muxerBackend.awaitReleased(5000));
+        for (int i = 0; i < 100 && muxer.isStarted(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(muxer.isStarted());
+        assertEquals(5, muxerBackend.getSamples(0));
+        assertEquals(0, muxer.getPacketPool().getOutstanding());
+    }
+
+    @Test
+    public void follower_encodesSharedCaptureOnItsOwnThread() throws Exception {
+        runFollower(false);
+    }
+
+    @Test
+    public void follower_encodesSharedCaptureInAsyncMode() throws Exception {
+        runFollower(true);
+    }
+
+    private void runFollower(final boolean async) throws Exception {
+        // the capture source is never started, the test thread plays its audio thread
+        final MediaMuxerWrapper captureMuxer = new MediaMuxerWrapper("capture.mp4", new FakeMuxerBackend(),
+                new FakeEncoderBackend.Factory(async));
+        final FakeAudioEncoder capture = new FakeAudioEncoder(captureMuxer, LISTENER);
+        final FakeMuxerBackend muxerBackend = new FakeMuxerBackend();
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(async).setLatencyUs(2000);
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper("preview.mp4", muxerBackend, factory);
+        final FakeAudioEncoder follower = new FakeAudioEncoder(muxer, LISTENER, capture);
+        muxer.prepare();
+        muxer.startRecording();
+
+        final ByteBuffer pcm = ByteBuffer.allocateDirect(MediaAudioEncoder.getBytesPerFrame(1));
+        for (int i = 0; i < FRAMES; i++) {
+            pcm.clear();
+            final long start = System.nanoTime();
+            capture.shareCapture(pcm, i * 23220L);
+            // only copied, the codec of the follower is fed on its own thread
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+            Thread.sleep(5);
+        }
+        muxer.stopRecording();
+
+        assertTrue("muxer was not released", muxerBackend.awaitReleased(5000));
+        assertTrue(muxerBackend.isStopped());
+        assertEquals(FRAMES, muxerBackend.getSamples(0));
+        assertEquals(0, muxerBackend.getNonMonotonicCount());
+        assertEquals(0, muxer.getPacketPool().getOutstanding());
+    }
+
+    @Test
+    public void audioSource_isReadIntoCodecBuffers() throws Exception {
+        final FakeMuxerBackend muxerBackend = new FakeMuxerBackend();
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(false).setLatencyUs(2000);
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper("fake.mp4", muxerBackend, factory);
+        final FakeAudioEncoder audio = new FakeAudioEncoder(muxer, LISTENER);
+        final CountingRecorderMetrics metrics = new CountingRecorderMetrics();
+        muxer.setMetrics(metrics);
+        muxer.prepare();
+        muxer.startRecording();
+
+        final int[] reads = new int[1];
+        final MediaEncoder.InputSource source = new MediaEncoder.InputSource() {
+            @Override
+            public int read(final ByteBuffer dst, final int size) {
+                // every other read fails, the dequeued buffer must be reused
+                if (reads[0]++ % 2 == 0) return 0;
+                dst.put(new byte[size]);
+                return size;
+            }
+
+            @Override
+            public long getPresentationTimeUs(final int bytes) {
+                return reads[0] * 23220L;
+            }
+        };
+        for (int i = 0; i < FRAMES; ) {
+            if (audio.encodeFromSource(source, PCM_BYTES) > 0) i++;
+            if (i % MediaAudioEncoder.READS_PER_DRAIN == 0) audio.frameAvailableSoon();
+        }
+        muxer.stopRecording();
+
+        assertTrue("muxer was not released", muxerBackend.awaitReleased(5000));
+        assertEquals(FRAMES, muxerBackend.getSamples(0));
+        assertEquals(FRAMES, metrics.getTrack(RecorderMetrics.TRACK_AUDIO).inputFrames.get());
+        assertEquals(FRAMES * PCM_BYTES, metrics.getTrack(RecorderMetrics.TRACK_AUDIO).inputBytes.get());
+    }
+
+    @Test
+    public void pause_dropsInputAndResumesWithSyncFrame() throws Exception {
+        final FakeMuxerBackend muxerBackend = new FakeMuxerBackend();
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(false).setLatencyUs(2000);
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper("fake.mp4", muxerBackend, factory);
+        final FakeVideoEncoder video = new FakeVideoEncoder(muxer, LISTENER);
+        final FakeAudioEncoder audio = new FakeAudioEncoder(muxer, LISTENER);
+        final CountingRecorderMetrics metrics = new CountingRecorderMetrics();
+        muxer.setMetrics(metrics);
+        muxer.prepare();
+        muxer.startRecording();
+        final FakeEncoderBackend codec = factory.get(FakeVideoEncoder.MIME_TYPE);
+
+        muxer.pause();
+        assertTrue(muxer.isPaused());
+        assertTrue(codec.isInputSuspended());
+        codec.submitFrames(3);
+        final MediaEncoder.InputSource source = new MediaEncoder.InputSource() {
+            @Override
+            public int read(final ByteBuffer dst, final int size) {
+                dst.put(new byte[size]);
+                return size;
+            }
+
+            @Override
+            public long getPresentationTimeUs(final int bytes) {
+                return System.nanoTime() / 1000L;
+            }
+        };
+        // the capture goes on, but nothing reaches the codec
+        for (int i = 0; i < 4; i++) {
+            assertEquals(PCM_BYTES, audio.encodeFromSource(source, PCM_BYTES));
+        }
+        assertEquals(0, metrics.getTrack(RecorderMetrics.TRACK_AUDIO).inputFrames.get());
+
+        final int syncFrameRequests = codec.getSyncFrameRequests();
+        muxer.resume();
+        assertFalse(muxer.isPaused());
+        assertFalse(codec.isInputSuspended());
+        assertEquals(syncFrameRequests + 1, codec.getSyncFrameRequests());
+
+        feed(muxer, factory, video, audio);
+        muxer.stopRecording();
+        assertTrue("muxer was not released", muxerBackend.awaitReleased(5000));
+        assertEquals(FRAMES, muxerBackend.getSamples(0));
+        assertEquals(FRAMES, muxerBackend.getSamples(1));
+        assertEquals(0, muxerBackend.getNonMonotonicCount());
+    }
+
+    @Test
+    public void encoderPool_reusesCodecsForNextRecording() throws Exception {
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(false).setLatencyUs(2000);
+        final EncoderPool pool = new EncoderPool(factory, 2, Long.MAX_VALUE, 10000);
+        for (int i = 0; i < 2; i++) {
+            final FakeMuxerBackend muxerBackend = new FakeMuxerBackend();
+            final MediaMuxerWrapper muxer = new MediaMuxerWrapper("fake.mp4", muxerBackend, pool);
+            final FakeVideoEncoder video = new FakeVideoEncoder(muxer, LISTENER);
+            final FakeAudioEncoder audio = new FakeAudioEncoder(muxer, LISTENER);
+            muxer.prepare();
+            muxer.startRecording();
+            feed(muxer, factory, video, audio);
+            muxer.stopRecording();
+            assertTrue("muxer was not released", muxerBackend.awaitReleased(5000));
+            assertEquals(FRAMES, muxerBackend.getSamples(0));
+            assertEquals(FRAMES, muxerBackend.getSamples(1));
+        }
+        assertEquals(2, factory.getCreatedCount());
+        assertEquals(2, pool.getReusedCount());
+        assertEquals(2, pool.getIdleCount());
+        pool.release();
+        assertTrue(factory.get(FakeVideoEncoder.MIME_TYPE).isReleased());
+    }
+
+    private void runPipeline(final boolean async, final boolean startAsync) throws Exception {
+        final FakeMuxerBackend muxerBackend = new FakeMuxerBackend();
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(async).setLatencyUs(2000);
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper("fake.mp4", muxerBackend, factory);
+        final FakeVideoEncoder video = new FakeVideoEncoder(muxer, LISTENER);
+        final FakeAudioEncoder audio = new FakeAudioEncoder(muxer, LISTENER);
+        final CountingRecorderMetrics metrics = new CountingRecorderMetrics();
+        muxer.setMetrics(metrics);
+        if (startAsync) {
+            final CountDownLatch prepared = new CountDownLatch(1);
+            muxer.startAsync(new MediaMuxerWrapper.PrepareCallback() {
+                @Override
+                public void onPrepared(MediaMuxerWrapper muxer) {
+                    prepared.countDown();
+                }
+
+                @Override
+                public void onError(MediaMuxerWrapper muxer, Exception e) {
+                }
+            }, null);
+            assertTrue("encoders were not prepared", prepared.await(5, TimeUnit.SECONDS));
+        } else {
+            muxer.prepare();
+            muxer.startRecording();
+        }
+        assertEquals(async, video.getCodec().isAsync());
+
+        feed(muxer, factory, video, audio);
+        muxer.stopRecording();
+
+        assertTrue("muxer was not released", muxerBackend.awaitReleased(5000));
+        assertTrue(muxerBackend.isStopped());
+        assertEquals(2, muxerBackend.getTrackCount());
+        assertEquals(FRAMES, muxerBackend.getSamples(0));
+        assertEquals(FRAMES, muxerBackend.getSamples(1));
+        assertEquals(0, muxer.getPacketPool().getOutstanding());
+        assertEquals(0, muxerBackend.getNonMonotonicCount());
+
+        final CountingRecorderMetrics.TrackStats videoStats = metrics.getTrack(RecorderMetrics.TRACK_VIDEO);
+        final CountingRecorderMetrics.TrackStats audioStats = metrics.getTrack(RecorderMetrics.TRACK_AUDIO);
+        assertEquals(FRAMES, videoStats.writtenFrames.get());
+        assertEquals(FRAMES, audioStats.writtenFrames.get());
+        assertEquals(FRAMES, audioStats.inputFrames.get());
+        assertEquals(FRAMES, audioStats.outputFrames.get());
+        assertEquals(FRAMES, videoStats.muxerWriteLatencyUs.getCount());
+        assertEquals(0, videoStats.droppedFrames.get());
+        assertTrue(metrics.getAvSkewUs().getCount() > 0);
+        assertEquals(!async, videoStats.drainLoops.get() > 0);
+    }
+
+    private static void feed(final MediaMuxerWrapper muxer, final FakeEncoderBackend.Factory factory,
+                             final FakeVideoEncoder video, final FakeAudioEncoder audio) throws InterruptedException {
+        final ByteBuffer pcm = ByteBuffer.allocateDirect(PCM_BYTES);
+        // audio on the clock of the surface frames, so only the first sample precedes the first video frame
+        final long startUs = factory.get(FakeVideoEncoder.MIME_TYPE).getSurfaceTimeUs() - 1;
+        for (int i = 0; i < FRAMES; i++) {
+            factory.get(FakeVideoEncoder.MIME_TYPE).submitFrames(1);
+            video.frameAvailableSoon();
+            pcm.clear();
+            audio.encodeByteBuffer(pcm, PCM_BYTES, startUs + i * 23220L);
+            audio.frameAvailableSoon();
+            Thread.sleep(5);
+        }
+    }
+}
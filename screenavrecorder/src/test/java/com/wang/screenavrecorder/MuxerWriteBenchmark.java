@@ -0,0 +1,109 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MediaMuxerWrapper#writeSampleData} with a video and an audio writer thread
+ * contending on the same muxer, optionally with a slow storage write.
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MuxerWriteBenchmark {
+
+    private static final int VIDEO_PACKET = 32 * 1024;
+    private static final int AUDIO_PACKET = 372;
+
+    /**
+     * emulated MediaMuxer#writeSampleData latency
+     */
+    @Param({"0", "200"})
+    public long writeLatencyUs;
+
+    private FakeMuxerBackend mMuxerBackend;
+    private MediaMuxerWrapper mMuxer;
+
+    @State(Scope.Thread)
+    public static class Track {
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer data;
+        int trackIndex;
+        long ptsUs;
+
+        void init(final int trackIndex, final int size) {
+            this.trackIndex = trackIndex;
+            data = ByteBuffer.allocateDirect(size);
+            info.offset = 0;
+            info.size = size;
+            info.flags = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mMuxerBackend = new FakeMuxerBackend();
+        mMuxerBackend.setWriteLatencyUs(writeLatencyUs);
+        final FakeEncoderBackend.Factory factory = new FakeEncoderBackend.Factory(false);
+        mMuxer = new MediaMuxerWrapper("bench.mp4", mMuxerBackend, factory);
+        final MediaEncoder video = new FakeVideoEncoder(mMuxer, Benchmarks.LISTENER);
+        final MediaEncoder audio = new FakeAudioEncoder(mMuxer, Benchmarks.LISTENER);
+        mMuxer.prepare();
+        mMuxer.startRecording();
+        // both encoders add their track on the first drain
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!mMuxer.isStarted() && System.currentTimeMillis() < deadline) {
+            video.frameAvailableSoon();
+            audio.frameAvailableSoon();
+            Thread.sleep(10);
+        }
+        if (!mMuxer.isStarted()) throw new IllegalStateException("muxer did not start");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mMuxer.stopRecording();
+        mMuxerBackend.awaitReleased(5000);
+    }
+
+    @Benchmark
+    @Group("twoTracks")
+    @GroupThreads(1)
+    public void video(final Track track) {
+        if (track.data == null) track.init(0, VIDEO_PACKET);
+        write(track);
+    }
+
+    @Benchmark
+    @Group("twoTracks")
+    @GroupThreads(1)
+    public void audio(final Track track) {
+        if (track.data == null) track.init(1, AUDIO_PACKET);
+        write(track);
+    }
+
+    private void write(final Track track) {
+        track.data.clear();
+        track.info.presentationTimeUs = track.ptsUs += 1000;
+        mMuxer.writeSampleData(track.trackIndex, track.data, track.info);
+    }
+}
@@ -0,0 +1,56 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PacketPoolTest {
+
+    @Test
+    public void acquire_picksSmallestFittingClass() {
+        final PacketPool pool = new PacketPool(new int[]{1024, 4096}, new int[]{2, 2});
+        assertEquals(1024, pool.acquire(1).data.capacity());
+        assertEquals(1024, pool.acquire(1024).data.capacity());
+        assertEquals(4096, pool.acquire(1025).data.capacity());
+    }
+
+    @Test
+    public void releasedPackets_areReused() {
+        final PacketPool pool = new PacketPool(new int[]{1024}, new int[]{2});
+        final EncodedPacket first = pool.acquire(100);
+        pool.release(first);
+        assertSame(first, pool.acquire(200));
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(1024, pool.getPooledBytes());
+    }
+
+    @Test
+    public void exhaustedClass_allocatesUnpooledPackets() {
+        final PacketPool pool = new PacketPool(new int[]{1024}, new int[]{1});
+        final EncodedPacket pooled = pool.acquire(100);
+        final EncodedPacket extra = pool.acquire(100);
+        final EncodedPacket huge = pool.acquire(5000);
+        assertEquals(EncodedPacket.UNPOOLED, extra.sizeClass);
+        assertEquals(EncodedPacket.UNPOOLED, huge.sizeClass);
+        assertEquals(5000, huge.data.capacity());
+        assertEquals(3, pool.getHighWaterMark());
+        pool.release(pooled);
+        pool.release(extra);
+        pool.release(huge);
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(1024, pool.getPooledBytes());
+        assertSame(pooled, pool.acquire(100));
+    }
+
+    @Test
+    public void steadyState_hasNoMisses() {
+        final PacketPool pool = new PacketPool();
+        for (int i = 0; i < 10; i++) {
+            pool.release(pool.acquire(372));
+            pool.release(pool.acquire(30000));
+        }
+        assertEquals(2, pool.getMisses());
+        assertEquals(18, pool.getHits());
+    }
+}
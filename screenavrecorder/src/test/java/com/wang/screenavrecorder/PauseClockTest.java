@@ -0,0 +1,59 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PauseClockTest {
+
+    @Test
+    public void running_keepsTimestamps() {
+        final PauseClock clock = new PauseClock();
+        assertFalse(clock.isPaused());
+        assertEquals(1000, clock.adjust(1000));
+        assertEquals(0, clock.getPausedUs(5000));
+    }
+
+    @Test
+    public void pause_dropsLaterSamples() {
+        final PauseClock clock = new PauseClock();
+        assertTrue(clock.pause(1000));
+        assertFalse(clock.pause(2000));
+        assertTrue(clock.isPaused());
+        // queued before the pause, written after it
+        assertEquals(999, clock.adjust(999));
+        assertEquals(PauseClock.PAUSED, clock.adjust(1000));
+        assertEquals(PauseClock.PAUSED, clock.adjust(5000));
+        assertEquals(4000, clock.getPausedUs(5000));
+    }
+
+    @Test
+    public void resume_subtractsPausedIntervals() {
+        final PauseClock clock = new PauseClock();
+        clock.pause(1000);
+        assertTrue(clock.resume(3000));
+        assertFalse(clock.resume(4000));
+        clock.pause(5000);
+        clock.resume(6000);
+
+        assertEquals(500, clock.adjust(500));
+        assertEquals(PauseClock.PAUSED, clock.adjust(2000));
+        // the output continues where it was paused
+        assertEquals(1000, clock.adjust(3000));
+        assertEquals(2999, clock.adjust(4999));
+        assertEquals(PauseClock.PAUSED, clock.adjust(5500));
+        assertEquals(3000, clock.adjust(6000));
+        assertEquals(3000, clock.getPausedUs(10000));
+    }
+
+    @Test
+    public void resume_keepsManyPauses() {
+        final PauseClock clock = new PauseClock();
+        for (int i = 0; i < 20; i++) {
+            clock.pause(i * 100 + 50);
+            clock.resume(i * 100 + 100);
+        }
+        assertEquals(1000, clock.adjust(2000));
+        assertEquals(PauseClock.PAUSED, clock.adjust(1975));
+    }
+}
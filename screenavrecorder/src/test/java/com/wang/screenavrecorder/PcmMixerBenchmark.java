@@ -0,0 +1,55 @@
+package com.wang.screenavrecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mixing one AAC frame of playback and microphone PCM into a direct (codec) buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PcmMixerBenchmark {
+
+    @Param({"1", "2"})
+    public int sources;
+
+    private PcmMixer mMixer;
+    private short[] mPcm;
+    private ByteBuffer mDirect;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mMixer = new PcmMixer(sources, MediaAudioEncoder.SAMPLES_PER_FRAME * 8, MediaAudioEncoder.SAMPLES_PER_FRAME * 2);
+        mMixer.setGain(0, 0.8f);
+        mPcm = new short[MediaAudioEncoder.SAMPLES_PER_FRAME];
+        final Random random = new Random(0);
+        for (int i = 0; i < mPcm.length; i++) {
+            mPcm[i] = (short) random.nextInt();
+        }
+        mDirect = ByteBuffer.allocateDirect(MediaAudioEncoder.getBytesPerFrame(1));
+    }
+
+    @Benchmark
+    public int mixFrame() {
+        for (int s = 0; s < sources; s++) {
+            mMixer.write(s, mPcm, 0, mPcm.length);
+        }
+        return mMixer.mix(mDirect, mPcm.length);
+    }
+}
@@ -0,0 +1,108 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class PcmMixerTest {
+
+    private static short[] fill(final int count, final int value) {
+        final short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) value;
+        }
+        return samples;
+    }
+
+    @Test
+    public void mix_addsWithGain() {
+        final PcmMixer mixer = new PcmMixer(2, 64, 16);
+        mixer.setGain(1, 0.5f);
+        mixer.write(0, new short[]{100, -100, 0, 1000}, 0, 4);
+        mixer.write(1, new short[]{200, 200, -300, 0}, 0, 4);
+        final short[] out = new short[4];
+        assertEquals(4, mixer.mix(out, 0, 4));
+        assertArrayEquals(new short[]{200, 0, -150, 1000}, out);
+        assertEquals(0, mixer.available(0));
+        assertEquals(0, mixer.available(1));
+    }
+
+    @Test
+    public void mix_saturates() {
+        final PcmMixer mixer = new PcmMixer(2, 64, 16);
+        mixer.write(0, new short[]{30000, -30000, Short.MAX_VALUE}, 0, 3);
+        mixer.write(1, new short[]{30000, -30000, Short.MAX_VALUE}, 0, 3);
+        final short[] out = new short[3];
+        mixer.mix(out, 0, 3);
+        assertArrayEquals(new short[]{Short.MAX_VALUE, Short.MIN_VALUE, Short.MAX_VALUE}, out);
+    }
+
+    @Test
+    public void lateSource_isPaddedWithSilence() {
+        final PcmMixer mixer = new PcmMixer(2, 64, 16);
+        mixer.write(0, fill(8, 10), 0, 8);
+        mixer.write(1, fill(3, 5), 0, 3);
+        final short[] out = new short[8];
+        mixer.mix(out, 0, 8);
+        assertArrayEquals(new short[]{15, 15, 15, 10, 10, 10, 10, 10}, out);
+        assertEquals(5, mixer.getUnderrunSamples(1));
+        assertEquals(0, mixer.getUnderrunSamples(0));
+    }
+
+    @Test
+    public void fastSource_isKeptWithinLatency() {
+        final PcmMixer mixer = new PcmMixer(2, 64, 16);
+        final short[] out = new short[8];
+        for (int i = 0; i < 10; i++) {
+            mixer.write(0, fill(8, 0), 0, 8);
+            // one extra sample per period
+            mixer.write(1, fill(9, 1), 0, 9);
+            mixer.mix(out, 0, 8);
+            assertTrue(mixer.available(1) <= 16);
+        }
+        assertEquals(0, mixer.getDroppedSamples(1));
+        for (int i = 0; i < 10; i++) {
+            mixer.write(0, fill(8, 0), 0, 8);
+            mixer.write(1, fill(9, 1), 0, 9);
+            mixer.mix(out, 0, 8);
+        }
+        assertEquals(16, mixer.available(1));
+        assertEquals(4, mixer.getDroppedSamples(1));
+    }
+
+    @Test
+    public void ringWrapsAround() {
+        final PcmMixer mixer = new PcmMixer(1, 10, 4);
+        final short[] out = new short[7];
+        short next = 0;
+        short expected = 0;
+        for (int i = 0; i < 20; i++) {
+            final short[] in = new short[7];
+            for (int j = 0; j < 7; j++) in[j] = next++;
+            mixer.write(0, in, 0, 7);
+            mixer.mix(out, 0, 7);
+            for (int j = 0; j < 7; j++) assertEquals(expected++, out[j]);
+        }
+    }
+
+    @Test
+    public void mixIntoByteBuffer_usesNativeOrder() {
+        final PcmMixer mixer = new PcmMixer(1, 16, 4);
+        mixer.write(0, new short[]{0x1234, -2}, 0, 2);
+        final ByteBuffer dst = ByteBuffer.allocateDirect(8);
+        assertEquals(4, mixer.mix(dst, 2));
+        dst.order(ByteOrder.nativeOrder());
+        assertEquals(0x1234, dst.getShort(0));
+        assertEquals(-2, dst.getShort(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mix_requiresMasterSamples() {
+        final PcmMixer mixer = new PcmMixer(2, 64, 16);
+        mixer.write(1, fill(8, 1), 0, 8);
+        mixer.mix(new short[8], 0, 8);
+    }
+}
@@ -0,0 +1,26 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PtsTrackerTest {
+
+    @Test
+    public void repeatedTimestamps_areMovedForward() {
+        final PtsTracker tracker = new PtsTracker(false);
+        assertEquals(1000, tracker.next(1000));
+        assertEquals(1001, tracker.next(1000));
+        assertEquals(1002, tracker.next(900));
+        assertEquals(2000, tracker.next(2000));
+        assertEquals(2, tracker.getCorrectedCount());
+    }
+
+    @Test
+    public void reordering_isKeptWhenAllowed() {
+        final PtsTracker tracker = new PtsTracker(true);
+        assertEquals(2000, tracker.next(2000));
+        assertEquals(1000, tracker.next(1000));
+        assertEquals(0, tracker.getCorrectedCount());
+    }
+}
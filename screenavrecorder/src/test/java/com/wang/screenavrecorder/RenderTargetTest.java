@@ -0,0 +1,71 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RenderTargetTest {
+
+    private static final float EPSILON = 1e-4f;
+    private static final long FRAME_US = 1000000L / 60;
+
+    @Test
+    public void outputs_keepTheirOwnLayout() {
+        // a portrait recording and a landscape preview fed from the same frame
+        final RenderTarget recording = new RenderTarget("recording", 1080, 2400, 30, 0);
+        final RenderTarget preview = new RenderTarget("preview", 640, 360, 30, 0);
+        recording.updateLayout(1080, 2400, 0, 0, 1080, 2400, ScreenRenderer.SCALE_FILL);
+        preview.updateLayout(1080, 2400, 0, 0, 1080, 2400, ScreenRenderer.SCALE_FILL);
+        assertArrayEquals(new float[]{0, 0, 1, 1}, recording.crop, EPSILON);
+        assertArrayEquals(new int[]{0, 0, 1080, 2400}, recording.viewport);
+        assertArrayEquals(new float[]{0, 1 - 1503f / 2400, 1, 1 - 896f / 2400}, preview.crop, EPSILON);
+        assertArrayEquals(new int[]{0, 0, 640, 360}, preview.viewport);
+
+        // letterboxing the preview leaves the recording as it is
+        preview.updateLayout(1080, 2400, 0, 0, 1080, 2400, ScreenRenderer.SCALE_FIT);
+        assertArrayEquals(new float[]{0, 0, 1, 1}, preview.crop, EPSILON);
+        assertArrayEquals(new int[]{239, 0, 162, 360}, preview.viewport);
+        assertArrayEquals(new int[]{0, 0, 1080, 2400}, recording.viewport);
+    }
+
+    @Test
+    public void indexOf_findsOutputOfSameKeyOnly() {
+        final Object encoder = new Object();
+        final List<RenderTarget> targets = new ArrayList<>();
+        targets.add(new RenderTarget(new Object(), 640, 360, 30, 0));
+        assertEquals(-1, RenderTarget.indexOf(targets, encoder));
+        targets.add(new RenderTarget(encoder, 1280, 720, 30, 0));
+        assertEquals(1, RenderTarget.indexOf(targets, encoder));
+        // equal keys are different encoders
+        targets.add(new RenderTarget(new String("preview"), 640, 360, 30, 0));
+        assertEquals(-1, RenderTarget.indexOf(targets, new String("preview")));
+    }
+
+    @Test
+    public void pacing_isPerOutput() {
+        // 60fps animation into a fixed rate recording and a dynamic 30fps preview
+        final RenderTarget recording = new RenderTarget("recording", 1280, 720, 60, 0);
+        final RenderTarget preview = new RenderTarget("preview", 640, 360, 30, 1);
+        assertFalse(recording.isPaced());
+        assertTrue(preview.isPaced());
+        int recorded = 0, previewed = 0;
+        for (int i = 0; i < 60; i++) {
+            if (recording.onFrame(i * FRAME_US, true)) recorded++;
+            if (preview.onFrame(i * FRAME_US, true)) previewed++;
+        }
+        assertEquals(60, recorded);
+        assertEquals(30, previewed);
+
+        // the last change of the preview is deferred, the recording has nothing to flush
+        final long lastUs = 59 * FRAME_US;
+        assertEquals(-1, recording.getFlushDelayUs(lastUs));
+        assertFalse(recording.onFlush(lastUs + FRAME_US));
+        final long delayUs = preview.getFlushDelayUs(lastUs);
+        assertTrue("delay=" + delayUs, delayUs > 0 && delayUs <= FRAME_US);
+        assertTrue(preview.onFlush(lastUs + delayUs));
+        assertEquals(-1, preview.getFlushDelayUs(lastUs + delayUs));
+    }
+}
@@ -0,0 +1,149 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ReplayBufferTest {
+
+    private static final long FRAME_US = 40000;    // 25fps
+    private static final int GOP = 25;             // I frame every second
+    private static final int VIDEO = 0, AUDIO = 1;
+
+    private final PacketPool mPool = ReplayBuffer.createPool(10 * 1024 * 1024);
+    private final ByteBuffer mData = ByteBuffer.allocate(64 * 1024);
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private int mSyncFrameRequests;
+
+    private ReplayBuffer createBuffer(final long maxBytes, final boolean video) {
+        final ReplayBuffer buffer = new ReplayBuffer(mPool, maxBytes, new Runnable() {
+            @Override
+            public void run() {
+                mSyncFrameRequests++;
+            }
+        });
+        if (video) assertEquals(VIDEO, buffer.addTrack(new MediaFormat(), true));
+        return buffer;
+    }
+
+    private void add(final ReplayBuffer buffer, final int track, final int size, final long ptsUs, final boolean sync) {
+        mInfo.offset = 0;
+        mInfo.size = size;
+        mInfo.presentationTimeUs = ptsUs;
+        mInfo.flags = sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        final EncodedPacket packet = mPool.acquire(size);
+        packet.set(track, mData, mInfo);
+        buffer.add(packet);
+    }
+
+    /**
+     * 4KB video frames (16KB with the sync frame) and 1KB audio frames
+     */
+    private void record(final ReplayBuffer buffer, final int firstFrame, final int frames) {
+        for (int i = firstFrame; i < firstFrame + frames; i++) {
+            final boolean sync = i % GOP == 0;
+            add(buffer, VIDEO, sync ? 16000 : 4000, i * FRAME_US, sync);
+            add(buffer, AUDIO, 400, i * FRAME_US + 5000, true);
+        }
+    }
+
+    @Test
+    public void evictsWholeGops() {
+        // a GOP is 16KB + 24 * 4KB + 25 * 1KB = 137KB of packet capacity
+        final ReplayBuffer buffer = createBuffer(500 * 1024, true);
+        buffer.addTrack(new MediaFormat(), false);
+        record(buffer, 0, 10 * GOP);
+
+        assertTrue(buffer.getBytes() <= 500 * 1024);
+        assertEquals(7, buffer.getEvictedGopCount());
+        // 3 whole GOPs are left
+        final FakeMuxerBackend muxer = new FakeMuxerBackend();
+        final long savedUs = buffer.save(muxer, Long.MAX_VALUE);
+        assertEquals(3 * GOP, muxer.getSamples(VIDEO));
+        assertEquals(3, muxer.getSyncFrames(VIDEO));
+        assertEquals((3 * GOP - 1) * FRAME_US + 5000, savedUs);
+        assertTrue(muxer.isStopped());
+        assertTrue(muxer.isReleased());
+        assertEquals(0, mPool.getOutstanding());
+    }
+
+    @Test
+    public void savesLastSecondsFromSyncFrame() {
+        final ReplayBuffer buffer = createBuffer(10 * 1024 * 1024, true);
+        buffer.addTrack(new MediaFormat(), false);
+        record(buffer, 0, 5 * GOP + 10);
+
+        // newest frame is at 5.36s, the latest sync frame 2.5s before it is at 2s
+        final FakeMuxerBackend muxer = new FakeMuxerBackend();
+        buffer.save(muxer, 2500000);
+        assertEquals(3 * GOP + 10, muxer.getSamples(VIDEO));
+        assertEquals(3 * GOP + 10, muxer.getSamples(AUDIO));
+        assertEquals(4, muxer.getSyncFrames(VIDEO));
+        assertEquals(0, muxer.getNonMonotonicCount());
+        assertEquals(0, mPool.getOutstanding());
+        assertEquals(0, buffer.getBytes());
+        assertEquals(1, mSyncFrameRequests);
+    }
+
+    @Test
+    public void dropsVideoUntilNextSyncFrameAfterSave() {
+        final ReplayBuffer buffer = createBuffer(10 * 1024 * 1024, true);
+        buffer.addTrack(new MediaFormat(), false);
+        record(buffer, 0, GOP);
+        buffer.save(new FakeMuxerBackend(), Long.MAX_VALUE);
+
+        // these refer to frames that were saved
+        add(buffer, VIDEO, 4000, GOP * FRAME_US, false);
+        add(buffer, VIDEO, 4000, (GOP + 1) * FRAME_US, false);
+        assertEquals(0, buffer.getBytes());
+        add(buffer, VIDEO, 16000, (GOP + 2) * FRAME_US, true);
+        assertTrue(buffer.getBytes() > 0);
+        assertEquals(1, mPool.getOutstanding());
+    }
+
+    @Test
+    public void gopLargerThanBuffer_isDropped() {
+        final ReplayBuffer buffer = createBuffer(50 * 1024, true);
+        for (int i = 0; i < GOP; i++) {
+            add(buffer, VIDEO, i == 0 ? 16000 : 4000, i * FRAME_US, i == 0);
+        }
+        // everything was dropped when the GOP outgrew the buffer, later P frames are useless
+        assertEquals(0, buffer.getBytes());
+        assertEquals(1, mSyncFrameRequests);
+        add(buffer, VIDEO, 16000, GOP * FRAME_US, true);
+        assertTrue(buffer.getBytes() > 0);
+    }
+
+    @Test
+    public void audioOnly_evictsOldestSamples() {
+        final ReplayBuffer buffer = createBuffer(100 * 1024, false);
+        assertEquals(0, buffer.addTrack(new MediaFormat(), false));
+        for (int i = 0; i < 1000; i++) {
+            add(buffer, 0, 400, i * 23220L, true);
+        }
+        // 400 byte packets take 1KB of pool capacity
+        assertEquals(100 * 1024, buffer.getBytes());
+        final FakeMuxerBackend muxer = new FakeMuxerBackend();
+        buffer.save(muxer, 23220L * 9);
+        assertEquals(10, muxer.getSamples(0));
+        assertEquals(0, mPool.getOutstanding());
+        assertEquals(0, mSyncFrameRequests);
+    }
+
+    @Test
+    public void emptyBuffer_failsToSave() {
+        final ReplayBuffer buffer = createBuffer(1024 * 1024, true);
+        final FakeMuxerBackend muxer = new FakeMuxerBackend();
+        try {
+            buffer.save(muxer, 1000000);
+            fail();
+        } catch (final IllegalStateException expected) {
+        }
+        assertTrue(muxer.isReleased());
+    }
+}
@@ -0,0 +1,43 @@
+package com.wang.screenavrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScreenRendererTest {
+
+    private static final float EPSILON = 1e-4f;
+
+    private final float[] mCrop = new float[4];
+    private final int[] mViewport = new int[4];
+
+    @Test
+    public void fit_letterboxesWholeInput() {
+        // landscape display into a portrait encoder
+        ScreenRenderer.computeLayout(2400, 1080, 0, 0, 2400, 1080, 1080, 1920, ScreenRenderer.SCALE_FIT, mCrop, mViewport);
+        assertArrayEquals(new float[]{0, 0, 1, 1}, mCrop, EPSILON);
+        assertArrayEquals(new int[]{0, 717, 1080, 486}, mViewport);
+    }
+
+    @Test
+    public void fill_cropsInputToOutputAspect() {
+        ScreenRenderer.computeLayout(2000, 1000, 0, 0, 2000, 1000, 1000, 1000, ScreenRenderer.SCALE_FILL, mCrop, mViewport);
+        assertArrayEquals(new float[]{0.25f, 0, 0.75f, 1}, mCrop, EPSILON);
+        assertArrayEquals(new int[]{0, 0, 1000, 1000}, mViewport);
+    }
+
+    @Test
+    public void regionOfInterest_isFlippedToTextureCoordinates() {
+        // top left quarter, texture v grows upwards
+        ScreenRenderer.computeLayout(1000, 2000, 0, 0, 500, 1000, 500, 1000, ScreenRenderer.SCALE_STRETCH, mCrop, mViewport);
+        assertArrayEquals(new float[]{0, 0.5f, 0.5f, 1}, mCrop, EPSILON);
+        assertArrayEquals(new int[]{0, 0, 500, 1000}, mViewport);
+    }
+
+    @Test
+    public void regionOfInterest_isClampedToInput() {
+        ScreenRenderer.computeLayout(1000, 1000, -100, 500, 2000, 2000, 1000, 500, ScreenRenderer.SCALE_FIT, mCrop, mViewport);
+        assertArrayEquals(new float[]{0, 0, 1, 0.5f}, mCrop, EPSILON);
+        assertArrayEquals(new int[]{0, 0, 1000, 500}, mViewport);
+    }
+}
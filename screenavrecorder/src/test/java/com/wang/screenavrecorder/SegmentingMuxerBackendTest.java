@@ -0,0 +1,314 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SegmentingMuxerBackendTest {
+
+    private static final long FRAME_US = 40000;    // 25fps
+    private static final int GOP = 50;             // I frame every 2 seconds
+
+    /**
+     * records every muxer it creates and the listener callbacks
+     */
+    private static class Recorder implements SegmentingMuxerBackend.SegmentFactory, MediaMuxerWrapper.SegmentListener {
+        final List<FakeMuxerBackend> muxers = Collections.synchronizedList(new ArrayList<FakeMuxerBackend>());
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+        final List<Long> durations = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public String getPath(final int index) {
+            return "segment-" + index + ".mp4";
+        }
+
+        @Override
+        public MuxerBackend create(final String path) throws IOException {
+            final FakeMuxerBackend muxer = new FakeMuxerBackend();
+            muxers.add(muxer);
+            return muxer;
+        }
+
+        @Override
+        public void onSegmentStarted(final String path, final int index) {
+            started.add(path);
+        }
+
+        @Override
+        public void onSegmentFinished(final String path, final int index, final long durationUs, final long bytes) {
+            finished.add(path);
+            durations.add(durationUs);
+        }
+    }
+
+    /**
+     * runs segment I/O on the calling thread, so results do not depend on timing
+     */
+    private static class DirectExecutor extends AbstractExecutorService {
+        private volatile boolean mShutdown;
+
+        @Override
+        public void execute(final Runnable command) {
+            if (mShutdown) throw new RejectedExecutionException();
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+            mShutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            mShutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return mShutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return mShutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+            return mShutdown;
+        }
+    }
+
+    private static class TestBackend extends SegmentingMuxerBackend {
+        private MediaFormat mVideoFormat;
+
+        TestBackend(final Recorder recorder, final long maxDurationUs, final long maxBytes, final Runnable syncFrameRequester) {
+            this(recorder, maxDurationUs, maxBytes, syncFrameRequester, new DirectExecutor(), new DirectExecutor());
+        }
+
+        TestBackend(final Recorder recorder, final long maxDurationUs, final long maxBytes, final Runnable syncFrameRequester,
+                    final ExecutorService openExecutor, final ExecutorService finishExecutor) {
+            super(recorder, maxDurationUs, maxBytes, syncFrameRequester, recorder, openExecutor, finishExecutor);
+        }
+
+        int addVideoTrack() {
+            mVideoFormat = new MediaFormat();
+            return addTrack(mVideoFormat);
+        }
+
+        @Override
+        protected boolean isVideoTrack(final MediaFormat format) {
+            // MediaFormat is a stub on the JVM
+            return format == mVideoFormat;
+        }
+    }
+
+    /**
+     * BufferInfo#set is a stub on the JVM
+     */
+    private static void set(final MediaCodec.BufferInfo info, final int offset, final int size,
+                            final long presentationTimeUs, final int flags) {
+        info.offset = offset;
+        info.size = size;
+        info.presentationTimeUs = presentationTimeUs;
+        info.flags = flags;
+    }
+
+    @Test
+    public void rotatesOnRequestedSyncFrame() {
+        final Recorder recorder = new Recorder();
+        final boolean[] syncRequested = new boolean[1];
+        final TestBackend backend = new TestBackend(recorder, 1000000, 0, new Runnable() {
+            @Override
+            public void run() {
+                syncRequested[0] = true;
+            }
+        });
+        final int video = backend.addVideoTrack();
+        final int audio = backend.addTrack(new MediaFormat());
+        backend.start();
+
+        final ByteBuffer buf = ByteBuffer.allocate(1000);
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        final int frames = 250;    // 10 seconds
+        for (int i = 0; i < frames; i++) {
+            final boolean sync = i % GOP == 0 || syncRequested[0];
+            syncRequested[0] = false;
+            set(info, 0, 1000, i * FRAME_US, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+            backend.writeSampleData(video, buf, info);
+            set(info, 0, 100, i * FRAME_US + 1000, 0);
+            backend.writeSampleData(audio, buf, info);
+        }
+        backend.stop();
+        backend.release();
+
+        // 1s segments cut one frame after the limit was hit, plus the one prepared ahead
+        final List<FakeMuxerBackend> muxers = recorder.muxers;
+        final int segments = recorder.started.size();
+        assertTrue("segments=" + segments, segments >= 9 && segments <= 10);
+        assertEquals(recorder.started, recorder.finished);
+        assertEquals(segments + 1, muxers.size());
+        long videoSamples = 0, audioSamples = 0;
+        for (int i = 0; i < segments; i++) {
+            final FakeMuxerBackend muxer = muxers.get(i);
+            assertTrue(muxer.isStopped());
+            assertTrue(muxer.isReleased());
+            assertEquals(2, muxer.getTrackCount());
+            assertTrue(muxer.getSyncFrames(video) >= 1);
+            assertEquals(0, muxer.getNonMonotonicCount());
+            videoSamples += muxer.getSamples(video);
+            audioSamples += muxer.getSamples(audio);
+        }
+        for (int i = 0; i < segments - 1; i++) {
+            final long durationUs = recorder.durations.get(i);
+            assertTrue("duration=" + durationUs, durationUs >= 1000000 && durationUs <= 1000000 + 2 * FRAME_US);
+        }
+        assertEquals(frames, videoSamples);
+        assertEquals(frames, audioSamples);
+        // prepared ahead but never used
+        final FakeMuxerBackend spare = muxers.get(segments);
+        assertFalse(spare.isStarted());
+        assertTrue(spare.isReleased());
+    }
+
+    @Test
+    public void waitsForSyncFrameWithoutRequester() {
+        final Recorder recorder = new Recorder();
+        final TestBackend backend = new TestBackend(recorder, 1000000, 0, null);
+        final int video = backend.addVideoTrack();
+        backend.start();
+
+        final ByteBuffer buf = ByteBuffer.allocate(1000);
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < 3 * GOP; i++) {
+            set(info, 0, 1000, i * FRAME_US, i % GOP == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+            backend.writeSampleData(video, buf, info);
+        }
+        backend.stop();
+
+        // segments can only be cut at the regular I frames
+        assertEquals(3, recorder.finished.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(GOP, recorder.muxers.get(i).getSamples(video));
+            assertEquals(1, recorder.muxers.get(i).getSyncFrames(video));
+        }
+    }
+
+    @Test
+    public void rotatesAudioOnlyBySize() {
+        final Recorder recorder = new Recorder();
+        final TestBackend backend = new TestBackend(recorder, 0, 10000, null);
+        final int audio = backend.addTrack(new MediaFormat());
+        backend.start();
+
+        final ByteBuffer buf = ByteBuffer.allocate(1000);
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < 100; i++) {
+            set(info, 0, 1000, i * 23220L, 0);
+            backend.writeSampleData(audio, buf, info);
+        }
+        backend.stop();
+
+        assertEquals(10, recorder.finished.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(10, recorder.muxers.get(i).getSamples(audio));
+            assertEquals(10000, recorder.muxers.get(i).getBytes(audio));
+        }
+    }
+
+    @Test
+    public void slowOpen_defersRotationAndStopDoesNotWait() throws Exception {
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch finishing = new CountDownLatch(1);
+        final Recorder recorder = new Recorder() {
+            @Override
+            public MuxerBackend create(final String path) throws IOException {
+                // the first segment is opened on the writer thread in #start
+                if (!muxers.isEmpty()) {
+                    try {
+                        opened.await();
+                    } catch (final InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return super.create(path);
+            }
+        };
+        final ExecutorService finishExecutor = Executors.newSingleThreadExecutor();
+        final int[] syncRequests = new int[1];
+        final TestBackend backend = new TestBackend(recorder, 1000000, 0, new Runnable() {
+            @Override
+            public void run() {
+                syncRequests[0]++;
+            }
+        }, Executors.newSingleThreadExecutor(), finishExecutor);
+        final int video = backend.addVideoTrack();
+        backend.start();
+
+        final ByteBuffer buf = ByteBuffer.allocate(1000);
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int frame = 0;
+        // two regular I frames pass while the next segment is still being opened
+        for (; frame < 2 * GOP + 1; frame++) {
+            set(info, 0, 1000, frame * FRAME_US, frame % GOP == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+            backend.writeSampleData(video, buf, info);
+        }
+        assertEquals(0, syncRequests[0]);
+        assertEquals(1, recorder.started.size());
+
+        opened.countDown();
+        for (int i = 0; i < 100 && recorder.muxers.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        // requested once the next segment is ready, cut at that sync frame
+        set(info, 0, 1000, frame++ * FRAME_US, 0);
+        backend.writeSampleData(video, buf, info);
+        assertEquals(1, syncRequests[0]);
+        set(info, 0, 1000, frame++ * FRAME_US, MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+        backend.writeSampleData(video, buf, info);
+        assertEquals(2, recorder.started.size());
+        assertEquals(2 * GOP + 2, recorder.muxers.get(0).getSamples(video));
+
+        for (int i = 0; i < 100 && recorder.finished.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, recorder.finished.size());
+
+        // finishing the last segment does not hold up stop
+        finishExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finishing.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        backend.stop();
+        backend.release();
+        assertEquals(1, recorder.finished.size());
+        finishing.countDown();
+        assertTrue(finishExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(recorder.started, recorder.finished);
+        assertTrue(recorder.muxers.get(1).isReleased());
+    }
+}
@@ -0,0 +1,126 @@
+package com.wang.screenavrecorder;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VideoEncoderConfigTest {
+
+    @Test
+    public void bitRate_isCalculatedWhenAuto() {
+        final VideoEncoderConfig config = new VideoEncoderConfig.Builder().setSize(720, 1280).setFrameRate(30).build();
+        assertEquals((int) (VideoEncoderConfig.BPP * 30 * 720 * 1280), config.getBitRate());
+        assertEquals(2000000, new VideoEncoderConfig.Builder(config).setBitRate(2000000).build().getBitRate());
+    }
+
+    @Test
+    public void resolveBitRate_clampsAutoToCodecRange() {
+        final int upper = 40000000;
+        // 4K at 60fps calculates far above what the codec takes
+        assertEquals(upper, VideoEncoderConfig.resolveBitRate(VideoEncoderConfig.AUTO,
+                VideoEncoderConfig.CODEC_AVC, 60, 2160, 3840, 64000, upper));
+        assertEquals((int) (VideoEncoderConfig.BPP_HEVC * 30 * 720 * 1280), VideoEncoderConfig.resolveBitRate(
+                VideoEncoderConfig.AUTO, VideoEncoderConfig.CODEC_HEVC, 30, 720, 1280, 64000, upper));
+        assertEquals(64000, VideoEncoderConfig.resolveBitRate(1000,
+                VideoEncoderConfig.CODEC_AVC, 30, 720, 1280, 64000, upper));
+    }
+
+    @Test
+    public void adaptiveBitRate_clampsInitialBitRate() {
+        final VideoEncoderConfig config = new VideoEncoderConfig.Builder()
+                .setBitRate(10000000).setAdaptiveBitRate(1000000, 4000000).build();
+        assertTrue(config.isAdaptiveBitRate());
+        assertEquals(4000000, config.getBitRate());
+        assertFalse(new VideoEncoderConfig.Builder().build().isAdaptiveBitRate());
+        assertNotEquals(config, new VideoEncoderConfig.Builder(config).setAdaptiveBitRate(1000000, 5000000).build());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void build_rejectsInvertedAdaptiveRange() {
+        new VideoEncoderConfig.Builder().setAdaptiveBitRate(4000000, 1000000).build();
+    }
+
+    @Test
+    public void dynamicFrameRate_isPartOfConfig() {
+        final VideoEncoderConfig config = new VideoEncoderConfig.Builder().setFrameRate(30).setDynamicFrameRate(1).build();
+        assertTrue(config.isDynamicFrameRate());
+        assertEquals(1, config.getMinFrameRate());
+        assertFalse(new VideoEncoderConfig.Builder().build().isDynamicFrameRate());
+        assertNotEquals(config, new VideoEncoderConfig.Builder(config).setDynamicFrameRate(5).build());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void build_rejectsFloorAboveFrameRate() {
+        new VideoEncoderConfig.Builder().setFrameRate(30).setDynamicFrameRate(60).build();
+    }
+
+    @Test
+    public void sizeToFit_isScaledAndAligned() {
+        final VideoEncoderConfig config = new VideoEncoderConfig.Builder().setSizeToFit(1440, 3120, 1920).build();
+        assertEquals(880, config.getWidth());
+        assertEquals(1920, config.getHeight());
+        // never scaled up
+        assertArrayEquals(new int[]{720, 1280}, VideoEncoderConfig.fitSize(720, 1280, 1920, 16));
+        assertArrayEquals(new int[]{1072, 2400}, VideoEncoderConfig.fitSize(1080, 2400, 2400, 16));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void build_rejectsInvalidFrameRate() {
+        new VideoEncoderConfig.Builder().setFrameRate(0).build();
+    }
+
+    @Test
+    public void selectProfile_stepsDownToSupported() {
+        final int[] supported = {CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCProfileMain};
+        assertEquals(CodecProfileLevel.AVCProfileMain,
+                VideoEncoderConfig.selectProfile(CodecProfileLevel.AVCProfileMain, supported));
+        assertEquals(CodecProfileLevel.AVCProfileMain,
+                VideoEncoderConfig.selectProfile(CodecProfileLevel.AVCProfileHigh, supported));
+        assertEquals(VideoEncoderConfig.AUTO,
+                VideoEncoderConfig.selectProfile(CodecProfileLevel.AVCProfileBaseline, new int[0]));
+    }
+
+    @Test
+    public void selectLevel_isCappedByProfile() {
+        final int[] profiles = {CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCProfileHigh};
+        final int[] levels = {CodecProfileLevel.AVCLevel31, CodecProfileLevel.AVCLevel41};
+        assertEquals(CodecProfileLevel.AVCLevel41, VideoEncoderConfig.selectLevel(
+                CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel51, profiles, levels));
+        assertEquals(CodecProfileLevel.AVCLevel31, VideoEncoderConfig.selectLevel(
+                CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCLevel41, profiles, levels));
+        assertEquals(CodecProfileLevel.AVCLevel4, VideoEncoderConfig.selectLevel(
+                CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel4, profiles, levels));
+    }
+
+    @Test
+    public void alignDown_keepsAtLeastOneBlock() {
+        assertEquals(1072, VideoEncoderConfig.alignDown(1080, 16));
+        assertEquals(16, VideoEncoderConfig.alignDown(10, 16));
+    }
+
+    @Test
+    public void hevc_usesLowerBitRate() {
+        final VideoEncoderConfig avc = new VideoEncoderConfig.Builder().setSize(1080, 1920).build();
+        final VideoEncoderConfig hevc = new VideoEncoderConfig.Builder(avc).setCodec(VideoEncoderConfig.CODEC_HEVC).build();
+        assertEquals(VideoEncoderConfig.MIME_TYPE_HEVC, hevc.getMimeType());
+        assertEquals(VideoEncoderConfig.MIME_TYPE_AVC,
+                new VideoEncoderConfig.Builder(avc).setCodec(VideoEncoderConfig.CODEC_AUTO).build().getMimeType());
+        assertTrue(hevc.getBitRate() < avc.getBitRate());
+    }
+
+    @Test
+    public void fragmentedMp4_forcesAvcWithoutBFrames() {
+        final VideoEncoderConfig hevc = new VideoEncoderConfig.Builder().setSize(1080, 1920)
+                .setCodec(VideoEncoderConfig.CODEC_HEVC).setProfile(2).setBFrames(true).build();
+        final VideoEncoderConfig supported = FragmentedMp4MuxerBackend.toSupportedConfig(hevc);
+        assertEquals(VideoEncoderConfig.CODEC_AVC, supported.getCodec());
+        assertEquals(VideoEncoderConfig.AUTO, supported.getProfile());
+        assertFalse(supported.isBFramesEnabled());
+        assertEquals(VideoEncoderConfig.CODEC_AVC, FragmentedMp4MuxerBackend.toSupportedConfig(
+                new VideoEncoderConfig.Builder().setCodec(VideoEncoderConfig.CODEC_AUTO).build()).getCodec());
+        final VideoEncoderConfig avc = new VideoEncoderConfig.Builder().build();
+        assertSame(avc, FragmentedMp4MuxerBackend.toSupportedConfig(avc));
+    }
+}